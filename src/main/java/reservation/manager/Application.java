@@ -3,11 +3,17 @@ package reservation.manager;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import reservation.manager.controllers.ReservationController;
+import reservation.manager.journal.JournalConfiguration;
+import reservation.manager.repository.RepositoryConfiguration;
 import reservation.manager.service.ReservationService;
+import reservation.manager.shard.ShardConfiguration;
 
 @SpringBootApplication
-@ComponentScan(basePackageClasses = { ReservationController.class, ReservationService.class })
+@EnableScheduling
+@ComponentScan(basePackageClasses = { ReservationController.class, ReservationService.class,
+		JournalConfiguration.class, RepositoryConfiguration.class, ShardConfiguration.class })
 public class Application {
 	public static void main(String[] args) {
 		SpringApplication.run(Application.class, args);
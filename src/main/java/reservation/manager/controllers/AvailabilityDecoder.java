@@ -0,0 +1,54 @@
+package reservation.manager.controllers;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.AbstractDecoder;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reservation.manager.service.AvailabilityView;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads {@link AvailabilityView}s in the {@link AvailabilityWireFormat}, e.g. for a {@code WebClient} talking to
+ * another node. Days are emitted as soon as their frame is complete, however the bytes were split.
+ */
+public class AvailabilityDecoder extends AbstractDecoder<AvailabilityView> {
+
+    public AvailabilityDecoder() {
+        super(AvailabilityWireFormat.MEDIA_TYPE);
+    }
+
+    @Override
+    public boolean canDecode(ResolvableType elementType, MimeType mimeType) {
+        return AvailabilityView.class.isAssignableFrom(elementType.toClass()) && super.canDecode(elementType, mimeType);
+    }
+
+    @Override
+    public Flux<AvailabilityView> decode(Publisher<DataBuffer> input, ResolvableType elementType, MimeType mimeType,
+                                         Map<String, Object> hints) {
+        return Flux.defer(() -> {
+            // the names read so far belong to this response
+            AvailabilityWireFormat.Reader reader = new AvailabilityWireFormat.Reader();
+            return Flux.from(input)
+                    .concatMapIterable(buffer -> read(reader, buffer))
+                    .concatWith(Mono.fromRunnable(reader::finish))
+                    .onErrorMap(IllegalArgumentException.class, e -> new DecodingException(e.getMessage(), e));
+        });
+    }
+
+    private static List<AvailabilityView> read(AvailabilityWireFormat.Reader reader, DataBuffer buffer) {
+        try {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            return reader.read(bytes);
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package reservation.manager.controllers;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.AbstractEncoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reservation.manager.service.AvailabilityView;
+
+import java.util.Map;
+
+/**
+ * Writes {@link AvailabilityView}s in the {@link AvailabilityWireFormat}, a buffer per day.
+ */
+public class AvailabilityEncoder extends AbstractEncoder<AvailabilityView> {
+
+    public AvailabilityEncoder() {
+        super(AvailabilityWireFormat.MEDIA_TYPE);
+    }
+
+    @Override
+    public boolean canEncode(ResolvableType elementType, MimeType mimeType) {
+        return AvailabilityView.class.isAssignableFrom(elementType.toClass()) && super.canEncode(elementType, mimeType);
+    }
+
+    @Override
+    public Flux<DataBuffer> encode(Publisher<? extends AvailabilityView> input, DataBufferFactory bufferFactory,
+                                   ResolvableType elementType, MimeType mimeType, Map<String, Object> hints) {
+        return Flux.defer(() -> {
+            // the names sent so far belong to this response
+            AvailabilityWireFormat.Writer writer = new AvailabilityWireFormat.Writer();
+            return Flux.from(input).map(view -> bufferFactory.wrap(writer.frame(view)));
+        });
+    }
+
+    @Override
+    public DataBuffer encodeValue(AvailabilityView view, DataBufferFactory bufferFactory, ResolvableType valueType,
+                                  MimeType mimeType, Map<String, Object> hints) {
+        return bufferFactory.wrap(new AvailabilityWireFormat.Writer().frame(view));
+    }
+}
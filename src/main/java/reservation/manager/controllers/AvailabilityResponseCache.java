@@ -0,0 +1,166 @@
+package reservation.manager.controllers;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Value;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reservation.manager.models.ReservationResponse;
+import reservation.manager.models.ReservationsResponse;
+import reservation.manager.service.AvailabilityView;
+import reservation.manager.service.ReservationUtil;
+
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the encoded JSON for availability responses around until the underlying data changes. Nearly all of our
+ * traffic is reads, so most GETs end up copying cached bytes (or sending a 304) instead of mapping and serializing
+ * every slot again.
+ */
+@Component
+public class AvailabilityResponseCache {
+
+    /**
+     * Versions start over when the app restarts, so tag ETags with when we started to keep an old ETag from matching a
+     * new response.
+     */
+    private final String instanceTag = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    private final ObjectMapper objectMapper;
+    private final Map<LocalDate, EncodedResponse> days = new ConcurrentHashMap<>();
+    private volatile EncodedResponse all;
+
+    @Autowired
+    public AvailabilityResponseCache(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Returns the encoded response for a single day.
+     *
+     * @param view the day's availability
+     * @return the encoded response
+     */
+    public EncodedResponse forDay(AvailabilityView view) {
+        EncodedResponse cached = days.get(view.getDate());
+        if (cached != null && cached.getVersion() == view.getVersion()) {
+            return cached;
+        }
+        cached = encode(view.getVersion(), toResponse(view), view.isEmpty());
+        if (days.put(view.getDate(), cached) == null) {
+            // first time we've seen this day, a good moment to let go of days that have passed
+            LocalDate today = LocalDate.now();
+            days.keySet().removeIf(date -> date.isBefore(today));
+        }
+        return cached;
+    }
+
+    /**
+     * Returns the encoded response for every day.
+     *
+     * @param version the availability version, read before {@code views}
+     * @param views   supplies the days, only called if the cached response is out of date
+     * @return the encoded response
+     */
+    public EncodedResponse forAll(long version, Supplier<List<AvailabilityView>> views) {
+        EncodedResponse cached = all;
+        if (cached != null && cached.getVersion() == version) {
+            return cached;
+        }
+        List<ReservationsResponse> responses = views.get().stream()
+                .map(AvailabilityResponseCache::toResponse)
+                .collect(Collectors.toList());
+        cached = encode(version, responses, responses.isEmpty());
+        all = cached;
+        return cached;
+    }
+
+    /**
+     * Maps a day's view to the response model. The view is already in time order, so there's nothing to sort.
+     *
+     * @param view the day's availability
+     * @return the response model
+     */
+    public static ReservationsResponse toResponse(AvailabilityView view) {
+        return new ReservationsResponse(view.getDate(), view.getReservations().stream()
+                .map(reservation -> ReservationResponse.builder()
+                        .reservationTime(ReservationUtil.convertBlockToTime(reservation.getTimeBlock()))
+                        .provider(reservation.getProvider())
+                        .build())
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Returns the ETag of a version's response in the {@link AvailabilityWireFormat}. It's a different
+     * representation from the JSON, so it has its own tag.
+     *
+     * @param version the day's or the calendar's version
+     * @return the ETag
+     */
+    public String binaryETag(long version) {
+        return "\"" + instanceTag + "-" + version + "-bin\"";
+    }
+
+    private EncodedResponse encode(long version, Object body, boolean empty) {
+        try {
+            return new EncodedResponse(version, "\"" + instanceTag + "-" + version + "\"",
+                    objectMapper.writeValueAsBytes(body), empty);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * JSON body plus the ETag that identifies it.
+     */
+    @Value
+    public static class EncodedResponse {
+        long version;
+        String eTag;
+        byte[] body;
+
+        /**
+         * Whether there was nothing open, the controller turns that into a 404.
+         */
+        boolean empty;
+
+        /**
+         * Checks an {@code If-None-Match} header against this response's ETag.
+         *
+         * @param ifNoneMatch the header value, may be {@code null}
+         * @return {@code true} if the client already has this response
+         */
+        public boolean matches(String ifNoneMatch) {
+            return AvailabilityResponseCache.matches(ifNoneMatch, eTag);
+        }
+    }
+
+    /**
+     * Checks an {@code If-None-Match} header against an ETag.
+     *
+     * @param ifNoneMatch the header value, may be {@code null}
+     * @param eTag        the response's ETag
+     * @return {@code true} if the client already has the response
+     */
+    public static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
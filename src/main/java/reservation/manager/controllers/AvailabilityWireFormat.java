@@ -0,0 +1,242 @@
+package reservation.manager.controllers;
+
+import org.springframework.http.MediaType;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.AvailabilityView;
+import reservation.manager.service.ReservationUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of availability, for clients that ask for {@value #MEDIA_TYPE_VALUE} instead of JSON.
+ * <p>
+ * A response is a run of frames, one per day, each a varint length followed by:
+ * <ul>
+ *     <li>the day, as a zigzag varint of the epoch day minus the previous frame's (0 for the first)</li>
+ *     <li>the day's version, a varint</li>
+ *     <li>how many providers follow, a varint, and for each one:</li>
+ *     <li>its index in the names seen so far, a varint. If it's the next index the name follows, as a varint length
+ *     and UTF-8 bytes, so each name is only sent once per response</li>
+ *     <li>its open blocks, {@value #BITMAP_BYTES} bytes with block {@code i} at bit {@code i % 8} of byte
+ *     {@code i / 8}</li>
+ * </ul>
+ * That's about 14 bytes per provider-day, where JSON repeats the name and a time for every open slot. Frames are
+ * self-delimiting, so a response can be written and read a day at a time. Only single block slots are encoded, which
+ * is what availability views hold.
+ */
+public final class AvailabilityWireFormat {
+
+    /**
+     * The media type clients put in {@code Accept} to get this format.
+     */
+    public static final String MEDIA_TYPE_VALUE = "application/x-reservation-availability";
+
+    public static final MediaType MEDIA_TYPE = MediaType.valueOf(MEDIA_TYPE_VALUE);
+
+    static final int BITMAP_BYTES = (ReservationUtil.BLOCKS_PER_DAY + Byte.SIZE - 1) / Byte.SIZE;
+
+    private AvailabilityWireFormat() {
+    }
+
+    /**
+     * Writes the frames of one response. Holds the names sent so far, so it's one per response.
+     */
+    static final class Writer {
+        private final Map<String, Integer> names = new LinkedHashMap<>();
+        private long previousDay;
+
+        /**
+         * Encodes one day.
+         *
+         * @param view the day
+         * @return the frame, length included
+         */
+        byte[] frame(AvailabilityView view) {
+            // the view is in time order, collect it back into one bitmap per provider
+            Map<String, byte[]> bitmaps = new LinkedHashMap<>();
+            for (Reservation reservation : view.getReservations()) {
+                int block = reservation.getTimeBlock();
+                bitmaps.computeIfAbsent(reservation.getProvider(), k -> new byte[BITMAP_BYTES])[block >>> 3] |=
+                        (byte) (1 << (block & 7));
+            }
+            long epochDay = view.getDate().toEpochDay();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(16 + bitmaps.size() * (BITMAP_BYTES + 2));
+            writeVarint(body, zigzag(epochDay - previousDay));
+            writeVarint(body, view.getVersion());
+            writeVarint(body, bitmaps.size());
+            for (Map.Entry<String, byte[]> bitmap : bitmaps.entrySet()) {
+                Integer index = names.get(bitmap.getKey());
+                if (index == null) {
+                    writeVarint(body, names.size());
+                    byte[] name = bitmap.getKey().getBytes(StandardCharsets.UTF_8);
+                    writeVarint(body, name.length);
+                    body.write(name, 0, name.length);
+                    names.put(bitmap.getKey(), names.size());
+                } else {
+                    writeVarint(body, index);
+                }
+                body.write(bitmap.getValue(), 0, BITMAP_BYTES);
+            }
+            previousDay = epochDay;
+            byte[] bytes = body.toByteArray();
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(bytes.length + 5);
+            writeVarint(frame, bytes.length);
+            frame.write(bytes, 0, bytes.length);
+            return frame.toByteArray();
+        }
+    }
+
+    /**
+     * Reads the frames of one response, in order. Holds the names read so far, so it's one per response.
+     */
+    static final class Reader {
+        private final List<String> names = new ArrayList<>();
+        private long previousDay;
+        private byte[] pending = new byte[0];
+        private int pendingLength;
+
+        /**
+         * Adds bytes that arrived and decodes every frame that's now complete.
+         *
+         * @param bytes the bytes
+         * @return the days, in the order they were written
+         * @throws IllegalArgumentException if the bytes aren't in this format
+         */
+        List<AvailabilityView> read(byte[] bytes) {
+            if (pendingLength + bytes.length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + bytes.length));
+            }
+            System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+            pendingLength += bytes.length;
+            List<AvailabilityView> views = new ArrayList<>();
+            int[] position = {0};
+            while (true) {
+                int start = position[0];
+                long length = readVarint(pending, position, pendingLength);
+                if (length < 0 || position[0] + length > pendingLength) {
+                    position[0] = start;
+                    break;
+                }
+                int end = position[0] + (int) length;
+                views.add(day(position, end));
+                position[0] = end;
+            }
+            System.arraycopy(pending, position[0], pending, 0, pendingLength - position[0]);
+            pendingLength -= position[0];
+            return views;
+        }
+
+        /**
+         * Checks nothing was left half read once the response is over.
+         *
+         * @throws IllegalArgumentException if the last frame was cut short
+         */
+        void finish() {
+            if (pendingLength > 0) {
+                throw new IllegalArgumentException("Availability response ends in the middle of a day");
+            }
+        }
+
+        private AvailabilityView day(int[] position, int end) {
+            long epochDay = previousDay + unzigzag(require(readVarint(pending, position, end)));
+            long version = require(readVarint(pending, position, end));
+            long count = require(readVarint(pending, position, end));
+            check(count <= (end - position[0]) / BITMAP_BYTES);
+            String[] providers = new String[(int) count];
+            byte[][] bitmaps = new byte[(int) count][];
+            for (int i = 0; i < count; i++) {
+                int index = requireInt(readVarint(pending, position, end));
+                if (index == names.size()) {
+                    int length = requireInt(readVarint(pending, position, end));
+                    check(length <= end - position[0]);
+                    names.add(new String(pending, position[0], length, StandardCharsets.UTF_8));
+                    position[0] += length;
+                }
+                check(index < names.size() && position[0] + BITMAP_BYTES <= end);
+                providers[i] = names.get(index);
+                bitmaps[i] = Arrays.copyOfRange(pending, position[0], position[0] + BITMAP_BYTES);
+                position[0] += BITMAP_BYTES;
+            }
+            previousDay = epochDay;
+            return new AvailabilityView(LocalDate.ofEpochDay(epochDay), version, reservations(providers, bitmaps));
+        }
+
+        /**
+         * Back into time order, then provider name order, the same as the service's views.
+         */
+        private static List<Reservation> reservations(String[] providers, byte[][] bitmaps) {
+            Integer[] byName = new Integer[providers.length];
+            for (int i = 0; i < byName.length; i++) {
+                byName[i] = i;
+            }
+            Arrays.sort(byName, (a, b) -> providers[a].compareTo(providers[b]));
+            List<Reservation> reservations = new ArrayList<>();
+            for (int block = 0; block < ReservationUtil.BLOCKS_PER_DAY; block++) {
+                for (Integer i : byName) {
+                    if ((bitmaps[i][block >>> 3] & (1 << (block & 7))) != 0) {
+                        reservations.add(Reservation.builder().provider(providers[i]).timeBlock(block).build());
+                    }
+                }
+            }
+            return Collections.unmodifiableList(reservations);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads a varint, moving {@code position} past it.
+     *
+     * @return the value, or -1 if it runs past {@code end}
+     */
+    private static long readVarint(byte[] bytes, int[] position, int end) {
+        long value = 0;
+        for (int shift = 0, i = position[0]; i < end && shift < Long.SIZE; shift += 7, i++) {
+            byte b = bytes[i];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                position[0] = i + 1;
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static long require(long value) {
+        check(value >= 0);
+        return value;
+    }
+
+    private static int requireInt(long value) {
+        check(value >= 0 && value <= Integer.MAX_VALUE);
+        return (int) value;
+    }
+
+    private static void check(boolean valid) {
+        if (!valid) {
+            throw new IllegalArgumentException("Malformed availability response");
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package reservation.manager.controllers;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+/**
+ * Adds the {@link AvailabilityWireFormat} to the codecs, next to JSON. It's only used when a client asks for it in
+ * {@code Accept}, JSON stays the default.
+ */
+@Configuration
+public class CodecConfiguration implements WebFluxConfigurer {
+
+    @Override
+    public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+        configurer.customCodecs().register(new AvailabilityEncoder());
+        configurer.customCodecs().register(new AvailabilityDecoder());
+    }
+}
@@ -2,119 +2,495 @@ package reservation.manager.controllers;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.util.CollectionUtils;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
-import reservation.manager.models.Reservation;
-import reservation.manager.models.ReservationResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reservation.manager.models.AvailabilityChange;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityRule;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.BookingTarget;
+import reservation.manager.models.ConfirmedPage;
+import reservation.manager.models.ConfirmedReservationsResponse;
+import reservation.manager.models.PatientReservation;
 import reservation.manager.models.ReservationsResponse;
-import reservation.manager.service.ReservationService;
-import reservation.manager.service.ReservationUtil;
+import reservation.manager.service.AvailabilityRules;
+import reservation.manager.service.AvailabilityView;
+import reservation.manager.service.ConfirmedDay;
+import reservation.manager.service.ReactiveReservationService;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/reservations")
 @ComponentScan
 public class ReservationController {
-	private final ReservationService reservationService;
+	private static final int AVAILABILITY_BATCH_SIZE = 512;
+	private static final int MAX_NEXT_COUNT = 1000;
+	private static final int MAX_BATCH_TARGETS = 50;
+	private static final int DEFAULT_CONFIRMED_DAYS = 31;
+	private static final int MAX_CONFIRMED_DAYS = 366;
+
+	private final ReactiveReservationService reservationService;
+	private final AvailabilityResponseCache responseCache;
+	private final AvailabilityRules rules;
 
 	@Autowired
-	public ReservationController(ReservationService reservationService) {
+	public ReservationController(ReactiveReservationService reservationService,
+			AvailabilityResponseCache responseCache, AvailabilityRules rules) {
 		this.reservationService = reservationService;
+		this.responseCache = responseCache;
+		this.rules = rules;
 	}
 
 	@GetMapping("/{date}")
-	public ResponseEntity<ReservationsResponse> getReservationsByDate(@PathVariable LocalDate date) {
-		try{
-			Set<Reservation> reservations = reservationService.getAvailability(date);
-			if(CollectionUtils.isEmpty(reservations)) {
+	public Mono<ResponseEntity<byte[]>> getReservationsByDate(@PathVariable LocalDate date,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		return materialized(date).then(reservationService.getAvailabilityView(date)).map(reservations -> {
+			if(reservations.isEmpty()) {
 				throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No reservations available.");
 			} else {
-				return new ResponseEntity<>(
-						new ReservationsResponse(date,
-								reservations.stream().map(e -> ReservationResponse.builder()
-						.reservationTime(ReservationUtil.convertBlockToTime(e.getTimeBlock()))
-						.provider(e.getProvider())
-						.build())
-										// since we're sorting here, this method will run in O(nlogn), but that's
-										// better than sorting it every time we're manipulating the reservations,
-										// where n is the average number of appts per day
-										.sorted((a, b) -> a.getReservationTime().compareTo(b.getReservationTime()))
-										.collect(Collectors.toList())), HttpStatus.OK);
+				// the view is kept in time order and the encoded bytes are cached until the day changes
+				return respond(responseCache.forDay(reservations), ifNoneMatch);
+			}
+		});
+	}
+
+	@GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<ResponseEntity<byte[]>> getReservations(
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		// read the version before the days, so a response is never labelled newer than what went into it
+		return reservationService.read(service -> responseCache.forAll(service.getAvailabilityVersion(),
+				service::getAvailability)).map(response -> {
+			if (response.isEmpty()) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No Reservations available.");
+			} else {
+				return respond(response, ifNoneMatch);
+			}
+		});
+	}
+
+	/**
+	 * Same as {@link #getReservationsByDate} in the {@link AvailabilityWireFormat}, for clients that ask for it.
+	 */
+	@GetMapping(value = "/{date}", produces = AvailabilityWireFormat.MEDIA_TYPE_VALUE)
+	public Mono<ResponseEntity<AvailabilityView>> getBinaryReservationsByDate(@PathVariable LocalDate date,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		return materialized(date).then(reservationService.getAvailabilityView(date)).map(view -> {
+			if (view.isEmpty()) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No reservations available.");
 			}
-		} catch (DateTimeParseException e) {
-			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid date format.");
+			return respondBinary(responseCache.binaryETag(view.getVersion()), ifNoneMatch, view);
+		});
+	}
+
+	/**
+	 * Same as {@link #getReservations} in the {@link AvailabilityWireFormat}, written a day at a time.
+	 */
+	@GetMapping(produces = AvailabilityWireFormat.MEDIA_TYPE_VALUE)
+	public Mono<ResponseEntity<Flux<AvailabilityView>>> getBinaryReservations(
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		return reservationService.read(service -> {
+			// read the version before the days, so a response is never labelled newer than what went into it
+			String eTag = responseCache.binaryETag(service.getAvailabilityVersion());
+			List<AvailabilityView> views = service.getAvailability();
+			if (views.isEmpty()) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No Reservations available.");
+			}
+			return respondBinary(eTag, ifNoneMatch, Flux.fromIterable(views));
+		});
+	}
+
+	/**
+	 * Streams availability one day at a time as newline delimited JSON, so the first day goes out before the rest
+	 * of the calendar has been looked at and nothing holds the whole calendar in memory.
+	 * <p>
+	 * To page, pass {@code limit} and resume with {@code cursor} set to the last date received.
+	 *
+	 * @param from     first date, inclusive
+	 * @param to       last date, inclusive
+	 * @param provider only this provider's slots
+	 * @param limit    max number of days to send
+	 * @param cursor   the last date already received, streaming resumes after it
+	 * @return the days with open slots, in date order
+	 */
+	@GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<ReservationsResponse> streamReservations(@RequestParam(required = false) LocalDate from,
+			@RequestParam(required = false) LocalDate to,
+			@RequestParam(required = false) String provider,
+			@RequestParam(required = false) Integer limit,
+			@RequestParam(required = false) LocalDate cursor) {
+		return availabilityStream(from, to, provider, limit, cursor)
+				.map(AvailabilityResponseCache::toResponse);
+	}
+
+	/**
+	 * Same as {@link #streamReservations} as server-sent events. Each event's id is its date, so a client that
+	 * reconnects with {@code Last-Event-ID} picks up where it left off.
+	 */
+	@GetMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public Flux<ServerSentEvent<ReservationsResponse>> streamReservationEvents(
+			@RequestParam(required = false) LocalDate from,
+			@RequestParam(required = false) LocalDate to,
+			@RequestParam(required = false) String provider,
+			@RequestParam(required = false) Integer limit,
+			@RequestParam(required = false) LocalDate cursor,
+			@RequestHeader(value = "Last-Event-ID", required = false) LocalDate lastEventId) {
+		return availabilityStream(from, to, provider, limit, cursor != null ? cursor : lastEventId)
+				.map(view -> ServerSentEvent.builder(AvailabilityResponseCache.toResponse(view))
+						.id(view.getDate().toString())
+						.build());
+	}
+
+	/**
+	 * Pushes changes to what's bookable as newline delimited JSON, from now on, so clients can grey out taken slots
+	 * without polling. A client that falls behind gets a {@code RESYNC} and should fetch the range again.
+	 *
+	 * @param from     first date, inclusive
+	 * @param to       last date, inclusive
+	 * @param provider only this provider's slots
+	 * @return the changes, until the client goes away
+	 */
+	@GetMapping(value = "/changes", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<AvailabilityChange> streamChanges(@RequestParam(required = false) LocalDate from,
+			@RequestParam(required = false) LocalDate to,
+			@RequestParam(required = false) String provider) {
+		return reservationService.watch(from, to, provider);
+	}
+
+	/**
+	 * Same as {@link #streamChanges} as server-sent events, named after the kind of change.
+	 */
+	@GetMapping(value = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public Flux<ServerSentEvent<AvailabilityChange>> streamChangeEvents(
+			@RequestParam(required = false) LocalDate from,
+			@RequestParam(required = false) LocalDate to,
+			@RequestParam(required = false) String provider) {
+		return reservationService.watch(from, to, provider)
+				.map(change -> ServerSentEvent.builder(change)
+						.event(change.getType().name())
+						.build());
+	}
+
+	private Flux<AvailabilityView> availabilityStream(LocalDate from, LocalDate to, String provider, Integer limit,
+			LocalDate cursor) {
+		if (limit != null && limit <= 0) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be positive.");
+		}
+		LocalDate start = from;
+		if (cursor != null && (start == null || !start.isAfter(cursor))) {
+			start = cursor.plusDays(1);
+		}
+		LocalDate effectiveFrom = start;
+		// opened per subscriber, and only walked as fast as the client reads
+		Flux<AvailabilityView> days = reservationService.streamAvailability(effectiveFrom, to, provider);
+		return limit == null ? days : days.take(limit);
+	}
+
+	@GetMapping(value = "/providers/{provider}", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<ResponseEntity<List<ReservationsResponse>>> getProviderReservations(@PathVariable String provider,
+			@RequestParam(required = false) LocalDate from,
+			@RequestParam(required = false) LocalDate to) {
+		return found(reservationService.streamProviderAvailability(provider, from, to)
+				.map(AvailabilityResponseCache::toResponse)
+				.collectList(), "No reservations available.");
+	}
+
+	/**
+	 * Lists every time on a day an appointment of {@code minutes} could start.
+	 *
+	 * @param date     the day
+	 * @param minutes  length of the appointment
+	 * @param provider only this provider's times
+	 * @return the start times, in time order
+	 */
+	@GetMapping(value = "/runs/{date}", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<ResponseEntity<ReservationsResponse>> getOpenRuns(@PathVariable LocalDate date,
+			@RequestParam int minutes,
+			@RequestParam(required = false) String provider) {
+		if (minutes <= 0) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "minutes must be positive.");
 		}
+		return materialized(date).then(reservationService.findOpenRuns(date, minutes, provider)).map(runs -> {
+			if (runs.isEmpty()) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No reservations available.");
+			}
+			return new ResponseEntity<>(AvailabilityResponseCache.toResponse(runs), HttpStatus.OK);
+		});
 	}
 
-	@GetMapping()
-	public ResponseEntity<List<ReservationsResponse>> getReservations() {
-		Map<String, Set<Reservation>> reservations = reservationService.getAvailability();
-		List<ReservationsResponse> response =
-		reservations.entrySet().stream().map(e ->
-				new ReservationsResponse(LocalDate.parse(e.getKey(), ReservationService.DATE_FORMATTER),
-				e.getValue().stream()
-
-						.map(reservation -> ReservationResponse.builder()
-						.reservationTime(ReservationUtil.convertBlockToTime(reservation.getTimeBlock()))
-						.provider(reservation.getProvider())
-						.build())
-						// same situation as before O(nlogn) where n is the average number of reservations per days
-						.sorted((a,b) -> a.getReservationTime().compareTo(b.getReservationTime()))
-						.collect(Collectors.toList())
-				))
-				// O(mlogm) where m is the number of days. I _think_ this makes our time complexity of this method O
-				// (mlogm*nlogn).  If we didn't sort, we could get this in O(1) time (sorting isn't a requirement)
-				.sorted((a,b) -> a.getReservationDate().compareTo(b.getReservationDate()))
-				.collect(Collectors.toList());
-		if(CollectionUtils.isEmpty(response)) {
-			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No Reservations available.");
-		} else {
-			return new ResponseEntity<>(response, HttpStatus.OK);
+	/**
+	 * Finds the earliest open slots, across every provider or just one, without the client downloading the calendar.
+	 *
+	 * @param after    earliest start time, defaults to now
+	 * @param count    how many slots to return, up to {@value #MAX_NEXT_COUNT}
+	 * @param provider only this provider's slots
+	 * @return the slots grouped by day, in time order
+	 */
+	@GetMapping(value = "/next", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<ResponseEntity<List<ReservationsResponse>>> getNextAvailable(
+			@RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime after,
+			@RequestParam(defaultValue = "10") int count,
+			@RequestParam(required = false) String provider) {
+		if (count <= 0 || count > MAX_NEXT_COUNT) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"count must be between 1 and " + MAX_NEXT_COUNT + ".");
 		}
+		return found(reservationService
+				.findNextAvailable(after == null ? LocalDateTime.now() : after, count, provider)
+				.map(AvailabilityResponseCache::toResponse)
+				.collectList(), "No reservations available.");
+	}
+
+	@GetMapping(value = "/patients/{patient}", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<ResponseEntity<List<PatientReservation>>> getPatientReservations(@PathVariable String patient) {
+		return found(reservationService.getPatientReservations(patient), "No reservations found.");
 	}
 
 	@PutMapping("/addAvailability/{date}")
-	public ResponseEntity<String> addAvailability(@RequestParam String provider, @PathVariable LocalDate date,
+	public Mono<ResponseEntity<String>> addAvailability(@RequestParam String provider, @PathVariable LocalDate date,
 											@RequestParam LocalTime start,
 											@RequestParam LocalTime end) {
-		reservationService.addAvailability(provider, date, start, end);
-		return ResponseEntity.ok().body("Availability added.");
+		return accepted(reservationService.addAvailability(provider, date, start, end))
+				.thenReturn(ResponseEntity.ok().body("Availability added."));
+	}
+
+	/**
+	 * Bulk version of addAvailability for onboarding whole schedules in one request. Takes newline delimited JSON
+	 * (or a JSON array) of {@link AvailabilityWindow}s and streams back one {@link AvailabilityResult} per window, in
+	 * order. Windows are applied {@value #AVAILABILITY_BATCH_SIZE} at a time and only that many are requested from the
+	 * upload at once, so memory stays flat however big the upload is.
+	 */
+	@PostMapping(value = "/availability",
+			consumes = { MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE },
+			produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<AvailabilityResult> addAvailability(@RequestBody Flux<AvailabilityWindow> windows) {
+		return windows
+				.buffer(AVAILABILITY_BATCH_SIZE)
+				.index()
+				.concatMap(batch -> accepted(reservationService.addAvailability(batch.getT2()))
+						.flatMapIterable(results -> {
+							long firstIndex = batch.getT1() * AVAILABILITY_BATCH_SIZE;
+							for (int i = 0; i < results.size(); i++) {
+								results.get(i).setIndex(firstIndex + i);
+							}
+							return results;
+						}));
+	}
+
+	/**
+	 * Adds a provider's recurring weekly hours. Days are materialized from the rule over a rolling window ahead of
+	 * today, and past it the first time a day is asked for, and behave the same as availability added day by day.
+	 *
+	 * @param rule the rule
+	 * @return the rule as stored, with its id, once its days in the window are durable
+	 */
+	@PostMapping(value = "/rules", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<ResponseEntity<AvailabilityRule>> addRule(@RequestBody AvailabilityRule rule) {
+		// written to disk before it's acknowledged, so off the event loop
+		return Mono.fromCallable(() -> rules.add(rule))
+				.subscribeOn(Schedulers.boundedElastic())
+				.onErrorMap(IllegalArgumentException.class,
+						e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()))
+				.flatMap(added -> accepted(reservationService.addAvailability(rules.materializedWindows(added)))
+						.thenReturn(ResponseEntity.status(HttpStatus.CREATED).body(added)));
+	}
+
+	@GetMapping(value = "/rules", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Mono<ResponseEntity<List<AvailabilityRule>>> getRules() {
+		return found(Mono.fromSupplier(rules::getRules), "No rules found.");
 	}
 
 	//@todo if time permit, add removeAvailability (or I guess a provider can just book their own time to remove it)
 
+	/**
+	 * Holds an appointment starting at {@code start}. Without {@code minutes} it's a single block, otherwise every
+	 * block the appointment covers is held together or not at all.
+	 * <p>
+	 * With {@code wait=true}, if someone else holds the slot the patient is put on its waitlist rather than turned
+	 * away, and the response comes once they have it or won't: when the other hold runs out the slot goes straight to
+	 * the first patient waiting. That's at most the hold TTL later, so there's no need to retry in a loop.
+	 */
 	@PutMapping("/reserve/{date}")
-	public ResponseEntity<String> reserve(@RequestParam String provider, @PathVariable LocalDate date,
-										  @RequestParam LocalTime start, @RequestParam String patient) {
-		boolean successful = reservationService.reserve(provider, patient,date, start);
-
-		return successful
-				? ResponseEntity.ok().body("Reserved! Remember to confirm within 30 min!")
-				: ResponseEntity.badRequest().body("Unable to book appt.");
+	public Mono<ResponseEntity<String>> reserve(@RequestParam String provider, @PathVariable LocalDate date,
+										  @RequestParam LocalTime start, @RequestParam String patient,
+										  @RequestParam(required = false) Integer minutes,
+										  @RequestParam(defaultValue = "false") boolean wait) {
+		if (minutes != null && minutes <= 0) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "minutes must be positive.");
+		}
+		return materialized(date).then(accepted(wait
+				? reservationService.reserveOrWait(provider, patient, date, start, minutes)
+				: reservationService.reserve(provider, patient, date, start, minutes)))
+				.map(successful -> successful
+						? ResponseEntity.ok().body("Reserved! Remember to confirm within 30 min!")
+						: ResponseEntity.badRequest().body("Unable to book appt."));
 	}
 
 	@PutMapping("/confirm/{date}")
-	public ResponseEntity<String> confirm(@RequestParam String provider, @PathVariable LocalDate date,
+	public Mono<ResponseEntity<String>> confirm(@RequestParam String provider, @PathVariable LocalDate date,
 								  @RequestParam LocalTime start, @RequestParam String patient) {
-		boolean successful = reservationService.confirm(provider, patient, date.toString(), start);
+		return accepted(reservationService.confirm(provider, patient, date, start))
+				.map(successful -> successful
+						? ResponseEntity.ok().body("Reservation confirmed!")
+						: ResponseEntity.badRequest().body("Unable to find reservation to confirm."));
+	}
 
-		return successful
-				? ResponseEntity.ok().body("Reservation confirmed!")
-				: ResponseEntity.badRequest().body("Unable to find reservation to confirm.");
+	/**
+	 * Holds every appointment in the body for one patient, or none of them if any isn't available. For group and
+	 * recurring bookings, so a failure part way doesn't leave holds behind to expire.
+	 *
+	 * @param patient the patient
+	 * @param targets the appointments, up to {@value #MAX_BATCH_TARGETS}
+	 */
+	@PutMapping("/reserve/batch")
+	public Mono<ResponseEntity<String>> reserveAll(@RequestParam String patient,
+			@RequestBody List<BookingTarget> targets) {
+		checkBatch(targets);
+		for (BookingTarget target : targets) {
+			if (target.getMinutes() != null && target.getMinutes() <= 0) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "minutes must be positive.");
+			}
+		}
+		return Flux.fromIterable(targets)
+				.map(BookingTarget::getDate)
+				.distinct()
+				.concatMap(this::materialized)
+				.then(accepted(reservationService.reserveAll(patient, targets)))
+				.map(successful -> successful
+						? ResponseEntity.ok()
+								.body("Reserved " + targets.size() + " appts! Remember to confirm within 30 min!")
+						: ResponseEntity.badRequest().body("Unable to book every appt, none were booked."));
+	}
+
+	/**
+	 * Confirms every hold in the body, or none of them if any is missing or has expired.
+	 *
+	 * @param patient the patient
+	 * @param targets the holds, up to {@value #MAX_BATCH_TARGETS}
+	 */
+	@PutMapping("/confirm/batch")
+	public Mono<ResponseEntity<String>> confirmAll(@RequestParam String patient,
+			@RequestBody List<BookingTarget> targets) {
+		checkBatch(targets);
+		return accepted(reservationService.confirmAll(patient, targets))
+				.map(successful -> successful
+						? ResponseEntity.ok().body("Confirmed " + targets.size() + " reservations!")
+						: ResponseEntity.badRequest()
+								.body("Unable to confirm every reservation, none were confirmed."));
+	}
+
+	private static void checkBatch(List<BookingTarget> targets) {
+		if (targets.isEmpty() || targets.size() > MAX_BATCH_TARGETS) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"A batch needs between 1 and " + MAX_BATCH_TARGETS + " appts.");
+		}
+		for (BookingTarget target : targets) {
+			if (target.getProvider() == null || target.getDate() == null || target.getTime() == null) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+						"Every appt needs a provider, date and time.");
+			}
+		}
 	}
 
+	/**
+	 * Pages through confirmed reservations a day at a time, including days that have gone by and been archived.
+	 * To page, resume with {@code cursor} set to the page's {@code nextCursor}.
+	 *
+	 * @param from   first date, inclusive
+	 * @param to     last date, inclusive
+	 * @param limit  max number of days in the page
+	 * @param cursor the last date already received, the page starts after it
+	 * @return the page
+	 */
 	@GetMapping("/confirmed")
-	public Map<String, Set<Reservation>> getConfirmedReservations() {
-		return reservationService.getConfirmedReservations();
+	public Mono<ConfirmedPage> getConfirmedReservations(@RequestParam(required = false) LocalDate from,
+			@RequestParam(required = false) LocalDate to,
+			@RequestParam(required = false) Integer limit,
+			@RequestParam(required = false) LocalDate cursor) {
+		int pageSize = limit == null ? DEFAULT_CONFIRMED_DAYS : limit;
+		if (pageSize <= 0 || pageSize > MAX_CONFIRMED_DAYS) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"limit must be between 1 and " + MAX_CONFIRMED_DAYS + ".");
+		}
+		LocalDate start = from;
+		if (cursor != null && (start == null || !start.isAfter(cursor))) {
+			start = cursor.plusDays(1);
+		}
+		// one day more than the page tells whether there's a next one
+		return reservationService.getConfirmedReservations(start, to, pageSize + 1).map(days -> {
+			List<ConfirmedReservationsResponse> page = new ArrayList<>(Math.min(pageSize, days.size()));
+			for (ConfirmedDay day : days.subList(0, Math.min(pageSize, days.size()))) {
+				page.add(new ConfirmedReservationsResponse(day.getDate(), day.getReservations()));
+			}
+			LocalDate nextCursor = days.size() > pageSize ? page.get(page.size() - 1).getReservationDate() : null;
+			return new ConfirmedPage(page, nextCursor);
+		});
+	}
+
+	/**
+	 * Materializes a day from the recurring rules the first time it's asked for past their rolling window, so it
+	 * reads and books the same as a day inside it. Completes straight away for any other day.
+	 */
+	private Mono<Void> materialized(LocalDate date) {
+		return accepted(rules.materialize(date));
+	}
+
+	/**
+	 * Turns a full mailbox into a 503, so clients back off instead of the server queueing without bound. The service
+	 * only completes a change once it's on disk, so a success is never reported for something a crash could lose.
+	 */
+	private static <T> Mono<T> accepted(Mono<T> change) {
+		return change.onErrorMap(RejectedExecutionException.class,
+				e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too busy, try again."));
+	}
+
+	/**
+	 * Responds with the list, or a 404 with {@code reason} if it's empty.
+	 */
+	private static <T> Mono<ResponseEntity<List<T>>> found(Mono<List<T>> response, String reason) {
+		return response.map(list -> {
+			if (list.isEmpty()) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, reason);
+			}
+			return new ResponseEntity<>(list, HttpStatus.OK);
+		});
+	}
+
+	/**
+	 * Sends the cached body, or just a 304 if the client already has this version.
+	 */
+	private static <T> ResponseEntity<T> respondBinary(String eTag, String ifNoneMatch, T body) {
+		if (AvailabilityResponseCache.matches(ifNoneMatch, eTag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+		}
+		return ResponseEntity.ok()
+				.contentType(AvailabilityWireFormat.MEDIA_TYPE)
+				.eTag(eTag)
+				.body(body);
+	}
+
+	private static ResponseEntity<byte[]> respond(AvailabilityResponseCache.EncodedResponse response,
+			String ifNoneMatch) {
+		if (response.matches(ifNoneMatch)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(response.getETag()).build();
+		}
+		return ResponseEntity.ok()
+				.contentType(MediaType.APPLICATION_JSON)
+				.eTag(response.getETag())
+				.body(response.getBody());
 	}
 }
@@ -0,0 +1,436 @@
+package reservation.manager.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Journal kept in a directory as numbered segment files plus the latest snapshot.
+ * <p>
+ * Appends go on a queue and a single writer thread drains it, writing whatever has piled up with one channel write
+ * and one {@code force}. Under load a single fsync covers hundreds of records, so durability costs about the same
+ * per second however many requests there are (group commit).
+ * <p>
+ * Each record is framed as {@code [int length][int crc32][body]}. A crash can leave a torn record at the end of a
+ * segment; recovery stops reading that segment at the first frame that doesn't check out and starts a fresh segment,
+ * so nothing is ever appended after garbage.
+ * <p>
+ * {@link #snapshot(SnapshotWriter)} starts a new segment, writes the state to {@code snapshot-<n>.bin} where n is
+ * the new segment, and then deletes everything older. Recovery is the latest snapshot plus the segments from n on.
+ */
+public class FileReservationJournal implements ReservationJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileReservationJournal.class);
+
+    private static final Pattern SEGMENT = Pattern.compile("journal-(\\d+)\\.log");
+    private static final Pattern SNAPSHOT = Pattern.compile("snapshot-(\\d+)\\.bin");
+
+    /**
+     * Most records written per fsync. Bounds the write buffer, it doesn't hold anyone up.
+     */
+    private static final int MAX_BATCH = 1024;
+
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Sequence number of each waiter's last record -> waiters. Guarded by its own monitor, which also guards
+     * {@link #appended}, {@link #durable} and {@link #failure} so a waiter can't slip in between a flush and its
+     * wake up.
+     */
+    private final TreeMap<Long, List<CompletableFuture<Void>>> waiters = new TreeMap<>();
+    private long appended;
+    private long durable;
+    private IOException failure;
+
+    /**
+     * Only touched by the writer thread once it's running.
+     */
+    private FileChannel channel;
+    private long segment;
+
+    /**
+     * Set once recovery is done, cleared on close. Guarded by {@link #waiters}.
+     */
+    private Thread writer;
+
+    /**
+     * Constructor for the class. Nothing is read or written until {@link #recover(SnapshotReader, Consumer)}.
+     *
+     * @param directory where the journal lives, created if missing
+     */
+    public FileReservationJournal(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void append(JournalRecord record) {
+        Entry entry = Entry.record(record.encode());
+        // assign the sequence and queue under one lock, so queue order and sequence order agree
+        synchronized (waiters) {
+            if (failure != null || writer == null) {
+                return;
+            }
+            entry.sequence = ++appended;
+            queue.add(entry);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> flushed() {
+        synchronized (waiters) {
+            if (failure != null) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(failure);
+                return failed;
+            }
+            if (durable >= appended) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            waiters.computeIfAbsent(appended, k -> new ArrayList<>(1)).add(future);
+            return future;
+        }
+    }
+
+    @Override
+    public void snapshot(SnapshotWriter snapshotWriter) throws IOException {
+        // everything appended before the rotation is in the old segments and already applied to the state we're
+        // about to write, so those segments aren't needed once the snapshot is safely down
+        Entry rotate = Entry.rotate();
+        synchronized (waiters) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (writer == null) {
+                throw new IOException("Journal is not open.");
+            }
+            queue.add(rotate);
+        }
+        long snapshotSegment = await(rotate.rotated);
+
+        Path tmp = directory.resolve("snapshot.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(channelOutput(out), 1 << 16));
+            snapshotWriter.write(data);
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, directory.resolve(snapshotName(snapshotSegment)), StandardCopyOption.ATOMIC_MOVE);
+
+        for (Map.Entry<Long, Path> old : list(SNAPSHOT).headMap(snapshotSegment, false).entrySet()) {
+            Files.deleteIfExists(old.getValue());
+        }
+        for (Map.Entry<Long, Path> old : list(SEGMENT).headMap(snapshotSegment, false).entrySet()) {
+            Files.deleteIfExists(old.getValue());
+        }
+        LOGGER.info("Snapshot written, journal restarts at segment {}.", snapshotSegment);
+    }
+
+    @Override
+    public void recover(SnapshotReader reader, Consumer<JournalRecord> replay) throws IOException {
+        Files.createDirectories(directory);
+        long from = 0;
+        Map.Entry<Long, Path> snapshot = list(SNAPSHOT).lastEntry();
+        if (snapshot != null) {
+            from = snapshot.getKey();
+            try (InputStream in = Files.newInputStream(snapshot.getValue())) {
+                reader.read(new DataInputStream(new BufferedInputStream(in, 1 << 16)));
+            }
+        }
+
+        long records = 0;
+        long last = from - 1;
+        for (Map.Entry<Long, Path> segmentFile : list(SEGMENT).tailMap(from, true).entrySet()) {
+            records += replay(segmentFile.getValue(), replay);
+            last = segmentFile.getKey();
+        }
+        LOGGER.info("Recovered {} from {} and {} journal records.", directory,
+                snapshot == null ? "no snapshot" : snapshot.getValue().getFileName(), records);
+
+        // never append to a segment that may end in a torn record
+        openSegment(Math.max(last + 1, from));
+        Thread thread = new Thread(this::writeLoop, "reservation-journal");
+        thread.setDaemon(true);
+        thread.start();
+        synchronized (waiters) {
+            writer = thread;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread running;
+        synchronized (waiters) {
+            running = writer;
+            if (running == null) {
+                return;
+            }
+            writer = null;
+            queue.add(Entry.stop());
+        }
+        try {
+            running.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Drains the queue until told to stop. One write and one fsync per batch.
+     */
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        CRC32 crc = new CRC32();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                long lastSequence = 0;
+                for (Entry entry : batch) {
+                    switch (entry.kind) {
+                        case RECORD:
+                            if (buffer.remaining() < HEADER_BYTES + entry.payload.length) {
+                                writeFully(buffer);
+                                if (buffer.capacity() < HEADER_BYTES + entry.payload.length) {
+                                    buffer = ByteBuffer.allocateDirect(HEADER_BYTES + entry.payload.length);
+                                }
+                            }
+                            crc.reset();
+                            crc.update(entry.payload, 0, entry.payload.length);
+                            buffer.putInt(entry.payload.length).putInt((int) crc.getValue()).put(entry.payload);
+                            lastSequence = entry.sequence;
+                            break;
+                        case ROTATE:
+                            writeFully(buffer);
+                            channel.force(false);
+                            channel.close();
+                            openSegment(segment + 1);
+                            entry.rotated.complete(segment);
+                            break;
+                        case STOP:
+                            writeFully(buffer);
+                            channel.force(false);
+                            markDurable(lastSequence);
+                            return;
+                    }
+                }
+                writeFully(buffer);
+                channel.force(false);
+                markDurable(lastSequence);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                LOGGER.error("Journal write failed, no further changes will be persisted.", e);
+                fail(e, batch);
+                return;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Wakes everyone waiting on records up to {@code sequence}.
+     */
+    private void markDurable(long sequence) {
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        synchronized (waiters) {
+            if (sequence <= durable) {
+                return;
+            }
+            durable = sequence;
+            Map<Long, List<CompletableFuture<Void>>> ready = waiters.headMap(sequence, true);
+            ready.values().forEach(done::addAll);
+            ready.clear();
+        }
+        // complete outside the lock, callbacks may run inline
+        done.forEach(future -> future.complete(null));
+    }
+
+    private void fail(IOException e, List<Entry> batch) {
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+        synchronized (waiters) {
+            failure = e;
+            waiters.values().forEach(failed::addAll);
+            waiters.clear();
+        }
+        failed.forEach(future -> future.completeExceptionally(e));
+        List<Entry> pending = new ArrayList<>(batch);
+        queue.drainTo(pending);
+        for (Entry entry : pending) {
+            if (entry.rotated != null) {
+                entry.rotated.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        segment = number;
+        channel = FileChannel.open(directory.resolve("journal-" + number + ".log"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Replays one segment, stopping at the first record that is cut short or fails its checksum.
+     *
+     * @return the number of records replayed
+     */
+    private static long replay(Path file, Consumer<JournalRecord> replay) throws IOException {
+        long records = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > 1 << 20) {
+                        LOGGER.warn("Bad record length {} in {}, ignoring the rest of it.", length, file);
+                        return records;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    return records; // clean end, or a record torn by a crash
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.warn("Checksum mismatch in {}, ignoring the rest of it.", file);
+                    return records;
+                }
+                replay.accept(JournalRecord.decode(ByteBuffer.wrap(payload)));
+                records++;
+            }
+        }
+    }
+
+    /**
+     * Returns the files matching {@code pattern}, by number.
+     */
+    private TreeMap<Long, Path> list(Pattern pattern) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.forEach(path -> {
+                Matcher matcher = pattern.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    files.put(Long.parseLong(matcher.group(1)), path);
+                }
+            });
+        }
+        return files;
+    }
+
+    private static String snapshotName(long segment) {
+        return "snapshot-" + segment + ".bin";
+    }
+
+    private static OutputStream channelOutput(FileChannel out) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        };
+    }
+
+    private static long await(CompletableFuture<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the journal.", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Something on the writer's queue: a record, or an instruction for the writer.
+     */
+    private static final class Entry {
+        enum Kind { RECORD, ROTATE, STOP }
+
+        final Kind kind;
+        final byte[] payload;
+        final CompletableFuture<Long> rotated;
+        long sequence;
+
+        private Entry(Kind kind, byte[] payload, CompletableFuture<Long> rotated) {
+            this.kind = kind;
+            this.payload = payload;
+            this.rotated = rotated;
+        }
+
+        static Entry record(byte[] payload) {
+            return new Entry(Kind.RECORD, payload, null);
+        }
+
+        static Entry rotate() {
+            return new Entry(Kind.ROTATE, null, new CompletableFuture<>());
+        }
+
+        static Entry stop() {
+            return new Entry(Kind.STOP, null, null);
+        }
+    }
+}
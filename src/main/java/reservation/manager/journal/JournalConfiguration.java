@@ -0,0 +1,30 @@
+package reservation.manager.journal;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Paths;
+
+/**
+ * Picks the journal from {@code reservation.journal.dir}: a {@link FileReservationJournal} in that directory, or
+ * nothing at all when it's blank.
+ */
+@Configuration
+public class JournalConfiguration {
+
+    /**
+     * Returns the journal. Spring closes it on shutdown, which flushes anything still queued.
+     *
+     * @param directory the journal directory, blank to keep everything in memory only
+     * @return the journal
+     */
+    @Bean
+    @ConditionalOnExpression("${reservation.shards.count:1} <= 1")
+    public ReservationJournal reservationJournal(@Value("${reservation.journal.dir:}") String directory) {
+        return directory.trim().isEmpty()
+                ? ReservationJournal.disabled()
+                : new FileReservationJournal(Paths.get(directory.trim()));
+    }
+}
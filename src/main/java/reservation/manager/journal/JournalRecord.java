@@ -0,0 +1,142 @@
+package reservation.manager.journal;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One state change, as written to the journal.
+ * <p>
+ * Every record sets a slot to an absolute state rather than describing a delta, so replaying a record whose effect is
+ * already in the snapshot is harmless. That's what lets us take a snapshot while writes keep coming in.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class JournalRecord {
+
+    public enum Type {
+        /**
+         * A provider was given an id. Written before anything that uses the id.
+         */
+        PROVIDER,
+        /**
+         * Blocks in {@code mask} were opened, except ones already booked.
+         */
+        AVAILABILITY,
+        /**
+         * A run of {@code blocks} slots is now pending for {@code text} (the patient) until {@code expiry}.
+         */
+        HOLD,
+        /**
+         * A run of {@code blocks} slots is now confirmed for {@code text} (the patient).
+         */
+        CONFIRM,
+        /**
+         * A pending run of {@code blocks} slots was let go, back into open if {@code reopen}.
+         */
+        RELEASE,
+        /**
+         * Everything for {@code providerId} was handed over to another shard.
+         */
+        DROP_PROVIDER
+    }
+
+    Type type;
+    long epochDay;
+    int providerId;
+    int timeBlock;
+    long[] mask;
+    String text;
+    long expiry;
+    boolean reopen;
+
+    /**
+     * Length of the run starting at {@code timeBlock}, for the record types that book or free slots.
+     */
+    int blocks;
+
+    public static JournalRecord provider(int providerId, String name) {
+        return new JournalRecord(Type.PROVIDER, 0, providerId, 0, null, name, 0, false, 0);
+    }
+
+    public static JournalRecord availability(long epochDay, int providerId, long[] mask) {
+        return new JournalRecord(Type.AVAILABILITY, epochDay, providerId, 0, mask.clone(), null, 0, false, 0);
+    }
+
+    public static JournalRecord hold(long epochDay, int providerId, int timeBlock, int blocks, String patient,
+                                     long expiry) {
+        return new JournalRecord(Type.HOLD, epochDay, providerId, timeBlock, null, patient, expiry, false, blocks);
+    }
+
+    public static JournalRecord confirm(long epochDay, int providerId, int timeBlock, int blocks, String patient) {
+        return new JournalRecord(Type.CONFIRM, epochDay, providerId, timeBlock, null, patient, 0, false, blocks);
+    }
+
+    public static JournalRecord release(long epochDay, int providerId, int timeBlock, int blocks, boolean reopen) {
+        return new JournalRecord(Type.RELEASE, epochDay, providerId, timeBlock, null, null, 0, reopen, blocks);
+    }
+
+    public static JournalRecord dropProvider(int providerId) {
+        return new JournalRecord(Type.DROP_PROVIDER, 0, providerId, 0, null, null, 0, false, 0);
+    }
+
+    /**
+     * Encodes the record body. Framing (length and checksum) is the journal's job.
+     *
+     * @return the encoded record
+     */
+    public byte[] encode() {
+        byte[] textBytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        int maskWords = mask == null ? 0 : mask.length;
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + 4 + 1 + maskWords * 8 + 4 + textBytes.length + 8 + 1 + 4);
+        buffer.put((byte) type.ordinal())
+                .putLong(epochDay)
+                .putInt(providerId)
+                .putInt(timeBlock)
+                .put((byte) maskWords);
+        for (int i = 0; i < maskWords; i++) {
+            buffer.putLong(mask[i]);
+        }
+        buffer.putInt(textBytes.length).put(textBytes)
+                .putLong(expiry)
+                .put((byte) (reopen ? 1 : 0))
+                .putInt(blocks);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a record written by {@link #encode()}.
+     *
+     * @param buffer positioned at the start of the record body
+     * @return the record
+     */
+    public static JournalRecord decode(ByteBuffer buffer) {
+        Type type = Type.values()[buffer.get()];
+        long epochDay = buffer.getLong();
+        int providerId = buffer.getInt();
+        int timeBlock = buffer.getInt();
+        int maskWords = buffer.get();
+        long[] mask = null;
+        if (maskWords > 0) {
+            mask = new long[maskWords];
+            for (int i = 0; i < maskWords; i++) {
+                mask[i] = buffer.getLong();
+            }
+        }
+        int textLength = buffer.getInt();
+        String text = null;
+        if (textLength > 0) {
+            byte[] textBytes = new byte[textLength];
+            buffer.get(textBytes);
+            text = new String(textBytes, StandardCharsets.UTF_8);
+        }
+        long expiry = buffer.getLong();
+        boolean reopen = buffer.get() != 0;
+        // records written before runs existed stop here and were always one block
+        int blocks = buffer.hasRemaining() ? buffer.getInt() : 1;
+        return new JournalRecord(type, epochDay, providerId, timeBlock, mask, text, expiry, reopen, blocks);
+    }
+}
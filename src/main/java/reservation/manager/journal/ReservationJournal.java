@@ -0,0 +1,115 @@
+package reservation.manager.journal;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of every reservation state change, plus snapshots of the whole state, so a restart doesn't lose
+ * anything.
+ */
+public interface ReservationJournal extends Closeable {
+
+    /**
+     * Queues a record. Doesn't wait for the disk, see {@link #flushed()}.
+     *
+     * @param record the record
+     */
+    void append(JournalRecord record);
+
+    /**
+     * Returns a future that completes once everything appended so far (by any thread) is on disk. Many callers share
+     * one fsync, so waiting on this doesn't limit throughput the way syncing every write would.
+     *
+     * @return the future
+     */
+    CompletableFuture<Void> flushed();
+
+    /**
+     * Writes a snapshot and drops the journal it makes redundant.
+     *
+     * @param writer writes the current state
+     * @throws IOException if the snapshot can't be written
+     */
+    void snapshot(SnapshotWriter writer) throws IOException;
+
+    /**
+     * Loads the latest snapshot and replays the journal written after it. Must be called once, before anything is
+     * appended.
+     *
+     * @param reader reads a snapshot written by a {@link SnapshotWriter}
+     * @param replay applies one journal record
+     * @throws IOException if the journal can't be read
+     */
+    void recover(SnapshotReader reader, Consumer<JournalRecord> replay) throws IOException;
+
+    /**
+     * Returns whether anything is actually written.
+     *
+     * @return {@code false} for {@link #disabled()}
+     */
+    boolean isEnabled();
+
+    @FunctionalInterface
+    interface SnapshotWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface SnapshotReader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Returns a journal that keeps nothing, for when no journal directory is configured and for tests.
+     *
+     * @return the journal
+     */
+    static ReservationJournal disabled() {
+        return DisabledJournal.INSTANCE;
+    }
+
+    /**
+     * Does nothing.
+     */
+    final class DisabledJournal implements ReservationJournal {
+        private static final DisabledJournal INSTANCE = new DisabledJournal();
+        private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+        private DisabledJournal() {
+        }
+
+        @Override
+        public void append(JournalRecord record) {
+            // nothing to do
+        }
+
+        @Override
+        public CompletableFuture<Void> flushed() {
+            return DONE;
+        }
+
+        @Override
+        public void snapshot(SnapshotWriter writer) {
+            // nothing to do
+        }
+
+        @Override
+        public void recover(SnapshotReader reader, Consumer<JournalRecord> replay) {
+            // nothing to do
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // nothing to do
+        }
+    }
+}
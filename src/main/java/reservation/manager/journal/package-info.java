@@ -0,0 +1 @@
+package reservation.manager.journal;
\ No newline at end of file
@@ -0,0 +1,52 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * One change to what's bookable, as pushed to clients watching the calendar instead of polling it.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AvailabilityChange {
+
+	public enum Type {
+		/**
+		 * A block became bookable.
+		 */
+		OPENED,
+		/**
+		 * Someone is holding the appointment, it isn't bookable until the hold is confirmed or runs out.
+		 */
+		HELD,
+		/**
+		 * The hold was confirmed.
+		 */
+		CONFIRMED,
+		/**
+		 * The hold ran out and the appointment is bookable again.
+		 */
+		EXPIRED,
+		/**
+		 * A block stopped being bookable without being held, e.g. it's within 24hrs now.
+		 */
+		CLOSED,
+		/**
+		 * Changes were dropped because the client fell too far behind. Fetch the range again.
+		 */
+		RESYNC
+	}
+
+	private Type type;
+	private LocalDate date;
+	private LocalTime time;
+	private String provider;
+	private int durationMinutes;
+}
@@ -0,0 +1,37 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+
+/**
+ * Outcome of one {@link AvailabilityWindow} from a bulk upload.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AvailabilityResult {
+
+	public enum Status {
+		ADDED,
+		REJECTED
+	}
+
+	/**
+	 * Position of the window in the upload, starting at 0.
+	 */
+	private long index;
+	private String provider;
+	private LocalDate date;
+	private Status status;
+
+	/**
+	 * Number of blocks the window covered after the 24hr rule was applied.
+	 */
+	private int blocks;
+	private String message;
+}
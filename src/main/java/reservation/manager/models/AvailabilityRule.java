@@ -0,0 +1,45 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * A provider's recurring hours: every {@code dayOfWeek} from {@code start} to {@code end}, between the effective
+ * dates, except on the listed dates.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AvailabilityRule {
+	/**
+	 * Assigned when the rule is added.
+	 */
+	private Long id;
+	private String provider;
+	private DayOfWeek dayOfWeek;
+	private LocalTime start;
+	private LocalTime end;
+
+	/**
+	 * First day the rule applies, {@code null} for from now on.
+	 */
+	private LocalDate effectiveFrom;
+
+	/**
+	 * Last day the rule applies, {@code null} for no end.
+	 */
+	private LocalDate effectiveTo;
+
+	/**
+	 * Days the rule skips, e.g. holidays.
+	 */
+	private List<LocalDate> exceptions;
+}
@@ -0,0 +1,23 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * One provider's hours on one day, as sent to the bulk availability endpoint.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AvailabilityWindow {
+	private String provider;
+	private LocalDate date;
+	private LocalTime start;
+	private LocalTime end;
+}
@@ -0,0 +1,27 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * One appointment in a batch reserve or confirm, e.g. one of a family's visits or one session of a course of therapy.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BookingTarget {
+	private String provider;
+	private LocalDate date;
+	private LocalTime time;
+
+	/**
+	 * Length of the appointment, {@code null} for a single block. Ignored when confirming.
+	 */
+	private Integer minutes;
+}
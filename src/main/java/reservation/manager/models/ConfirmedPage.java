@@ -0,0 +1,23 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * One page of confirmed reservations, a day at a time.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ConfirmedPage {
+	private List<ConfirmedReservationsResponse> days;
+
+	/**
+	 * Pass as {@code cursor} for the next page, {@code null} on the last one.
+	 */
+	private LocalDate nextCursor;
+}
@@ -0,0 +1,16 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ConfirmedReservationsResponse {
+	private LocalDate reservationDate;
+	private List<Reservation> reservations;
+}
@@ -0,0 +1,35 @@
+package reservation.manager.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * A reservation as seen from the patient's side, either still waiting to be confirmed or confirmed.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PatientReservation {
+
+	public enum Status {
+		PENDING,
+		CONFIRMED
+	}
+
+	private LocalDate reservationDate;
+	private LocalTime reservationTime;
+	private String provider;
+	private Status status;
+	private int durationMinutes;
+
+	/**
+	 * When a pending reservation runs out if it isn't confirmed, in ms. {@code null} once confirmed.
+	 */
+	private Long expiry;
+}
@@ -4,10 +4,13 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 
+import java.time.LocalDate;
+
 @Data
 @Builder
 @AllArgsConstructor
 public class PendingReservation {
 	private long expiry;
+	private LocalDate date;
 	private Reservation reservation;
 }
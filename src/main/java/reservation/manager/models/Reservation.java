@@ -10,6 +10,12 @@ public class Reservation {
 	private String provider;
 	private String patient;
 
+	/**
+	 * Number of consecutive blocks, starting at {@code timeBlock}.
+	 */
+	@Builder.Default
+	private int blocks = 1;
+
 	/**
 	 * Clears patient data so reservation can be reused.
 	 */
@@ -0,0 +1,288 @@
+package reservation.manager.repository;
+
+import reservation.manager.models.PendingReservation;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.BlockBitmap;
+import reservation.manager.service.ConcurrentLongMap;
+import reservation.manager.service.ProviderDaySlots;
+import reservation.manager.service.ReservationUtil;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps everything in memory: a pair of bitmaps per provider-day, plus maps for holds and confirmed reservations.
+ * Nothing survives a restart unless the service's journal is on.
+ * <p>
+ * Claiming a slot is a compare-and-set on the open bitmap and ending a hold is a conditional remove, so transitions
+ * are safe without a lock. Multi-word reads of a provider-day are only consistent under the caller's lock.
+ * <p>
+ * Everything reserve and confirm touch is keyed by packed {@code long} slot keys (see
+ * {@link ReservationUtil#generatePendingReservationKey(long, int, int)}) in {@link ConcurrentLongMap}s, so those
+ * paths don't box a key or allocate a map node. The sorted maps are only for walking days in order.
+ */
+public class InMemoryReservationRepository implements ReservationRepository {
+
+    /**
+     * Epoch day -> provider id -> that provider's open/booked bitmaps.
+     */
+    private final NavigableMap<Long, Map<Integer, ProviderDaySlots>> days = new ConcurrentSkipListMap<>();
+
+    /**
+     * The same bitmaps as {@link #days}, keyed by the slot key of the provider-day's block 0.
+     */
+    private final ConcurrentLongMap<ProviderDaySlots> providerDays = new ConcurrentLongMap<>();
+
+    private final ConcurrentLongMap<PendingReservation> holds = new ConcurrentLongMap<>();
+
+    private final NavigableMap<Long, Set<Reservation>> confirmed = new ConcurrentSkipListMap<>();
+
+    /**
+     * The same sets as {@link #confirmed}, keyed by epoch day.
+     */
+    private final ConcurrentLongMap<Set<Reservation>> confirmedByDay = new ConcurrentLongMap<>();
+
+    @Override
+    public void saveProvider(int providerId, String provider) {
+        // the service's dictionary is the only copy we need
+    }
+
+    @Override
+    public Map<Integer, String> providers() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void open(long epochDay, Map<Integer, long[]> masks) {
+        for (Map.Entry<Integer, long[]> mask : masks.entrySet()) {
+            slots(epochDay, mask.getKey()).open(mask.getValue());
+        }
+    }
+
+    @Override
+    public boolean hold(long key, PendingReservation hold) {
+        ProviderDaySlots slots = find(key);
+        // claim() is our compare-and-set: only one caller gets true for a given slot
+        if (slots == null || !slots.claim(ReservationUtil.keyTimeBlock(key), hold.getReservation().getBlocks())) {
+            return false;
+        }
+        holds.put(key, hold);
+        return true;
+    }
+
+    @Override
+    public PendingReservation findHold(long key) {
+        return holds.get(key);
+    }
+
+    @Override
+    public boolean confirm(long key, PendingReservation hold) {
+        if (!holds.remove(key, hold)) {
+            return false;
+        }
+        confirmedOn(ReservationUtil.keyEpochDay(key)).add(hold.getReservation());
+        return true;
+    }
+
+    @Override
+    public boolean release(long key, int blocks, PendingReservation hold, boolean reopen) {
+        if (hold == null) {
+            holds.remove(key);
+        } else if (!holds.remove(key, hold)) {
+            return false;
+        }
+        if (reopen) {
+            slots(ReservationUtil.keyEpochDay(key), ReservationUtil.keyProviderId(key))
+                    .release(ReservationUtil.keyTimeBlock(key), blocks);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasOpen(long epochDay, int providerId) {
+        ProviderDaySlots slots = find(epochDay, providerId);
+        return slots != null && !slots.getOpen().isEmpty();
+    }
+
+    @Override
+    public long[] openBlocks(long epochDay, int providerId) {
+        ProviderDaySlots slots = find(epochDay, providerId);
+        return slots == null ? new long[BlockBitmap.WORDS] : slots.getOpen().toMask();
+    }
+
+    @Override
+    public Map<Integer, long[]> openBlocks(long epochDay) {
+        Map<Integer, ProviderDaySlots> day = days.get(epochDay);
+        if (day == null) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, long[]> open = new HashMap<>(day.size() * 2);
+        for (Map.Entry<Integer, ProviderDaySlots> entry : day.entrySet()) {
+            if (!entry.getValue().getOpen().isEmpty()) {
+                open.put(entry.getKey(), entry.getValue().getOpen().toMask());
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public Collection<Integer> providers(long epochDay) {
+        Map<Integer, ProviderDaySlots> day = days.get(epochDay);
+        return day == null ? Collections.emptySet() : day.keySet();
+    }
+
+    @Override
+    public NavigableSet<Long> days() {
+        return new TreeSet<>(days.keySet());
+    }
+
+    @Override
+    public void dropDaysBefore(long epochDay) {
+        // the holds map keeps any holds on these days until they're confirmed or expire
+        NavigableMap<Long, Map<Integer, ProviderDaySlots>> past = days.headMap(epochDay, false);
+        for (Map.Entry<Long, Map<Integer, ProviderDaySlots>> day : past.entrySet()) {
+            for (Integer providerId : day.getValue().keySet()) {
+                providerDays.remove(ReservationUtil.generatePendingReservationKey(day.getKey(), providerId, 0));
+            }
+        }
+        past.clear();
+    }
+
+    @Override
+    public void dropConfirmedBefore(long epochDay) {
+        NavigableMap<Long, Set<Reservation>> past = confirmed.headMap(epochDay, false);
+        for (Long day : past.keySet()) {
+            confirmedByDay.remove(day);
+        }
+        past.clear();
+    }
+
+    @Override
+    public void closeBlocksBefore(long epochDay, int providerId, int block) {
+        ProviderDaySlots slots = find(epochDay, providerId);
+        if (slots != null) {
+            slots.getOpen().clearBefore(block);
+        }
+    }
+
+    @Override
+    public void dropProvider(int providerId, String provider) {
+        for (Map.Entry<Long, Map<Integer, ProviderDaySlots>> day : days.entrySet()) {
+            if (day.getValue().remove(providerId) != null) {
+                providerDays.remove(ReservationUtil.generatePendingReservationKey(day.getKey(), providerId, 0));
+            }
+        }
+        holds.forEach((key, hold) -> {
+            if (ReservationUtil.keyProviderId(key) == providerId) {
+                holds.remove(key, hold);
+            }
+        });
+        for (Set<Reservation> day : confirmed.values()) {
+            day.removeIf(reservation -> reservation.getProvider().equals(provider));
+        }
+    }
+
+    @Override
+    public NavigableMap<Long, Set<Reservation>> confirmed() {
+        return Collections.unmodifiableNavigableMap(confirmed);
+    }
+
+    @Override
+    public int holdCount() {
+        return holds.size();
+    }
+
+    @Override
+    public int confirmedCount() {
+        int count = 0;
+        for (Set<Reservation> day : confirmed.values()) {
+            count += day.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void forEachProviderDay(ProviderDayVisitor visitor) {
+        for (Map.Entry<Long, Map<Integer, ProviderDaySlots>> day : days.entrySet()) {
+            for (Map.Entry<Integer, ProviderDaySlots> entry : day.getValue().entrySet()) {
+                visitor.visit(day.getKey(), entry.getKey(), entry.getValue().getOpen().toMask(),
+                        entry.getValue().getBooked().toMask());
+            }
+        }
+    }
+
+    @Override
+    public void forEachHold(SlotVisitor<PendingReservation> visitor) {
+        holds.forEach(visitor::visit);
+    }
+
+    @Override
+    public void restoreProviderDay(long epochDay, int providerId, long[] open, long[] booked) {
+        ProviderDaySlots slots = slots(epochDay, providerId);
+        slots.getOpen().load(open);
+        slots.getBooked().load(booked);
+    }
+
+    @Override
+    public void restoreHold(long key, PendingReservation hold) {
+        slots(ReservationUtil.keyEpochDay(key), ReservationUtil.keyProviderId(key))
+                .book(ReservationUtil.keyTimeBlock(key), hold.getReservation().getBlocks());
+        holds.put(key, hold);
+    }
+
+    @Override
+    public void restoreConfirmed(long key, Reservation reservation) {
+        holds.remove(key);
+        slots(ReservationUtil.keyEpochDay(key), ReservationUtil.keyProviderId(key))
+                .book(ReservationUtil.keyTimeBlock(key), reservation.getBlocks());
+        confirmedOn(ReservationUtil.keyEpochDay(key)).add(reservation);
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    /**
+     * Returns a provider-day's bitmaps, creating them if needed. Callers racing to create them all end up with the
+     * instance {@link #days} settled on, so the flat map only ever gets that one.
+     */
+    private ProviderDaySlots slots(long epochDay, int providerId) {
+        long key = ReservationUtil.generatePendingReservationKey(epochDay, providerId, 0);
+        ProviderDaySlots slots = providerDays.get(key);
+        if (slots == null) {
+            slots = days.computeIfAbsent(epochDay, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(providerId, k -> new ProviderDaySlots());
+            providerDays.put(key, slots);
+        }
+        return slots;
+    }
+
+    private ProviderDaySlots find(long epochDay, int providerId) {
+        return providerDays.get(ReservationUtil.generatePendingReservationKey(epochDay, providerId, 0));
+    }
+
+    /**
+     * Returns the provider-day of a slot key.
+     */
+    private ProviderDaySlots find(long key) {
+        return providerDays.get(key - ReservationUtil.keyTimeBlock(key));
+    }
+
+    private Set<Reservation> confirmedOn(long epochDay) {
+        Set<Reservation> reservations = confirmedByDay.get(epochDay);
+        if (reservations == null) {
+            reservations = confirmed.computeIfAbsent(epochDay, k -> ConcurrentHashMap.newKeySet());
+            confirmedByDay.put(epochDay, reservations);
+        }
+        return reservations;
+    }
+}
@@ -0,0 +1,523 @@
+package reservation.manager.repository;
+
+import reservation.manager.models.PendingReservation;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.BlockBitmap;
+import reservation.manager.service.ReservationUtil;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps slot state in a relational database, one row per (day, provider, block) that is anything other than
+ * absent. Written for an embedded, file based H2 database but only uses plain JDBC and a couple of {@code MERGE}
+ * statements.
+ * <p>
+ * The primary key is (epoch_day, provider_id, block), which is both the index every lookup goes through and what
+ * keeps a slot from existing twice. State changes are optimistic single row updates: the {@code WHERE} clause names
+ * the state the slot must be in, and an update count of 0 means someone else got there first. No row is ever locked
+ * for longer than that one statement.
+ * <p>
+ * Opening availability inserts a row per block, so those go in as one JDBC batch per call.
+ * <p>
+ * A hold or reservation longer than one block books a row per block. The first row carries the run's length in
+ * {@code run_length}, the rest have 0 there and are only looked at to keep them from being booked twice. Changing a
+ * run is one ranged update in a transaction that's rolled back unless it touched every block of the run.
+ */
+public class JdbcReservationRepository implements ReservationRepository {
+
+    static final int OPEN = 0;
+    static final int HELD = 1;
+    static final int CONFIRMED = 2;
+    static final int LAPSED = 3;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS provider (id INT PRIMARY KEY, name VARCHAR(255) NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS slot (epoch_day BIGINT NOT NULL, provider_id INT NOT NULL,"
+                    + " block SMALLINT NOT NULL, status TINYINT NOT NULL, patient VARCHAR(255), expiry BIGINT,"
+                    + " PRIMARY KEY (epoch_day, provider_id, block))",
+            // holds and confirmed reservations are looked up by status when warming up
+            "CREATE INDEX IF NOT EXISTS slot_by_status ON slot (status, epoch_day)",
+            // added with multi-block runs, databases from before get it with every slot being a run of 1
+            "ALTER TABLE slot ADD COLUMN IF NOT EXISTS run_length SMALLINT DEFAULT 1 NOT NULL"
+    };
+
+    private static final String KEY = " WHERE epoch_day = ? AND provider_id = ? AND block = ?";
+    private static final String RUN = " WHERE epoch_day = ? AND provider_id = ? AND block >= ? AND block < ?";
+
+    private static final String OPEN_SLOT = "MERGE INTO slot s USING (VALUES (CAST(? AS BIGINT), CAST(? AS INT),"
+            + " CAST(? AS SMALLINT))) v (epoch_day, provider_id, block)"
+            + " ON s.epoch_day = v.epoch_day AND s.provider_id = v.provider_id AND s.block = v.block"
+            + " WHEN NOT MATCHED THEN INSERT (epoch_day, provider_id, block, status)"
+            + " VALUES (v.epoch_day, v.provider_id, v.block, " + OPEN + ")";
+    private static final String PUT_SLOT = "MERGE INTO slot (epoch_day, provider_id, block, status, patient, expiry,"
+            + " run_length) KEY (epoch_day, provider_id, block) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String HOLD = "UPDATE slot SET status = " + HELD + ", patient = ?, expiry = ?,"
+            + " run_length = CASE WHEN block = ? THEN ? ELSE 0 END" + RUN + " AND status = " + OPEN;
+    private static final String FIND_HOLD = "SELECT s.patient, s.expiry, p.name, s.run_length FROM slot s"
+            + " JOIN provider p ON p.id = s.provider_id"
+            + " WHERE s.epoch_day = ? AND s.provider_id = ? AND s.block = ? AND s.status = " + HELD
+            + " AND s.run_length > 0";
+    private static final String CONFIRM = "UPDATE slot SET status = " + CONFIRMED + ", expiry = NULL" + RUN
+            + " AND status = " + HELD + " AND patient = ? AND expiry = ?";
+    private static final String RELEASE = "UPDATE slot SET status = ?, patient = NULL, expiry = NULL, run_length = 1"
+            + RUN + " AND status = " + HELD + " AND patient = ? AND expiry = ?";
+
+    private final DataSource dataSource;
+
+    /**
+     * Constructor for the class. Creates the tables if they aren't there yet.
+     *
+     * @param dataSource pooled connections to the database
+     */
+    public JdbcReservationRepository(DataSource dataSource) {
+        this.dataSource = dataSource;
+        execute("create the schema", connection -> {
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : SCHEMA) {
+                    statement.execute(sql);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void saveProvider(int providerId, String provider) {
+        update("save a provider", "MERGE INTO provider (id, name) KEY (id) VALUES (?, ?)", providerId, provider);
+    }
+
+    @Override
+    public Map<Integer, String> providers() {
+        return execute("read providers", connection -> {
+            Map<Integer, String> providers = new HashMap<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT id, name FROM provider");
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    providers.put(rows.getInt(1), rows.getString(2));
+                }
+            }
+            return providers;
+        });
+    }
+
+    @Override
+    public void open(long epochDay, Map<Integer, long[]> masks) {
+        transaction("open availability", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(OPEN_SLOT)) {
+                for (Map.Entry<Integer, long[]> mask : masks.entrySet()) {
+                    long[] blocks = mask.getValue();
+                    for (int block = BlockBitmap.nextSetBit(blocks, 0); block >= 0;
+                         block = BlockBitmap.nextSetBit(blocks, block + 1)) {
+                        statement.setLong(1, epochDay);
+                        statement.setInt(2, mask.getKey());
+                        statement.setInt(3, block);
+                        statement.addBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean hold(long key, PendingReservation hold) {
+        int block = ReservationUtil.keyTimeBlock(key);
+        int blocks = hold.getReservation().getBlocks();
+        return updateRun("hold a slot", blocks, HOLD, hold.getReservation().getPatient(), hold.getExpiry(), block,
+                blocks, ReservationUtil.keyEpochDay(key), ReservationUtil.keyProviderId(key), block, block + blocks);
+    }
+
+    @Override
+    public PendingReservation findHold(long key) {
+        return execute("find a hold", connection -> {
+            try (PreparedStatement statement = prepare(connection, FIND_HOLD, ReservationUtil.keyEpochDay(key),
+                    ReservationUtil.keyProviderId(key), ReservationUtil.keyTimeBlock(key));
+                 ResultSet rows = statement.executeQuery()) {
+                if (!rows.next()) {
+                    return null;
+                }
+                return new PendingReservation(rows.getLong(2), LocalDate.ofEpochDay(ReservationUtil.keyEpochDay(key)),
+                        Reservation.builder()
+                                .provider(rows.getString(3))
+                                .timeBlock(ReservationUtil.keyTimeBlock(key))
+                                .patient(rows.getString(1))
+                                .blocks(rows.getInt(4))
+                                .build());
+            }
+        });
+    }
+
+    @Override
+    public boolean confirm(long key, PendingReservation hold) {
+        int block = ReservationUtil.keyTimeBlock(key);
+        int blocks = hold.getReservation().getBlocks();
+        return updateRun("confirm a hold", blocks, CONFIRM, ReservationUtil.keyEpochDay(key),
+                ReservationUtil.keyProviderId(key), block, block + blocks, hold.getReservation().getPatient(),
+                hold.getExpiry());
+    }
+
+    @Override
+    public boolean release(long key, int blocks, PendingReservation hold, boolean reopen) {
+        int status = reopen ? OPEN : LAPSED;
+        if (hold == null) {
+            putRun("release a slot", key, blocks, status, null, null);
+            return true;
+        }
+        int block = ReservationUtil.keyTimeBlock(key);
+        return updateRun("release a hold", blocks, RELEASE, status, ReservationUtil.keyEpochDay(key),
+                ReservationUtil.keyProviderId(key), block, block + blocks, hold.getReservation().getPatient(),
+                hold.getExpiry());
+    }
+
+    @Override
+    public boolean hasOpen(long epochDay, int providerId) {
+        return execute("look for open slots", connection -> {
+            try (PreparedStatement statement = prepare(connection, "SELECT 1 FROM slot WHERE epoch_day = ?"
+                    + " AND provider_id = ? AND status = " + OPEN + " LIMIT 1", epochDay, providerId);
+                 ResultSet rows = statement.executeQuery()) {
+                return rows.next();
+            }
+        });
+    }
+
+    @Override
+    public long[] openBlocks(long epochDay, int providerId) {
+        long[] mask = new long[BlockBitmap.WORDS];
+        execute("read open slots", connection -> {
+            try (PreparedStatement statement = prepare(connection, "SELECT block FROM slot WHERE epoch_day = ?"
+                    + " AND provider_id = ? AND status = " + OPEN, epochDay, providerId);
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    set(mask, rows.getInt(1));
+                }
+            }
+            return null;
+        });
+        return mask;
+    }
+
+    @Override
+    public Map<Integer, long[]> openBlocks(long epochDay) {
+        return execute("read open slots", connection -> {
+            Map<Integer, long[]> open = new HashMap<>();
+            try (PreparedStatement statement = prepare(connection, "SELECT provider_id, block FROM slot"
+                    + " WHERE epoch_day = ? AND status = " + OPEN, epochDay);
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    set(open.computeIfAbsent(rows.getInt(1), k -> new long[BlockBitmap.WORDS]), rows.getInt(2));
+                }
+            }
+            return open;
+        });
+    }
+
+    @Override
+    public Collection<Integer> providers(long epochDay) {
+        return execute("read providers for a day", connection -> {
+            List<Integer> providers = new ArrayList<>();
+            try (PreparedStatement statement = prepare(connection,
+                    "SELECT DISTINCT provider_id FROM slot WHERE epoch_day = ?", epochDay);
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    providers.add(rows.getInt(1));
+                }
+            }
+            return providers;
+        });
+    }
+
+    @Override
+    public NavigableSet<Long> days() {
+        return execute("read days", connection -> {
+            NavigableSet<Long> days = new TreeSet<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT DISTINCT epoch_day FROM slot");
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    days.add(rows.getLong(1));
+                }
+            }
+            return days;
+        });
+    }
+
+    @Override
+    public void dropDaysBefore(long epochDay) {
+        update("drop past days", "DELETE FROM slot WHERE epoch_day < ? AND status IN (" + OPEN + ", " + LAPSED + ")",
+                epochDay);
+    }
+
+    @Override
+    public void dropConfirmedBefore(long epochDay) {
+        update("drop archived days", "DELETE FROM slot WHERE epoch_day < ? AND status = " + CONFIRMED, epochDay);
+    }
+
+    @Override
+    public void closeBlocksBefore(long epochDay, int providerId, int block) {
+        update("close slots", "DELETE FROM slot WHERE epoch_day = ? AND provider_id = ? AND block < ?"
+                + " AND status = " + OPEN, epochDay, providerId, block);
+    }
+
+    @Override
+    public NavigableMap<Long, Set<Reservation>> confirmed() {
+        NavigableMap<Long, Set<Reservation>> confirmed = new TreeMap<>();
+        forEachBooking(CONFIRMED, (key, reservation) -> confirmed
+                .computeIfAbsent(ReservationUtil.keyEpochDay(key), k -> new LinkedHashSet<>())
+                .add(reservation.getReservation()));
+        confirmed.replaceAll((day, reservations) -> Collections.unmodifiableSet(reservations));
+        return Collections.unmodifiableNavigableMap(confirmed);
+    }
+
+    @Override
+    public void dropProvider(int providerId, String provider) {
+        update("drop a provider", "DELETE FROM slot WHERE provider_id = ?", providerId);
+    }
+
+    @Override
+    public int holdCount() {
+        return count(HELD);
+    }
+
+    @Override
+    public int confirmedCount() {
+        return count(CONFIRMED);
+    }
+
+    @Override
+    public void forEachProviderDay(ProviderDayVisitor visitor) {
+        execute("read slots", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT epoch_day, provider_id, block,"
+                    + " status FROM slot ORDER BY epoch_day, provider_id");
+                 ResultSet rows = statement.executeQuery()) {
+                long day = 0;
+                int provider = -1;
+                long[] open = null;
+                long[] booked = null;
+                while (rows.next()) {
+                    if (open == null || rows.getLong(1) != day || rows.getInt(2) != provider) {
+                        if (open != null) {
+                            visitor.visit(day, provider, open, booked);
+                        }
+                        day = rows.getLong(1);
+                        provider = rows.getInt(2);
+                        open = new long[BlockBitmap.WORDS];
+                        booked = new long[BlockBitmap.WORDS];
+                    }
+                    set(rows.getInt(4) == OPEN ? open : booked, rows.getInt(3));
+                }
+                if (open != null) {
+                    visitor.visit(day, provider, open, booked);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void forEachHold(SlotVisitor<PendingReservation> visitor) {
+        forEachBooking(HELD, visitor);
+    }
+
+    @Override
+    public void restoreProviderDay(long epochDay, int providerId, long[] open, long[] booked) {
+        transaction("restore a provider day", connection -> {
+            try (PreparedStatement delete = prepare(connection,
+                    "DELETE FROM slot WHERE epoch_day = ? AND provider_id = ?", epochDay, providerId);
+                 PreparedStatement insert = connection.prepareStatement(PUT_SLOT)) {
+                delete.executeUpdate();
+                addSlots(insert, epochDay, providerId, open, OPEN);
+                addSlots(insert, epochDay, providerId, booked, LAPSED);
+                insert.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void restoreHold(long key, PendingReservation hold) {
+        putRun("restore a hold", key, hold.getReservation().getBlocks(), HELD, hold.getReservation().getPatient(),
+                hold.getExpiry());
+    }
+
+    @Override
+    public void restoreConfirmed(long key, Reservation reservation) {
+        putRun("restore a reservation", key, reservation.getBlocks(), CONFIRMED, reservation.getPatient(), null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (dataSource instanceof Closeable) {
+            ((Closeable) dataSource).close();
+        }
+    }
+
+    /**
+     * Visits the held or confirmed slots, as holds. Confirmed ones have an expiry of 0.
+     */
+    private void forEachBooking(int status, SlotVisitor<PendingReservation> visitor) {
+        execute("read bookings", connection -> {
+            try (PreparedStatement statement = prepare(connection, "SELECT s.epoch_day, s.provider_id, s.block,"
+                    + " s.patient, s.expiry, p.name, s.run_length FROM slot s JOIN provider p ON p.id = s.provider_id"
+                    + " WHERE s.status = ? AND s.run_length > 0 ORDER BY s.epoch_day, s.block, p.name", status);
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    long key = ReservationUtil.generatePendingReservationKey(rows.getLong(1), rows.getInt(2),
+                            rows.getInt(3));
+                    visitor.visit(key, new PendingReservation(rows.getLong(5),
+                            LocalDate.ofEpochDay(rows.getLong(1)), Reservation.builder()
+                                    .provider(rows.getString(6))
+                                    .timeBlock(rows.getInt(3))
+                                    .patient(rows.getString(4))
+                                    .blocks(rows.getInt(7))
+                                    .build()));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Counts the runs in a status, only their first rows have a run length.
+     */
+    private int count(int status) {
+        return execute("count slots", connection -> {
+            try (PreparedStatement statement = prepare(connection, "SELECT COUNT(*) FROM slot"
+                    + " WHERE status = ? AND run_length > 0", status);
+                 ResultSet rows = statement.executeQuery()) {
+                rows.next();
+                return rows.getInt(1);
+            }
+        });
+    }
+
+    private static void addSlots(PreparedStatement insert, long epochDay, int providerId, long[] mask, int status)
+            throws SQLException {
+        for (int block = BlockBitmap.nextSetBit(mask, 0); block >= 0; block = BlockBitmap.nextSetBit(mask, block + 1)) {
+            insert.setLong(1, epochDay);
+            insert.setInt(2, providerId);
+            insert.setInt(3, block);
+            insert.setInt(4, status);
+            insert.setNull(5, Types.VARCHAR);
+            insert.setNull(6, Types.BIGINT);
+            insert.setInt(7, 1);
+            insert.addBatch();
+        }
+    }
+
+    private static void set(long[] mask, int block) {
+        mask[block >>> 6] |= 1L << block;
+    }
+
+    /**
+     * Runs an update over a run of slots, committing only if it changed exactly {@code blocks} rows.
+     */
+    private boolean updateRun(String action, int blocks, String sql, Object... parameters) {
+        return transaction(action, connection -> {
+            try (PreparedStatement statement = prepare(connection, sql, parameters)) {
+                if (statement.executeUpdate() != blocks) {
+                    connection.rollback();
+                    return false;
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Sets every slot of a run outright, the first one carrying the run's length.
+     */
+    private void putRun(String action, long key, int blocks, int status, String patient, Long expiry) {
+        long epochDay = ReservationUtil.keyEpochDay(key);
+        int providerId = ReservationUtil.keyProviderId(key);
+        int first = ReservationUtil.keyTimeBlock(key);
+        transaction(action, connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(PUT_SLOT)) {
+                for (int block = first; block < first + blocks; block++) {
+                    statement.setLong(1, epochDay);
+                    statement.setInt(2, providerId);
+                    statement.setInt(3, block);
+                    statement.setInt(4, status);
+                    statement.setObject(5, patient, Types.VARCHAR);
+                    statement.setObject(6, expiry, Types.BIGINT);
+                    // released slots are plain slots again, booked ones belong to the run's first row
+                    boolean released = status == OPEN || status == LAPSED;
+                    statement.setInt(7, released ? 1 : block == first ? blocks : 0);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    private int update(String action, String sql, Object... parameters) {
+        return execute(action, connection -> {
+            try (PreparedStatement statement = prepare(connection, sql, parameters)) {
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    private static PreparedStatement prepare(Connection connection, String sql, Object... parameters)
+            throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        return statement;
+    }
+
+    /**
+     * Runs work in one transaction: committed if it returns, rolled back if it throws, so a failed batch leaves none
+     * of its rows behind. Turning auto-commit back on would otherwise commit whatever the work got through.
+     */
+    private <T> T transaction(String action, SqlWork<T> work) {
+        return execute(action, connection -> {
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    private <T> T execute(String action, SqlWork<T> work) {
+        try (Connection connection = dataSource.getConnection()) {
+            return work.run(connection);
+        } catch (SQLException e) {
+            throw new RepositoryException("Unable to " + action + ".", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlWork<T> {
+        T run(Connection connection) throws SQLException;
+    }
+}
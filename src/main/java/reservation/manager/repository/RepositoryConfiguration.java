@@ -0,0 +1,53 @@
+package reservation.manager.repository;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Picks the backend from {@code reservation.repository.type}: {@code memory} (the default) or {@code jdbc}.
+ */
+@Configuration
+public class RepositoryConfiguration {
+
+    /**
+     * Returns the repository. Spring closes it on shutdown, which for JDBC closes the connection pool.
+     *
+     * @param type     {@code memory} or {@code jdbc}
+     * @param url      JDBC url, only used for {@code jdbc}
+     * @param poolSize most connections to keep open, only used for {@code jdbc}
+     * @return the repository
+     */
+    @Bean
+    @ConditionalOnExpression("${reservation.shards.count:1} <= 1")
+    public ReservationRepository reservationRepository(@Value("${reservation.repository.type:memory}") String type,
+            @Value("${reservation.repository.jdbc.url:jdbc:h2:file:./data/reservations}") String url,
+            @Value("${reservation.repository.jdbc.pool-size:8}") int poolSize) {
+        switch (type.trim().toLowerCase()) {
+            case "memory":
+                return new InMemoryReservationRepository();
+            case "jdbc":
+                return new JdbcReservationRepository(dataSource(url, poolSize));
+            default:
+                throw new IllegalArgumentException("Unknown reservation.repository.type " + type);
+        }
+    }
+
+    /**
+     * Builds the connection pool.
+     *
+     * @param url      JDBC url
+     * @param poolSize most connections to keep open
+     * @return the pool
+     */
+    public static HikariDataSource dataSource(String url, int poolSize) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setMaximumPoolSize(poolSize);
+        config.setPoolName("reservations");
+        return new HikariDataSource(config);
+    }
+}
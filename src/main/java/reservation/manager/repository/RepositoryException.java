@@ -0,0 +1,20 @@
+package reservation.manager.repository;
+
+/**
+ * Thrown when a {@link ReservationRepository} backend can't do what it was asked, e.g. the database is unreachable.
+ * Unchecked, the service has no way to recover from it other than failing the request.
+ */
+public class RepositoryException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor for the class.
+     *
+     * @param message what was being done
+     * @param cause   what went wrong
+     */
+    public RepositoryException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
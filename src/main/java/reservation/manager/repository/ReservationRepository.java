@@ -0,0 +1,235 @@
+package reservation.manager.repository;
+
+import reservation.manager.models.PendingReservation;
+import reservation.manager.models.Reservation;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+
+/**
+ * Where slot state lives: which blocks are open, which are held and by whom, and which are confirmed. The service
+ * keeps the rules (24hr window, hold TTL), the locks and the read caches, and goes through this for everything it
+ * stores.
+ * <p>
+ * Each slot is in one of four states: absent (neither open nor booked), open, held, or booked with no hold (a hold
+ * that lapsed inside the 24hr window). Confirmed slots are booked and also listed in {@link #confirmed()}.
+ * <p>
+ * Open blocks are passed around as masks, {@link reservation.manager.service.BlockBitmap#WORDS} longs per provider-day,
+ * so the in-memory backend never turns its bitmaps into objects. Transitions out of open and out of held are
+ * conditional on the current state, so two callers can't both win one even without the service's locks.
+ */
+public interface ReservationRepository extends Closeable {
+
+    /**
+     * Records a provider id. Backends that don't outlive the process can ignore this.
+     *
+     * @param providerId the id
+     * @param provider   the provider
+     */
+    void saveProvider(int providerId, String provider);
+
+    /**
+     * Returns every recorded provider id.
+     *
+     * @return provider id -> provider
+     */
+    Map<Integer, String> providers();
+
+    /**
+     * Opens the blocks in each mask, skipping any that are booked. Meant to be called with a whole day at a time so
+     * backends can batch.
+     *
+     * @param epochDay the day
+     * @param masks    provider id -> blocks to open
+     */
+    void open(long epochDay, Map<Integer, long[]> masks);
+
+    /**
+     * Moves a run of open slots to held, all or nothing. The run starts at the key's block and is as long as the
+     * hold's {@link Reservation#getBlocks()}. The hold is filed under the first slot, the rest are just booked.
+     *
+     * @param key  the slot key of the first block
+     * @param hold the hold
+     * @return {@code true} if every slot of the run was open and is now held, {@code false} if anyone has one of them
+     */
+    boolean hold(long key, PendingReservation hold);
+
+    /**
+     * Returns the current hold on a slot.
+     *
+     * @param key the slot key of the hold's first block
+     * @return the hold, or {@code null}
+     */
+    PendingReservation findHold(long key);
+
+    /**
+     * Confirms a hold, the whole run.
+     *
+     * @param key  the slot key
+     * @param hold the hold, as returned by {@link #findHold(long)}
+     * @return {@code true} if that hold was still there and is now confirmed
+     */
+    boolean confirm(long key, PendingReservation hold);
+
+    /**
+     * Ends a hold without confirming it, giving back its whole run in one step.
+     *
+     * @param key    the slot key of the first block
+     * @param blocks length of the run
+     * @param hold   the hold to end, or {@code null} to end whatever hold is there, if any, and set the run's state
+     *               regardless (for recovery)
+     * @param reopen {@code true} to put the run back in open, {@code false} to leave it booked by nobody
+     * @return {@code true} if a matching hold was there and is now gone, always {@code true} for a {@code null} hold
+     */
+    boolean release(long key, int blocks, PendingReservation hold, boolean reopen);
+
+    /**
+     * Returns whether a provider has any open block on a day.
+     *
+     * @param epochDay   the day
+     * @param providerId the provider
+     * @return {@code true} if something is open
+     */
+    boolean hasOpen(long epochDay, int providerId);
+
+    /**
+     * Returns a provider's open blocks for a day.
+     *
+     * @param epochDay   the day
+     * @param providerId the provider
+     * @return the mask, all zero if nothing is open
+     */
+    long[] openBlocks(long epochDay, int providerId);
+
+    /**
+     * Returns every provider's open blocks for a day.
+     *
+     * @param epochDay the day
+     * @return provider id -> mask, only providers with something open
+     */
+    Map<Integer, long[]> openBlocks(long epochDay);
+
+    /**
+     * Returns the providers with any slot state on a day.
+     *
+     * @param epochDay the day
+     * @return the provider ids
+     */
+    Collection<Integer> providers(long epochDay);
+
+    /**
+     * Returns the days with any slot state, in order.
+     *
+     * @return the epoch days
+     */
+    NavigableSet<Long> days();
+
+    /**
+     * Drops open and lapsed slots before a day. Held and confirmed slots are kept, holds still have to be confirmed
+     * or expired and confirmed reservations are history.
+     *
+     * @param epochDay first day to keep
+     */
+    void dropDaysBefore(long epochDay);
+
+    /**
+     * Drops confirmed reservations before a day, once they're in the archive.
+     *
+     * @param epochDay first day to keep
+     */
+    void dropConfirmedBefore(long epochDay);
+
+    /**
+     * Closes a provider's open blocks before {@code block}, for when the 24hr window moves into the day.
+     *
+     * @param epochDay   the day
+     * @param providerId the provider
+     * @param block      first block to keep
+     */
+    void closeBlocksBefore(long epochDay, int providerId, int block);
+
+    /**
+     * Removes everything a provider has: open and booked blocks, holds and confirmed reservations. For when the
+     * provider moves to another shard.
+     *
+     * @param providerId the provider's id
+     * @param provider   the provider's name, as it appears on reservations
+     */
+    void dropProvider(int providerId, String provider);
+
+    /**
+     * Returns the confirmed reservations by epoch day.
+     *
+     * @return epoch day -> reservations, unmodifiable
+     */
+    NavigableMap<Long, Set<Reservation>> confirmed();
+
+    /**
+     * Returns how many holds there are. For metrics, so it only needs to be about right while writers are busy.
+     *
+     * @return the number of holds
+     */
+    int holdCount();
+
+    /**
+     * Returns how many confirmed reservations there are. For metrics, like {@link #holdCount()}.
+     *
+     * @return the number of confirmed reservations
+     */
+    int confirmedCount();
+
+    /**
+     * Visits every provider-day's open and booked blocks. Not a point in time snapshot, each provider-day is read on
+     * its own.
+     *
+     * @param visitor called once per provider-day
+     */
+    void forEachProviderDay(ProviderDayVisitor visitor);
+
+    /**
+     * Visits every hold.
+     *
+     * @param visitor called once per hold
+     */
+    void forEachHold(SlotVisitor<PendingReservation> visitor);
+
+    /**
+     * Replaces a provider-day's open and booked blocks outright. For recovery.
+     *
+     * @param epochDay   the day
+     * @param providerId the provider
+     * @param open       open blocks
+     * @param booked     booked blocks
+     */
+    void restoreProviderDay(long epochDay, int providerId, long[] open, long[] booked);
+
+    /**
+     * Puts a hold on a run whatever state it's in. For recovery.
+     *
+     * @param key  the slot key of the first block
+     * @param hold the hold
+     */
+    void restoreHold(long key, PendingReservation hold);
+
+    /**
+     * Confirms a run whatever state it's in. For recovery.
+     *
+     * @param key         the slot key of the first block
+     * @param reservation the reservation
+     */
+    void restoreConfirmed(long key, Reservation reservation);
+
+    @FunctionalInterface
+    interface ProviderDayVisitor {
+        void visit(long epochDay, int providerId, long[] open, long[] booked);
+    }
+
+    @FunctionalInterface
+    interface SlotVisitor<T> {
+        void visit(long key, T value);
+    }
+}
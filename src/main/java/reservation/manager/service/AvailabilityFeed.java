@@ -0,0 +1,236 @@
+package reservation.manager.service;
+
+import org.springframework.stereotype.Component;
+import reservation.manager.models.AvailabilityChange;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans changes to what's bookable out to the clients watching the calendar, so they don't have to poll it.
+ * {@link ReservationService} publishes as it changes slots, under the provider-day lock, so one provider-day's changes
+ * reach a subscription in the order they happened.
+ * <p>
+ * Each subscription buffers changes until its client takes them, coalesced per slot: a later change to a slot
+ * replaces the one still waiting, since a client only needs to know where the slot ended up. When more than
+ * {@code capacity} slots are waiting, the buffer is dropped and the client gets a single
+ * {@link AvailabilityChange.Type#RESYNC} instead, so a slow client never holds more than {@code capacity} changes.
+ * <p>
+ * Shared by every shard, so a subscription sees the whole node.
+ */
+@Component
+public class AvailabilityFeed {
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Starts watching a range of the calendar.
+     *
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @param provider only this provider, or {@code null} for everyone
+     * @param capacity most slots buffered before the client is told to resync
+     * @param onChange called after changes were buffered, on the writer's thread, so it has to be quick
+     * @return the subscription, close it when the client goes away
+     */
+    public Subscription subscribe(LocalDate from, LocalDate to, String provider, int capacity, Runnable onChange) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A subscription has to buffer at least one change");
+        }
+        Subscription subscription = new Subscription(from == null ? Long.MIN_VALUE : from.toEpochDay(),
+                to == null ? Long.MAX_VALUE : to.toEpochDay(), provider, capacity, onChange);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Returns whether anyone is watching, so writers can skip working out changes nobody would get.
+     *
+     * @return {@code true} if there's at least one subscription
+     */
+    public boolean isWatched() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Publishes a change to one appointment.
+     *
+     * @param type      what happened
+     * @param epochDay  the day
+     * @param provider  the provider
+     * @param timeBlock first block
+     * @param blocks    how many blocks
+     */
+    void publish(AvailabilityChange.Type type, long epochDay, String provider, int timeBlock, int blocks) {
+        AvailabilityChange change = null;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(epochDay, provider)) {
+                if (change == null) {
+                    change = change(type, epochDay, provider, timeBlock, blocks);
+                }
+                subscription.offer(new Slot(epochDay, provider, timeBlock), change);
+            }
+        }
+    }
+
+    /**
+     * Publishes a provider's blocks that opened as {@link AvailabilityChange.Type#OPENED} and the ones that closed as
+     * {@link AvailabilityChange.Type#CLOSED}, a change per block.
+     *
+     * @param epochDay the day
+     * @param provider the provider
+     * @param before   open blocks before
+     * @param after    open blocks after
+     */
+    void publishDiff(long epochDay, String provider, long[] before, long[] after) {
+        // only worked out if someone is watching this provider-day
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(epochDay, provider)) {
+                long[] opened = new long[BlockBitmap.WORDS];
+                long[] closed = new long[BlockBitmap.WORDS];
+                for (int i = 0; i < BlockBitmap.WORDS; i++) {
+                    opened[i] = after[i] & ~before[i];
+                    closed[i] = before[i] & ~after[i];
+                }
+                publish(AvailabilityChange.Type.OPENED, epochDay, provider, opened);
+                publish(AvailabilityChange.Type.CLOSED, epochDay, provider, closed);
+                return;
+            }
+        }
+    }
+
+    private void publish(AvailabilityChange.Type type, long epochDay, String provider, long[] blocks) {
+        for (int block = BlockBitmap.nextSetBit(blocks, 0); block >= 0;
+             block = BlockBitmap.nextSetBit(blocks, block + 1)) {
+            publish(type, epochDay, provider, block, 1);
+        }
+    }
+
+    private static AvailabilityChange change(AvailabilityChange.Type type, long epochDay, String provider,
+                                             int timeBlock, int blocks) {
+        return AvailabilityChange.builder()
+                .type(type)
+                .date(LocalDate.ofEpochDay(epochDay))
+                .time(ReservationUtil.convertBlockToTime(timeBlock))
+                .provider(provider)
+                .durationMinutes(ReservationUtil.convertBlocksToMinutes(blocks))
+                .build();
+    }
+
+    /**
+     * One client's view of the feed.
+     */
+    public final class Subscription implements AutoCloseable {
+        private final long fromDay;
+        private final long toDay;
+        private final String provider;
+        private final int capacity;
+        private final Runnable onChange;
+
+        /**
+         * Slot -> the latest change to it the client hasn't taken yet, in the order the slots last changed.
+         */
+        private final Map<Slot, AvailabilityChange> pending = new LinkedHashMap<>();
+        private boolean overflowed;
+
+        private Subscription(long fromDay, long toDay, String provider, int capacity, Runnable onChange) {
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            this.provider = provider;
+            this.capacity = capacity;
+            this.onChange = onChange;
+        }
+
+        private boolean matches(long epochDay, String changed) {
+            return epochDay >= fromDay && epochDay <= toDay && (provider == null || provider.equals(changed));
+        }
+
+        private void offer(Slot slot, AvailabilityChange change) {
+            synchronized (this) {
+                if (overflowed) {
+                    return;
+                }
+                // removed first, so a slot that changes again moves behind the slots that changed since
+                pending.remove(slot);
+                pending.put(slot, change);
+                if (pending.size() > capacity) {
+                    pending.clear();
+                    overflowed = true;
+                }
+            }
+            onChange.run();
+        }
+
+        /**
+         * Takes the oldest waiting changes.
+         *
+         * @param max most changes to take
+         * @return the changes, empty if there are none
+         */
+        public synchronized List<AvailabilityChange> poll(int max) {
+            if (overflowed) {
+                overflowed = false;
+                return Collections.singletonList(AvailabilityChange.builder()
+                        .type(AvailabilityChange.Type.RESYNC)
+                        .build());
+            }
+            List<AvailabilityChange> changes = new ArrayList<>(Math.min(max, pending.size()));
+            Iterator<AvailabilityChange> waiting = pending.values().iterator();
+            while (changes.size() < max && waiting.hasNext()) {
+                changes.add(waiting.next());
+                waiting.remove();
+            }
+            return changes;
+        }
+
+        /**
+         * Stops watching. Anything still buffered is dropped.
+         */
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+            synchronized (this) {
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * A slot's identity, what changes are coalesced by.
+     */
+    private static final class Slot {
+        private final long epochDay;
+        private final String provider;
+        private final int timeBlock;
+
+        private Slot(long epochDay, String provider, int timeBlock) {
+            this.epochDay = epochDay;
+            this.provider = provider;
+            this.timeBlock = timeBlock;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Slot)) {
+                return false;
+            }
+            Slot slot = (Slot) o;
+            return epochDay == slot.epochDay && timeBlock == slot.timeBlock && provider.equals(slot.provider);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(epochDay, provider, timeBlock);
+        }
+    }
+}
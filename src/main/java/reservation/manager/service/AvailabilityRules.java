@@ -0,0 +1,544 @@
+package reservation.manager.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reservation.manager.models.AvailabilityRule;
+import reservation.manager.models.AvailabilityWindow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recurring availability: rules like "Dr. House, Mondays 8 to 5, from March, except Easter Monday", kept as the rule
+ * itself, a few dozen bytes, instead of every slot of every day it covers.
+ * <p>
+ * Rules are turned into ordinary availability a day at a time, through the writers' mailboxes
+ * ({@link ReactiveReservationService#addAvailability(List)}), so a day from a rule reads, books and follows the 24hr
+ * rule exactly like one added up front. Days are materialized:
+ * <ul>
+ *     <li>in a rolling window of {@code horizonDays} days from tomorrow, moved forward by
+ *     {@link #materializeAhead()}</li>
+ *     <li>past that, the first time a day is asked for by date (see {@link #materialize(LocalDate)}), up to
+ *     {@value #MAX_DAYS_AHEAD} days out</li>
+ * </ul>
+ * A day only counts as materialized once its windows are durable, and requests that come in while they're on their
+ * way wait for the same add. Listing the whole calendar only shows what's materialized, the rolling window and any
+ * days asked for past it. Materializing the same day again is harmless: opening skips booked blocks and changes
+ * nothing for open ones, it only costs a journal record.
+ * <p>
+ * With a directory, rules are written to {@code rules.dat} in it and read back on startup, along with which days are
+ * materialized, so a restart doesn't add them all again. The days themselves are in the journal like any other
+ * availability, so the directory belongs with the journal.
+ */
+@Component
+public class AvailabilityRules implements InitializingBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AvailabilityRules.class);
+
+    /**
+     * Bump when the layout written by {@link #write()} changes.
+     */
+    private static final int FORMAT = 1;
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private static final String FILE = "rules.dat";
+
+    /**
+     * Furthest ahead a day is materialized on request, so asking for dates years out doesn't fill the calendar.
+     */
+    static final int MAX_DAYS_AHEAD = 730;
+
+    private final ReactiveReservationService reservations;
+
+    private final int horizonDays;
+
+    private final Path directory;
+
+    private final Clock clock;
+
+    private final List<Rule> rules = new CopyOnWriteArrayList<>();
+
+    private long nextId = 1;
+
+    /**
+     * Last day of the rolling window that's been materialized, as an epoch day. Changed under {@code this}.
+     */
+    private volatile long materializedThrough = Long.MIN_VALUE;
+
+    /**
+     * Last day of the rolling window being materialized right now, {@link #materializedThrough} when it isn't moving.
+     * Guarded by {@code this}.
+     */
+    private long materializingThrough = Long.MIN_VALUE;
+
+    /**
+     * Days past the rolling window materialized because they were asked for. Changed under {@code this}, read
+     * without it on the hot path.
+     */
+    private final NavigableSet<Long> materializedAhead = new ConcurrentSkipListSet<>();
+
+    /**
+     * Days past the rolling window whose windows are on their way -> completes once they're durable. Guarded by
+     * {@code this}.
+     */
+    private final Map<Long, CompletableFuture<Void>> claims = new TreeMap<>();
+
+    /**
+     * Held while the rolling window moves, so a slow run and the next one don't add the same days.
+     */
+    private final Lock advancing = new ReentrantLock();
+
+    /**
+     * Constructor for the class. Reads back the rules already in the directory.
+     *
+     * @param reservations where materialized days are added
+     * @param horizonDays  how many days from tomorrow are kept materialized
+     * @param directory    where rules are written, {@code null} to keep them in memory only
+     */
+    public AvailabilityRules(ReactiveReservationService reservations, int horizonDays, Path directory) {
+        this(reservations, horizonDays, directory, Clock.systemDefaultZone());
+    }
+
+    /**
+     * Constructor for the class. Reads back the rules already in the directory.
+     *
+     * @param reservations where materialized days are added
+     * @param horizonDays  how many days from tomorrow are kept materialized
+     * @param directory    where rules are written, {@code null} to keep them in memory only
+     * @param clock        what today is
+     */
+    public AvailabilityRules(ReactiveReservationService reservations, int horizonDays, Path directory, Clock clock) {
+        if (horizonDays < 1) {
+            throw new IllegalArgumentException("The rolling window has to be at least a day");
+        }
+        this.reservations = reservations;
+        this.horizonDays = horizonDays;
+        this.directory = directory;
+        this.clock = clock;
+        if (directory != null) {
+            load();
+        }
+        materializingThrough = materializedThrough;
+    }
+
+    /**
+     * Constructor for the class, from the properties.
+     *
+     * @param reservations     where materialized days are added
+     * @param horizonDays      how many days from tomorrow are kept materialized
+     * @param directory        the rules directory, blank for {@code rules} under the journal directory
+     * @param journalDirectory the journal directory, if that's blank too rules are in memory only
+     */
+    @Autowired
+    public AvailabilityRules(ReactiveReservationService reservations,
+                             @Value("${reservation.rules.horizon-days:60}") int horizonDays,
+                             @Value("${reservation.rules.dir:}") String directory,
+                             @Value("${reservation.journal.dir:}") String journalDirectory) {
+        this(reservations, horizonDays, !directory.trim().isEmpty() ? Paths.get(directory.trim())
+                : !journalDirectory.trim().isEmpty() ? Paths.get(journalDirectory.trim(), "rules")
+                : null);
+    }
+
+    /**
+     * Materializes the rolling window for the rules read back on startup.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        materializeAhead();
+    }
+
+    /**
+     * Adds a rule. Its days aren't materialized yet, see {@link #materializedWindows(AvailabilityRule)}. Written to
+     * disk before returning, when there's a directory.
+     *
+     * @param rule the rule, its id is ignored
+     * @return the rule as stored, with its id
+     * @throws IllegalArgumentException if the rule is incomplete or never applies
+     * @throws UncheckedIOException     if it couldn't be written, it isn't added then
+     */
+    public synchronized AvailabilityRule add(AvailabilityRule rule) {
+        if (rule.getProvider() == null || rule.getProvider().trim().isEmpty() || rule.getDayOfWeek() == null
+                || rule.getStart() == null || rule.getEnd() == null) {
+            throw new IllegalArgumentException("provider, dayOfWeek, start and end are required.");
+        }
+        if (!rule.getStart().isBefore(rule.getEnd())) {
+            throw new IllegalArgumentException("end has to be after start.");
+        }
+        if (rule.getEffectiveFrom() != null && rule.getEffectiveTo() != null
+                && rule.getEffectiveTo().isBefore(rule.getEffectiveFrom())) {
+            throw new IllegalArgumentException("effectiveTo can't be before effectiveFrom.");
+        }
+        Rule added = Rule.of(nextId, rule);
+        rules.add(added);
+        if (directory != null) {
+            try {
+                write();
+            } catch (UncheckedIOException e) {
+                rules.remove(added);
+                throw e;
+            }
+        }
+        nextId++;
+        return added.toModel();
+    }
+
+    /**
+     * Returns the windows a newly added rule needs for the days already materialized, or on their way, so it shows
+     * up on them too.
+     *
+     * @param rule the rule, as returned by {@link #add(AvailabilityRule)}
+     * @return the windows, in date order
+     */
+    public synchronized List<AvailabilityWindow> materializedWindows(AvailabilityRule rule) {
+        Rule added = Rule.of(rule.getId(), rule);
+        List<Rule> only = Collections.singletonList(added);
+        List<AvailabilityWindow> windows = new ArrayList<>();
+        long through = Math.max(materializedThrough, materializingThrough);
+        windows(tomorrow(), through, only, windows);
+        // days claimed before the rule was added were worked out without it
+        NavigableSet<Long> ahead = new TreeSet<>(materializedAhead);
+        ahead.addAll(claims.keySet());
+        for (long epochDay : ahead.tailSet(through, false)) {
+            windows(epochDay, epochDay, only, windows);
+        }
+        return windows;
+    }
+
+    /**
+     * Returns every rule, in the order they were added.
+     *
+     * @return the rules
+     */
+    public List<AvailabilityRule> getRules() {
+        List<AvailabilityRule> models = new ArrayList<>(rules.size());
+        for (Rule rule : rules) {
+            models.add(rule.toModel());
+        }
+        return models;
+    }
+
+    /**
+     * Moves the rolling window forward, materializing the days that came into it, and waits until they're durable.
+     * Only days that weren't materialized already are looked at, so after the first run this is one day's worth of
+     * windows a day. If the days can't be added the window stays where it was, and the next run tries again.
+     *
+     * @throws RuntimeException if the days couldn't be added, e.g. a
+     *                          {@link java.util.concurrent.RejectedExecutionException} when the mailbox is full
+     */
+    @Scheduled(cron = "${reservation.rules.cron:0 0 * * * *}")
+    public void materializeAhead() {
+        if (!advancing.tryLock()) {
+            return; // the run before is still waiting on its days, this one's would be the same
+        }
+        try {
+            long last;
+            List<AvailabilityWindow> windows = new ArrayList<>();
+            synchronized (this) {
+                long first = tomorrow();
+                last = first + horizonDays - 1;
+                long from = Math.max(first, materializedThrough + 1);
+                if (from > last) {
+                    return;
+                }
+                for (long epochDay = from; epochDay <= last; epochDay++) {
+                    if (!materializedAhead.contains(epochDay)) {
+                        windows(epochDay, epochDay, rules, windows);
+                    }
+                }
+                materializingThrough = last;
+            }
+            // waits outside the monitor, requests for days past the window need it meanwhile
+            if (!windows.isEmpty()) {
+                reservations.addAvailability(windows).block();
+            }
+            synchronized (this) {
+                materializedThrough = last;
+                materializedAhead.headSet(last, true).clear();
+                save();
+            }
+        } finally {
+            synchronized (this) {
+                materializingThrough = materializedThrough;
+            }
+            advancing.unlock();
+        }
+    }
+
+    /**
+     * Materializes a day past the rolling window the first time it's asked for. Requests for the day that come in
+     * while its windows are on their way all wait for the same add; if that fails they all fail, and the next
+     * request tries again. Anything inside the window is already there, so on the hot path this is a few
+     * comparisons.
+     *
+     * @param date the day
+     * @return completes once the day's windows are durable, straight away if there's nothing to add
+     */
+    public Mono<Void> materialize(LocalDate date) {
+        long epochDay = date.toEpochDay();
+        if (settled(epochDay)) {
+            return Mono.empty();
+        }
+        // one request going away mustn't cancel the add the others are waiting on
+        return Mono.defer(() -> Mono.fromFuture(claim(epochDay), true));
+    }
+
+    /**
+     * Returns whether a day needs nothing materialized: it's in the rolling window, out of reach, or done already.
+     */
+    private boolean settled(long epochDay) {
+        long first = tomorrow();
+        return epochDay <= materializedThrough || epochDay < first || epochDay > first + MAX_DAYS_AHEAD
+                || rules.isEmpty() || materializedAhead.contains(epochDay);
+    }
+
+    /**
+     * Starts adding a day's windows, or returns the add already on its way.
+     */
+    private synchronized CompletableFuture<Void> claim(long epochDay) {
+        if (settled(epochDay)) {
+            return DONE;
+        }
+        CompletableFuture<Void> claim = claims.get(epochDay);
+        if (claim != null) {
+            return claim;
+        }
+        List<AvailabilityWindow> windows = new ArrayList<>();
+        windows(epochDay, epochDay, rules, windows);
+        if (windows.isEmpty()) {
+            return DONE;
+        }
+        CompletableFuture<Void> added = new CompletableFuture<>();
+        claims.put(epochDay, added);
+        reservations.addAvailability(windows)
+                // recording the day writes the rules file, so not on the thread that completed the add
+                .publishOn(Schedulers.boundedElastic())
+                .subscribe(results -> claimed(epochDay, added), error -> unclaimed(epochDay, added, error));
+        return added;
+    }
+
+    private void claimed(long epochDay, CompletableFuture<Void> added) {
+        synchronized (this) {
+            claims.remove(epochDay);
+            if (epochDay > materializedThrough) {
+                materializedAhead.add(epochDay);
+                save();
+            }
+        }
+        added.complete(null);
+    }
+
+    private void unclaimed(long epochDay, CompletableFuture<Void> added, Throwable error) {
+        synchronized (this) {
+            claims.remove(epochDay);
+        }
+        added.completeExceptionally(error);
+    }
+
+    private long tomorrow() {
+        return LocalDate.now(clock).toEpochDay() + 1;
+    }
+
+    private static void windows(long fromDay, long toDay, List<Rule> rules, List<AvailabilityWindow> into) {
+        for (long epochDay = fromDay; epochDay <= toDay; epochDay++) {
+            LocalDate date = LocalDate.ofEpochDay(epochDay);
+            for (Rule rule : rules) {
+                if (rule.covers(epochDay, date.getDayOfWeek())) {
+                    into.add(new AvailabilityWindow(rule.provider, date, rule.start, rule.end));
+                }
+            }
+        }
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(directory);
+            Path file = directory.resolve(FILE);
+            if (!Files.exists(file)) {
+                return;
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+                int format = data.readInt();
+                if (format != FORMAT) {
+                    throw new IOException("Unknown rules format " + format);
+                }
+                int count = data.readInt();
+                for (int i = 0; i < count; i++) {
+                    Rule rule = Rule.read(data);
+                    rules.add(rule);
+                    nextId = Math.max(nextId, rule.id + 1);
+                }
+                materializedThrough = data.readLong();
+                int ahead = data.readInt();
+                for (int i = 0; i < ahead; i++) {
+                    materializedAhead.add(data.readLong());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read the rules in " + directory, e);
+        }
+    }
+
+    /**
+     * Records which days are materialized. The days are durable already, so if that fails they're only added again
+     * after a restart. Caller must hold {@code this}.
+     */
+    private void save() {
+        if (directory == null) {
+            return;
+        }
+        try {
+            write();
+        } catch (UncheckedIOException e) {
+            LOGGER.warn("Unable to record the materialized days, they'll be added again after a restart", e);
+        }
+    }
+
+    private void write() {
+        Path tmp = directory.resolve(FILE + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+                data.writeInt(FORMAT);
+                data.writeInt(rules.size());
+                for (Rule rule : rules) {
+                    rule.write(data);
+                }
+                data.writeLong(materializedThrough);
+                data.writeInt(materializedAhead.size());
+                for (long epochDay : materializedAhead) {
+                    data.writeLong(epochDay);
+                }
+                data.flush();
+                out.force(true);
+            }
+            Files.move(tmp, directory.resolve(FILE), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write the rules to " + directory, e);
+        }
+    }
+
+    /**
+     * A rule as it's kept: effective dates as epoch days and the exceptions as a sorted array.
+     */
+    private static final class Rule {
+        private final long id;
+        private final String provider;
+        private final DayOfWeek dayOfWeek;
+        private final LocalTime start;
+        private final LocalTime end;
+        private final long fromDay;
+        private final long toDay;
+        private final long[] exceptions;
+
+        private Rule(long id, String provider, DayOfWeek dayOfWeek, LocalTime start, LocalTime end, long fromDay,
+                     long toDay, long[] exceptions) {
+            this.id = id;
+            this.provider = provider;
+            this.dayOfWeek = dayOfWeek;
+            this.start = start;
+            this.end = end;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            this.exceptions = exceptions;
+        }
+
+        static Rule of(long id, AvailabilityRule rule) {
+            List<LocalDate> skipped = rule.getExceptions() == null ? Collections.emptyList() : rule.getExceptions();
+            long[] exceptions = skipped.stream().mapToLong(LocalDate::toEpochDay).sorted().distinct().toArray();
+            return new Rule(id, rule.getProvider(), rule.getDayOfWeek(), rule.getStart(), rule.getEnd(),
+                    rule.getEffectiveFrom() == null ? Long.MIN_VALUE : rule.getEffectiveFrom().toEpochDay(),
+                    rule.getEffectiveTo() == null ? Long.MAX_VALUE : rule.getEffectiveTo().toEpochDay(),
+                    exceptions);
+        }
+
+        boolean covers(long epochDay, DayOfWeek day) {
+            return day == dayOfWeek && epochDay >= fromDay && epochDay <= toDay
+                    && Arrays.binarySearch(exceptions, epochDay) < 0;
+        }
+
+        AvailabilityRule toModel() {
+            List<LocalDate> skipped = new ArrayList<>(exceptions.length);
+            for (long epochDay : exceptions) {
+                skipped.add(LocalDate.ofEpochDay(epochDay));
+            }
+            return AvailabilityRule.builder()
+                    .id(id)
+                    .provider(provider)
+                    .dayOfWeek(dayOfWeek)
+                    .start(start)
+                    .end(end)
+                    .effectiveFrom(fromDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(fromDay))
+                    .effectiveTo(toDay == Long.MAX_VALUE ? null : LocalDate.ofEpochDay(toDay))
+                    .exceptions(skipped)
+                    .build();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(id);
+            out.writeUTF(provider);
+            out.writeByte(dayOfWeek.getValue());
+            out.writeLong(start.toNanoOfDay());
+            out.writeLong(end.toNanoOfDay());
+            out.writeLong(fromDay);
+            out.writeLong(toDay);
+            out.writeInt(exceptions.length);
+            for (long epochDay : exceptions) {
+                out.writeLong(epochDay);
+            }
+        }
+
+        static Rule read(DataInputStream in) throws IOException {
+            long id = in.readLong();
+            String provider = in.readUTF();
+            DayOfWeek dayOfWeek = DayOfWeek.of(in.readByte());
+            LocalTime start = LocalTime.ofNanoOfDay(in.readLong());
+            LocalTime end = LocalTime.ofNanoOfDay(in.readLong());
+            long fromDay = in.readLong();
+            long toDay = in.readLong();
+            long[] exceptions = new long[in.readInt()];
+            for (int i = 0; i < exceptions.length; i++) {
+                exceptions[i] = in.readLong();
+            }
+            return new Rule(id, provider, dayOfWeek, start, end, fromDay, toDay, exceptions);
+        }
+    }
+}
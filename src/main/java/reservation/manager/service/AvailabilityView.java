@@ -0,0 +1,44 @@
+package reservation.manager.service;
+
+import lombok.Value;
+import reservation.manager.models.Reservation;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, time ordered picture of one day's open slots.
+ * <p>
+ * {@code version} changes whenever the day does, so anything derived from a view (e.g. an encoded response) can be
+ * cached until the version moves.
+ */
+@Value
+public class AvailabilityView {
+    LocalDate date;
+    long version;
+
+    /**
+     * Sorted by time, then provider.
+     */
+    List<Reservation> reservations;
+
+    /**
+     * Returns a view for a day nobody is open on.
+     *
+     * @param date the day
+     * @return an empty view
+     */
+    public static AvailabilityView empty(LocalDate date) {
+        return new AvailabilityView(date, 0, Collections.emptyList());
+    }
+
+    /**
+     * Returns whether there's anything open.
+     *
+     * @return {@code true} if nothing is open
+     */
+    public boolean isEmpty() {
+        return reservations.isEmpty();
+    }
+}
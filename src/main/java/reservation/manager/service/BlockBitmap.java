@@ -0,0 +1,366 @@
+package reservation.manager.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One bit per appt block of a single day. With 15 minute blocks a whole day fits in two {@code long}s, which is a lot
+ * cheaper than a {@code Reservation} object per slot sitting in a hash set.
+ * <p>
+ * Single bit transitions are compare-and-set on the backing word, so they are safe without a lock. Multi-word updates
+ * are atomic per word only; callers that need more than that hold the provider-day lock.
+ */
+public class BlockBitmap {
+
+    /**
+     * Number of {@code long} words needed to cover a day.
+     */
+    public static final int WORDS = (ReservationUtil.BLOCKS_PER_DAY + Long.SIZE - 1) / Long.SIZE;
+
+    private final AtomicLongArray words = new AtomicLongArray(WORDS);
+
+    /**
+     * Builds a mask with the blocks in {@code [from, to)} set.
+     *
+     * @param from first block, inclusive
+     * @param to   last block, exclusive
+     * @return the mask, {@link #WORDS} long
+     */
+    public static long[] rangeMask(int from, int to) {
+        long[] mask = new long[WORDS];
+        from = Math.max(from, 0);
+        to = Math.min(to, ReservationUtil.BLOCKS_PER_DAY);
+        for (int i = from; i < to; i++) {
+            mask[i >>> 6] |= 1L << i;
+        }
+        return mask;
+    }
+
+    /**
+     * ORs {@code mask} into {@code into}.
+     *
+     * @param into the mask to add to
+     * @param mask the mask to add
+     */
+    public static void or(long[] into, long[] mask) {
+        for (int i = 0; i < WORDS; i++) {
+            into[i] |= mask[i];
+        }
+    }
+
+    /**
+     * Returns the number of blocks set in a mask.
+     *
+     * @param mask the mask
+     * @return the number of set blocks
+     */
+    public static int cardinality(long[] mask) {
+        int count = 0;
+        for (long word : mask) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the first set block of a mask at or after {@code from}.
+     *
+     * @param mask the mask
+     * @param from block to start from
+     * @return the block, or -1 if there isn't one
+     */
+    public static int nextSetBit(long[] mask, int from) {
+        if (from >= ReservationUtil.BLOCKS_PER_DAY) {
+            return -1;
+        }
+        int i = from >>> 6;
+        long w = mask[i] & (-1L << from);
+        while (true) {
+            if (w != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(w);
+            }
+            if (++i == mask.length) {
+                return -1;
+            }
+            w = mask[i];
+        }
+    }
+
+    /**
+     * Returns the blocks a run of {@code length} set blocks starts at, e.g. every start time with {@code length} open
+     * blocks in a row. Rather than probing each block, this ANDs the mask with shifted copies of itself, doubling the
+     * run length covered each time, so it's O(log length) passes of {@link #WORDS} words. Blocks past the end of the
+     * day are never set, so runs don't spill into the next day.
+     *
+     * @param mask   the mask
+     * @param length run length in blocks, at least 1
+     * @return a new mask with the start of every run set
+     */
+    public static long[] runStarts(long[] mask, int length) {
+        long[] starts = mask.clone();
+        int covered = 1;
+        while (covered < length) {
+            // a run of covered at b and one at b + step join into covered + step, as long as step <= covered
+            int step = Math.min(covered, length - covered);
+            andShiftedDown(starts, step);
+            covered += step;
+        }
+        return starts;
+    }
+
+    /**
+     * {@code mask[b] &= mask[b + shift]} for every block, in place. Walks up so each word is read before it's
+     * written.
+     */
+    private static void andShiftedDown(long[] mask, int shift) {
+        int wordShift = shift >>> 6;
+        int bitShift = shift & 63;
+        for (int i = 0; i < mask.length; i++) {
+            int j = i + wordShift;
+            long low = j < mask.length ? mask[j] : 0;
+            long high = j + 1 < mask.length ? mask[j + 1] : 0;
+            mask[i] &= bitShift == 0 ? low : (low >>> bitShift) | (high << (Long.SIZE - bitShift));
+        }
+    }
+
+    /**
+     * Returns the bits of word {@code word} that fall in blocks {@code [from, to)}.
+     */
+    private static long wordMask(int word, int from, int to) {
+        int low = Math.max(from, word << 6);
+        int high = Math.min(to, (word + 1) << 6);
+        if (low >= high) {
+            return 0;
+        }
+        long bits = high - low == Long.SIZE ? -1L : (1L << (high - low)) - 1;
+        return bits << low;
+    }
+
+    /**
+     * Returns whether the block is set.
+     *
+     * @param block the block
+     * @return {@code true} if set
+     */
+    public boolean get(int block) {
+        return (words.get(block >>> 6) & (1L << block)) != 0;
+    }
+
+    /**
+     * Sets a block.
+     *
+     * @param block the block
+     */
+    public void set(int block) {
+        int i = block >>> 6;
+        long bit = 1L << block;
+        long w;
+        do {
+            w = words.get(i);
+        } while (!words.compareAndSet(i, w, w | bit));
+    }
+
+    /**
+     * Clears a block.
+     *
+     * @param block the block
+     */
+    public void clear(int block) {
+        int i = block >>> 6;
+        long bit = 1L << block;
+        long w;
+        do {
+            w = words.get(i);
+        } while (!words.compareAndSet(i, w, w & ~bit));
+    }
+
+    /**
+     * Clears the block only if it is currently set.
+     *
+     * @param block the block
+     * @return {@code true} if this call cleared it, {@code false} if it was already clear
+     */
+    public boolean tryClear(int block) {
+        int i = block >>> 6;
+        long bit = 1L << block;
+        long w;
+        do {
+            w = words.get(i);
+            if ((w & bit) == 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(i, w, w & ~bit));
+        return true;
+    }
+
+    /**
+     * Clears the blocks in {@code [from, to)} only if every one of them is set. Each word is a compare-and-set; if a
+     * later word has already lost a block, the earlier words are put back and nothing is taken. Another thread can
+     * briefly see the first word taken, so callers that need the run to change as one hold the provider-day lock.
+     *
+     * @param from first block, inclusive
+     * @param to   last block, exclusive
+     * @return {@code true} if this call cleared the whole range
+     */
+    public boolean tryClearRange(int from, int to) {
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        for (int i = first; i <= last; i++) {
+            long bits = wordMask(i, from, to);
+            long w;
+            do {
+                w = words.get(i);
+                if ((w & bits) != bits) {
+                    for (int j = first; j < i; j++) {
+                        setBits(j, wordMask(j, from, to));
+                    }
+                    return false;
+                }
+            } while (!words.compareAndSet(i, w, w & ~bits));
+        }
+        return true;
+    }
+
+    /**
+     * Sets the blocks in {@code [from, to)}.
+     *
+     * @param from first block, inclusive
+     * @param to   last block, exclusive
+     */
+    public void setRange(int from, int to) {
+        for (int i = from >>> 6; i <= (to - 1) >>> 6; i++) {
+            setBits(i, wordMask(i, from, to));
+        }
+    }
+
+    /**
+     * Clears the blocks in {@code [from, to)}.
+     *
+     * @param from first block, inclusive
+     * @param to   last block, exclusive
+     */
+    public void clearRange(int from, int to) {
+        for (int i = from >>> 6; i <= (to - 1) >>> 6; i++) {
+            long bits = wordMask(i, from, to);
+            long w;
+            do {
+                w = words.get(i);
+            } while (!words.compareAndSet(i, w, w & ~bits));
+        }
+    }
+
+    private void setBits(int i, long bits) {
+        long w;
+        do {
+            w = words.get(i);
+        } while (!words.compareAndSet(i, w, w | bits));
+    }
+
+    /**
+     * Sets every block in {@code mask} that is not set in {@code exclude}.
+     *
+     * @param mask    blocks to set
+     * @param exclude blocks to leave alone
+     */
+    public void setAll(long[] mask, BlockBitmap exclude) {
+        for (int i = 0; i < WORDS; i++) {
+            long add = mask[i] & ~exclude.words.get(i);
+            if (add == 0) {
+                continue;
+            }
+            long w;
+            do {
+                w = words.get(i);
+            } while (!words.compareAndSet(i, w, w | add));
+        }
+    }
+
+    /**
+     * Clears every block before {@code block}.
+     *
+     * @param block first block to keep
+     */
+    public void clearBefore(int block) {
+        long[] keep = rangeMask(block, ReservationUtil.BLOCKS_PER_DAY);
+        for (int i = 0; i < WORDS; i++) {
+            long w;
+            do {
+                w = words.get(i);
+            } while ((w & ~keep[i]) != 0 && !words.compareAndSet(i, w, w & keep[i]));
+        }
+    }
+
+    /**
+     * Returns the first set block at or after {@code from}.
+     *
+     * @param from block to start from
+     * @return the block, or -1 if there isn't one
+     */
+    public int nextSetBit(int from) {
+        if (from >= ReservationUtil.BLOCKS_PER_DAY) {
+            return -1;
+        }
+        int i = from >>> 6;
+        long w = words.get(i) & (-1L << from);
+        while (true) {
+            if (w != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(w);
+            }
+            if (++i == WORDS) {
+                return -1;
+            }
+            w = words.get(i);
+        }
+    }
+
+    /**
+     * Returns the number of set blocks.
+     *
+     * @return the number of set blocks
+     */
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < WORDS; i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether no block is set.
+     *
+     * @return {@code true} if empty
+     */
+    public boolean isEmpty() {
+        for (int i = 0; i < WORDS; i++) {
+            if (words.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the blocks out as a mask. Each word is read atomically, the mask as a whole only is if the caller holds
+     * the provider-day lock.
+     *
+     * @return the mask, {@link #WORDS} long
+     */
+    public long[] toMask() {
+        long[] mask = new long[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            mask[i] = words.get(i);
+        }
+        return mask;
+    }
+
+    /**
+     * Replaces every block with the ones in {@code mask}.
+     *
+     * @param mask the blocks to keep set
+     */
+    public void load(long[] mask) {
+        for (int i = 0; i < WORDS; i++) {
+            words.set(i, mask[i]);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package reservation.manager.service;
+
+/**
+ * Hash map keyed by a primitive {@code long}, so looking up a packed slot key (see
+ * {@link ReservationUtil#generatePendingReservationKey(long, int, int)}) doesn't box it and storing an entry doesn't
+ * allocate a node. Split into segments, each an open addressing table with linear probing guarded by its own monitor,
+ * so writers on different segments never contend.
+ * <p>
+ * {@code null} values aren't allowed, a {@code null} from {@link #get(long)} always means absent.
+ *
+ * @param <V> the value type
+ */
+public class ConcurrentLongMap<V> {
+
+    private static final int DEFAULT_SEGMENTS = 64;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+
+    /**
+     * How many of the hash's top bits pick the segment.
+     */
+    private final int segmentBits;
+
+    /**
+     * Creates a map with the default number of segments.
+     */
+    public ConcurrentLongMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a map with the given number of segments.
+     *
+     * @param segmentCount number of segments, rounded up to the next power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongMap(int segmentCount) {
+        segmentBits = segmentCount <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(segmentCount - 1);
+        segments = (Segment<V>[]) new Segment<?>[1 << segmentBits];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    /**
+     * Returns the value for a key.
+     *
+     * @param key the key
+     * @return the value, or {@code null}
+     */
+    public V get(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Maps a key to a value.
+     *
+     * @param key   the key
+     * @param value the value, not {@code null}
+     * @return the value it replaced, or {@code null}
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        long hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     * @return the value it had, or {@code null}
+     */
+    public V remove(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes a key only if it's mapped to the given value, compared with {@code equals}.
+     *
+     * @param key   the key
+     * @param value the expected value
+     * @return {@code true} if the key was mapped to that value and is now gone
+     */
+    public boolean remove(long key, V value) {
+        long hash = hash(key);
+        return value != null && segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Returns the number of entries. Not a point in time count while writers are busy.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns whether the map is empty.
+     *
+     * @return {@code true} if there are no entries
+     */
+    public boolean isEmpty() {
+        for (Segment<V> segment : segments) {
+            if (segment.size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits every entry. Each segment is copied under its monitor and visited after, so the visitor can take other
+     * locks or do IO without holding up writers.
+     *
+     * @param visitor called once per entry
+     */
+    public void forEach(Visitor<? super V> visitor) {
+        for (Segment<V> segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        return segments[segmentBits == 0 ? 0 : (int) (hash >>> (64 - segmentBits))];
+    }
+
+    /**
+     * Spreads the key so neighbouring slots don't land next to each other: the top bits pick the segment, the low
+     * bits the position in it.
+     */
+    private static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    @FunctionalInterface
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private static final class Segment<V> {
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+
+        /**
+         * {@code null} marks a free position, which is why values can't be {@code null}.
+         */
+        private Object[] values = new Object[INITIAL_CAPACITY];
+
+        private int size;
+
+        synchronized int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, long hash) {
+            int i = indexOf(key, hash);
+            return i < 0 ? null : (V) values[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long key, long hash, V value) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    V previous = (V) values[i];
+                    values[i] = value;
+                    return previous;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            // keep at most half full so probes stay short
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+            return null;
+        }
+
+        /**
+         * Removes the key if it's there and, when {@code expected} isn't {@code null}, mapped to that value.
+         */
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key, long hash, V expected) {
+            int i = indexOf(key, hash);
+            if (i < 0 || (expected != null && !expected.equals(values[i]))) {
+                return null;
+            }
+            V previous = (V) values[i];
+            delete(i);
+            return previous;
+        }
+
+        @SuppressWarnings("unchecked")
+        void forEach(Visitor<? super V> visitor) {
+            long[] keyCopy;
+            Object[] valueCopy;
+            synchronized (this) {
+                keyCopy = keys.clone();
+                valueCopy = values.clone();
+            }
+            for (int i = 0; i < valueCopy.length; i++) {
+                if (valueCopy[i] != null) {
+                    visitor.visit(keyCopy[i], (V) valueCopy[i]);
+                }
+            }
+        }
+
+        private int indexOf(long key, long hash) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Frees a position by shifting later entries of the same probe run back, so lookups never need tombstones.
+         */
+        private void delete(int slot) {
+            int mask = keys.length - 1;
+            int gap = slot;
+            int i = slot;
+            while (true) {
+                i = (i + 1) & mask;
+                if (values[i] == null) {
+                    break;
+                }
+                int home = (int) hash(keys[i]) & mask;
+                // the entry can fill the gap if the gap is between its home and where it is now
+                if (((i - home) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    gap = i;
+                }
+            }
+            values[gap] = null;
+            size--;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = (int) hash(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
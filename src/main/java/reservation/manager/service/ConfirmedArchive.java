@@ -0,0 +1,320 @@
+package reservation.manager.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+import reservation.manager.models.Reservation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Confirmed reservations of days that have gone by. Once a day is over nothing about it changes, so
+ * {@link ReservationService#advanceWindow()} moves it out of the repository into here, where it's kept read-only and
+ * compact: per day, the provider and patient names once each and then one column per field, a byte for the start
+ * block, a byte for the length and an int into each name table. That's about 10 bytes a reservation rather than a
+ * {@link Reservation} and its set entry.
+ * <p>
+ * With a directory, each day is also written to {@code <epoch day>.day} in it before it leaves the repository, and
+ * read back on startup. It has to be on disk whenever the repository or journal is: after the next snapshot the day
+ * is only here. Archiving the same day again merges into what's there, so a crash between writing the file and
+ * dropping the day from the repository just archives it again on the next start.
+ */
+@Component
+@ConditionalOnExpression("${reservation.shards.count:1} <= 1")
+public class ConfirmedArchive {
+
+    /**
+     * Bump when the layout written by {@link ArchivedDay#write(DataOutputStream)} changes.
+     */
+    private static final int FORMAT = 1;
+
+    private static final String SUFFIX = ".day";
+
+    private static final Comparator<Reservation> BY_TIME_THEN_PROVIDER = Comparator
+            .comparingInt(Reservation::getTimeBlock)
+            .thenComparing(Reservation::getProvider);
+
+    private final NavigableMap<Long, ArchivedDay> days = new ConcurrentSkipListMap<>();
+
+    private final Path directory;
+
+    /**
+     * Constructor for the class. Keeps the archive in memory only.
+     */
+    public ConfirmedArchive() {
+        this((Path) null);
+    }
+
+    /**
+     * Constructor for the class. Reads back every day already archived in the directory.
+     *
+     * @param directory where days are written, {@code null} to keep them in memory only
+     */
+    public ConfirmedArchive(Path directory) {
+        this.directory = directory;
+        if (directory != null) {
+            load();
+        }
+    }
+
+    /**
+     * Constructor for the class, from the properties.
+     *
+     * @param directory        the archive directory, blank for {@code archive} under the journal directory
+     * @param journalDirectory the journal directory, if that's blank too the archive is in memory only
+     */
+    @Autowired
+    public ConfirmedArchive(@Value("${reservation.archive.dir:}") String directory,
+                            @Value("${reservation.journal.dir:}") String journalDirectory) {
+        this(!directory.trim().isEmpty() ? Paths.get(directory.trim())
+                : !journalDirectory.trim().isEmpty() ? Paths.get(journalDirectory.trim(), "archive")
+                : null);
+    }
+
+    /**
+     * Archives a day's confirmed reservations, merged with any already archived for it. Written to disk before
+     * returning, when there's a directory.
+     *
+     * @param epochDay     the day
+     * @param reservations its confirmed reservations
+     * @throws UncheckedIOException if the day couldn't be written, the archive is left as it was
+     */
+    public synchronized void archive(long epochDay, Collection<Reservation> reservations) {
+        // a provider only has one reservation starting at a block, and the same day may be archived again after a
+        // crash, so anything equal by time and provider is the same reservation
+        NavigableSet<Reservation> merged = new TreeSet<>(BY_TIME_THEN_PROVIDER);
+        merged.addAll(reservations);
+        ArchivedDay existing = days.get(epochDay);
+        if (existing != null) {
+            merged.addAll(existing.reservations());
+        }
+        ArchivedDay day = ArchivedDay.encode(new ArrayList<>(merged));
+        if (directory != null) {
+            write(epochDay, day);
+        }
+        days.put(epochDay, day);
+    }
+
+    /**
+     * Returns whether a day has been archived.
+     *
+     * @param epochDay the day
+     * @return {@code true} if it has
+     */
+    public boolean contains(long epochDay) {
+        return days.containsKey(epochDay);
+    }
+
+    /**
+     * Returns the archived days in a range, decoded.
+     *
+     * @param fromEpochDay first day, inclusive
+     * @param toEpochDay   last day, inclusive
+     * @param limit        most days to return
+     * @return epoch day -> reservations sorted by time then provider, in date order
+     */
+    public NavigableMap<Long, List<Reservation>> days(long fromEpochDay, long toEpochDay, int limit) {
+        NavigableMap<Long, List<Reservation>> found = new TreeMap<>();
+        if (fromEpochDay > toEpochDay) {
+            return found;
+        }
+        for (Map.Entry<Long, ArchivedDay> day : days.subMap(fromEpochDay, true, toEpochDay, true).entrySet()) {
+            if (found.size() == limit) {
+                break;
+            }
+            found.put(day.getKey(), day.getValue().reservations());
+        }
+        return found;
+    }
+
+    /**
+     * Returns how many reservations are archived.
+     *
+     * @return the number of archived reservations
+     */
+    public long size() {
+        long size = 0;
+        for (ArchivedDay day : days.values()) {
+            size += day.size();
+        }
+        return size;
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    long epochDay = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    try (InputStream in = Files.newInputStream(file)) {
+                        days.put(epochDay, ArchivedDay.read(new DataInputStream(new BufferedInputStream(in))));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read the archive in " + directory, e);
+        }
+    }
+
+    private void write(long epochDay, ArchivedDay day) {
+        Path tmp = directory.resolve(epochDay + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+                day.write(data);
+                data.flush();
+                out.force(true);
+            }
+            Files.move(tmp, directory.resolve(epochDay + SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to archive day " + epochDay, e);
+        }
+    }
+
+    /**
+     * One day's reservations, dictionary encoded and stored a column per field, sorted by time then provider.
+     */
+    static final class ArchivedDay {
+        private final String[] providers;
+        private final String[] patients;
+        private final byte[] timeBlocks;
+        private final byte[] lengths;
+        private final int[] providerIndex;
+        private final int[] patientIndex;
+
+        private ArchivedDay(String[] providers, String[] patients, byte[] timeBlocks, byte[] lengths,
+                            int[] providerIndex, int[] patientIndex) {
+            this.providers = providers;
+            this.patients = patients;
+            this.timeBlocks = timeBlocks;
+            this.lengths = lengths;
+            this.providerIndex = providerIndex;
+            this.patientIndex = patientIndex;
+        }
+
+        static ArchivedDay encode(List<Reservation> reservations) {
+            int count = reservations.size();
+            Map<String, Integer> providers = new HashMap<>();
+            Map<String, Integer> patients = new HashMap<>();
+            byte[] timeBlocks = new byte[count];
+            byte[] lengths = new byte[count];
+            int[] providerIndex = new int[count];
+            int[] patientIndex = new int[count];
+            for (int i = 0; i < count; i++) {
+                Reservation reservation = reservations.get(i);
+                timeBlocks[i] = (byte) reservation.getTimeBlock();
+                lengths[i] = (byte) reservation.getBlocks();
+                providerIndex[i] = providers.computeIfAbsent(reservation.getProvider(), k -> providers.size());
+                patientIndex[i] = patients.computeIfAbsent(reservation.getPatient(), k -> patients.size());
+            }
+            return new ArchivedDay(table(providers), table(patients), timeBlocks, lengths, providerIndex,
+                    patientIndex);
+        }
+
+        int size() {
+            return timeBlocks.length;
+        }
+
+        List<Reservation> reservations() {
+            List<Reservation> reservations = new ArrayList<>(timeBlocks.length);
+            for (int i = 0; i < timeBlocks.length; i++) {
+                reservations.add(Reservation.builder()
+                        .timeBlock(timeBlocks[i])
+                        .blocks(lengths[i])
+                        .provider(providers[providerIndex[i]])
+                        .patient(patients[patientIndex[i]])
+                        .build());
+            }
+            return reservations;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(FORMAT);
+            writeTable(out, providers);
+            writeTable(out, patients);
+            out.writeInt(timeBlocks.length);
+            out.write(timeBlocks);
+            out.write(lengths);
+            for (int index : providerIndex) {
+                out.writeInt(index);
+            }
+            for (int index : patientIndex) {
+                out.writeInt(index);
+            }
+        }
+
+        static ArchivedDay read(DataInputStream in) throws IOException {
+            int format = in.readInt();
+            if (format != FORMAT) {
+                throw new IOException("Unknown archive format " + format);
+            }
+            String[] providers = readTable(in);
+            String[] patients = readTable(in);
+            int count = in.readInt();
+            byte[] timeBlocks = new byte[count];
+            byte[] lengths = new byte[count];
+            in.readFully(timeBlocks);
+            in.readFully(lengths);
+            int[] providerIndex = new int[count];
+            int[] patientIndex = new int[count];
+            for (int i = 0; i < count; i++) {
+                providerIndex[i] = in.readInt();
+            }
+            for (int i = 0; i < count; i++) {
+                patientIndex[i] = in.readInt();
+            }
+            return new ArchivedDay(providers, patients, timeBlocks, lengths, providerIndex, patientIndex);
+        }
+
+        private static String[] table(Map<String, Integer> names) {
+            String[] table = new String[names.size()];
+            for (Map.Entry<String, Integer> name : names.entrySet()) {
+                table[name.getValue()] = name.getKey();
+            }
+            return table;
+        }
+
+        private static void writeTable(DataOutputStream out, String[] table) throws IOException {
+            out.writeInt(table.length);
+            for (String name : table) {
+                out.writeUTF(name);
+            }
+        }
+
+        private static String[] readTable(DataInputStream in) throws IOException {
+            String[] table = new String[in.readInt()];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = in.readUTF();
+            }
+            return table;
+        }
+    }
+}
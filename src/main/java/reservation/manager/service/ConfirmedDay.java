@@ -0,0 +1,20 @@
+package reservation.manager.service;
+
+import lombok.Value;
+import reservation.manager.models.Reservation;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * One day's confirmed reservations, from the live repository or from the {@link ConfirmedArchive}.
+ */
+@Value
+public class ConfirmedDay {
+    LocalDate date;
+
+    /**
+     * Sorted by time, then provider.
+     */
+    List<Reservation> reservations;
+}
@@ -0,0 +1,264 @@
+package reservation.manager.service;
+
+import reservation.manager.models.Reservation;
+import reservation.manager.repository.ReservationRepository;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * A day's open slots as readers see them: an immutable, versioned {@link Snapshot} of every provider's open blocks,
+ * copied out of the {@link ReservationRepository} by writers after each change.
+ * <p>
+ * Readers only ever load the current snapshot, so they never take a lock, never touch the repository and never wait
+ * behind {@code reserve}. Everything they build from one snapshot is a consistent point in time, even while other
+ * providers' slots on the same day are changing. A writer publishes under the provider-day lock it changed the
+ * repository under, so one provider's publishes are in the order of its changes. Writers for other providers on the
+ * same day swap the snapshot by compare-and-set, each replacing only its own provider's blocks.
+ */
+public class DayAvailability {
+    private final long epochDay;
+    private final AtomicReference<Snapshot> snapshot;
+
+    /**
+     * Constructor for the class, for a day with nothing open yet.
+     *
+     * @param epochDay the day
+     * @param version  starting version
+     */
+    public DayAvailability(long epochDay, long version) {
+        this.epochDay = epochDay;
+        this.snapshot = new AtomicReference<>(new Snapshot(version, new int[0], new long[0][]));
+    }
+
+    /**
+     * Returns the day.
+     *
+     * @return the epoch day
+     */
+    public long getEpochDay() {
+        return epochDay;
+    }
+
+    /**
+     * Publishes a provider's open blocks after they changed. Caller must hold the provider-day lock, or otherwise keep
+     * other writes to the provider out. Versions come from a counter shared by every day, so a day that gets dropped
+     * and created again never reuses a version; one is drawn per attempt, so a day's versions only ever go up.
+     *
+     * @param providerId the provider
+     * @param open       its open blocks, owned by the snapshot from now on
+     * @param versions   where the new version comes from
+     */
+    public void publish(int providerId, long[] open, LongSupplier versions) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            next = current.with(providerId, open, versions.getAsLong());
+        } while (!snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     * Replaces the whole day, for when it's loaded and nothing else can be writing to it yet.
+     *
+     * @param open    provider id -> open blocks, owned by the snapshot from now on
+     * @param version the new version
+     */
+    public void publishAll(Map<Integer, long[]> open, long version) {
+        int[] providerIds = new int[open.size()];
+        int i = 0;
+        for (Integer providerId : open.keySet()) {
+            providerIds[i++] = providerId;
+        }
+        Arrays.sort(providerIds);
+        long[][] masks = new long[providerIds.length][];
+        for (i = 0; i < providerIds.length; i++) {
+            masks[i] = open.get(providerIds[i]);
+        }
+        snapshot.set(new Snapshot(version, providerIds, masks));
+    }
+
+    /**
+     * Returns the current version.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return snapshot.get().version;
+    }
+
+    /**
+     * Returns a provider's open blocks as of the current snapshot.
+     *
+     * @param providerId the provider
+     * @return the mask, all zero if nothing is open. Must not be changed.
+     */
+    public long[] openBlocks(int providerId) {
+        return snapshot.get().open(providerId);
+    }
+
+    /**
+     * Returns the time ordered view of the open slots. Built once per snapshot, and the snapshot it came from keeps
+     * it until the day changes.
+     *
+     * @param dictionary to turn provider ids back into names
+     * @return the view
+     */
+    public AvailabilityView view(ProviderDictionary dictionary) {
+        Snapshot current = snapshot.get();
+        AvailabilityView view = current.view;
+        if (view == null) {
+            // two readers may both build it, they build the same thing
+            view = buildView(current, dictionary, current.masks, 1);
+            current.view = view;
+        }
+        return view;
+    }
+
+    /**
+     * Returns a view of just one provider's open slots. Not cached, a single provider's day is only a couple of words
+     * to walk.
+     *
+     * @param providerId the provider id
+     * @param provider   the provider's name
+     * @return the view, empty if the provider has nothing open
+     */
+    public AvailabilityView providerView(int providerId, String provider) {
+        return providerView(providerId, provider, 1);
+    }
+
+    /**
+     * Returns where one provider's runs of {@code blocks} open blocks start. Not cached.
+     *
+     * @param providerId the provider id
+     * @param provider   the provider's name
+     * @param blocks     run length
+     * @return the view, empty if the provider has no such run
+     */
+    public AvailabilityView providerView(int providerId, String provider, int blocks) {
+        Snapshot current = snapshot.get();
+        long[] starts = BlockBitmap.runStarts(current.open(providerId), blocks);
+        List<Reservation> reservations = new ArrayList<>();
+        for (int block = BlockBitmap.nextSetBit(starts, 0); block >= 0;
+             block = BlockBitmap.nextSetBit(starts, block + 1)) {
+            reservations.add(Reservation.builder().provider(provider).timeBlock(block).blocks(blocks).build());
+        }
+        return new AvailabilityView(LocalDate.ofEpochDay(epochDay), current.version,
+                Collections.unmodifiableList(reservations));
+    }
+
+    /**
+     * Returns where every provider's runs of {@code blocks} open blocks start, in the same order as
+     * {@link #view(ProviderDictionary)}. Not cached, the run length varies per call.
+     *
+     * @param blocks     run length
+     * @param dictionary to turn provider ids back into names
+     * @return the view
+     */
+    public AvailabilityView runView(int blocks, ProviderDictionary dictionary) {
+        Snapshot current = snapshot.get();
+        long[][] starts = new long[current.masks.length][];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = BlockBitmap.runStarts(current.masks[i], blocks);
+        }
+        return buildView(current, dictionary, starts, blocks);
+    }
+
+    /**
+     * There are only {@link ReservationUtil#BLOCKS_PER_DAY} possible times, so rather than sorting every slot we drop
+     * them into one bucket per block, walking providers in name order.
+     */
+    private AvailabilityView buildView(Snapshot current, ProviderDictionary dictionary, long[][] masks, int blocks) {
+        List<Map.Entry<String, long[]>> byName = new ArrayList<>(masks.length);
+        for (int i = 0; i < masks.length; i++) {
+            byName.add(new AbstractMap.SimpleImmutableEntry<>(dictionary.nameOf(current.providerIds[i]), masks[i]));
+        }
+        byName.sort(Map.Entry.comparingByKey());
+
+        @SuppressWarnings("unchecked")
+        List<Reservation>[] buckets = (List<Reservation>[]) new List<?>[ReservationUtil.BLOCKS_PER_DAY];
+        int count = 0;
+        for (Map.Entry<String, long[]> entry : byName) {
+            long[] open = entry.getValue();
+            for (int block = BlockBitmap.nextSetBit(open, 0); block >= 0;
+                 block = BlockBitmap.nextSetBit(open, block + 1)) {
+                if (buckets[block] == null) {
+                    buckets[block] = new ArrayList<>();
+                }
+                buckets[block].add(Reservation.builder().provider(entry.getKey()).timeBlock(block).blocks(blocks)
+                        .build());
+                count++;
+            }
+        }
+        List<Reservation> reservations = new ArrayList<>(count);
+        for (List<Reservation> bucket : buckets) {
+            if (bucket != null) {
+                reservations.addAll(bucket);
+            }
+        }
+        return new AvailabilityView(LocalDate.ofEpochDay(epochDay), current.version,
+                Collections.unmodifiableList(reservations));
+    }
+
+    /**
+     * One version of a day: the providers with anything open, sorted by id, and their blocks. Never changed once
+     * published, a write copies the two arrays (a few KB for a thousand providers) and swaps in the copy.
+     */
+    static final class Snapshot {
+        private static final long[] NOTHING_OPEN = new long[BlockBitmap.WORDS];
+
+        private final long version;
+        private final int[] providerIds;
+        private final long[][] masks;
+
+        /**
+         * The time ordered view, built on the first read.
+         */
+        private volatile AvailabilityView view;
+
+        private Snapshot(long version, int[] providerIds, long[][] masks) {
+            this.version = version;
+            this.providerIds = providerIds;
+            this.masks = masks;
+        }
+
+        long[] open(int providerId) {
+            int i = Arrays.binarySearch(providerIds, providerId);
+            return i < 0 ? NOTHING_OPEN : masks[i];
+        }
+
+        Snapshot with(int providerId, long[] open, long newVersion) {
+            int i = Arrays.binarySearch(providerIds, providerId);
+            boolean empty = BlockBitmap.cardinality(open) == 0;
+            if (i >= 0 && empty) {
+                int[] ids = new int[providerIds.length - 1];
+                long[][] newMasks = new long[masks.length - 1][];
+                System.arraycopy(providerIds, 0, ids, 0, i);
+                System.arraycopy(providerIds, i + 1, ids, i, ids.length - i);
+                System.arraycopy(masks, 0, newMasks, 0, i);
+                System.arraycopy(masks, i + 1, newMasks, i, newMasks.length - i);
+                return new Snapshot(newVersion, ids, newMasks);
+            }
+            if (i >= 0) {
+                long[][] newMasks = masks.clone();
+                newMasks[i] = open;
+                return new Snapshot(newVersion, providerIds, newMasks);
+            }
+            if (empty) {
+                return new Snapshot(newVersion, providerIds, masks);
+            }
+            int at = -i - 1;
+            int[] ids = new int[providerIds.length + 1];
+            long[][] newMasks = new long[masks.length + 1][];
+            System.arraycopy(providerIds, 0, ids, 0, at);
+            System.arraycopy(providerIds, at, ids, at + 1, providerIds.length - at);
+            System.arraycopy(masks, 0, newMasks, 0, at);
+            System.arraycopy(masks, at, newMasks, at + 1, masks.length - at);
+            ids[at] = providerId;
+            newMasks[at] = open;
+            return new Snapshot(newVersion, ids, newMasks);
+        }
+    }
+}
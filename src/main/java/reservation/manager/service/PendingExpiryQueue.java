@@ -0,0 +1,107 @@
+package reservation.manager.service;
+
+import java.util.Arrays;
+
+/**
+ * Pending holds ordered by expiry, earliest first. Each entry is just the deadline and the hold's slot key (see
+ * {@link ReservationUtil#generatePendingReservationKey(long, int, int)}), kept in a pair of {@code long} arrays laid
+ * out as a binary heap, so scheduling a hold doesn't allocate anything once the arrays have grown to fit.
+ * <p>
+ * Confirming a hold doesn't touch the queue. The entry stays until its deadline and is skipped then because the slot
+ * no longer has a hold with that deadline. That keeps cancellation O(1), unlike removing from the middle of a queue,
+ * and the heap never holds more than one TTL's worth of holds.
+ */
+public class PendingExpiryQueue {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private long[] expiries = new long[INITIAL_CAPACITY];
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * Schedules a hold for expiry. O(log n).
+     *
+     * @param expiry when the hold runs out, in ms
+     * @param key    the hold's slot key
+     */
+    public synchronized void add(long expiry, long key) {
+        if (size == expiries.length) {
+            expiries = Arrays.copyOf(expiries, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int i = size++;
+        // sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (expiries[parent] <= expiry) {
+                break;
+            }
+            expiries[i] = expiries[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        expiries[i] = expiry;
+        keys[i] = key;
+    }
+
+    /**
+     * Removes and returns every entry whose deadline is before {@code now}. Only looks at expired entries, so this is
+     * O(expired log n) no matter how many holds are still live.
+     *
+     * @param now current time in ms
+     * @return the expired entries, oldest first, as {@code expiry, key} pairs laid out one after the other. Some of
+     * the holds may already have been confirmed
+     */
+    public synchronized long[] pollExpired(long now) {
+        int count = 0;
+        long[] expired = null;
+        while (size > 0 && expiries[0] < now) {
+            if (expired == null) {
+                expired = new long[16];
+            } else if (count == expired.length) {
+                expired = Arrays.copyOf(expired, count * 2);
+            }
+            expired[count++] = expiries[0];
+            expired[count++] = keys[0];
+            removeHead();
+        }
+        return expired == null ? new long[0] : Arrays.copyOf(expired, count);
+    }
+
+    /**
+     * Returns the number of scheduled entries, including ones that were already confirmed.
+     *
+     * @return the number of scheduled entries
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void removeHead() {
+        int last = --size;
+        long expiry = expiries[last];
+        long key = keys[last];
+        int i = 0;
+        // sift the last entry down from the top
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= last) {
+                break;
+            }
+            if (child + 1 < last && expiries[child + 1] < expiries[child]) {
+                child++;
+            }
+            if (expiry <= expiries[child]) {
+                break;
+            }
+            expiries[i] = expiries[child];
+            keys[i] = keys[child];
+            i = child;
+        }
+        expiries[i] = expiry;
+        keys[i] = key;
+    }
+}
@@ -0,0 +1,89 @@
+package reservation.manager.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A batch of changes that has been checked but not made visible, holding the locks of every (date, provider) it
+ * touches. {@link #commit()} makes the changes, {@link #close()} undoes them if they weren't committed and lets go of
+ * the locks. Nothing can get in between the check and the commit, so a batch is all or nothing.
+ * <p>
+ * Batches on several shards are made atomic together by preparing all of them before committing any. Every batch
+ * takes its locks in stripe order and the shards are prepared in name order, so two batches can't deadlock.
+ */
+public final class PreparedBatch implements AutoCloseable {
+
+    private static final PreparedBatch REJECTED = new PreparedBatch(Collections.emptyList(), null, null);
+
+    private final List<? extends Lock> locks;
+    private final Runnable commit;
+    private final Runnable abort;
+    private boolean committed;
+    private boolean closed;
+
+    /**
+     * Constructor for the class. The locks must already be held by the calling thread.
+     *
+     * @param locks  the locks, released in reverse order on close
+     * @param commit makes the changes visible
+     * @param abort  undoes what preparing did
+     */
+    PreparedBatch(List<? extends Lock> locks, Runnable commit, Runnable abort) {
+        this.locks = locks;
+        this.commit = commit;
+        this.abort = abort;
+    }
+
+    /**
+     * Returns a batch that failed its checks, nothing is held and nothing will be changed.
+     *
+     * @return the batch
+     */
+    static PreparedBatch rejected() {
+        return REJECTED;
+    }
+
+    /**
+     * Returns whether every change in the batch can be made.
+     *
+     * @return {@code false} if the batch was rejected
+     */
+    public boolean isPrepared() {
+        return commit != null;
+    }
+
+    /**
+     * Makes the changes. Call at most once, and only from the thread that prepared the batch.
+     *
+     * @return {@code true} if the batch was prepared and is now committed, {@code false} if it was rejected
+     */
+    public boolean commit() {
+        if (!isPrepared() || closed) {
+            return false;
+        }
+        committed = true;
+        commit.run();
+        return true;
+    }
+
+    /**
+     * Undoes the batch if it wasn't committed, then releases the locks.
+     */
+    @Override
+    public void close() {
+        if (closed || !isPrepared()) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!committed) {
+                abort.run();
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+        }
+    }
+}
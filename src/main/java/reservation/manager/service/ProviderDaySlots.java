@@ -0,0 +1,76 @@
+package reservation.manager.service;
+
+/**
+ * A single provider's slots for a single day.
+ * <p>
+ * {@code open} holds the bookable blocks, {@code booked} the blocks that are pending or confirmed. Keeping the booked
+ * bits around means re-adding availability can't reopen a block someone already has.
+ */
+public class ProviderDaySlots {
+    private final BlockBitmap open = new BlockBitmap();
+    private final BlockBitmap booked = new BlockBitmap();
+
+    /**
+     * Opens every block in the mask that isn't booked.
+     *
+     * @param mask blocks to open
+     */
+    public void open(long[] mask) {
+        open.setAll(mask, booked);
+    }
+
+    /**
+     * Moves a run of open blocks to booked, all or nothing.
+     *
+     * @param block  first block of the run
+     * @param length number of blocks
+     * @return {@code true} if every block was open and the run is now ours
+     */
+    public boolean claim(int block, int length) {
+        if (!open.tryClearRange(block, block + length)) {
+            return false;
+        }
+        booked.setRange(block, block + length);
+        return true;
+    }
+
+    /**
+     * Moves a booked run back to open.
+     *
+     * @param block  first block of the run
+     * @param length number of blocks
+     */
+    public void release(int block, int length) {
+        booked.clearRange(block, block + length);
+        open.setRange(block, block + length);
+    }
+
+    /**
+     * Marks a run booked whether or not it's open. Only for replaying the journal, where the claim already happened.
+     *
+     * @param block  first block of the run
+     * @param length number of blocks
+     */
+    public void book(int block, int length) {
+        open.clearRange(block, block + length);
+        booked.setRange(block, block + length);
+    }
+
+    /**
+     * Returns the open blocks.
+     *
+     * @return the open blocks
+     */
+    public BlockBitmap getOpen() {
+        return open;
+    }
+
+    /**
+     * Returns the pending and confirmed blocks.
+     *
+     * @return the booked blocks
+     */
+    public BlockBitmap getBooked() {
+        return booked;
+    }
+}
@@ -0,0 +1,128 @@
+package reservation.manager.service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Assigns each provider a small int id so the slot store can key on an int instead of holding on to the provider
+ * string for every day. Ids are never reused.
+ */
+public class ProviderDictionary {
+
+    /**
+     * Returned by {@link #find(String)} for providers we've never seen.
+     */
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * Written only while holding the monitor. The id is published through {@link #ids} after the name is stored, so
+     * anyone who got an id can read its name.
+     */
+    private volatile String[] names = new String[64];
+    private int size;
+
+    /**
+     * Told about every new id before anyone else can see it, so a journal gets it ahead of any record that uses it.
+     */
+    private final BiConsumer<Integer, String> onAssigned;
+
+    /**
+     * Constructor for the class.
+     */
+    public ProviderDictionary() {
+        this((id, provider) -> { });
+    }
+
+    /**
+     * Constructor for the class.
+     *
+     * @param onAssigned called with each new id and provider, while the dictionary is locked
+     */
+    public ProviderDictionary(BiConsumer<Integer, String> onAssigned) {
+        this.onAssigned = onAssigned;
+    }
+
+    /**
+     * Returns the id of the provider, assigning a new one if needed.
+     *
+     * @param provider the provider
+     * @return the provider id
+     */
+    public int intern(String provider) {
+        Integer id = ids.get(provider);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(provider);
+            if (id != null) {
+                return id;
+            }
+            if (size > ReservationUtil.MAX_PROVIDER_ID) {
+                throw new IllegalStateException("Out of provider ids, slot keys only have room for "
+                        + (ReservationUtil.MAX_PROVIDER_ID + 1));
+            }
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = provider;
+            names = current;
+            onAssigned.accept(size, provider);
+            ids.put(provider, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Puts back an id handed out before a restart. Doesn't call the listener, the id is already on record.
+     *
+     * @param id       the id
+     * @param provider the provider
+     */
+    public synchronized void restore(int id, String provider) {
+        String[] current = names;
+        if (id >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, id + 1));
+        }
+        current[id] = provider;
+        names = current;
+        ids.put(provider, id);
+        size = Math.max(size, id + 1);
+    }
+
+    /**
+     * Returns how many ids have been handed out. Ids are {@code 0} to {@code size() - 1}.
+     *
+     * @return the number of providers
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Returns the id of the provider without assigning one, so lookups for made-up providers don't grow the
+     * dictionary.
+     *
+     * @param provider the provider
+     * @return the provider id, or {@link #UNKNOWN}
+     */
+    public int find(String provider) {
+        Integer id = ids.get(provider);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * Returns the provider for an id.
+     *
+     * @param id an id previously returned by {@link #intern(String)}
+     * @return the provider
+     */
+    public String nameOf(int id) {
+        return names[id];
+    }
+}
@@ -0,0 +1,38 @@
+package reservation.manager.service;
+
+import lombok.Value;
+import reservation.manager.models.PendingReservation;
+import reservation.manager.models.Reservation;
+
+import java.util.List;
+import java.util.NavigableMap;
+
+/**
+ * Everything one node holds for a provider, as handed from one shard to another when the provider moves. See
+ * {@link ReservationService#exportProvider(String)}.
+ */
+@Value
+public class ProviderState {
+    String provider;
+
+    /**
+     * Epoch day -> that day's open and booked blocks, in that order.
+     */
+    NavigableMap<Long, long[][]> days;
+
+    List<PendingReservation> holds;
+
+    /**
+     * Epoch day -> that day's confirmed reservations.
+     */
+    NavigableMap<Long, List<Reservation>> confirmed;
+
+    /**
+     * Returns whether there's nothing to move.
+     *
+     * @return {@code true} if the provider has no days, holds or reservations
+     */
+    public boolean isEmpty() {
+        return days.isEmpty() && holds.isEmpty() && confirmed.isEmpty();
+    }
+}
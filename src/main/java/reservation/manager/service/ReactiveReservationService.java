@@ -0,0 +1,568 @@
+package reservation.manager.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reservation.manager.models.AvailabilityChange;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.BookingTarget;
+import reservation.manager.models.PatientReservation;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking front of {@link ReservationOperations}, for the controller to call from the event loop.
+ * <p>
+ * Changes go through a mailbox. Providers are split into partitions by hash, and each partition has one writer
+ * thread taking commands off a bounded queue, so a provider's changes never run on an event loop thread and run one
+ * at a time. A writer takes whatever has queued up, up to {@code batchSize} commands, runs them back to back and then
+ * waits for the journal once for the whole batch: every {@link Mono} completes when its change is durable, the same
+ * as calling {@link ReservationOperations#flushed()} after each one, for one flush per batch instead of one per
+ * request. When a partition's mailbox is full, the command fails straight away with a
+ * {@link RejectedExecutionException} rather than queueing without bound.
+ * <p>
+ * The writers don't replace {@link ReservationService}'s provider-day locks, which are still what keeps changes
+ * correct. A batch spanning partitions runs on its first provider's writer, and the expiry sweep and the window advance run on
+ * their own schedules without going through a mailbox, so any of them can touch a provider-day at the same time as
+ * its partition's writer. With only one writer per partition those locks are rarely contended, but they're taken.
+ * <p>
+ * Reads don't go through a mailbox. Every day's view is an immutable snapshot that's only replaced when the day
+ * changes (see {@link AvailabilityView}), so reads are answered on the subscriber's thread without waiting on any
+ * writer.
+ * <p>
+ * Changes to what's bookable can be watched as a {@link Flux} (see {@link #watch}), fed by the
+ * {@link AvailabilityFeed}. Each subscriber only gets as many changes as it has requested, and the rest wait coalesced
+ * in its bounded subscription.
+ */
+@Component
+public class ReactiveReservationService implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveReservationService.class);
+
+    private final ReservationOperations operations;
+
+    /**
+     * Most changes handed to a watcher in one go, so one busy watcher doesn't keep a scheduler thread to itself.
+     */
+    private static final int WATCH_BATCH = 256;
+
+    /**
+     * Where results are handed to their subscribers: not the journal's flush thread, which would otherwise run every
+     * request's downstream work before it could flush the next batch.
+     */
+    private static final Executor COMPLETIONS = task -> Schedulers.parallel().schedule(task);
+
+    private final Writer[] writers;
+
+    private final AvailabilityFeed feed;
+
+    private final int feedCapacity;
+
+    /**
+     * Constructor for the class. Starts the writer threads. Nothing can be watched.
+     *
+     * @param operations      what commands and reads are run against
+     * @param partitions      number of writer threads, providers are spread across them by hash
+     * @param mailboxCapacity most commands a partition queues before turning new ones away
+     * @param batchSize       most commands a writer runs before waiting for the journal
+     */
+    public ReactiveReservationService(ReservationOperations operations, int partitions, int mailboxCapacity,
+                                      int batchSize) {
+        this(operations, partitions, mailboxCapacity, batchSize, new AvailabilityFeed(), 1);
+    }
+
+    /**
+     * Constructor for the class. Starts the writer threads.
+     *
+     * @param operations      what commands and reads are run against
+     * @param partitions      number of writer threads, providers are spread across them by hash
+     * @param mailboxCapacity most commands a partition queues before turning new ones away
+     * @param batchSize       most commands a writer runs before waiting for the journal
+     * @param feed            where the changes {@code operations} makes are published
+     * @param feedCapacity    most changed slots buffered per watcher before it's told to resync
+     */
+    @Autowired
+    public ReactiveReservationService(ReservationOperations operations,
+                                      @Value("${reservation.writers.partitions:0}") int partitions,
+                                      @Value("${reservation.writers.mailbox-capacity:1024}") int mailboxCapacity,
+                                      @Value("${reservation.writers.batch-size:64}") int batchSize,
+                                      AvailabilityFeed feed,
+                                      @Value("${reservation.feed.buffer-capacity:1024}") int feedCapacity) {
+        this.operations = operations;
+        this.feed = feed;
+        this.feedCapacity = feedCapacity;
+        int count = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+        writers = new Writer[count];
+        for (int i = 0; i < count; i++) {
+            writers[i] = new Writer(i, mailboxCapacity, batchSize);
+            writers[i].start();
+        }
+    }
+
+    /**
+     * Adds availability for one provider on one day.
+     *
+     * @param provider the provider
+     * @param date     the day
+     * @param start    start time
+     * @param end      end time, on the same day
+     * @return completes once the availability is durable
+     */
+    public Mono<Void> addAvailability(String provider, LocalDate date, LocalTime start, LocalTime end) {
+        return submit(provider, () -> {
+            operations.addAvailability(provider, date, start, end);
+            return Boolean.TRUE;
+        }).then();
+    }
+
+    /**
+     * Adds many windows of availability at once. Each partition's windows are applied as one command.
+     *
+     * @param windows the windows, across any number of providers and days
+     * @return one result per window, in the same order, once they're durable
+     */
+    public Mono<List<AvailabilityResult>> addAvailability(List<AvailabilityWindow> windows) {
+        return Mono.defer(() -> {
+            AvailabilityResult[] results = new AvailabilityResult[windows.size()];
+            List<List<Integer>> positions = new ArrayList<>(writers.length);
+            for (int i = 0; i < writers.length; i++) {
+                positions.add(new ArrayList<>());
+            }
+            for (int i = 0; i < windows.size(); i++) {
+                // a window without a provider has no partition, reject it in its place rather than fail the rest
+                results[i] = ReservationService.rejectIncomplete(windows.get(i));
+                if (results[i] == null) {
+                    positions.get(partition(windows.get(i).getProvider())).add(i);
+                }
+            }
+            List<Mono<List<AvailabilityResult>>> batches = new ArrayList<>();
+            List<List<Integer>> batchPositions = new ArrayList<>();
+            for (int p = 0; p < writers.length; p++) {
+                List<Integer> partitionPositions = positions.get(p);
+                if (partitionPositions.isEmpty()) {
+                    continue;
+                }
+                List<AvailabilityWindow> batch = new ArrayList<>(partitionPositions.size());
+                for (int position : partitionPositions) {
+                    batch.add(windows.get(position));
+                }
+                batches.add(writers[p].submit(() -> operations.addAvailability(batch)));
+                batchPositions.add(partitionPositions);
+            }
+            if (batches.isEmpty()) {
+                return Mono.just(new ArrayList<>(Arrays.asList(results)));
+            }
+            return Mono.zip(batches, done -> {
+                for (int b = 0; b < done.length; b++) {
+                    @SuppressWarnings("unchecked")
+                    List<AvailabilityResult> batchResults = (List<AvailabilityResult>) done[b];
+                    for (int i = 0; i < batchResults.size(); i++) {
+                        results[batchPositions.get(b).get(i)] = batchResults.get(i);
+                    }
+                }
+                return new ArrayList<>(Arrays.asList(results));
+            });
+        });
+    }
+
+    /**
+     * Attempts to reserve an appointment with a provider.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     of desired reservation
+     * @param time     start of desired reservation
+     * @param minutes  length of the appointment, or {@code null} for a single block
+     * @return {@code true} once the hold is durable, {@code false} if a block wasn't available
+     */
+    public Mono<Boolean> reserve(String provider, String patient, LocalDate date, LocalTime time, Integer minutes) {
+        return submit(provider, () -> minutes == null
+                ? operations.reserve(provider, patient, date, time)
+                : operations.reserve(provider, patient, date, time, minutes));
+    }
+
+    /**
+     * Attempts to reserve an appointment with a provider, queueing for it if someone else holds it (see
+     * {@link ReservationOperations#reserveOrWait}). While queued nothing is tied up but the subscription, and the
+     * answer comes at most a hold's TTL later, when the hold is confirmed or runs out.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     of desired reservation
+     * @param time     start of desired reservation
+     * @param minutes  length of the appointment, or {@code null} for a single block
+     * @return {@code true} once the patient's hold is durable, {@code false} if they won't get the appointment.
+     * Cancelling leaves the queue.
+     */
+    public Mono<Boolean> reserveOrWait(String provider, String patient, LocalDate date, LocalTime time,
+                                       Integer minutes) {
+        int length = minutes == null ? ReservationUtil.convertBlocksToMinutes(1) : minutes;
+        return submit(provider, () -> operations.reserveOrWait(provider, patient, date, time, length))
+                // a hand-over completes on the expiry sweep's thread, under its lock, so move off it
+                .flatMap(outcome -> Mono.fromFuture(outcome).publishOn(Schedulers.parallel()))
+                .flatMap(held -> held
+                        ? Mono.fromFuture(operations.flushed())
+                                .publishOn(Schedulers.parallel())
+                                .thenReturn(Boolean.TRUE)
+                        : Mono.just(Boolean.FALSE));
+    }
+
+    /**
+     * Confirms an active pending reservation. Waits for the journal either way, a failed confirm may still have
+     * released an expired hold.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     the reservation date
+     * @param time     the reservation time
+     * @return {@code true} once the confirmation is durable, {@code false} if there was no active hold
+     */
+    public Mono<Boolean> confirm(String provider, String patient, LocalDate date, LocalTime time) {
+        return submit(provider, () -> operations.confirm(provider, patient, date, time));
+    }
+
+    /**
+     * Reserves several appointments for one patient, all of them or none. The batch goes through the mailbox of its
+     * first provider's partition; the others' locks are taken along the way, so it's still safe against their own
+     * writers.
+     *
+     * @param patient the patient
+     * @param targets the appointments, at least one
+     * @return {@code true} once every hold is durable, {@code false} if none were taken
+     */
+    public Mono<Boolean> reserveAll(String patient, List<BookingTarget> targets) {
+        return submit(targets.get(0).getProvider(), () -> operations.reserveAll(patient, targets));
+    }
+
+    /**
+     * Confirms several of a patient's holds, all of them or none. Goes through a mailbox like
+     * {@link #reserveAll(String, List)}.
+     *
+     * @param patient the patient
+     * @param targets the holds, at least one
+     * @return {@code true} once every confirmation is durable, {@code false} if none were made
+     */
+    public Mono<Boolean> confirmAll(String patient, List<BookingTarget> targets) {
+        return submit(targets.get(0).getProvider(), () -> operations.confirmAll(patient, targets));
+    }
+
+    /**
+     * Returns the view of a day's open appts.
+     *
+     * @param date the day
+     * @return the view, empty if nothing is open
+     */
+    public Mono<AvailabilityView> getAvailabilityView(LocalDate date) {
+        return read(ops -> ops.getAvailabilityView(date));
+    }
+
+    /**
+     * Walks the days with open slots, in date order, as fast as the subscriber asks for them.
+     *
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @param provider only include this provider, or {@code null} for everyone
+     * @return the non-empty views, in date order
+     */
+    public Flux<AvailabilityView> streamAvailability(LocalDate from, LocalDate to, String provider) {
+        return Flux.fromStream(() -> operations.streamAvailability(from, to, provider));
+    }
+
+    /**
+     * Returns one provider's open slots, one view per day, in date order.
+     *
+     * @param provider the provider
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @return the provider's non-empty days
+     */
+    public Flux<AvailabilityView> streamProviderAvailability(String provider, LocalDate from, LocalDate to) {
+        return Flux.fromStream(() -> operations.streamProviderAvailability(provider, from, to));
+    }
+
+    /**
+     * Returns every time on a day an appointment of {@code minutes} could start.
+     *
+     * @param date     the day
+     * @param minutes  length of the appointment, rounded up to whole blocks
+     * @param provider only this provider, or {@code null} for everyone
+     * @return the start times as a view, empty if there are none
+     */
+    public Mono<AvailabilityView> findOpenRuns(LocalDate date, int minutes, String provider) {
+        return read(ops -> ops.findOpenRuns(date, minutes, provider));
+    }
+
+    /**
+     * Returns the first {@code count} open slots at or after {@code after}.
+     *
+     * @param after    earliest start, rounded up to the next block
+     * @param count    how many slots to return
+     * @param provider only this provider, or {@code null} for everyone
+     * @return the slots, one view per day that has any
+     */
+    public Flux<AvailabilityView> findNextAvailable(LocalDateTime after, int count, String provider) {
+        return read(ops -> ops.findNextAvailable(after, count, provider)).flatMapIterable(views -> views);
+    }
+
+    /**
+     * Returns a patient's pending and confirmed reservations, ordered by date and time.
+     *
+     * @param patient the patient
+     * @return the patient's reservations
+     */
+    public Mono<List<PatientReservation>> getPatientReservations(String patient) {
+        return read(ops -> ops.getPatientReservations(patient));
+    }
+
+    /**
+     * Returns confirmed reservations in a range of dates, including archived days.
+     *
+     * @param from  first date, inclusive, or {@code null} for no lower bound
+     * @param to    last date, inclusive, or {@code null} for no upper bound
+     * @param limit most days to return
+     * @return the days with confirmed reservations, in date order
+     */
+    public Mono<List<ConfirmedDay>> getConfirmedReservations(LocalDate from, LocalDate to, int limit) {
+        return read(ops -> ops.getConfirmedReservations(from, to, limit));
+    }
+
+    /**
+     * Runs a query against the published state on the subscriber's thread, for reads that need more than one call
+     * to line up (e.g. a version and the views it labels).
+     *
+     * @param query the query
+     * @param <T>   what it returns
+     * @return the result
+     */
+    public <T> Mono<T> read(Function<ReservationOperations, T> query) {
+        return Mono.fromSupplier(() -> query.apply(operations));
+    }
+
+    /**
+     * Watches changes to what's bookable in a range of the calendar, from now on. Changes are pushed as the client
+     * requests them; while it doesn't, they wait coalesced per slot, and past the buffer's capacity the client gets a
+     * {@link AvailabilityChange.Type#RESYNC} and should fetch the range again.
+     *
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @param provider only this provider, or {@code null} for everyone
+     * @return the changes, never completes
+     */
+    public Flux<AvailabilityChange> watch(LocalDate from, LocalDate to, String provider) {
+        return Flux.create(sink -> {
+            Watcher watcher = new Watcher(sink);
+            watcher.subscription = feed.subscribe(from, to, provider, feedCapacity, watcher::drain);
+            sink.onRequest(n -> watcher.drain());
+            sink.onDispose(watcher.subscription::close);
+        }, FluxSink.OverflowStrategy.ERROR);
+    }
+
+    /**
+     * Stops the writers. Anything still queued, or submitted from now on, fails with a
+     * {@link RejectedExecutionException}.
+     */
+    @Override
+    public void destroy() {
+        for (Writer writer : writers) {
+            writer.shutdown();
+        }
+        for (Writer writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private <T> Mono<T> submit(String provider, Supplier<T> command) {
+        return Mono.defer(() -> writers[partition(provider)].submit(command));
+    }
+
+    private int partition(String provider) {
+        // spread the hash, providers often only differ in their last characters
+        int hash = provider.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), writers.length);
+    }
+
+    /**
+     * Moves changes from one subscription to its subscriber, never more than it has requested. Draining runs on the
+     * parallel scheduler rather than on the writer that published, and only one drain runs at a time.
+     */
+    private static final class Watcher {
+        private final FluxSink<AvailabilityChange> sink;
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile AvailabilityFeed.Subscription subscription;
+
+        private Watcher(FluxSink<AvailabilityChange> sink) {
+            this.sink = sink;
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                Schedulers.parallel().schedule(this::run);
+            }
+        }
+
+        private void run() {
+            int missed = 1;
+            do {
+                AvailabilityFeed.Subscription current = subscription;
+                long requested = sink.requestedFromDownstream();
+                while (current != null && requested > 0 && !sink.isCancelled()) {
+                    List<AvailabilityChange> changes = current.poll((int) Math.min(requested, WATCH_BATCH));
+                    if (changes.isEmpty()) {
+                        break;
+                    }
+                    changes.forEach(sink::next);
+                    requested -= changes.size();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    /**
+     * A change waiting in a mailbox, and where its result goes.
+     */
+    private static final class Command<T> {
+        private final Supplier<T> work;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private T value;
+        private Throwable failure;
+
+        private Command(Supplier<T> work) {
+            this.work = work;
+        }
+
+        /**
+         * Runs the change. Whatever it throws, errors included, is kept for the result rather than taking the writer
+         * down with it.
+         */
+        private void run() {
+            try {
+                value = work.get();
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Completes the result once the batch it ran in is durable, on {@link #COMPLETIONS}.
+         */
+        private void completeAfter(CompletableFuture<Void> flushed) {
+            flushed.whenCompleteAsync((ignored, error) -> {
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            }, COMPLETIONS);
+        }
+
+        private void reject(String reason) {
+            result.completeExceptionally(new RejectedExecutionException(reason));
+        }
+    }
+
+    /**
+     * One partition's writer thread and its mailbox.
+     */
+    private final class Writer extends Thread {
+        private final BlockingQueue<Command<?>> mailbox;
+        private final int batchSize;
+        private volatile boolean stopped;
+
+        private Writer(int partition, int mailboxCapacity, int batchSize) {
+            super("reservation-writer-" + partition);
+            setDaemon(true);
+            this.mailbox = new ArrayBlockingQueue<>(mailboxCapacity);
+            this.batchSize = Math.max(1, batchSize);
+        }
+
+        private <T> Mono<T> submit(Supplier<T> work) {
+            if (stopped) {
+                return Mono.error(new RejectedExecutionException(getName() + " stopped"));
+            }
+            Command<T> command = new Command<>(work);
+            if (!mailbox.offer(command)) {
+                return Mono.error(new RejectedExecutionException(getName() + " is full"));
+            }
+            // stopping may have raced the offer: the writer's last drain is after stopped is set, so if it isn't set
+            // the command is run or rejected there, and if it is, whoever takes it out of the mailbox rejects it
+            if (stopped && mailbox.remove(command)) {
+                command.reject(getName() + " stopped");
+            }
+            return Mono.fromFuture(command.result);
+        }
+
+        /**
+         * Turns new commands away and interrupts the thread, which rejects whatever is still queued.
+         */
+        private void shutdown() {
+            stopped = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            List<Command<?>> batch = new ArrayList<>(batchSize);
+            try {
+                while (!stopped && !isInterrupted()) {
+                    batch.add(mailbox.take());
+                    mailbox.drainTo(batch, batchSize - 1);
+                    runBatch(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                LOGGER.debug("{} stopped", getName());
+            }
+            mailbox.drainTo(batch);
+            for (Command<?> command : batch) {
+                command.reject(getName() + " stopped");
+            }
+        }
+
+        private void runBatch(List<Command<?>> batch) {
+            for (Command<?> command : batch) {
+                command.run();
+            }
+            CompletableFuture<Void> flushed;
+            try {
+                flushed = operations.flushed();
+            } catch (Throwable e) {
+                // the changes were made but can't be vouched for, fail them and keep serving the partition
+                LOGGER.error("{} couldn't wait for the journal", getName(), e);
+                flushed = new CompletableFuture<>();
+                flushed.completeExceptionally(e);
+            }
+            for (Command<?> command : batch) {
+                command.completeAfter(flushed);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package reservation.manager.service;
+
+import reservation.manager.models.PatientReservation;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary indexes so provider and patient lookups cost O(result) instead of a walk over every day.
+ * <p>
+ * The indexes are only updated while holding the provider-day lock of the slot that changed, the same lock the
+ * change itself was made under, so they never disagree with the slot store for longer than that lock is held.
+ */
+public class ReservationIndexes {
+
+    /**
+     * Provider id -> days the provider has at least one open block on.
+     */
+    private final Map<Integer, NavigableSet<Long>> providerDays = new ConcurrentHashMap<>();
+
+    /**
+     * Epoch day -> how many providers have something open that day. Only changed under the counter's monitor, which
+     * is also what keeps {@link #openDays} in step with it.
+     */
+    private final NavigableMap<Long, OpenProviders> openProviders = new ConcurrentSkipListMap<>();
+
+    /**
+     * Days at least one provider has something open on, so a search for the next open slot skips full days without
+     * looking at them.
+     */
+    private final NavigableSet<Long> openDays = new ConcurrentSkipListSet<>();
+
+    /**
+     * Patient -> slot key -> their pending and confirmed reservations. A patient's map is dropped once it's empty, so
+     * it's only written under its own monitor and a writer checks afterwards that it didn't write into a dropped map.
+     */
+    private final Map<String, ConcurrentLongMap<PatientReservation>> patientReservations = new ConcurrentHashMap<>();
+
+    /**
+     * Records whether a provider still has anything open on a day. Call after changing the provider's open blocks.
+     *
+     * @param epochDay   the day
+     * @param providerId the provider
+     * @param open       whether the provider has anything open that day
+     */
+    public void providerDayChanged(long epochDay, int providerId, boolean open) {
+        if (!open) {
+            NavigableSet<Long> days = providerDays.get(providerId);
+            if (days != null && days.remove(epochDay)) {
+                openProvidersChanged(epochDay, -1);
+            }
+        } else if (providerDays.computeIfAbsent(providerId, k -> new ConcurrentSkipListSet<>()).add(epochDay)) {
+            openProvidersChanged(epochDay, 1);
+        }
+    }
+
+    /**
+     * Moves a day's count of open providers, adding or removing the day from {@link #openDays} as it leaves or hits
+     * zero. Two providers on the same day hold different provider-day locks, so the count has its own monitor.
+     */
+    private void openProvidersChanged(long epochDay, int delta) {
+        OpenProviders count = openProviders.computeIfAbsent(epochDay, k -> new OpenProviders());
+        synchronized (count) {
+            count.providers += delta;
+            if (count.providers == 0) {
+                openDays.remove(epochDay);
+            } else if (delta > 0 && count.providers == 1) {
+                openDays.add(epochDay);
+            }
+        }
+    }
+
+    /**
+     * Forgets every provider day before {@code epochDay}, for when the window moves past them.
+     *
+     * @param epochDay first day to keep
+     */
+    public void dropProviderDaysBefore(long epochDay) {
+        for (NavigableSet<Long> days : providerDays.values()) {
+            days.headSet(epochDay, false).clear();
+        }
+        openProviders.headMap(epochDay, false).clear();
+        openDays.headSet(epochDay, false).clear();
+    }
+
+    /**
+     * Returns the days anyone has something open on, in date order.
+     *
+     * @param from first day, inclusive
+     * @return the days
+     */
+    public NavigableSet<Long> openDays(long from) {
+        return openDays.tailSet(from, true);
+    }
+
+    /**
+     * Returns the days a provider has something open on, in date order.
+     *
+     * @param providerId the provider
+     * @param from       first day, inclusive
+     * @param to         last day, inclusive
+     * @return the days
+     */
+    public NavigableSet<Long> providerDays(int providerId, long from, long to) {
+        NavigableSet<Long> days = providerDays.get(providerId);
+        if (days == null || from > to) {
+            return Collections.emptyNavigableSet();
+        }
+        return days.subSet(from, true, to, true);
+    }
+
+    /**
+     * Adds or replaces one of a patient's reservations.
+     *
+     * @param patient     the patient
+     * @param key         the slot key
+     * @param reservation the reservation
+     */
+    public void patientReserved(String patient, long key, PatientReservation reservation) {
+        while (true) {
+            ConcurrentLongMap<PatientReservation> reservations =
+                    patientReservations.computeIfAbsent(patient, k -> new ConcurrentLongMap<>(1));
+            synchronized (reservations) {
+                reservations.put(key, reservation);
+            }
+            if (patientReservations.get(patient) == reservations) {
+                return;
+            }
+            // patientReleased() emptied and dropped it just before our put, go again with a live map
+        }
+    }
+
+    /**
+     * Removes one of a patient's reservations, dropping the patient once they have none.
+     *
+     * @param patient the patient
+     * @param key     the slot key
+     */
+    public void patientReleased(String patient, long key) {
+        ConcurrentLongMap<PatientReservation> reservations = patientReservations.get(patient);
+        if (reservations == null) {
+            return;
+        }
+        synchronized (reservations) {
+            reservations.remove(key);
+            if (reservations.isEmpty()) {
+                patientReservations.remove(patient, reservations);
+            }
+        }
+    }
+
+    /**
+     * Returns a patient's reservations, ordered by date and time.
+     *
+     * @param patient the patient
+     * @return the reservations
+     */
+    public List<PatientReservation> patientReservations(String patient) {
+        ConcurrentLongMap<PatientReservation> reservations = patientReservations.get(patient);
+        if (reservations == null) {
+            return Collections.emptyList();
+        }
+        List<PatientReservation> sorted = new ArrayList<>();
+        reservations.forEach((key, reservation) -> sorted.add(reservation));
+        sorted.sort(Comparator.comparing(PatientReservation::getReservationDate)
+                .thenComparing(PatientReservation::getReservationTime)
+                .thenComparing(PatientReservation::getProvider));
+        return sorted;
+    }
+
+    private static final class OpenProviders {
+        private int providers;
+    }
+}
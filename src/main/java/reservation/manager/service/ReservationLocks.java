@@ -0,0 +1,91 @@
+package reservation.manager.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed pool of locks striped by (date, provider).
+ * <p>
+ * Every mutation of a provider's day (adding availability, moving a slot between open, pending and confirmed) runs
+ * while holding the stripe that owns that (date, provider) pair. Unrelated pairs almost always land on different
+ * stripes, so writers only contend when they touch the same provider on the same day.
+ */
+public class ReservationLocks {
+
+    /**
+     * Plenty for the number of cores we run on, small enough that the array is negligible.
+     */
+    private static final int DEFAULT_STRIPES = 256;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * Creates a lock pool with the default number of stripes.
+     */
+    public ReservationLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a lock pool with the given number of stripes.
+     *
+     * @param stripeCount number of stripes, rounded up to the next power of two
+     */
+    public ReservationLocks(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the lock owning the given (date, provider) pair.
+     *
+     * @param epochDay   the day
+     * @param providerId the provider id
+     * @return the stripe guarding that provider's day
+     */
+    public ReentrantLock forProviderDay(long epochDay, int providerId) {
+        return stripes[stripe(epochDay, providerId)];
+    }
+
+    /**
+     * Locks every stripe owning one of the slot keys' (date, provider) pairs, each once and in stripe order, so two
+     * callers locking overlapping sets can't deadlock.
+     *
+     * @param keys slot keys, see {@link ReservationUtil#generatePendingReservationKey(long, int, int)}
+     * @return the locked stripes, in the order they were locked
+     */
+    public List<ReentrantLock> lockAll(long[] keys) {
+        boolean[] wanted = new boolean[stripes.length];
+        for (long key : keys) {
+            wanted[stripe(ReservationUtil.keyEpochDay(key), ReservationUtil.keyProviderId(key))] = true;
+        }
+        List<ReentrantLock> locked = new ArrayList<>();
+        try {
+            for (int i = 0; i < wanted.length; i++) {
+                if (wanted[i]) {
+                    stripes[i].lock();
+                    locked.add(stripes[i]);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                locked.get(i).unlock();
+            }
+            throw e;
+        }
+        return locked;
+    }
+
+    private int stripe(long epochDay, int providerId) {
+        int h = 31 * Long.hashCode(epochDay) + providerId;
+        // spread the high bits down, same as HashMap does, so similar keys don't pile onto one stripe
+        h ^= (h >>> 16);
+        return h & mask;
+    }
+}
@@ -0,0 +1,223 @@
+package reservation.manager.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The service's meters. Every meter is registered up front and kept in a field, so recording on a hot path is a
+ * {@code nanoTime} call and a histogram bucket increment, no tag lookups or allocation.
+ * <ul>
+ *     <li>{@code reservation.operation}: latency histogram per {@link Operation}</li>
+ *     <li>{@code reservation.reserve}: reserve calls by outcome, {@code success}, {@code conflict} (someone else has
+ *     a block), {@code waitlisted} (queued behind someone else's hold) or {@code rejected} (unknown provider or day,
+ *     inside the 24hr window, doesn't fit the day)</li>
+ *     <li>{@code reservation.confirm}: confirm calls by outcome, {@code success}, {@code expired} or
+ *     {@code not_found}</li>
+ *     <li>{@code reservation.holds.expired}: holds that ran out without being confirmed</li>
+ *     <li>{@code reservation.holds.handed_over}: slots given to the next patient on the waitlist when a hold ran
+ *     out</li>
+ *     <li>{@code reservation.slots}: gauge of open blocks, pending holds and confirmed reservations, by {@code state}.
+ *     Read when scraped, not kept up to date on every change</li>
+ * </ul>
+ */
+@Component
+public class ReservationMetrics {
+
+    /**
+     * The operations timed in {@code reservation.operation}.
+     */
+    public enum Operation {
+        ADD_AVAILABILITY("add_availability"),
+        RESERVE("reserve"),
+        CONFIRM("confirm"),
+        RESERVE_BATCH("reserve_batch"),
+        CONFIRM_BATCH("confirm_batch"),
+        GET_DAY("get_day"),
+        GET_ALL("get_all"),
+        EXPIRE("expire"),
+        ADVANCE_WINDOW("advance_window");
+
+        private final String tag;
+
+        Operation(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final MeterRegistry registry;
+
+    private final Timer[] timers = new Timer[Operation.values().length];
+
+    private final Counter reserveSucceeded;
+    private final Counter reserveConflicted;
+    private final Counter reserveRejected;
+    private final Counter reserveWaitlisted;
+    private final Counter confirmSucceeded;
+    private final Counter confirmExpired;
+    private final Counter confirmNotFound;
+    private final Counter holdsExpired;
+    private final Counter holdsHandedOver;
+
+    private final List<Supplier<Number>> openSlots = new CopyOnWriteArrayList<>();
+    private final List<Supplier<Number>> pendingSlots = new CopyOnWriteArrayList<>();
+    private final List<Supplier<Number>> confirmedSlots = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor for the class.
+     *
+     * @param registry where the meters are registered
+     */
+    @Autowired
+    public ReservationMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (Operation operation : Operation.values()) {
+            timers[operation.ordinal()] = Timer.builder("reservation.operation")
+                    .description("Time spent in a service operation")
+                    .tag("operation", operation.tag)
+                    .publishPercentileHistogram()
+                    // the hot paths take microseconds, the default range starts at a millisecond
+                    .minimumExpectedValue(Duration.ofNanos(1_000))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(registry);
+        }
+        reserveSucceeded = outcome("reservation.reserve", "success");
+        reserveConflicted = outcome("reservation.reserve", "conflict");
+        reserveRejected = outcome("reservation.reserve", "rejected");
+        reserveWaitlisted = outcome("reservation.reserve", "waitlisted");
+        confirmSucceeded = outcome("reservation.confirm", "success");
+        confirmExpired = outcome("reservation.confirm", "expired");
+        confirmNotFound = outcome("reservation.confirm", "not_found");
+        holdsExpired = Counter.builder("reservation.holds.expired")
+                .description("Holds that ran out without being confirmed")
+                .register(registry);
+        holdsHandedOver = Counter.builder("reservation.holds.handed_over")
+                .description("Slots handed to the next patient on the waitlist when a hold ran out")
+                .register(registry);
+        gauge("open", openSlots);
+        gauge("pending", pendingSlots);
+        gauge("confirmed", confirmedSlots);
+    }
+
+    /**
+     * Returns metrics that aren't reported anywhere, for a service that isn't running under Spring.
+     *
+     * @return the metrics
+     */
+    public static ReservationMetrics disabled() {
+        // a composite with nothing added hands out no-op meters
+        return new ReservationMetrics(new CompositeMeterRegistry());
+    }
+
+    /**
+     * Adds a service's counts to the slot gauges. They're only read when scraped, and report the sum over every
+     * service that added itself, so shards sharing one registry show up as one node.
+     *
+     * @param open      number of open blocks
+     * @param pending   number of pending holds
+     * @param confirmed number of confirmed reservations
+     */
+    void gauges(Supplier<Number> open, Supplier<Number> pending, Supplier<Number> confirmed) {
+        openSlots.add(open);
+        pendingSlots.add(pending);
+        confirmedSlots.add(confirmed);
+    }
+
+    /**
+     * Starts timing an operation.
+     *
+     * @return the start time, pass it to {@link #record(Operation, long)}
+     */
+    long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records how long an operation took.
+     *
+     * @param operation the operation
+     * @param start     what {@link #start()} returned
+     */
+    void record(Operation operation, long start) {
+        timers[operation.ordinal()].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    void reserveSucceeded() {
+        reserveSucceeded.increment();
+    }
+
+    void reserveSucceeded(int appointments) {
+        reserveSucceeded.increment(appointments);
+    }
+
+    void reserveConflicted() {
+        reserveConflicted.increment();
+    }
+
+    void reserveConflicted(int appointments) {
+        reserveConflicted.increment(appointments);
+    }
+
+    void reserveRejected() {
+        reserveRejected.increment();
+    }
+
+    void reserveRejected(int appointments) {
+        reserveRejected.increment(appointments);
+    }
+
+    void reserveWaitlisted() {
+        reserveWaitlisted.increment();
+    }
+
+    void confirmSucceeded() {
+        confirmSucceeded.increment();
+    }
+
+    void confirmExpired() {
+        confirmExpired.increment();
+    }
+
+    void confirmNotFound() {
+        confirmNotFound.increment();
+    }
+
+    void holdExpired() {
+        holdsExpired.increment();
+    }
+
+    void holdHandedOver() {
+        holdsHandedOver.increment();
+    }
+
+    private Counter outcome(String name, String outcome) {
+        return Counter.builder(name)
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private void gauge(String state, List<Supplier<Number>> values) {
+        Gauge.builder("reservation.slots", values, ReservationMetrics::sum)
+                .description("Open blocks, pending holds and confirmed reservations")
+                .tag("state", state)
+                .register(registry);
+    }
+
+    private static double sum(List<Supplier<Number>> values) {
+        double sum = 0;
+        for (Supplier<Number> value : values) {
+            sum += value.get().doubleValue();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,210 @@
+package reservation.manager.service;
+
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.BookingTarget;
+import reservation.manager.models.PatientReservation;
+import reservation.manager.models.Reservation;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * What the controller needs from the reservation side. {@link ReservationService} is the implementation for a single
+ * node; a sharded deployment puts a router in front of several of them behind the same interface.
+ */
+public interface ReservationOperations {
+
+    /**
+     * Adds availability for one provider on one day.
+     *
+     * @param provider the provider
+     * @param date     the day
+     * @param start    start time
+     * @param end      end time, on the same day
+     */
+    void addAvailability(String provider, LocalDate date, LocalTime start, LocalTime end);
+
+    /**
+     * Adds many windows of availability at once.
+     *
+     * @param windows the windows, across any number of providers and days
+     * @return one result per window, in the same order
+     */
+    List<AvailabilityResult> addAvailability(List<AvailabilityWindow> windows);
+
+    /**
+     * Returns every day with open slots, in date order.
+     *
+     * @return the entire availability
+     */
+    List<AvailabilityView> getAvailability();
+
+    /**
+     * Walks the days with open slots, in date order.
+     *
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @param provider only include this provider, or {@code null} for everyone
+     * @return the non-empty views, in date order
+     */
+    Stream<AvailabilityView> streamAvailability(LocalDate from, LocalDate to, String provider);
+
+    /**
+     * Returns one provider's open slots, one view per day, in date order.
+     *
+     * @param provider the provider
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @return the provider's non-empty days
+     */
+    Stream<AvailabilityView> streamProviderAvailability(String provider, LocalDate from, LocalDate to);
+
+    /**
+     * Returns a patient's pending and confirmed reservations, ordered by date and time.
+     *
+     * @param patient the patient
+     * @return the patient's reservations
+     */
+    List<PatientReservation> getPatientReservations(String patient);
+
+    /**
+     * Returns the open appts for a day, sorted by time.
+     *
+     * @param date the day
+     * @return the open appts for that day
+     */
+    List<Reservation> getAvailability(LocalDate date);
+
+    /**
+     * Returns the view of a day's open appts.
+     *
+     * @param date the day
+     * @return the view, empty if nothing is open
+     */
+    AvailabilityView getAvailabilityView(LocalDate date);
+
+    /**
+     * Returns every time on a day an appointment of {@code minutes} could start.
+     *
+     * @param date     the day
+     * @param minutes  length of the appointment, rounded up to whole blocks
+     * @param provider only this provider, or {@code null} for everyone
+     * @return the start times as a view, empty if there are none
+     */
+    AvailabilityView findOpenRuns(LocalDate date, int minutes, String provider);
+
+    /**
+     * Returns the first {@code count} open slots at or after {@code after}.
+     *
+     * @param after    earliest start, rounded up to the next block
+     * @param count    how many slots to return
+     * @param provider only this provider, or {@code null} for everyone
+     * @return the slots, one view per day that has any
+     */
+    List<AvailabilityView> findNextAvailable(LocalDateTime after, int count, String provider);
+
+    /**
+     * Returns a number that changes whenever any open slot does.
+     *
+     * @return the current availability version
+     */
+    long getAvailabilityVersion();
+
+    /**
+     * Attempts to reserve a single block with a provider.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     of desired reservation
+     * @param time     of desired reservation
+     * @return {@code true} if slot is available, {@code false} otherwise
+     */
+    boolean reserve(String provider, String patient, LocalDate date, LocalTime time);
+
+    /**
+     * Attempts to reserve an appointment of {@code minutes} with a provider, all of its blocks or none.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     of desired reservation
+     * @param time     start of desired reservation
+     * @param minutes  length of the appointment, rounded up to whole blocks
+     * @return {@code true} if every block was available, {@code false} otherwise
+     */
+    boolean reserve(String provider, String patient, LocalDate date, LocalTime time, int minutes);
+
+    /**
+     * Attempts to reserve an appointment of {@code minutes} with a provider, and if someone else holds that very slot,
+     * queues the patient to be handed it should the hold run out.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     of desired reservation
+     * @param time     start of desired reservation
+     * @param minutes  length of the appointment, rounded up to whole blocks
+     * @return completes with {@code true} once the patient holds the appointment, {@code false} if they won't get it.
+     * Cancelling it leaves the queue.
+     */
+    CompletableFuture<Boolean> reserveOrWait(String provider, String patient, LocalDate date, LocalTime time,
+                                             int minutes);
+
+    /**
+     * Confirms an active pending reservation.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     the reservation date
+     * @param time     the reservation time
+     * @return {@code true} if active reservation was found, {@code false} otherwise
+     */
+    boolean confirm(String provider, String patient, LocalDate date, LocalTime time);
+
+    /**
+     * Reserves several appointments for one patient, all of them or none.
+     *
+     * @param patient the patient
+     * @param targets the appointments
+     * @return {@code true} if every appointment is now held, {@code false} if none of them are
+     */
+    boolean reserveAll(String patient, List<BookingTarget> targets);
+
+    /**
+     * Confirms several of a patient's holds, all of them or none.
+     *
+     * @param patient the patient
+     * @param targets the holds, by provider, date and start time
+     * @return {@code true} if every hold is now confirmed, {@code false} if none of them are
+     */
+    boolean confirmAll(String patient, List<BookingTarget> targets);
+
+    /**
+     * Returns the confirmed reservations of days that haven't been archived yet, in date order.
+     *
+     * @return date -> reservations
+     */
+    NavigableMap<LocalDate, Set<Reservation>> getConfirmedReservations();
+
+    /**
+     * Returns confirmed reservations in a range of dates, including days that have gone by.
+     *
+     * @param from  first date, inclusive, or {@code null} for no lower bound
+     * @param to    last date, inclusive, or {@code null} for no upper bound
+     * @param limit most days to return
+     * @return the days with confirmed reservations, in date order
+     */
+    List<ConfirmedDay> getConfirmedReservations(LocalDate from, LocalDate to, int limit);
+
+    /**
+     * Returns a future that completes once every change made so far is durable.
+     *
+     * @return the future, already complete if nothing is persisted
+     */
+    CompletableFuture<Void> flushed();
+}
@@ -3,54 +3,254 @@ package reservation.manager.service;
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.util.CollectionUtils;
+import reservation.manager.journal.JournalRecord;
+import reservation.manager.journal.ReservationJournal;
+import reservation.manager.models.AvailabilityChange;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.BookingTarget;
+import reservation.manager.models.PatientReservation;
 import reservation.manager.models.PendingReservation;
 import reservation.manager.models.Reservation;
+import reservation.manager.repository.InMemoryReservationRepository;
+import reservation.manager.repository.ReservationRepository;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Reservation service to manage reservations.
+ * <p>
+ * This is a singleton shared by every request thread. Slot state (open, pending, confirmed) lives in a
+ * {@link ReservationRepository}; this class owns the rules around it (24hr window, hold TTL), the read caches and the
+ * secondary indexes. Any change that moves a slot between open, pending and confirmed holds the
+ * {@link ReservationLocks} stripe for that (date, provider) pair, and the repository's claim is conditional on the
+ * slot still being open, so of two patients racing for the same slot exactly one wins.
+ * <p>
+ * Days are keyed by epoch day in sorted maps. The 24hr window is moved forward once per block by
+ * {@link #advanceWindow()}, so reads are plain lookups. Each day keeps a version and a cached time ordered view of
+ * its open slots, see {@link DayAvailability}.
+ * <p>
+ * Every change is also appended to the {@link ReservationJournal} while the provider-day lock is held, so the journal
+ * has each slot's changes in the order they happened. On startup the state is rebuilt from the latest snapshot plus
+ * the journal after it. Callers that need a change to survive a crash wait on {@link #flushed()}.
+ * <p>
+ * With {@code reservation.shards.count} above one, there's one instance per shard behind a
+ * {@code ShardedReservationService} instead of this bean.
  */
 @Service
+@ConditionalOnExpression("${reservation.shards.count:1} <= 1")
 @PropertySource("classpath:application.properties")
-public class ReservationService {
+public class ReservationService implements ReservationOperations {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ReservationService.class);
 
     private static final long THIRTY_MIN_IN_MS = DateUtils.MILLIS_PER_HOUR / 2;
 
+    /**
+     * Bump when the layout written by {@link #writeSnapshot(DataOutputStream)} changes.
+     */
+    private static final int SNAPSHOT_FORMAT = 2;
+
     public static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
     public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
 
 
     /**
-     * Use set for fast read/write, tradeoff will be unsorted, but we can get all avail reservations for any given day
+     * Epoch day -> that day's version and cached view. The slots themselves are in {@link #repository}.
+     */
+    private final NavigableMap<Long, DayAvailability> openReservations;
+
+    /**
+     * The same days as {@link #openReservations}, for lookups on the reserve path that shouldn't box the epoch day.
+     */
+    private final ConcurrentLongMap<DayAvailability> daysByEpochDay;
+
+    /**
+     * Open, pending and confirmed slots.
+     */
+    private final ReservationRepository repository;
+
+    /**
+     * The repository's holds, ordered by expiry so the sweep only looks at expired ones.
+     */
+    private final PendingExpiryQueue pendingExpiries;
+
+    /**
+     * Patients waiting for held slots, who get them if the holds run out.
+     */
+    private final Waitlist waitlist;
+
+    private final ProviderDictionary providers;
+
+    private final ReservationLocks locks;
+
+    private final ReservationIndexes indexes;
+
+    private final ReservationJournal journal;
+
+    private final ReservationMetrics metrics;
+
+    /**
+     * Confirmed reservations of days that have gone by, moved out of {@link #repository} by {@link #advanceWindow()}.
+     */
+    private final ConfirmedArchive archive;
+
+    /**
+     * Where changes to what's bookable are pushed to clients watching the calendar.
+     */
+    private final AvailabilityFeed feed;
+
+    /**
+     * Bumped after every change to open slots. Also hands out the per-day versions.
      */
-    private final Map<String, Set<Reservation>> openReservations;
-    private final Map<String, PendingReservation> pendingReservations;
+    private final AtomicLong availabilityVersion;
 
     /**
-     * Requirements don't specify a need for confirmed reservations, but we should still keep track
+     * First slot (see {@link ReservationUtil#toSlotIndex(long, int)}) outside the 24hr window. Moved forward by
+     * {@link #advanceWindow()}.
      */
-    private final Map<String, Set<Reservation>> confirmedReservations;
+    private volatile long windowStart;
 
-    private long pendingTtl;
+    private volatile long pendingTtl;
 
     /**
-     * Constructor for the class.
+     * Constructor for the class. Keeps everything in memory only.
      */
     public ReservationService() {
-        openReservations = new HashMap<>();
-        pendingReservations = new HashMap<>();
-        confirmedReservations = new HashMap<>();
+        this(new InMemoryReservationRepository(), ReservationJournal.disabled());
+    }
+
+    /**
+     * Constructor for the class. Rebuilds the state from the journal and the repository before returning.
+     *
+     * @param repository where slot state is kept
+     * @param journal    where changes are persisted
+     */
+    public ReservationService(ReservationRepository repository, ReservationJournal journal) {
+        this(repository, journal, ReservationMetrics.disabled());
+    }
+
+    /**
+     * Constructor for the class. Rebuilds the state from the journal and the repository before returning. Past days
+     * are archived in memory only.
+     *
+     * @param repository where slot state is kept
+     * @param journal    where changes are persisted
+     * @param metrics    where timings and counts are reported
+     */
+    public ReservationService(ReservationRepository repository, ReservationJournal journal,
+                              ReservationMetrics metrics) {
+        this(repository, journal, metrics, new ConfirmedArchive());
+    }
+
+    /**
+     * Constructor for the class. Rebuilds the state from the journal and the repository before returning. Nobody can
+     * watch its changes.
+     *
+     * @param repository where slot state is kept
+     * @param journal    where changes are persisted
+     * @param metrics    where timings and counts are reported
+     * @param archive    where past days' confirmed reservations are moved
+     */
+    public ReservationService(ReservationRepository repository, ReservationJournal journal,
+                              ReservationMetrics metrics, ConfirmedArchive archive) {
+        this(repository, journal, metrics, archive, new AvailabilityFeed());
+    }
+
+    /**
+     * Constructor for the class. Rebuilds the state from the journal and the repository before returning.
+     *
+     * @param repository where slot state is kept
+     * @param journal    where changes are persisted
+     * @param metrics    where timings and counts are reported
+     * @param archive    where past days' confirmed reservations are moved
+     * @param feed       where changes to what's bookable are published
+     */
+    @Autowired
+    public ReservationService(ReservationRepository repository, ReservationJournal journal,
+                              ReservationMetrics metrics, ConfirmedArchive archive, AvailabilityFeed feed) {
+        openReservations = new ConcurrentSkipListMap<>();
+        daysByEpochDay = new ConcurrentLongMap<>();
+        this.repository = repository;
+        pendingExpiries = new PendingExpiryQueue();
+        waitlist = new Waitlist();
+        providers = new ProviderDictionary((id, provider) -> {
+            repository.saveProvider(id, provider);
+            journal.append(JournalRecord.provider(id, provider));
+        });
+        locks = new ReservationLocks();
+        indexes = new ReservationIndexes();
+        availabilityVersion = new AtomicLong();
         pendingTtl = THIRTY_MIN_IN_MS;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.archive = archive;
+        this.feed = feed;
+        try {
+            journal.recover(this::readSnapshot, this::replay);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to recover reservations from the journal.", e);
+        }
+        load();
+        advanceWindow();
+        metrics.gauges(this::countOpenBlocks, repository::holdCount, repository::confirmedCount);
+    }
+
+    /**
+     * Counts every open block. Only the days that changed since they were last read have their view rebuilt.
+     *
+     * @return the number of open blocks
+     */
+    private long countOpenBlocks() {
+        return streamAvailability(null, null, null).mapToLong(view -> view.getReservations().size()).sum();
+    }
+
+    /**
+     * Builds the in-memory state that isn't stored (ids, days, indexes, expiry queue) from the repository.
+     */
+    private void load() {
+        repository.providers().forEach(providers::restore);
+        for (long epochDay : repository.days()) {
+            Map<Integer, long[]> open = repository.openBlocks(epochDay);
+            dayFor(epochDay).publishAll(open, availabilityVersion.incrementAndGet());
+            for (Integer providerId : open.keySet()) {
+                indexes.providerDayChanged(epochDay, providerId, true);
+            }
+        }
+        repository.forEachHold((key, pending) -> {
+            pendingExpiries.add(pending.getExpiry(), key);
+            indexes.patientReserved(pending.getReservation().getPatient(), key,
+                    patientReservation(key, pending.getReservation(), PatientReservation.Status.PENDING,
+                            pending.getExpiry()));
+        });
+        for (Map.Entry<Long, Set<Reservation>> day : repository.confirmed().entrySet()) {
+            for (Reservation reservation : day.getValue()) {
+                long key = ReservationUtil.generatePendingReservationKey(day.getKey(),
+                        providers.find(reservation.getProvider()), reservation.getTimeBlock());
+                indexes.patientReserved(reservation.getPatient(), key,
+                        patientReservation(key, reservation, PatientReservation.Status.CONFIRMED, null));
+            }
+        }
     }
 
     /**
@@ -61,69 +261,374 @@ public class ReservationService {
      * @param start    start time
      * @param end      end time must be on the same day
      */
+    @Override
     public void addAvailability(String provider, LocalDate date, LocalTime start, LocalTime end) {
+        long started = metrics.start();
+        long epochDay = date.toEpochDay();
+        long[] mask = availabilityMask(epochDay, start, end);
 
-        // Prevent adding within 24hrs
-        LocalDate today = LocalDate.now();
-
-        // Only perform add operations if date is greater than today
-        if (date.isAfter(today)) {
-            int startBlock = ReservationUtil.convertTimeToBlock(start);
-            int endBlock = ReservationUtil.convertTimeToBlock(end);
+        if (mask != null) {
+            openAll(epochDay, Collections.singletonMap(providers.intern(provider), mask));
+            LOGGER.debug("Availability added for provider {}, day {}, {} to {}.", provider, date, start, end);
+        } else {
+            LOGGER.debug("Availability for provider {}, day {} was not added: Date is not outside of 24hr window.",
+                    provider, date);
+        }
+        metrics.record(ReservationMetrics.Operation.ADD_AVAILABILITY, started);
+    }
 
-            /* Check if date is tomorrow. If it is, we need to filter out timeblocks before now
-            (because of the 24hr in advance rule */
-            if (date.isEqual(today.plusDays(1))) {
-                startBlock = Math.max(startBlock, timeBlockOfNow());
+    /**
+     * Adds many windows of availability at once. Windows for the same provider and day are merged first, so each day
+     * is one repository call and its version moves once per batch no matter how many windows hit it.
+     *
+     * @param windows the windows, across any number of providers and days
+     * @return one result per window, in the same order
+     */
+    @Override
+    public List<AvailabilityResult> addAvailability(List<AvailabilityWindow> windows) {
+        long started = metrics.start();
+        List<AvailabilityResult> results = new ArrayList<>(windows.size());
+        // epoch day -> provider id -> merged mask
+        Map<Long, Map<Integer, long[]>> merged = new TreeMap<>();
+        for (AvailabilityWindow window : windows) {
+            AvailabilityResult incomplete = rejectIncomplete(window);
+            if (incomplete != null) {
+                results.add(incomplete);
+                continue;
             }
+            long epochDay = window.getDate().toEpochDay();
+            long[] mask = availabilityMask(epochDay, window.getStart(), window.getEnd());
+            if (mask == null) {
+                results.add(result(window, AvailabilityResult.Status.REJECTED, 0,
+                        "Nothing to add: end is not after start, or it's not outside of 24hr window."));
+                continue;
+            }
+            int providerId = providers.intern(window.getProvider());
+            BlockBitmap.or(merged.computeIfAbsent(epochDay, k -> new HashMap<>())
+                    .computeIfAbsent(providerId, k -> new long[BlockBitmap.WORDS]), mask);
+            results.add(result(window, AvailabilityResult.Status.ADDED, BlockBitmap.cardinality(mask),
+                    "Availability added."));
+        }
 
-            Set<Reservation> reservations = openReservations.get(date.toString());
-            if (reservations == null) {
-                openReservations.put(date.toString(), new HashSet<>());
-                reservations = openReservations.get(date.toString()); // update reference to new list
+        for (Map.Entry<Long, Map<Integer, long[]>> dayMasks : merged.entrySet()) {
+            openAll(dayMasks.getKey(), dayMasks.getValue());
+        }
+        LOGGER.debug("Bulk availability: {} windows across {} days.", windows.size(), merged.size());
+        metrics.record(ReservationMetrics.Operation.ADD_AVAILABILITY, started);
+        return results;
+    }
+
+    /**
+     * Rejects a window that's missing a provider, date, start or end. Callers that route windows by provider check
+     * this first, a window without one can't be routed.
+     *
+     * @param window the window
+     * @return the rejection, or {@code null} if the window has everything it needs
+     */
+    public static AvailabilityResult rejectIncomplete(AvailabilityWindow window) {
+        if (window.getProvider() == null || window.getProvider().trim().isEmpty() || window.getDate() == null
+                || window.getStart() == null || window.getEnd() == null) {
+            return result(window, AvailabilityResult.Status.REJECTED, 0, "provider, date, start and end are required.");
+        }
+        return null;
+    }
+
+    /**
+     * Turns a time range into a block mask, applying the 24hr rule.
+     *
+     * @param epochDay the day
+     * @param start    start time
+     * @param end      end time, exclusive
+     * @return the mask, or {@code null} if nothing in the range can be added
+     */
+    private long[] availabilityMask(long epochDay, LocalTime start, LocalTime end) {
+        // Prevent adding within 24hrs. For tomorrow this drops the blocks before now, the rest of the day is kept.
+        int startBlock = Math.max(ReservationUtil.convertTimeToBlock(start), firstBlockOutsideWindow(epochDay));
+        int endBlock = ReservationUtil.convertTimeToBlock(end);
+        /* End block is not included because the last appt should be end-1.
+           (e.g. end time is 15:00, we want the last appt to be at 14:45 */
+        return startBlock < endBlock ? BlockBitmap.rangeMask(startBlock, endBlock) : null;
+    }
+
+    /**
+     * Opens the blocks in the masks, one day at a time so the repository can batch. Blocks that are already pending
+     * or confirmed are skipped so they can't be booked twice.
+     * <p>
+     * The repository call isn't under the provider-day locks, opening only ever adds blocks and the repository skips
+     * booked ones itself. The index and the journal are updated under each lock afterwards. That can put an
+     * availability record after a hold that claimed one of its blocks, which replays the same: the hold books the
+     * block and the availability skips it.
+     *
+     * @param epochDay the day
+     * @param masks    provider id -> blocks to open
+     */
+    private void openAll(long epochDay, Map<Integer, long[]> masks) {
+        DayAvailability day = dayFor(epochDay);
+        repository.open(epochDay, masks);
+        for (Map.Entry<Integer, long[]> mask : masks.entrySet()) {
+            Lock lock = locks.forProviderDay(epochDay, mask.getKey());
+            lock.lock();
+            try {
+                changed(day, mask.getKey(), true);
+                indexes.providerDayChanged(epochDay, mask.getKey(), true);
+                journal.append(JournalRecord.availability(epochDay, mask.getKey(), mask.getValue()));
+            } finally {
+                lock.unlock();
             }
+        }
+    }
+
+    private static AvailabilityResult result(AvailabilityWindow window, AvailabilityResult.Status status, int blocks,
+                                             String message) {
+        return AvailabilityResult.builder()
+                .provider(window.getProvider())
+                .date(window.getDate())
+                .status(status)
+                .blocks(blocks)
+                .message(message)
+                .build();
+    }
+
+    /**
+     * Returns every day with open slots, in date order.
+     *
+     * @return  the entire availability
+     */
+    @Override
+    public List<AvailabilityView> getAvailability() {
+        long started = metrics.start();
+        List<AvailabilityView> views = streamAvailability(null, null, null).collect(Collectors.toList());
+        metrics.record(ReservationMetrics.Operation.GET_ALL, started);
+        return views;
+    }
+
+    /**
+     * Returns the days with open slots in a range of dates, in date order.
+     *
+     * @param from first date, inclusive
+     * @param to   last date, inclusive
+     * @return the availability for the range
+     */
+    public List<AvailabilityView> getAvailability(LocalDate from, LocalDate to) {
+        return streamAvailability(from, to, null).collect(Collectors.toList());
+    }
 
-            /* End block is not included because the last appt should be end-1.
-               (e.g. end time is 15:00, we want the last appt to be at 14:45 */
-            for (int i = startBlock; i < endBlock; i++) {
-                reservations.add(Reservation.builder().provider(provider).timeBlock(i).build());
-                LOGGER.debug("Availability added for provider {}, day {}, time block {}.", provider, date, i);
+    /**
+     * Lazily walks the days with open slots, in date order. Each day's view is only looked up when the stream gets to
+     * it, so callers can start sending the first day before the last one has been touched.
+     *
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @param provider only include this provider, or {@code null} for everyone
+     * @return the non-empty views, in date order
+     */
+    @Override
+    public Stream<AvailabilityView> streamAvailability(LocalDate from, LocalDate to, String provider) {
+        if (provider != null) {
+            return streamProviderAvailability(provider, from, to);
+        }
+        NavigableMap<Long, DayAvailability> days = openReservations;
+        if (from != null) {
+            days = days.tailMap(from.toEpochDay(), true);
+        }
+        if (to != null) {
+            if (from != null && from.isAfter(to)) {
+                return Stream.empty();
             }
-        } else {
-            LOGGER.debug("Availability for provider {}, day {} was not added: Date is not outside of 24hr window.",
-                    provider, date);
+            days = days.headMap(to.toEpochDay(), true);
         }
+        return days.values().stream()
+                .map(day -> day.view(providers))
+                .filter(view -> !view.isEmpty());
     }
 
     /**
-     * Returns the entire availability map.
+     * Returns one provider's open slots, one view per day, in date order. Only visits the days the provider is
+     * actually open on.
      *
-     * @return  the entire availability map
+     * @param provider the provider
+     * @param from     first date, inclusive, or {@code null} for no lower bound
+     * @param to       last date, inclusive, or {@code null} for no upper bound
+     * @return the provider's non-empty days
      */
-    public Map<String, Set<Reservation>> getAvailability() {
-        refreshOpenReservations();
-        refreshPendingReservations();
-        return Collections.unmodifiableMap(openReservations);
+    @Override
+    public Stream<AvailabilityView> streamProviderAvailability(String provider, LocalDate from, LocalDate to) {
+        int providerId = providers.find(provider);
+        if (providerId == ProviderDictionary.UNKNOWN) {
+            return Stream.empty();
+        }
+        return indexes.providerDays(providerId, from == null ? Long.MIN_VALUE : from.toEpochDay(),
+                        to == null ? Long.MAX_VALUE : to.toEpochDay()).stream()
+                .map(openReservations::get)
+                .filter(Objects::nonNull)
+                .map(day -> day.providerView(providerId, provider))
+                .filter(view -> !view.isEmpty());
     }
 
     /**
-     * Returns the open appts for that day.
+     * Returns a patient's pending and confirmed reservations, ordered by date and time.
      *
-     * @param date string in yyyy-MM-dd format
+     * @param patient the patient
+     * @return the patient's reservations
+     */
+    @Override
+    public List<PatientReservation> getPatientReservations(String patient) {
+        return indexes.patientReservations(patient);
+    }
+
+    /**
+     * Returns the open appts for that day, sorted by time.
+     *
+     * @param date the day
      * @return the open appts for that day
      */
-    public Set<Reservation> getAvailability(LocalDate date) {
-        refreshOpenReservations();
-        refreshPendingReservations();
-        Set<Reservation> reservations = openReservations.get(date.toString());
-        if(CollectionUtils.isEmpty(reservations)) {
-            return Collections.emptySet();
+    @Override
+    public List<Reservation> getAvailability(LocalDate date) {
+        return getAvailabilityView(date).getReservations();
+    }
+
+    /**
+     * Returns the view of that day's open appts. Cheap to call repeatedly, the view is only rebuilt after the day
+     * changes.
+     *
+     * @param date the day
+     * @return the view, empty if nothing is open
+     */
+    @Override
+    public AvailabilityView getAvailabilityView(LocalDate date) {
+        long started = metrics.start();
+        DayAvailability day = openReservations.get(date.toEpochDay());
+        AvailabilityView view = day == null ? AvailabilityView.empty(date) : day.view(providers);
+        metrics.record(ReservationMetrics.Operation.GET_DAY, started);
+        return view;
+    }
+
+    /**
+     * Returns the version of a day's open appts, the one {@link #getAvailabilityView(LocalDate)} would have, without
+     * building the view.
+     *
+     * @param date the day
+     * @return the version, 0 if there's no such day
+     */
+    public long getAvailabilityVersion(LocalDate date) {
+        DayAvailability day = openReservations.get(date.toEpochDay());
+        return day == null ? 0 : day.getVersion();
+    }
+
+    /**
+     * Returns every time on a day an appointment of {@code minutes} could start, i.e. the start of every run of that
+     * many open blocks in a row with one provider. Each provider's day is searched a word at a time, see
+     * {@link BlockBitmap#runStarts(long[], int)}.
+     *
+     * @param date     the day
+     * @param minutes  length of the appointment, rounded up to whole blocks
+     * @param provider only this provider, or {@code null} for everyone
+     * @return the start times, ordered by time then provider, empty if there are none
+     */
+    @Override
+    public AvailabilityView findOpenRuns(LocalDate date, int minutes, String provider) {
+        int blocks = ReservationUtil.convertMinutesToBlocks(minutes);
+        DayAvailability day = openReservations.get(date.toEpochDay());
+        if (day == null || blocks < 1 || blocks > ReservationUtil.BLOCKS_PER_DAY) {
+            return AvailabilityView.empty(date);
+        }
+        if (provider == null) {
+            return day.runView(blocks, providers);
+        }
+        int providerId = providers.find(provider);
+        return providerId == ProviderDictionary.UNKNOWN
+                ? AvailabilityView.empty(date)
+                : day.providerView(providerId, provider, blocks);
+    }
+
+    /**
+     * Returns the earliest open slots starting at or after {@code after}, at most {@code count} of them, grouped by
+     * day in date order.
+     * <p>
+     * Days with nothing open are skipped through the open-day index (or the provider's own day index), and each day's
+     * cached view is already in time order, so this costs about O(log days + count) rather than a walk over the whole
+     * calendar. It reads the same state the 24hr window and the expiry sweep keep up to date, so slots inside the
+     * window never show up and a lapsed hold shows up again as soon as the sweep gives it back.
+     *
+     * @param after    earliest start, rounded up to the next block
+     * @param count    how many slots to return
+     * @param provider only this provider, or {@code null} for everyone
+     * @return the slots, one view per day that has any
+     */
+    @Override
+    public List<AvailabilityView> findNextAvailable(LocalDateTime after, int count, String provider) {
+        long fromDay = after.toLocalDate().toEpochDay();
+        int fromBlock = ReservationUtil.convertTimeToBlock(after.toLocalTime());
+        List<AvailabilityView> found = new ArrayList<>();
+        int remaining = count;
+        if (provider == null) {
+            for (long epochDay : indexes.openDays(fromDay)) {
+                DayAvailability day = openReservations.get(epochDay);
+                if (day != null) {
+                    remaining -= collect(found, day.view(providers), epochDay == fromDay ? fromBlock : 0,
+                            remaining);
+                    if (remaining == 0) {
+                        break;
+                    }
+                }
+            }
+            return found;
         }
-        return Collections.unmodifiableSet(openReservations.get(date.toString()));
+        int providerId = providers.find(provider);
+        if (providerId == ProviderDictionary.UNKNOWN) {
+            return found;
+        }
+        for (long epochDay : indexes.providerDays(providerId, fromDay, Long.MAX_VALUE)) {
+            DayAvailability day = openReservations.get(epochDay);
+            if (day != null) {
+                remaining -= collect(found, day.providerView(providerId, provider),
+                        epochDay == fromDay ? fromBlock : 0, remaining);
+                if (remaining == 0) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds the part of a day's view that starts at or after {@code fromBlock}, at most {@code limit} slots of it.
+     *
+     * @return how many slots were added
+     */
+    private static int collect(List<AvailabilityView> into, AvailabilityView view, int fromBlock, int limit) {
+        List<Reservation> open = view.getReservations();
+        // the view is sorted by time, so find the first slot at or after fromBlock by bisection
+        int low = 0;
+        int high = open.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (open.get(mid).getTimeBlock() < fromBlock) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = Math.min(open.size(), low + limit);
+        if (low >= end) {
+            return 0;
+        }
+        into.add(new AvailabilityView(view.getDate(), view.getVersion(), open.subList(low, end)));
+        return end - low;
+    }
+
+    /**
+     * Returns a number that changes whenever any open slot does.
+     *
+     * @return the current availability version
+     */
+    @Override
+    public long getAvailabilityVersion() {
+        return availabilityVersion.get();
     }
 
     /**
-     * Attempts to reserve timeslot with a provider.
+     * Attempts to reserve a single block with a provider.
      *
      * @param provider the provider
      * @param patient  the patient
@@ -131,31 +636,320 @@ public class ReservationService {
      * @param time     of desired reservation
      * @return {@code true} if slot is available, {@code false} otherwise
      */
+    @Override
     public boolean reserve(String provider, String patient, LocalDate date, LocalTime time) {
-        // Update reservation map
-        refreshPendingReservations();
-        refreshOpenReservations();
-
-        // Check if date is avail
-        Set<Reservation> reservations = openReservations.get(date.toString());
-        if (CollectionUtils.isEmpty(reservations)) {
-            LOGGER.warn("No reservations available on {}", date);
+        return reserve(provider, patient, date, time, ReservationUtil.convertBlocksToMinutes(1));
+    }
+
+    /**
+     * Attempts to reserve an appointment of {@code minutes} with a provider. Every block it covers is claimed in one
+     * step, or none of them are.
+     * <p>
+     * Apart from the hold itself nothing here allocates: the slot is a packed {@code long} key and every map on the
+     * way is keyed by primitives.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     of desired reservation
+     * @param time     start of desired reservation
+     * @param minutes  length of the appointment, rounded up to whole blocks
+     * @return {@code true} if every block was available, {@code false} otherwise
+     */
+    @Override
+    public boolean reserve(String provider, String patient, LocalDate date, LocalTime time, int minutes) {
+        long started = metrics.start();
+        try {
+            return hold(provider, patient, date, time, minutes, null);
+        } finally {
+            metrics.record(ReservationMetrics.Operation.RESERVE, started);
+        }
+    }
+
+    /**
+     * Attempts to reserve an appointment of {@code minutes} with a provider, and if someone else holds that very
+     * slot, queues the patient for it instead of failing. When the hold runs out the slot is handed straight to the
+     * first patient in the queue as a new hold, with a fresh TTL, rather than going back to the open pool. See
+     * {@link Waitlist}.
+     *
+     * @param provider the provider
+     * @param patient  the patient
+     * @param date     of desired reservation
+     * @param time     start of desired reservation
+     * @param minutes  length of the appointment, rounded up to whole blocks
+     * @return completes with {@code true} once the patient holds the appointment, straight away or when it's handed
+     * over, and with {@code false} if they won't get it. Cancelling it leaves the queue.
+     */
+    @Override
+    public CompletableFuture<Boolean> reserveOrWait(String provider, String patient, LocalDate date, LocalTime time,
+                                                    int minutes) {
+        long started = metrics.start();
+        try {
+            CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+            hold(provider, patient, date, time, minutes, outcome);
+            return outcome;
+        } finally {
+            metrics.record(ReservationMetrics.Operation.RESERVE, started);
+        }
+    }
+
+    /**
+     * Does the work of {@link #reserve(String, String, LocalDate, LocalTime, int)}, counting the outcome.
+     *
+     * @param outcome if not {@code null}, completed with the outcome, unless someone else holds the slot: then the
+     *                patient is queued for it and {@code outcome} completes when they get it or won't
+     */
+    private boolean hold(String provider, String patient, LocalDate date, LocalTime time, int minutes,
+                         CompletableFuture<Boolean> outcome) {
+        long epochDay = date.toEpochDay();
+        int timeBlock = ReservationUtil.convertTimeToBlock(time);
+        int blocks = ReservationUtil.convertMinutesToBlocks(minutes);
+
+        // Check if date is avail. advanceWindow() evicts blocks inside 24hrs, checking here too covers a late tick.
+        int providerId = providers.find(provider);
+        DayAvailability day = daysByEpochDay.get(epochDay);
+        if (providerId == ProviderDictionary.UNKNOWN || day == null || blocks < 1
+                || timeBlock + blocks > ReservationUtil.BLOCKS_PER_DAY
+                || ReservationUtil.toSlotIndex(epochDay, timeBlock) < windowStart) {
+            LOGGER.warn("No reservations available on {} for {}", date, provider);
+            metrics.reserveRejected();
+            complete(outcome, false);
             return false;
         }
-        Reservation targetReservation = Reservation.builder()
-                .provider(provider)
-                .timeBlock(ReservationUtil.convertTimeToBlock(time))
-                .build();
 
-        if (reservations.contains(targetReservation)) { // Check if target reservation is available
-            reservations.remove(targetReservation);
-            targetReservation.setPatient(patient);
-            pendingReservations.put(ReservationUtil.generatePendingReservationKey(date.toString(), provider,
-                            targetReservation.getTimeBlock()),
-                    new PendingReservation(System.currentTimeMillis() + pendingTtl, targetReservation));
+        Lock lock = locks.forProviderDay(epochDay, providerId);
+        lock.lock();
+        try {
+            long key = ReservationUtil.generatePendingReservationKey(epochDay, providerId, timeBlock);
+            Reservation reservation = Reservation.builder()
+                    .provider(provider)
+                    .timeBlock(timeBlock)
+                    .patient(patient)
+                    .blocks(blocks)
+                    .build();
+            PendingReservation pending = new PendingReservation(System.currentTimeMillis() + pendingTtl, date,
+                    reservation);
+            // the repository only moves the run if it's all still open: only one caller gets true for a given slot
+            if (!repository.hold(key, pending)) {
+                PendingReservation current = outcome == null ? null : repository.findHold(key);
+                if (current != null && !current.getReservation().getPatient().equals(patient)
+                        && waitlist.join(key, pending, outcome)) {
+                    metrics.reserveWaitlisted();
+                    return false;
+                }
+                metrics.reserveConflicted();
+                complete(outcome, false);
+                return false;
+            }
+            held(day, key, pending);
+            metrics.reserveSucceeded();
+            complete(outcome, true);
             return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void complete(CompletableFuture<Boolean> outcome, boolean held) {
+        if (outcome != null) {
+            outcome.complete(held);
+        }
+    }
+
+    /**
+     * Publishes a hold the repository just took: the day's view, the indexes, the expiry queue and the journal.
+     * Caller must hold the provider-day lock.
+     */
+    private void held(DayAvailability day, long key, PendingReservation pending) {
+        long epochDay = ReservationUtil.keyEpochDay(key);
+        int providerId = ReservationUtil.keyProviderId(key);
+        Reservation reservation = pending.getReservation();
+        changed(day, providerId, false);
+        feed.publish(AvailabilityChange.Type.HELD, epochDay, reservation.getProvider(), reservation.getTimeBlock(),
+                reservation.getBlocks());
+        // the day was in the index while the blocks were open, it only needs touching if they were the last ones
+        if (!repository.hasOpen(epochDay, providerId)) {
+            indexes.providerDayChanged(epochDay, providerId, false);
+        }
+        pendingExpiries.add(pending.getExpiry(), key);
+        indexes.patientReserved(reservation.getPatient(), key,
+                patientReservation(key, reservation, PatientReservation.Status.PENDING, pending.getExpiry()));
+        if (journal.isEnabled()) { // don't build a record just to drop it
+            journal.append(JournalRecord.hold(epochDay, providerId, reservation.getTimeBlock(),
+                    reservation.getBlocks(), reservation.getPatient(), pending.getExpiry()));
+        }
+    }
+
+    /**
+     * Reserves several appointments for one patient, all of them or none. See {@link #prepareReserve}.
+     *
+     * @param patient the patient
+     * @param targets the appointments
+     * @return {@code true} if every appointment is now held, {@code false} if none of them are
+     */
+    @Override
+    public boolean reserveAll(String patient, List<BookingTarget> targets) {
+        long started = metrics.start();
+        try (PreparedBatch batch = prepareReserve(patient, targets)) {
+            return batch.commit();
+        } finally {
+            metrics.record(ReservationMetrics.Operation.RESERVE_BATCH, started);
+        }
+    }
+
+    /**
+     * Claims every appointment in the repository without publishing any of them. Every (date, provider) the batch
+     * touches is locked once, up front, so the claims are made in one pass instead of a lock round trip per
+     * appointment. If any appointment can't be had, the ones already claimed are given back before returning. The
+     * holds only show up (views, indexes, journal) on {@link PreparedBatch#commit()}; closing without committing
+     * gives every claim back.
+     *
+     * @param patient the patient
+     * @param targets the appointments
+     * @return the batch, rejected if any appointment isn't available
+     */
+    public PreparedBatch prepareReserve(String patient, List<BookingTarget> targets) {
+        int count = targets.size();
+        long expiry = System.currentTimeMillis() + pendingTtl;
+        long[] keys = new long[count];
+        DayAvailability[] days = new DayAvailability[count];
+        PendingReservation[] holds = new PendingReservation[count];
+        for (int i = 0; i < count; i++) {
+            BookingTarget target = targets.get(i);
+            long epochDay = target.getDate().toEpochDay();
+            int timeBlock = ReservationUtil.convertTimeToBlock(target.getTime());
+            int blocks = target.getMinutes() == null ? 1 : ReservationUtil.convertMinutesToBlocks(target.getMinutes());
+            int providerId = providers.find(target.getProvider());
+            days[i] = daysByEpochDay.get(epochDay);
+            if (providerId == ProviderDictionary.UNKNOWN || days[i] == null || blocks < 1
+                    || timeBlock + blocks > ReservationUtil.BLOCKS_PER_DAY
+                    || ReservationUtil.toSlotIndex(epochDay, timeBlock) < windowStart) {
+                LOGGER.warn("No reservations available on {} for {}", target.getDate(), target.getProvider());
+                metrics.reserveRejected(count);
+                return PreparedBatch.rejected();
+            }
+            keys[i] = ReservationUtil.generatePendingReservationKey(epochDay, providerId, timeBlock);
+            holds[i] = new PendingReservation(expiry, target.getDate(), Reservation.builder()
+                    .provider(target.getProvider())
+                    .timeBlock(timeBlock)
+                    .patient(patient)
+                    .blocks(blocks)
+                    .build());
+        }
+        List<ReentrantLock> locked = locks.lockAll(keys);
+        int claimed = 0;
+        try {
+            // appointments in the same batch that overlap fail here too, the second one finds its blocks taken
+            while (claimed < count && repository.hold(keys[claimed], holds[claimed])) {
+                claimed++;
+            }
+        } catch (RuntimeException e) {
+            giveBack(keys, holds, claimed);
+            unlock(locked);
+            throw e;
+        }
+        if (claimed < count) {
+            giveBack(keys, holds, claimed);
+            unlock(locked);
+            metrics.reserveConflicted(count);
+            return PreparedBatch.rejected();
+        }
+        // every appointment shares the batch's outcome: a batch given back because another shard's part failed
+        // counts as a conflict
+        return new PreparedBatch(locked, () -> {
+            for (int i = 0; i < count; i++) {
+                held(days[i], keys[i], holds[i]);
+            }
+            metrics.reserveSucceeded(count);
+        }, () -> {
+            giveBack(keys, holds, count);
+            metrics.reserveConflicted(count);
+        });
+    }
+
+    /**
+     * Confirms several of a patient's holds, all of them or none. See {@link #prepareConfirm}.
+     *
+     * @param patient the patient
+     * @param targets the holds, by provider, date and start time
+     * @return {@code true} if every hold is now confirmed, {@code false} if none of them are
+     */
+    @Override
+    public boolean confirmAll(String patient, List<BookingTarget> targets) {
+        long started = metrics.start();
+        try (PreparedBatch batch = prepareConfirm(patient, targets)) {
+            return batch.commit();
+        } finally {
+            metrics.record(ReservationMetrics.Operation.CONFIRM_BATCH, started);
+        }
+    }
+
+    /**
+     * Checks every hold is the patient's and still active, locking every (date, provider) the batch touches once,
+     * up front. Committing confirms them all; nothing can expire or take a hold in between, the sweep needs the same
+     * locks. A hold that has already run out fails the batch and is left for the sweep.
+     *
+     * @param patient the patient
+     * @param targets the holds, by provider, date and start time
+     * @return the batch, rejected if any hold isn't there, isn't the patient's or has run out
+     */
+    public PreparedBatch prepareConfirm(String patient, List<BookingTarget> targets) {
+        int count = targets.size();
+        long now = System.currentTimeMillis();
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            BookingTarget target = targets.get(i);
+            int providerId = providers.find(target.getProvider());
+            if (providerId == ProviderDictionary.UNKNOWN) {
+                return PreparedBatch.rejected();
+            }
+            keys[i] = ReservationUtil.generatePendingReservationKey(target.getDate().toEpochDay(), providerId,
+                    ReservationUtil.convertTimeToBlock(target.getTime()));
+        }
+        long[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < count; i++) {
+            if (sorted[i] == sorted[i - 1]) { // the same hold twice
+                return PreparedBatch.rejected();
+            }
+        }
+        List<ReentrantLock> locked = locks.lockAll(keys);
+        PendingReservation[] holds = new PendingReservation[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                holds[i] = repository.findHold(keys[i]);
+                if (holds[i] == null || !holds[i].getReservation().getPatient().equals(patient)
+                        || holds[i].getExpiry() < now) {
+                    unlock(locked);
+                    return PreparedBatch.rejected();
+                }
+            }
+        } catch (RuntimeException e) {
+            unlock(locked);
+            throw e;
+        }
+        return new PreparedBatch(locked, () -> {
+            for (int i = 0; i < count; i++) {
+                if (!repository.confirm(keys[i], holds[i])) {
+                    throw new IllegalStateException("Hold changed while its lock was held");
+                }
+                confirmed(keys[i], holds[i]);
+            }
+        }, () -> { });
+    }
+
+    /**
+     * Gives back the first {@code count} claims of a batch that didn't go through.
+     */
+    private void giveBack(long[] keys, PendingReservation[] holds, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            repository.release(keys[i], holds[i].getReservation().getBlocks(), holds[i], true);
+        }
+    }
+
+    private static void unlock(List<ReentrantLock> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            locked.get(i).unlock();
         }
-        return false;
     }
 
     /**
@@ -167,90 +961,714 @@ public class ReservationService {
      * @param time the reservation time
      * @return  {@code true} if active reservation was found, {@code false} otherwise
      */
-    public boolean confirm(String provider, String patient, String date, LocalTime time) {
+    @Override
+    public boolean confirm(String provider, String patient, LocalDate date, LocalTime time) {
+        long started = metrics.start();
+        try {
+            return confirmHold(provider, patient, date, time);
+        } finally {
+            metrics.record(ReservationMetrics.Operation.CONFIRM, started);
+        }
+    }
+
+    /**
+     * Does the work of {@link #confirm(String, String, LocalDate, LocalTime)}, counting the outcome.
+     */
+    private boolean confirmHold(String provider, String patient, LocalDate date, LocalTime time) {
         long cur = System.currentTimeMillis();
-        String key = ReservationUtil.generatePendingReservationKey(date, provider,
-                ReservationUtil.convertTimeToBlock(time));
-        PendingReservation pending = pendingReservations.get(key);
-        pendingReservations.remove(key);
+        int providerId = providers.find(provider);
+        if (providerId == ProviderDictionary.UNKNOWN) {
+            metrics.confirmNotFound();
+            return false;
+        }
+        long epochDay = date.toEpochDay();
+        int timeBlock = ReservationUtil.convertTimeToBlock(time);
+        long key = ReservationUtil.generatePendingReservationKey(epochDay, providerId, timeBlock);
 
-        // We don't need a null check for getPatient() because it can't be null if it's in this map
-        if (pending == null || !pending.getReservation().getPatient().equals(patient)) {
+        Lock lock = locks.forProviderDay(epochDay, providerId);
+        lock.lock();
+        try {
+            PendingReservation pending = repository.findHold(key);
 
-            /* Reservation for this person at this time with this provider doesn't exist */
+            // We don't need a null check for getPatient() because it can't be null if it's in this map
+            if (pending == null || !pending.getReservation().getPatient().equals(patient)) {
+
+                /* Reservation for this person at this time with this provider doesn't exist. Leave someone else's
+                   hold alone. */
+                metrics.confirmNotFound();
+                return false;
+            }
+            // Taking it out of the repository is all the cancelling the expiry queue needs
+            if (pending.getExpiry() < cur) { // Check if reservation is invalid, the sweep just hasn't got to it yet
+                release(key, pending);
+                metrics.confirmExpired();
+                return false;
+            } else if (repository.confirm(key, pending)) { // reservation is valid!
+                confirmed(key, pending);
+                metrics.confirmSucceeded();
+                return true;
+            }
+            metrics.confirmNotFound();
             return false;
-        } else if (pending.getExpiry() < cur) { // Check if reservation is invalid
-            Reservation expiredReservation = pending.getReservation();
-            expiredReservation.clearPatient();
-            openReservations.get(date).add(expiredReservation);
-            pendingReservations.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes a hold the repository just confirmed: the patient's index and the journal. Caller must hold the
+     * provider-day lock.
+     */
+    private void confirmed(long key, PendingReservation pending) {
+        Reservation reservation = pending.getReservation();
+        waitlist.clear(key);
+        indexes.patientReserved(reservation.getPatient(), key, patientReservation(key, reservation,
+                PatientReservation.Status.CONFIRMED, null));
+        feed.publish(AvailabilityChange.Type.CONFIRMED, ReservationUtil.keyEpochDay(key), reservation.getProvider(),
+                reservation.getTimeBlock(), reservation.getBlocks());
+        if (journal.isEnabled()) {
+            journal.append(JournalRecord.confirm(ReservationUtil.keyEpochDay(key), ReservationUtil.keyProviderId(key),
+                    reservation.getTimeBlock(), reservation.getBlocks(), reservation.getPatient()));
+        }
+    }
+
+    /**
+     * Removes timed out reservations from pending, and adds them back to openReservations. Runs on a background tick
+     * so request threads never pay for it, and only touches holds that have actually expired.
+     */
+    @Scheduled(fixedDelayString = "${reservation.pending.expiry-interval-ms:1000}")
+    public void expirePendingReservations() {
+        long started = metrics.start();
+        long[] expired = pendingExpiries.pollExpired(System.currentTimeMillis());
+        for (int i = 0; i < expired.length; i += 2) {
+            long expiry = expired[i];
+            long key = expired[i + 1];
+            Lock lock = locks.forProviderDay(ReservationUtil.keyEpochDay(key), ReservationUtil.keyProviderId(key));
+            lock.lock();
+            try {
+                // if it was confirmed, or lapsed and was held again, the slot's hold isn't this one anymore
+                PendingReservation pending = repository.findHold(key);
+                if (pending != null && pending.getExpiry() == expiry) {
+                    release(key, pending);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        metrics.record(ReservationMetrics.Operation.EXPIRE, started);
+    }
+
+    /**
+     * Ends a hold that ran out. If the slot is still bookable and someone is waiting for it, it's handed over to them
+     * rather than opened. Caller must hold the provider-day lock.
+     *
+     * @param key     the slot key
+     * @param expired the hold
+     * @return {@code true} if the hold was still there, {@code false} if it was confirmed or released already
+     */
+    private boolean release(long key, PendingReservation expired) {
+        long epochDay = ReservationUtil.keyEpochDay(key);
+        int providerId = ReservationUtil.keyProviderId(key);
+        int timeBlock = ReservationUtil.keyTimeBlock(key);
+        // if it is within 24hrs it's not bookable anymore so there's nothing to give back
+        boolean reopen = ReservationUtil.toSlotIndex(epochDay, timeBlock) >= windowStart;
+        // conditional on the hold, if confirm() got there first this hold is no longer ours to expire
+        int blocks = expired.getReservation().getBlocks();
+        if (!repository.release(key, blocks, expired, reopen)) {
             return false;
-        } else { // reservation is valid!
-            Reservation validReservation = pending.getReservation();
-            Set<Reservation> reservationsForDate = confirmedReservations.getOrDefault(date, new HashSet<>());
-            reservationsForDate.add(validReservation);
-            confirmedReservations.put(date, reservationsForDate);
-            return true;
+        }
+        metrics.holdExpired();
+        indexes.patientReleased(expired.getReservation().getPatient(), key);
+        feed.publish(reopen ? AvailabilityChange.Type.EXPIRED : AvailabilityChange.Type.CLOSED, epochDay,
+                expired.getReservation().getProvider(), timeBlock, blocks);
+        // journaled before a hand-over, so replay releases the slot before holding it again
+        if (journal.isEnabled()) {
+            journal.append(JournalRecord.release(epochDay, providerId, timeBlock, blocks, reopen));
+        }
+        if (!reopen) {
+            waitlist.clear(key);
+        } else if (!handOver(key)) { // the reservation is back in open
+            changed(dayFor(epochDay), providerId, false);
+            indexes.providerDayChanged(epochDay, providerId, true);
+        } else if (repository.hasOpen(epochDay, providerId)) { // the new hold may be shorter than the one that ended
+            indexes.providerDayChanged(epochDay, providerId, true);
+        }
+        return true;
+    }
+
+    /**
+     * Gives a slot whose hold just ended to the first waiter that can have it, as a new hold. Waiters whose
+     * appointment doesn't fit in what's open are told they won't get it. Caller must hold the provider-day lock.
+     *
+     * @param key the slot key
+     * @return {@code true} if the slot was handed over, {@code false} if it's open
+     */
+    private boolean handOver(long key) {
+        Waitlist.Waiter waiter;
+        while ((waiter = waitlist.poll(key)) != null) {
+            PendingReservation wanted = waiter.getWanted();
+            PendingReservation pending = new PendingReservation(System.currentTimeMillis() + pendingTtl,
+                    wanted.getDate(), wanted.getReservation());
+            if (repository.hold(key, pending)) {
+                held(dayFor(ReservationUtil.keyEpochDay(key)), key, pending);
+                metrics.holdHandedOver();
+                waiter.handOver();
+                return true;
+            }
+            waiter.turnAway();
+        }
+        return false;
+    }
+
+    /**
+     * Builds a patient's view of one of their reservations.
+     *
+     * @param key         the slot key
+     * @param reservation the reservation
+     * @param status      pending or confirmed
+     * @param expiry      when a pending hold runs out, {@code null} once confirmed
+     * @return the patient's reservation
+     */
+    private static PatientReservation patientReservation(long key, Reservation reservation,
+                                                         PatientReservation.Status status, Long expiry) {
+        return PatientReservation.builder()
+                .reservationDate(LocalDate.ofEpochDay(ReservationUtil.keyEpochDay(key)))
+                .reservationTime(ReservationUtil.convertBlockToTime(ReservationUtil.keyTimeBlock(key)))
+                .provider(reservation.getProvider())
+                .status(status)
+                .durationMinutes(ReservationUtil.convertBlocksToMinutes(reservation.getBlocks()))
+                .expiry(expiry)
+                .build();
+    }
+
+    /**
+     * Moves the 24hr window forward: drops every day up to today and the blocks of tomorrow that are now within
+     * 24hrs. The window only changes at block boundaries, so this runs once per block instead of on every request.
+     */
+    @Scheduled(cron = "${reservation.window.cron:0 */15 * * * *}")
+    public void advanceWindow() {
+        long started = metrics.start();
+        LocalDateTime now = LocalDateTime.now();
+        long tomorrow = now.toLocalDate().toEpochDay() + 1;
+        int cutoff = ReservationUtil.firstBlockOutside24Hrs(now.toLocalTime());
+        long previousStart = windowStart;
+        windowStart = ReservationUtil.toSlotIndex(tomorrow, cutoff);
+
+        // Step1: Remove all of today (and anything older that's still around)
+        NavigableMap<Long, DayAvailability> past = openReservations.headMap(tomorrow, false);
+        if (!past.isEmpty()) {
+            for (Long epochDay : past.keySet()) {
+                daysByEpochDay.remove(epochDay);
+            }
+            past.clear();
+            indexes.dropProviderDaysBefore(tomorrow);
+            availabilityVersion.incrementAndGet();
+        }
+        repository.dropDaysBefore(tomorrow);
+        // today's patients can still look up today's appointments, only days that are over go to the archive
+        archiveConfirmedBefore(tomorrow - 1);
+
+        // Step2 Remove all of tomorrow occurs within 24hrs. Only if the window moved: anything opened since the last
+        // tick was already cut to it, and publishing unchanged days would throw away cached responses for nothing.
+        DayAvailability tomorrowReservations = openReservations.get(tomorrow);
+        if (tomorrowReservations != null && windowStart != previousStart) {
+            for (Integer providerId : repository.providers(tomorrow)) {
+                Lock lock = locks.forProviderDay(tomorrow, providerId);
+                lock.lock();
+                try {
+                    repository.closeBlocksBefore(tomorrow, providerId, cutoff);
+                    if (Arrays.equals(tomorrowReservations.openBlocks(providerId),
+                            repository.openBlocks(tomorrow, providerId))) {
+                        continue; // nothing of theirs was before the cutoff
+                    }
+                    changed(tomorrowReservations, providerId, true);
+                    indexes.providerDayChanged(tomorrow, providerId, repository.hasOpen(tomorrow, providerId));
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        metrics.record(ReservationMetrics.Operation.ADVANCE_WINDOW, started);
+    }
+
+    /**
+     * Moves confirmed reservations of days before {@code epochDay} into the archive and drops them from the
+     * repository and the patients' index. Nothing changes on a day that's over, so no lock is needed. Each day is in
+     * the archive (on disk, if it has a directory) before it leaves the repository; if writing it fails, the days
+     * stay live and the next tick tries again.
+     *
+     * @param epochDay first day to keep live
+     */
+    void archiveConfirmedBefore(long epochDay) {
+        NavigableMap<Long, Set<Reservation>> past = repository.confirmed().headMap(epochDay, false);
+        if (past.isEmpty()) {
+            return;
+        }
+        try {
+            for (Map.Entry<Long, Set<Reservation>> day : past.entrySet()) {
+                archive.archive(day.getKey(), day.getValue());
+            }
+        } catch (UncheckedIOException e) {
+            LOGGER.error("Archiving past days failed, they stay in the repository until it succeeds.", e);
+            return;
+        }
+        for (Map.Entry<Long, Set<Reservation>> day : past.entrySet()) {
+            for (Reservation reservation : day.getValue()) {
+                indexes.patientReleased(reservation.getPatient(), ReservationUtil.generatePendingReservationKey(
+                        day.getKey(), providers.find(reservation.getProvider()), reservation.getTimeBlock()));
+            }
+        }
+        repository.dropConfirmedBefore(epochDay);
+    }
+
+    /**
+     * Returns a future that completes once every change made so far is in the journal on disk. Changes are made and
+     * visible straight away; waiting on this before answering the caller is what makes them durable. The fsync is
+     * shared with every other change in flight and happens outside of any lock.
+     *
+     * @return the future, already complete if there's no journal
+     */
+    @Override
+    public CompletableFuture<Void> flushed() {
+        return journal.flushed();
+    }
+
+    /**
+     * Writes a snapshot so recovery doesn't have to replay the journal from the beginning of time. Writers carry on
+     * while it runs, see {@link #writeSnapshot(DataOutputStream)}.
+     */
+    @Scheduled(fixedDelayString = "${reservation.journal.snapshot-interval-ms:300000}",
+            initialDelayString = "${reservation.journal.snapshot-interval-ms:300000}")
+    public void snapshot() {
+        if (!journal.isEnabled()) {
+            return;
+        }
+        try {
+            journal.snapshot(this::writeSnapshot);
+        } catch (IOException e) {
+            LOGGER.error("Snapshot failed, the journal will keep growing until one succeeds.", e);
         }
     }
 
     /**
-     * Updates pendingReservations by removing timed out reservations from pending, and adding them back to
-     * openReservations.
+     * Writes the whole state from the repository. It's not a single point in time, but that's fine: the journal
+     * restarts before this runs, so anything the snapshot missed or caught halfway is replayed on top of it, and
+     * every record sets its slot outright.
+     * <p>
+     * Provider names go along with their ids, since a provider may be newer than the provider list at the top.
+     *
+     * @param out where to write
+     * @throws IOException if writing fails
      */
-    private void refreshPendingReservations() {
-        LocalDateTime in24Hrs = LocalDateTime.now().plusDays(1);
-        for (Map.Entry<String, PendingReservation> pending : pendingReservations.entrySet()) {
-            if (pending.getValue().getExpiry() < System.currentTimeMillis()) {
-                //check if it is within 24hrs
-                String date = pending.getKey().split(";")[0];
-                LocalDateTime reservationDateTime = ReservationUtil.convertDateAndTimeBlockToLocalDateTime(date,
-                        pending.getValue().getReservation().getTimeBlock());
-                if (reservationDateTime.isAfter(in24Hrs)) {
-                    pendingReservations.remove(pending.getKey());
-                    Reservation resettingRes = pending.getValue().getReservation();
-                    resettingRes.clearPatient();
-                    openReservations.get(date).add(resettingRes); // put the reservation back into open
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(SNAPSHOT_FORMAT);
+        int providerCount = providers.size();
+        out.writeInt(providerCount);
+        for (int id = 0; id < providerCount; id++) {
+            out.writeUTF(providers.nameOf(id));
+        }
+
+        try {
+            repository.forEachProviderDay((epochDay, providerId, open, booked) -> {
+                try {
+                    out.writeBoolean(true);
+                    out.writeLong(epochDay);
+                    writeProvider(out, providerId);
+                    writeMask(out, open);
+                    writeMask(out, booked);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
+            });
+            out.writeBoolean(false);
+
+            repository.forEachHold((key, pending) -> {
+                try {
+                    out.writeBoolean(true);
+                    out.writeLong(ReservationUtil.keyEpochDay(key));
+                    writeProvider(out, ReservationUtil.keyProviderId(key));
+                    out.writeInt(ReservationUtil.keyTimeBlock(key));
+                    out.writeInt(pending.getReservation().getBlocks());
+                    out.writeUTF(pending.getReservation().getPatient());
+                    out.writeLong(pending.getExpiry());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.writeBoolean(false);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        for (Map.Entry<Long, Set<Reservation>> day : repository.confirmed().entrySet()) {
+            for (Reservation reservation : day.getValue()) {
+                out.writeBoolean(true);
+                out.writeLong(day.getKey());
+                writeProvider(out, providers.find(reservation.getProvider()));
+                out.writeInt(reservation.getTimeBlock());
+                out.writeInt(reservation.getBlocks());
+                out.writeUTF(reservation.getPatient());
             }
         }
+        out.writeBoolean(false);
     }
 
     /**
-     * Removes all appt blocks within 24 hrs.
+     * Loads a snapshot written by {@link #writeSnapshot(DataOutputStream)} into the repository. Only runs during
+     * recovery, before anything else can see the service.
+     *
+     * @param in where to read from
+     * @throws IOException if reading fails
      */
-    private void refreshOpenReservations() {
-        LocalDate today = LocalDate.now();
-        String todayStr = today.format(DATE_FORMATTER); // "2023-12-08"
-        String tomorrow = today.plusDays(1).toString(); // "2023-12-09"
+    private void readSnapshot(DataInputStream in) throws IOException {
+        int format = in.readInt();
+        if (format != SNAPSHOT_FORMAT) {
+            throw new IOException("Unknown snapshot format " + format);
+        }
+        int providerCount = in.readInt();
+        for (int id = 0; id < providerCount; id++) {
+            restoreProvider(id, in.readUTF());
+        }
 
-        // Step1: Remove all of today
-        openReservations.remove(todayStr);
+        while (in.readBoolean()) {
+            long epochDay = in.readLong();
+            int providerId = readProvider(in);
+            repository.restoreProviderDay(epochDay, providerId, readMask(in), readMask(in));
+        }
+        while (in.readBoolean()) {
+            long epochDay = in.readLong();
+            int providerId = readProvider(in);
+            int timeBlock = in.readInt();
+            int blocks = in.readInt();
+            replay(JournalRecord.hold(epochDay, providerId, timeBlock, blocks, in.readUTF(), in.readLong()));
+        }
+        while (in.readBoolean()) {
+            long epochDay = in.readLong();
+            int providerId = readProvider(in);
+            int timeBlock = in.readInt();
+            int blocks = in.readInt();
+            replay(JournalRecord.confirm(epochDay, providerId, timeBlock, blocks, in.readUTF()));
+        }
+    }
 
-        // Step2 Remove all of tomorrow occurs within 24hrs
-        Set<Reservation> tomorrowReservations = openReservations.get(tomorrow);
-        if (!CollectionUtils.isEmpty(tomorrowReservations)) {
-            // remove the timeblock of less than now (now rounds up to the next quarter hour)
-            tomorrowReservations.removeIf(reservation -> reservation.getTimeBlock() < timeBlockOfNow());
+    /**
+     * Applies a journal record to the repository. Only runs during recovery, {@link #load()} builds everything else
+     * afterwards. Records may be replayed over a snapshot that already includes them, so each one puts its slot in
+     * the state it describes no matter what state the slot is in.
+     *
+     * @param record the record
+     */
+    private void replay(JournalRecord record) {
+        if (record.getType() == JournalRecord.Type.PROVIDER) {
+            restoreProvider(record.getProviderId(), record.getText());
+            return;
+        }
+        long key = ReservationUtil.generatePendingReservationKey(record.getEpochDay(), record.getProviderId(),
+                record.getTimeBlock());
+        Reservation reservation = Reservation.builder()
+                .provider(providers.nameOf(record.getProviderId()))
+                .timeBlock(record.getTimeBlock())
+                .patient(record.getText())
+                .blocks(record.getBlocks())
+                .build();
+        switch (record.getType()) {
+            case AVAILABILITY:
+                repository.open(record.getEpochDay(), Collections.singletonMap(record.getProviderId(),
+                        record.getMask()));
+                break;
+            case HOLD:
+                repository.restoreHold(key, new PendingReservation(record.getExpiry(),
+                        LocalDate.ofEpochDay(record.getEpochDay()), reservation));
+                break;
+            case CONFIRM:
+                repository.restoreConfirmed(key, reservation);
+                break;
+            case RELEASE:
+                repository.release(key, record.getBlocks(), null, record.isReopen());
+                break;
+            case DROP_PROVIDER:
+                repository.dropProvider(record.getProviderId(), providers.nameOf(record.getProviderId()));
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record " + record.getType());
         }
     }
 
+    private void restoreProvider(int providerId, String provider) {
+        providers.restore(providerId, provider);
+        repository.saveProvider(providerId, provider);
+    }
+
+    private void writeProvider(DataOutputStream out, int providerId) throws IOException {
+        out.writeInt(providerId);
+        out.writeUTF(providers.nameOf(providerId));
+    }
+
+    private int readProvider(DataInputStream in) throws IOException {
+        int providerId = in.readInt();
+        restoreProvider(providerId, in.readUTF());
+        return providerId;
+    }
+
+    private static void writeMask(DataOutputStream out, long[] mask) throws IOException {
+        for (long word : mask) {
+            out.writeLong(word);
+        }
+    }
+
+    private static long[] readMask(DataInputStream in) throws IOException {
+        long[] mask = new long[BlockBitmap.WORDS];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = in.readLong();
+        }
+        return mask;
+    }
+
     /**
-     * Returns the confirmed reservation map.
+     * Returns the confirmed reservation map, in date order. Only days still in the repository, see
+     * {@link #getConfirmedReservations(LocalDate, LocalDate, int)} for archived ones.
      *
      * @return the confirmed reservation map.
      */
-    public Map<String, Set<Reservation>> getConfirmedReservations() {
-        return confirmedReservations;
+    @Override
+    public NavigableMap<LocalDate, Set<Reservation>> getConfirmedReservations() {
+        NavigableMap<LocalDate, Set<Reservation>> confirmed = new TreeMap<>();
+        for (Map.Entry<Long, Set<Reservation>> day : repository.confirmed().entrySet()) {
+            confirmed.put(LocalDate.ofEpochDay(day.getKey()), Collections.unmodifiableSet(day.getValue()));
+        }
+        return confirmed;
+    }
+
+    /**
+     * Returns confirmed reservations in a range of dates, past days from the archive and the rest from the
+     * repository.
+     *
+     * @param from  first date, inclusive, or {@code null} for no lower bound
+     * @param to    last date, inclusive, or {@code null} for no upper bound
+     * @param limit most days to return
+     * @return the days with confirmed reservations, in date order
+     */
+    @Override
+    public List<ConfirmedDay> getConfirmedReservations(LocalDate from, LocalDate to, int limit) {
+        long fromDay = from == null ? Long.MIN_VALUE : from.toEpochDay();
+        long toDay = to == null ? Long.MAX_VALUE : to.toEpochDay();
+        List<ConfirmedDay> days = new ArrayList<>();
+        if (fromDay > toDay || limit <= 0) {
+            return days;
+        }
+        for (Map.Entry<Long, List<Reservation>> day : archive.days(fromDay, toDay, limit).entrySet()) {
+            days.add(new ConfirmedDay(LocalDate.ofEpochDay(day.getKey()), day.getValue()));
+        }
+        NavigableMap<Long, Set<Reservation>> live = repository.confirmed().subMap(fromDay, true, toDay, true);
+        for (Map.Entry<Long, Set<Reservation>> day : live.entrySet()) {
+            // a day that's being archived right now is in both for a moment
+            if (days.size() == limit) {
+                break;
+            }
+            if (day.getValue().isEmpty() || archive.contains(day.getKey())) {
+                continue;
+            }
+            List<Reservation> reservations = new ArrayList<>(day.getValue());
+            reservations.sort(Comparator.comparingInt(Reservation::getTimeBlock)
+                    .thenComparing(Reservation::getProvider));
+            days.add(new ConfirmedDay(LocalDate.ofEpochDay(day.getKey()), reservations));
+        }
+        return days;
+    }
+
+    /**
+     * Returns every provider this node has seen, including ones that have since moved to another shard.
+     *
+     * @return the providers' names
+     */
+    public List<String> getProviders() {
+        List<String> names = new ArrayList<>(providers.size());
+        for (int id = 0; id < providers.size(); id++) {
+            names.add(providers.nameOf(id));
+        }
+        return names;
+    }
+
+    /**
+     * Copies out everything this node holds for a provider, for moving it to another shard. The caller has to keep
+     * other writes to the provider out until the move is done.
+     *
+     * @param provider the provider
+     * @return the provider's days, holds and confirmed reservations
+     */
+    public ProviderState exportProvider(String provider) {
+        NavigableMap<Long, long[][]> days = new TreeMap<>();
+        List<PendingReservation> holds = new ArrayList<>();
+        NavigableMap<Long, List<Reservation>> confirmed = new TreeMap<>();
+        int providerId = providers.find(provider);
+        if (providerId != ProviderDictionary.UNKNOWN) {
+            repository.forEachProviderDay((epochDay, id, open, booked) -> {
+                if (id == providerId) {
+                    days.put(epochDay, new long[][] { open, booked });
+                }
+            });
+            repository.forEachHold((key, hold) -> {
+                if (ReservationUtil.keyProviderId(key) == providerId) {
+                    holds.add(hold);
+                }
+            });
+            for (Map.Entry<Long, Set<Reservation>> day : repository.confirmed().entrySet()) {
+                for (Reservation reservation : day.getValue()) {
+                    if (reservation.getProvider().equals(provider)) {
+                        confirmed.computeIfAbsent(day.getKey(), k -> new ArrayList<>()).add(reservation);
+                    }
+                }
+            }
+        }
+        return new ProviderState(provider, days, holds, confirmed);
     }
 
     /**
-     * Returns the time block of current time.
+     * Takes over a provider exported from another shard: its days, holds (with their original expiry) and confirmed
+     * reservations. Journaled like any other change, so it survives a restart.
      *
-     * @return  the time block of current time
+     * @param state what {@link #exportProvider(String)} returned on the old shard
      */
-    private int timeBlockOfNow() {
-        return ReservationUtil.convertTimeToBlock(LocalTime.now());
+    public void importProvider(ProviderState state) {
+        int providerId = providers.intern(state.getProvider());
+        for (Map.Entry<Long, long[][]> entry : state.getDays().entrySet()) {
+            long epochDay = entry.getKey();
+            long[] open = entry.getValue()[0];
+            Lock lock = locks.forProviderDay(epochDay, providerId);
+            lock.lock();
+            try {
+                repository.restoreProviderDay(epochDay, providerId, open, entry.getValue()[1]);
+                indexes.providerDayChanged(epochDay, providerId, BlockBitmap.cardinality(open) > 0);
+                changed(dayFor(epochDay), providerId, true);
+                if (journal.isEnabled()) {
+                    journal.append(JournalRecord.availability(epochDay, providerId, open));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        for (PendingReservation hold : state.getHolds()) {
+            Reservation reservation = hold.getReservation();
+            long epochDay = hold.getDate().toEpochDay();
+            long key = ReservationUtil.generatePendingReservationKey(epochDay, providerId, reservation.getTimeBlock());
+            Lock lock = locks.forProviderDay(epochDay, providerId);
+            lock.lock();
+            try {
+                repository.restoreHold(key, hold);
+                pendingExpiries.add(hold.getExpiry(), key);
+                indexes.patientReserved(reservation.getPatient(), key, patientReservation(key, reservation,
+                        PatientReservation.Status.PENDING, hold.getExpiry()));
+                if (journal.isEnabled()) {
+                    journal.append(JournalRecord.hold(epochDay, providerId, reservation.getTimeBlock(),
+                            reservation.getBlocks(), reservation.getPatient(), hold.getExpiry()));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        for (Map.Entry<Long, List<Reservation>> day : state.getConfirmed().entrySet()) {
+            long epochDay = day.getKey();
+            Lock lock = locks.forProviderDay(epochDay, providerId);
+            lock.lock();
+            try {
+                for (Reservation reservation : day.getValue()) {
+                    long key = ReservationUtil.generatePendingReservationKey(epochDay, providerId,
+                            reservation.getTimeBlock());
+                    repository.restoreConfirmed(key, reservation);
+                    indexes.patientReserved(reservation.getPatient(), key, patientReservation(key, reservation,
+                            PatientReservation.Status.CONFIRMED, null));
+                    if (journal.isEnabled()) {
+                        journal.append(JournalRecord.confirm(epochDay, providerId, reservation.getTimeBlock(),
+                                reservation.getBlocks(), reservation.getPatient()));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forgets a provider after it moved to another shard. Like {@link #exportProvider(String)}, the caller has to
+     * keep other writes to the provider out.
+     *
+     * @param provider the provider
+     */
+    public void removeProvider(String provider) {
+        int providerId = providers.find(provider);
+        if (providerId == ProviderDictionary.UNKNOWN) {
+            return;
+        }
+        ProviderState state = exportProvider(provider);
+        repository.dropProvider(providerId, provider);
+        waitlist.clearProvider(providerId);
+        for (long epochDay : state.getDays().keySet()) {
+            indexes.providerDayChanged(epochDay, providerId, false);
+            DayAvailability day = daysByEpochDay.get(epochDay);
+            if (day != null) {
+                changed(day, providerId, false);
+            }
+        }
+        // the expiry queue skips the holds by itself, they aren't in the repository anymore
+        for (PendingReservation hold : state.getHolds()) {
+            indexes.patientReleased(hold.getReservation().getPatient(), ReservationUtil.generatePendingReservationKey(
+                    hold.getDate().toEpochDay(), providerId, hold.getReservation().getTimeBlock()));
+        }
+        for (Map.Entry<Long, List<Reservation>> day : state.getConfirmed().entrySet()) {
+            for (Reservation reservation : day.getValue()) {
+                indexes.patientReleased(reservation.getPatient(), ReservationUtil.generatePendingReservationKey(
+                        day.getKey(), providerId, reservation.getTimeBlock()));
+            }
+        }
+        if (journal.isEnabled()) {
+            journal.append(JournalRecord.dropProvider(providerId));
+        }
+    }
+
+    /**
+     * Returns the first block of a day that's outside the 24hr window.
+     *
+     * @param epochDay the day
+     * @return 0 if the whole day is outside, {@link ReservationUtil#BLOCKS_PER_DAY} if none of it is
+     */
+    private int firstBlockOutsideWindow(long epochDay) {
+        long first = windowStart - ReservationUtil.toSlotIndex(epochDay, 0);
+        return (int) Math.max(0, Math.min(first, ReservationUtil.BLOCKS_PER_DAY));
+    }
+
+    /**
+     * Returns the day, creating it if needed.
+     *
+     * @param epochDay the day
+     * @return the day
+     */
+    private DayAvailability dayFor(long epochDay) {
+        DayAvailability day = daysByEpochDay.get(epochDay);
+        if (day == null) {
+            // racing creators all get the instance the sorted map settled on
+            day = openReservations.computeIfAbsent(epochDay,
+                    k -> new DayAvailability(k, availabilityVersion.incrementAndGet()));
+            daysByEpochDay.put(epochDay, day);
+        }
+        return day;
+    }
+
+    /**
+     * Publishes a provider's open slots on a day after they changed in the repository, with new versions. Must be
+     * called after the change, not before, and under the provider-day lock the change was made under.
+     *
+     * @param day        the day that changed
+     * @param providerId the provider whose slots changed
+     * @param announce   whether to push the blocks that opened or closed to the feed, {@code false} when the caller
+     *                   publishes what happened itself
+     */
+    private void changed(DayAvailability day, int providerId, boolean announce) {
+        long[] before = day.openBlocks(providerId);
+        long[] after = repository.openBlocks(day.getEpochDay(), providerId);
+        day.publish(providerId, after, availabilityVersion::incrementAndGet);
+        if (announce && feed.isWatched()) {
+            feed.publishDiff(day.getEpochDay(), providers.nameOf(providerId), before, after);
+        }
     }
 
     /**
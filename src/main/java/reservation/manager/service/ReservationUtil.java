@@ -1,8 +1,8 @@
 package reservation.manager.service;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Objects;
 
 public class ReservationUtil {
@@ -21,6 +21,11 @@ public class ReservationUtil {
      */
     private static final int FRACTION_OF_HOUR = 60/LENGTH_IN_MINUTES;
 
+    /**
+     * Number of appt blocks in a day, i.e. the number of bits a provider's day takes up.
+     */
+    public static final int BLOCKS_PER_DAY = FRACTION_OF_HOUR * 24;
+
     /**
      * Converts an appt block into the start time.
      *
@@ -43,15 +48,108 @@ public class ReservationUtil {
     }
 
     /**
-     * Generates a reservation key for pending map.
+     * Returns how many blocks an appointment of the given length takes, rounding up to whole blocks.
      *
-     * @param date the date
-     * @param provider the provider
-     * @param timeBlock the timeblock
-     * @return the generated reservation key for pending map
+     * @param minutes the length of the appointment
+     * @return the number of blocks
+     */
+    public static int convertMinutesToBlocks(int minutes) {
+        return (minutes + LENGTH_IN_MINUTES - 1) / LENGTH_IN_MINUTES;
+    }
+
+    /**
+     * Returns how long a run of blocks is.
+     *
+     * @param blocks the number of blocks
+     * @return the length in minutes
+     */
+    public static int convertBlocksToMinutes(int blocks) {
+        return blocks * LENGTH_IN_MINUTES;
+    }
+
+    /**
+     * Returns the first block whose start is more than 24hrs away for the whole of the block we're currently in.
+     * Anything before it (tomorrow) is inside the 24hr window. Can return {@link #BLOCKS_PER_DAY} late in the evening,
+     * meaning nothing is left tomorrow.
+     *
+     * @param now the current time
+     * @return the first block of tomorrow still outside the 24hr window
+     */
+    public static int firstBlockOutside24Hrs(LocalTime now) {
+        return (now.getHour() * 60 + now.getMinute()) / LENGTH_IN_MINUTES + 1;
+    }
+
+    /**
+     * Returns a block's position on a single timeline across days, so comparing slots on different days is a plain
+     * {@code long} comparison.
+     *
+     * @param epochDay  the day
+     * @param timeBlock the block in that day
+     * @return the slot index
+     */
+    public static long toSlotIndex(long epochDay, int timeBlock) {
+        return epochDay * BLOCKS_PER_DAY + timeBlock;
+    }
+
+    /**
+     * Bits of a slot key taken by the block, enough for {@link #BLOCKS_PER_DAY}.
+     */
+    private static final int BLOCK_BITS = 32 - Integer.numberOfLeadingZeros(BLOCKS_PER_DAY - 1);
+
+    /**
+     * Bits of a slot key taken by the provider id. The epoch day gets everything above, which is still far more days
+     * than anyone will book.
+     */
+    private static final int PROVIDER_BITS = 24;
+
+    /**
+     * Largest provider id a slot key can hold.
+     */
+    public static final int MAX_PROVIDER_ID = (1 << PROVIDER_BITS) - 1;
+
+    private static final int DAY_SHIFT = BLOCK_BITS + PROVIDER_BITS;
+
+    /**
+     * Generates the key for one block of one provider's day, used for pending holds and everywhere else a slot needs a
+     * key. Packs the three parts into a single {@code long} so nothing has to be allocated to look a slot up.
+     *
+     * @param epochDay   the day
+     * @param providerId the provider id, see {@link ProviderDictionary}
+     * @param timeBlock  the block in that day
+     * @return the slot key
+     */
+    public static long generatePendingReservationKey(long epochDay, int providerId, int timeBlock) {
+        return epochDay << DAY_SHIFT | (long) providerId << BLOCK_BITS | timeBlock;
+    }
+
+    /**
+     * Returns the day a slot key is on.
+     *
+     * @param key a key from {@link #generatePendingReservationKey(long, int, int)}
+     * @return the epoch day
+     */
+    public static long keyEpochDay(long key) {
+        return key >> DAY_SHIFT;
+    }
+
+    /**
+     * Returns the provider of a slot key.
+     *
+     * @param key a key from {@link #generatePendingReservationKey(long, int, int)}
+     * @return the provider id
+     */
+    public static int keyProviderId(long key) {
+        return (int) (key >>> BLOCK_BITS) & MAX_PROVIDER_ID;
+    }
+
+    /**
+     * Returns the block of a slot key.
+     *
+     * @param key a key from {@link #generatePendingReservationKey(long, int, int)}
+     * @return the block in the day
      */
-    public static String generatePendingReservationKey(String date, String provider, int timeBlock) {
-        return String.format("%s;%s;%d", date, provider, timeBlock);
+    public static int keyTimeBlock(long key) {
+        return (int) key & ((1 << BLOCK_BITS) - 1);
     }
 
     /**
@@ -62,7 +160,6 @@ public class ReservationUtil {
      * @return the LocalDateTime object
      */
     public static LocalDateTime convertDateAndTimeBlockToLocalDateTime(String date, int timeBlock) {
-        String localDateTimeAsText = date + " " + convertBlockToTime(timeBlock).format(DateTimeFormatter.ofPattern("HH:mm"));
-        return LocalDateTime.parse(localDateTimeAsText, ReservationService.DATE_TIME_FORMATTER);
+        return LocalDate.parse(date, ReservationService.DATE_FORMATTER).atTime(convertBlockToTime(timeBlock));
     }
 }
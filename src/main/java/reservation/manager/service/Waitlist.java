@@ -0,0 +1,153 @@
+package reservation.manager.service;
+
+import reservation.manager.models.PendingReservation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Patients waiting for a slot someone else holds, first come first served. When the hold ends without being
+ * confirmed, the slot goes to the first waiter as a new hold instead of back to the open pool (see
+ * {@link ReservationService#reserveOrWait}), so patients after a popular slot don't have to keep calling
+ * {@code reserve} until it frees up.
+ * <p>
+ * Waiters queue behind the hold on the slot. If that hold is confirmed, or ends inside the 24hr window, or the
+ * provider goes away, nobody behind it can get the slot and they're all told so. Waiters are only kept in memory:
+ * each one is a client waiting on an answer, and after a restart there'd be nobody to give it to.
+ * <p>
+ * Every call for a slot must be made under its provider-day lock.
+ */
+public class Waitlist {
+
+    /**
+     * Most patients queued for one slot. Past a handful, the last ones won't get it before the day fills up anyway.
+     */
+    static final int MAX_WAITERS_PER_SLOT = 64;
+
+    /**
+     * Slot key -> its waiters, in the order they queued.
+     */
+    private final ConcurrentLongMap<ArrayDeque<Waiter>> waiting = new ConcurrentLongMap<>();
+
+    /**
+     * Queues a patient for a held slot.
+     *
+     * @param key     the slot key
+     * @param wanted  the hold the patient asked for. Its expiry is set again when the slot is handed over.
+     * @param outcome completed with {@code true} when the slot is handed over, {@code false} if it won't be.
+     *                Cancelling it gives up the place in the queue.
+     * @return {@code true} if queued, {@code false} if the patient is already waiting for the slot or it has a full
+     * queue
+     */
+    boolean join(long key, PendingReservation wanted, CompletableFuture<Boolean> outcome) {
+        ArrayDeque<Waiter> queue = waiting.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            waiting.put(key, queue);
+        }
+        // patients who gave up don't hold a place, or a burst of timeouts would fill the queue with nobody
+        queue.removeIf(waiter -> waiter.outcome.isDone());
+        if (queue.size() >= MAX_WAITERS_PER_SLOT) {
+            return false;
+        }
+        String patient = wanted.getReservation().getPatient();
+        for (Waiter waiter : queue) {
+            if (waiter.wanted.getReservation().getPatient().equals(patient)) {
+                return false;
+            }
+        }
+        queue.add(new Waiter(wanted, outcome));
+        return true;
+    }
+
+    /**
+     * Takes the first waiter for a slot that's still waiting. Ones that gave up are dropped on the way.
+     *
+     * @param key the slot key
+     * @return the waiter, or {@code null} if there's none
+     */
+    Waiter poll(long key) {
+        ArrayDeque<Waiter> queue = waiting.get(key);
+        if (queue == null) {
+            return null;
+        }
+        Waiter waiter;
+        do {
+            waiter = queue.poll();
+        } while (waiter != null && waiter.outcome.isDone());
+        if (queue.isEmpty()) {
+            waiting.remove(key);
+        }
+        return waiter;
+    }
+
+    /**
+     * Tells everyone waiting for a slot they won't get it.
+     *
+     * @param key the slot key
+     */
+    void clear(long key) {
+        ArrayDeque<Waiter> queue = waiting.remove(key);
+        if (queue != null) {
+            for (Waiter waiter : queue) {
+                waiter.turnAway();
+            }
+        }
+    }
+
+    /**
+     * Tells everyone waiting for one of a provider's slots they won't get it. Caller must keep other writes to the
+     * provider out.
+     *
+     * @param providerId the provider
+     */
+    void clearProvider(int providerId) {
+        List<Long> keys = new ArrayList<>();
+        waiting.forEach((key, queue) -> {
+            if (ReservationUtil.keyProviderId(key) == providerId) {
+                keys.add(key);
+            }
+        });
+        for (long key : keys) {
+            clear(key);
+        }
+    }
+
+    /**
+     * One patient waiting for a slot.
+     */
+    static final class Waiter {
+        private final PendingReservation wanted;
+        private final CompletableFuture<Boolean> outcome;
+
+        private Waiter(PendingReservation wanted, CompletableFuture<Boolean> outcome) {
+            this.wanted = wanted;
+            this.outcome = outcome;
+        }
+
+        /**
+         * Returns the hold the patient asked for.
+         *
+         * @return the hold, with the expiry it had when the patient queued
+         */
+        PendingReservation getWanted() {
+            return wanted;
+        }
+
+        /**
+         * Tells the patient the slot is theirs.
+         */
+        void handOver() {
+            outcome.complete(Boolean.TRUE);
+        }
+
+        /**
+         * Tells the patient they won't get the slot.
+         */
+        void turnAway() {
+            outcome.complete(Boolean.FALSE);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package reservation.manager.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent hash ring. Each shard owns {@code virtualNodes} points on a 64-bit ring, and a key belongs to
+ * the first point at or after its hash, wrapping around. Adding a shard only takes keys from the shards whose ranges
+ * its points split, about {@code 1 / shards} of them, and every other key stays where it was.
+ *
+ * @param <S> the shard
+ */
+public final class ConsistentHashRing<S> {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int virtualNodes;
+
+    /**
+     * Shard name -> shard, in the order they were added.
+     */
+    private final Map<String, S> shards;
+
+    /**
+     * Point on the ring -> name of the shard that owns it.
+     */
+    private final NavigableMap<Long, String> points;
+
+    /**
+     * Constructor for the class, for a ring with no shards yet.
+     *
+     * @param virtualNodes points per shard, more spreads the keys more evenly
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        this(virtualNodes, Collections.emptyMap(), Collections.emptyNavigableMap());
+    }
+
+    private ConsistentHashRing(int virtualNodes, Map<String, S> shards, NavigableMap<Long, String> points) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("A shard needs at least one virtual node");
+        }
+        this.virtualNodes = virtualNodes;
+        this.shards = shards;
+        this.points = points;
+    }
+
+    /**
+     * Returns a ring with one more shard. This ring is left as it was.
+     *
+     * @param name  the shard's name, its points are derived from it so it has to be stable across restarts
+     * @param shard the shard
+     * @return the new ring
+     */
+    public ConsistentHashRing<S> with(String name, S shard) {
+        if (shards.containsKey(name)) {
+            throw new IllegalArgumentException("Shard " + name + " is already on the ring");
+        }
+        Map<String, S> newShards = new LinkedHashMap<>(shards);
+        newShards.put(name, shard);
+        NavigableMap<Long, String> newPoints = new TreeMap<>(points);
+        for (int i = 0; i < virtualNodes; i++) {
+            // on the off chance two points collide, the one that was there first keeps it
+            newPoints.putIfAbsent(hash(name + '#' + i), name);
+        }
+        return new ConsistentHashRing<>(virtualNodes, Collections.unmodifiableMap(newShards),
+                Collections.unmodifiableNavigableMap(newPoints));
+    }
+
+    /**
+     * Returns the shard a key belongs to.
+     *
+     * @param key the key, e.g. a provider
+     * @return the shard
+     * @throws IllegalStateException if the ring has no shards
+     */
+    public S shardFor(String key) {
+        return shards.get(nameFor(key));
+    }
+
+    /**
+     * Returns the name of the shard a key belongs to.
+     *
+     * @param key the key, e.g. a provider
+     * @return the shard's name
+     * @throws IllegalStateException if the ring has no shards
+     */
+    public String nameFor(String key) {
+        if (points.isEmpty()) {
+            throw new IllegalStateException("No shards on the ring");
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point == null ? points.firstEntry().getValue() : point.getValue();
+    }
+
+    /**
+     * Returns every shard.
+     *
+     * @return shard name -> shard, in the order they were added
+     */
+    public Map<String, S> shards() {
+        return shards;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, with a final mix so keys that only differ in the last character still land
+     * far apart on the ring.
+     */
+    static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,82 @@
+package reservation.manager.shard;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reservation.manager.journal.FileReservationJournal;
+import reservation.manager.journal.ReservationJournal;
+import reservation.manager.repository.InMemoryReservationRepository;
+import reservation.manager.service.AvailabilityFeed;
+import reservation.manager.service.ConfirmedArchive;
+import reservation.manager.service.ReservationMetrics;
+import reservation.manager.service.ReservationService;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the service into {@code reservation.shards.count} shards in this process, when that's more than one. Each
+ * shard is a {@link ReservationService} with its own in-memory repository, locks and, when
+ * {@code reservation.journal.dir} is set, its own journal and archive in {@code shard-<n>} under it. A
+ * {@link ShardedReservationService} in front of them is what the controller gets, and the single node's service,
+ * repository and journal beans aren't created.
+ * <p>
+ * Shards are named {@code shard-0} to {@code shard-<count - 1>}, and a provider's shard only depends on the names, so
+ * raising the count and restarting finds every provider where {@link ShardedReservationService#addShard} left it.
+ */
+@Configuration
+@ConditionalOnExpression("${reservation.shards.count:1} > 1")
+public class ShardConfiguration implements DisposableBean {
+
+    private final List<ReservationJournal> journals = new ArrayList<>();
+
+    /**
+     * Returns the router over the shards.
+     *
+     * @param count        number of shards
+     * @param virtualNodes points on the ring per shard
+     * @param type         the repository type, only {@code memory} can be sharded
+     * @param directory    the journal directory, blank to keep everything in memory only
+     * @param metrics      shared by every shard, so the meters show the node as a whole
+     * @param feed         shared by every shard, so a subscription sees the node as a whole
+     * @return the router
+     */
+    @Bean
+    public ShardedReservationService shardedReservationService(@Value("${reservation.shards.count}") int count,
+            @Value("${reservation.shards.virtual-nodes:128}") int virtualNodes,
+            @Value("${reservation.repository.type:memory}") String type,
+            @Value("${reservation.journal.dir:}") String directory,
+            ReservationMetrics metrics, AvailabilityFeed feed) {
+        if (!"memory".equals(type.trim().toLowerCase())) {
+            throw new IllegalArgumentException("Only reservation.repository.type=memory can be sharded, not " + type);
+        }
+        ConsistentHashRing<ReservationService> ring = new ConsistentHashRing<>(virtualNodes);
+        for (int i = 0; i < count; i++) {
+            String name = "shard-" + i;
+            ReservationJournal journal = directory.trim().isEmpty()
+                    ? ReservationJournal.disabled()
+                    : new FileReservationJournal(Paths.get(directory.trim(), name));
+            ConfirmedArchive archive = directory.trim().isEmpty()
+                    ? new ConfirmedArchive()
+                    : new ConfirmedArchive(Paths.get(directory.trim(), name, "archive"));
+            journals.add(journal);
+            ring = ring.with(name, new ReservationService(new InMemoryReservationRepository(), journal, metrics,
+                    archive, feed));
+        }
+        return new ShardedReservationService(ring);
+    }
+
+    /**
+     * Closes the shards' journals, which flushes anything still queued.
+     */
+    @Override
+    public void destroy() throws IOException {
+        for (ReservationJournal journal : journals) {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package reservation.manager.shard;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.BookingTarget;
+import reservation.manager.models.PatientReservation;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.AvailabilityView;
+import reservation.manager.service.ConfirmedDay;
+import reservation.manager.service.PreparedBatch;
+import reservation.manager.service.ProviderState;
+import reservation.manager.service.ReservationOperations;
+import reservation.manager.service.ReservationService;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Routes requests to shards by provider. Each provider lives on exactly one {@link ReservationService}, picked by a
+ * {@link ConsistentHashRing} over the provider's name, so everything that names a provider (adding availability,
+ * reserve, confirm, one provider's calendar) goes to that one shard and is as fast as it is on a single node. Reads
+ * across providers (a day, the whole calendar, next available, a patient's reservations) are sent to every shard and
+ * merged back into the same shape a single node returns: slots by time then provider, days in date order.
+ * <p>
+ * A merged day's version is the sum of every shard's version for it, including shards with nothing open that day.
+ * Each shard's only goes up, so the sum changes whenever any shard's day does, which is all the response cache and
+ * ETags need.
+ * <p>
+ * {@link #addShard(String, ReservationService)} moves the providers the new shard takes over, with their open slots,
+ * holds and confirmed reservations. Requests are held off while that runs: every call holds the read side of a lock,
+ * the move holds the write side.
+ */
+public class ShardedReservationService implements ReservationOperations {
+
+    private static final Comparator<Reservation> BY_TIME_THEN_PROVIDER = Comparator
+            .comparingInt(Reservation::getTimeBlock)
+            .thenComparing(Reservation::getProvider);
+
+    private static final Comparator<PatientReservation> BY_DATE_THEN_TIME = Comparator
+            .comparing(PatientReservation::getReservationDate)
+            .thenComparing(PatientReservation::getReservationTime)
+            .thenComparing(PatientReservation::getProvider);
+
+    private volatile ConsistentHashRing<ReservationService> ring;
+
+    private final ReadWriteLock rebalance = new ReentrantReadWriteLock();
+
+    /**
+     * Constructor for the class. The shards are taken as they are, nothing is moved between them.
+     *
+     * @param ring the shards
+     */
+    public ShardedReservationService(ConsistentHashRing<ReservationService> ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * Adds a shard and moves over the providers it now owns. Everything else waits until the move is done.
+     *
+     * @param name  the shard's name, has to be the same on every restart for providers to be found again
+     * @param shard the shard, normally empty
+     * @return the providers that moved
+     */
+    public List<String> addShard(String name, ReservationService shard) {
+        Lock lock = rebalance.writeLock();
+        lock.lock();
+        try {
+            ConsistentHashRing<ReservationService> current = ring;
+            ConsistentHashRing<ReservationService> next = current.with(name, shard);
+            List<String> moved = new ArrayList<>();
+            for (Map.Entry<String, ReservationService> owner : current.shards().entrySet()) {
+                for (String provider : owner.getValue().getProviders()) {
+                    // a shard remembers providers that moved away before, skip the ones it doesn't own
+                    if (!owner.getKey().equals(current.nameFor(provider)) || !name.equals(next.nameFor(provider))) {
+                        continue;
+                    }
+                    ProviderState state = owner.getValue().exportProvider(provider);
+                    if (!state.isEmpty()) {
+                        shard.importProvider(state);
+                    }
+                    owner.getValue().removeProvider(provider);
+                    moved.add(provider);
+                }
+            }
+            ring = next;
+            return moved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns every shard.
+     *
+     * @return shard name -> shard
+     */
+    public Map<String, ReservationService> getShards() {
+        return ring.shards();
+    }
+
+    @Override
+    public void addAvailability(String provider, LocalDate date, LocalTime start, LocalTime end) {
+        route(provider, shard -> {
+            shard.addAvailability(provider, date, start, end);
+            return null;
+        });
+    }
+
+    @Override
+    public List<AvailabilityResult> addAvailability(List<AvailabilityWindow> windows) {
+        return read(() -> {
+            AvailabilityResult[] results = new AvailabilityResult[windows.size()];
+            Map<ReservationService, List<Integer>> positions = new IdentityHashMap<>();
+            for (int i = 0; i < windows.size(); i++) {
+                // a window without a provider has no shard, reject it in its place rather than fail the rest
+                results[i] = ReservationService.rejectIncomplete(windows.get(i));
+                if (results[i] == null) {
+                    positions.computeIfAbsent(ring.shardFor(windows.get(i).getProvider()), k -> new ArrayList<>())
+                            .add(i);
+                }
+            }
+            for (Map.Entry<ReservationService, List<Integer>> shard : positions.entrySet()) {
+                List<AvailabilityWindow> batch = new ArrayList<>(shard.getValue().size());
+                for (int position : shard.getValue()) {
+                    batch.add(windows.get(position));
+                }
+                List<AvailabilityResult> shardResults = shard.getKey().addAvailability(batch);
+                for (int i = 0; i < shardResults.size(); i++) {
+                    results[shard.getValue().get(i)] = shardResults.get(i);
+                }
+            }
+            return Arrays.asList(results);
+        });
+    }
+
+    @Override
+    public List<AvailabilityView> getAvailability() {
+        return streamAvailability(null, null, null).collect(Collectors.toList());
+    }
+
+    /**
+     * Walks the days with open slots, in date order. Unlike a single node this isn't lazy, every shard's days are
+     * read and merged before the first one is returned.
+     */
+    @Override
+    public Stream<AvailabilityView> streamAvailability(LocalDate from, LocalDate to, String provider) {
+        if (provider != null) {
+            return streamProviderAvailability(provider, from, to);
+        }
+        return read(() -> mergeDays(gather(shard -> shard.streamAvailability(from, to, null)
+                .collect(Collectors.toList())))).stream();
+    }
+
+    @Override
+    public Stream<AvailabilityView> streamProviderAvailability(String provider, LocalDate from, LocalDate to) {
+        return route(provider, shard -> shard.streamProviderAvailability(provider, from, to)
+                .collect(Collectors.toList())).stream();
+    }
+
+    @Override
+    public List<PatientReservation> getPatientReservations(String patient) {
+        return read(() -> {
+            List<PatientReservation> reservations = new ArrayList<>();
+            gather(shard -> shard.getPatientReservations(patient)).forEach(reservations::addAll);
+            reservations.sort(BY_DATE_THEN_TIME);
+            return reservations;
+        });
+    }
+
+    @Override
+    public List<Reservation> getAvailability(LocalDate date) {
+        return getAvailabilityView(date).getReservations();
+    }
+
+    @Override
+    public AvailabilityView getAvailabilityView(LocalDate date) {
+        return read(() -> mergeDay(date, gather(shard -> shard.getAvailabilityView(date))));
+    }
+
+    @Override
+    public AvailabilityView findOpenRuns(LocalDate date, int minutes, String provider) {
+        if (provider != null) {
+            return route(provider, shard -> shard.findOpenRuns(date, minutes, provider));
+        }
+        return read(() -> mergeDay(date, gather(shard -> shard.findOpenRuns(date, minutes, null))));
+    }
+
+    /**
+     * Asks every shard for its first {@code count} slots and keeps the first {@code count} of those.
+     */
+    @Override
+    public List<AvailabilityView> findNextAvailable(LocalDateTime after, int count, String provider) {
+        if (provider != null) {
+            return route(provider, shard -> shard.findNextAvailable(after, count, provider));
+        }
+        return read(() -> {
+            List<AvailabilityView> days = mergeDays(gather(shard -> shard.findNextAvailable(after, count, null)));
+            List<AvailabilityView> found = new ArrayList<>();
+            int remaining = count;
+            for (AvailabilityView day : days) {
+                if (remaining <= 0) {
+                    break;
+                }
+                List<Reservation> open = day.getReservations();
+                int take = Math.min(remaining, open.size());
+                found.add(take == open.size() ? day
+                        : new AvailabilityView(day.getDate(), day.getVersion(), open.subList(0, take)));
+                remaining -= take;
+            }
+            return found;
+        });
+    }
+
+    @Override
+    public long getAvailabilityVersion() {
+        return read(() -> {
+            long version = 0;
+            for (long shardVersion : gather(ReservationService::getAvailabilityVersion)) {
+                version += shardVersion;
+            }
+            return version;
+        });
+    }
+
+    @Override
+    public boolean reserve(String provider, String patient, LocalDate date, LocalTime time) {
+        return route(provider, shard -> shard.reserve(provider, patient, date, time));
+    }
+
+    @Override
+    public boolean reserve(String provider, String patient, LocalDate date, LocalTime time, int minutes) {
+        return route(provider, shard -> shard.reserve(provider, patient, date, time, minutes));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reserveOrWait(String provider, String patient, LocalDate date, LocalTime time,
+                                                    int minutes) {
+        return route(provider, shard -> shard.reserveOrWait(provider, patient, date, time, minutes));
+    }
+
+    @Override
+    public boolean confirm(String provider, String patient, LocalDate date, LocalTime time) {
+        return route(provider, shard -> shard.confirm(provider, patient, date, time));
+    }
+
+    /**
+     * Prepares the batch on every shard it touches, in shard name order, and only commits once every shard has
+     * claimed its part, so a batch across shards is as all-or-nothing as one on a single shard.
+     */
+    @Override
+    public boolean reserveAll(String patient, List<BookingTarget> targets) {
+        return read(() -> commitAll(targets, (shard, part) -> shard.prepareReserve(patient, part)));
+    }
+
+    /**
+     * Same as {@link #reserveAll(String, List)} for confirming.
+     */
+    @Override
+    public boolean confirmAll(String patient, List<BookingTarget> targets) {
+        return read(() -> commitAll(targets, (shard, part) -> shard.prepareConfirm(patient, part)));
+    }
+
+    /**
+     * Prepares each shard's part of a batch and commits them all if every one was prepared. Caller must hold the
+     * read lock.
+     */
+    private boolean commitAll(List<BookingTarget> targets,
+                              BiFunction<ReservationService, List<BookingTarget>, PreparedBatch> prepare) {
+        // a fixed order across callers, so two batches preparing the same shards can't deadlock
+        NavigableMap<String, List<BookingTarget>> parts = new TreeMap<>();
+        for (BookingTarget target : targets) {
+            parts.computeIfAbsent(ring.nameFor(target.getProvider()), k -> new ArrayList<>()).add(target);
+        }
+        List<PreparedBatch> prepared = new ArrayList<>(parts.size());
+        try {
+            for (Map.Entry<String, List<BookingTarget>> part : parts.entrySet()) {
+                PreparedBatch batch = prepare.apply(ring.shards().get(part.getKey()), part.getValue());
+                prepared.add(batch);
+                if (!batch.isPrepared()) {
+                    return false;
+                }
+            }
+            for (PreparedBatch batch : prepared) {
+                batch.commit();
+            }
+            return true;
+        } finally {
+            for (int i = prepared.size() - 1; i >= 0; i--) {
+                prepared.get(i).close();
+            }
+        }
+    }
+
+    @Override
+    public NavigableMap<LocalDate, Set<Reservation>> getConfirmedReservations() {
+        return read(() -> {
+            NavigableMap<LocalDate, Set<Reservation>> confirmed = new TreeMap<>();
+            for (Map<LocalDate, Set<Reservation>> shard : gather(ReservationService::getConfirmedReservations)) {
+                for (Map.Entry<LocalDate, Set<Reservation>> day : shard.entrySet()) {
+                    confirmed.computeIfAbsent(day.getKey(), k -> new HashSet<>()).addAll(day.getValue());
+                }
+            }
+            return confirmed;
+        });
+    }
+
+    /**
+     * Each shard returns up to {@code limit} days, and a day can have reservations on several shards, so they're
+     * merged by date before the first {@code limit} are kept. Archived days stay on the shard that archived them,
+     * wherever their providers have moved since.
+     */
+    @Override
+    public List<ConfirmedDay> getConfirmedReservations(LocalDate from, LocalDate to, int limit) {
+        return read(() -> {
+            NavigableMap<LocalDate, List<Reservation>> byDate = new TreeMap<>();
+            for (List<ConfirmedDay> shard : gather(service -> service.getConfirmedReservations(from, to, limit))) {
+                for (ConfirmedDay day : shard) {
+                    byDate.computeIfAbsent(day.getDate(), k -> new ArrayList<>()).addAll(day.getReservations());
+                }
+            }
+            List<ConfirmedDay> merged = new ArrayList<>(Math.min(limit, byDate.size()));
+            for (Map.Entry<LocalDate, List<Reservation>> day : byDate.entrySet()) {
+                if (merged.size() == limit) {
+                    break;
+                }
+                day.getValue().sort(Comparator.comparingInt(Reservation::getTimeBlock)
+                        .thenComparing(Reservation::getProvider));
+                merged.add(new ConfirmedDay(day.getKey(), day.getValue()));
+            }
+            return merged;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> flushed() {
+        return CompletableFuture.allOf(read(() -> gather(ReservationService::flushed))
+                .toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Runs every shard's expiry sweep. The shards aren't beans, so their own schedules don't run.
+     */
+    @Scheduled(fixedDelayString = "${reservation.pending.expiry-interval-ms:1000}")
+    public void expirePendingReservations() {
+        forEachShard(ReservationService::expirePendingReservations);
+    }
+
+    /**
+     * Moves every shard's 24hr window forward.
+     */
+    @Scheduled(cron = "${reservation.window.cron:0 */15 * * * *}")
+    public void advanceWindow() {
+        forEachShard(ReservationService::advanceWindow);
+    }
+
+    /**
+     * Snapshots every shard's journal.
+     */
+    @Scheduled(fixedDelayString = "${reservation.journal.snapshot-interval-ms:300000}",
+            initialDelayString = "${reservation.journal.snapshot-interval-ms:300000}")
+    public void snapshot() {
+        forEachShard(ReservationService::snapshot);
+    }
+
+    private void forEachShard(Consumer<ReservationService> task) {
+        read(() -> {
+            ring.shards().values().forEach(task);
+            return null;
+        });
+    }
+
+    /**
+     * Runs a call on the shard that owns a provider.
+     */
+    private <T> T route(String provider, Function<ReservationService, T> call) {
+        return read(() -> call.apply(ring.shardFor(provider)));
+    }
+
+    /**
+     * Runs a call on every shard. Caller must hold the read lock.
+     */
+    private <T> List<T> gather(Function<ReservationService, T> call) {
+        Collection<ReservationService> shards = ring.shards().values();
+        List<T> results = new ArrayList<>(shards.size());
+        for (ReservationService shard : shards) {
+            results.add(call.apply(shard));
+        }
+        return results;
+    }
+
+    private <T> T read(Supplier<T> call) {
+        Lock lock = rebalance.readLock();
+        lock.lock();
+        try {
+            return call.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Merges every shard's days into one list of days, in date order. A shard that left a day out (it has nothing
+     * open that day) still adds its version for it, or the merged version could go down and come back to one already
+     * handed out for different slots. Caller must hold the read lock.
+     */
+    private List<AvailabilityView> mergeDays(List<List<AvailabilityView>> shards) {
+        List<ReservationService> services = new ArrayList<>(ring.shards().values());
+        NavigableMap<LocalDate, AvailabilityView[]> byDate = new TreeMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            int shard = i;
+            for (AvailabilityView day : shards.get(i)) {
+                byDate.computeIfAbsent(day.getDate(), k -> new AvailabilityView[shards.size()])[shard] = day;
+            }
+        }
+        List<AvailabilityView> merged = new ArrayList<>(byDate.size());
+        for (Map.Entry<LocalDate, AvailabilityView[]> day : byDate.entrySet()) {
+            List<AvailabilityView> views = new ArrayList<>(shards.size());
+            long leftOut = 0;
+            AvailabilityView[] byShard = day.getValue();
+            for (int i = 0; i < byShard.length; i++) {
+                if (byShard[i] != null) {
+                    views.add(byShard[i]);
+                } else {
+                    leftOut += services.get(i).getAvailabilityVersion(day.getKey());
+                }
+            }
+            merged.add(mergeDay(day.getKey(), views, leftOut));
+        }
+        return merged;
+    }
+
+    /**
+     * Merges every shard's view of one day.
+     */
+    private static AvailabilityView mergeDay(LocalDate date, List<AvailabilityView> views) {
+        return mergeDay(date, views, 0);
+    }
+
+    /**
+     * Merges the shards' views of one day.
+     *
+     * @param leftOut the summed versions of the shards that have no view here
+     */
+    private static AvailabilityView mergeDay(LocalDate date, List<AvailabilityView> views, long leftOut) {
+        long version = leftOut;
+        List<Reservation> open = new ArrayList<>();
+        AvailabilityView only = null;
+        int nonEmpty = 0;
+        for (AvailabilityView view : views) {
+            version += view.getVersion();
+            if (!view.isEmpty()) {
+                open.addAll(view.getReservations());
+                only = view;
+                nonEmpty++;
+            }
+        }
+        if (nonEmpty == 0) {
+            return new AvailabilityView(date, version, Collections.emptyList());
+        }
+        if (nonEmpty > 1) {
+            // providers never span shards, so each shard's slots are already in order and only need interleaving
+            open.sort(BY_TIME_THEN_PROVIDER);
+            return new AvailabilityView(date, version, Collections.unmodifiableList(open));
+        }
+        return new AvailabilityView(date, version, only.getReservations());
+    }
+}
@@ -0,0 +1,42 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import reservation.manager.models.AvailabilityResult;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the whole calendar into an empty service, each thread adding its share of the windows in one bulk
+ * {@code addAvailability} call. Only one call per iteration makes sense, so this is single shot: the score is how long
+ * a thread took to add its share.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AddAvailabilityBenchmark extends CalendarBenchmark {
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        prepare(HOLD_TTL);
+    }
+
+    @Benchmark
+    public List<AvailabilityResult> addAvailability(ThreadParams thread) {
+        return service.addAvailability(partition(windows, thread.getThreadIndex(), thread.getThreadCount()));
+    }
+}
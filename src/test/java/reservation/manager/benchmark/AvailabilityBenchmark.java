@@ -0,0 +1,52 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.AvailabilityView;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads against a fully open calendar that doesn't change during the run, so these measure the cached read path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvailabilityBenchmark extends CalendarBenchmark {
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        load(HOLD_TTL);
+    }
+
+    /**
+     * {@code getAvailability(LocalDate)} for a random day of the horizon.
+     */
+    @Benchmark
+    public List<Reservation> getAvailabilityForDate() {
+        return service.getAvailability(firstDay.plusDays(ThreadLocalRandom.current().nextInt(horizonDays)));
+    }
+
+    /**
+     * {@code getAvailability()}, every open day of the calendar.
+     */
+    @Benchmark
+    public List<AvailabilityView> getAvailability() {
+        return service.getAvailability();
+    }
+}
@@ -0,0 +1,65 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count, with the GC profiler on so every score comes with its allocation rate.
+ * Takes system properties, which the {@code benchmark} Maven profile passes through:
+ * <ul>
+ *     <li>{@code benchmark.include}: regex of benchmarks to run, all of them by default</li>
+ *     <li>{@code benchmark.threads}: comma separated thread counts, {@code 1,4} by default</li>
+ *     <li>{@code benchmark.providers}, {@code benchmark.horizonDays}: comma separated values overriding the
+ *     {@code @Param} defaults in {@link CalendarBenchmark}</li>
+ * </ul>
+ * Results are also written to {@code target/jmh-<threads>t.json}.
+ * <pre>
+ * mvn -Pbenchmark test -Dbenchmark.include=ReservationBenchmark.reserve -Dbenchmark.threads=1,8 \
+ *     -Dbenchmark.providers=100 -Dbenchmark.horizonDays=30,365
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String include = property("benchmark.include", CalendarBenchmark.class.getPackage().getName());
+        for (String threads : property("benchmark.threads", "1,4").split(",")) {
+            int count = Integer.parseInt(threads.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(count)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-" + count + "t.json");
+            // the expiry sweep only ever runs on the scheduler thread, more threads would just take turns at it
+            if (count > 1) {
+                options.exclude(ExpiryBenchmark.class.getSimpleName());
+            }
+            param(options, "providers");
+            param(options, "horizonDays");
+            try {
+                new Runner(options.build()).run();
+            } catch (NoBenchmarksException e) {
+                // only single threaded benchmarks were picked
+            }
+        }
+    }
+
+    private static void param(ChainedOptionsBuilder options, String name) {
+        String values = property("benchmark." + name, "");
+        if (!values.isEmpty()) {
+            options.param(name, values.split(","));
+        }
+    }
+
+    /**
+     * Reads a system property, treating blank as missing since Maven passes unset properties through as empty.
+     */
+    private static String property(String name, String defaultValue) {
+        String value = System.getProperty(name, "").trim();
+        return value.isEmpty() ? defaultValue : value;
+    }
+}
@@ -0,0 +1,119 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.service.ReservationService;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base for the benchmarks, holds a calendar of {@code providers} providers open 8 to 5 every day for
+ * {@code horizonDays} days. It starts the day after tomorrow so nothing falls inside the 24hr window. Subclasses
+ * decide when to build it: once per trial for read benchmarks, once per iteration for ones that use up slots.
+ */
+@State(Scope.Benchmark)
+public abstract class CalendarBenchmark {
+
+    static final LocalTime OPEN = LocalTime.of(8, 0);
+
+    /**
+     * 15 minute blocks between 8 and 5.
+     */
+    static final int BLOCKS_PER_DAY = 36;
+
+    /**
+     * The service's default, long enough that nothing expires during a run.
+     */
+    static final long HOLD_TTL = TimeUnit.MINUTES.toMillis(30);
+
+    @Param({"10", "100"})
+    public int providers;
+
+    @Param({"30", "180"})
+    public int horizonDays;
+
+    LocalDate firstDay;
+
+    ReservationService service;
+
+    /**
+     * One window per provider-day, not added yet.
+     */
+    List<AvailabilityWindow> windows;
+
+    /**
+     * Every slot in the calendar in a fixed random order, so a thread going through them spreads over providers and
+     * days the way real traffic does.
+     */
+    List<Slot> slots;
+
+    /**
+     * Builds an empty service and the windows and slots for the calendar, without adding anything.
+     *
+     * @param pendingTtl hold TTL in ms
+     */
+    void prepare(long pendingTtl) {
+        firstDay = LocalDate.now().plusDays(2);
+        service = new ReservationService();
+        service.setPendingTtl(pendingTtl);
+        windows = new ArrayList<>(providers * horizonDays);
+        slots = new ArrayList<>(providers * horizonDays * BLOCKS_PER_DAY);
+        for (int day = 0; day < horizonDays; day++) {
+            for (int provider = 0; provider < providers; provider++) {
+                windows.add(new AvailabilityWindow(provider(provider), firstDay.plusDays(day), OPEN,
+                        OPEN.plusMinutes(15L * BLOCKS_PER_DAY)));
+                for (int block = 0; block < BLOCKS_PER_DAY; block++) {
+                    slots.add(new Slot(provider(provider), firstDay.plusDays(day), OPEN.plusMinutes(15L * block)));
+                }
+            }
+        }
+        Collections.shuffle(slots, new Random(42));
+    }
+
+    /**
+     * Builds a fresh service with the whole calendar open.
+     *
+     * @param pendingTtl hold TTL in ms
+     */
+    void load(long pendingTtl) {
+        prepare(pendingTtl);
+        service.addAvailability(windows);
+    }
+
+    /**
+     * Splits a list evenly between the benchmark threads so they don't fight over the same entries.
+     *
+     * @param all     the list to split
+     * @param thread  the thread's index
+     * @param threads how many threads are running
+     * @return the thread's part
+     */
+    static <T> List<T> partition(List<T> all, int thread, int threads) {
+        int size = all.size() / threads;
+        return all.subList(thread * size, (thread + 1) * size);
+    }
+
+    static String provider(int i) {
+        return "provider-" + i;
+    }
+
+    static final class Slot {
+        final String provider;
+        final LocalDate date;
+        final LocalTime time;
+
+        Slot(String provider, LocalDate date, LocalTime time) {
+            this.provider = provider;
+            this.date = date;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One {@code expirePendingReservations} sweep when every slot of the calendar has a hold that has already run out,
+ * the worst case for the background tick. The holds are taken with a negative TTL before each iteration.
+ * <p>
+ * The sweep runs on the single scheduler thread, so this always runs on one thread, see {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(1)
+@Fork(1)
+public class ExpiryBenchmark extends CalendarBenchmark {
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        load(-1);
+        for (Slot slot : slots) {
+            service.reserve(slot.provider, "patient", slot.date, slot.time);
+        }
+    }
+
+    @Benchmark
+    public void expirePendingReservations() {
+        service.expirePendingReservations();
+    }
+}
@@ -0,0 +1,57 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.Reservation;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of a day while another thread keeps changing days, so every few reads land on a day whose view has to be
+ * built again from a new snapshot. Compare {@code mixed:read} with
+ * {@link AvailabilityBenchmark#getAvailabilityForDate()}: readers don't take locks, so the gap is the rebuilds, not
+ * waiting on the writer. The writer re-adds a provider-day's window, which changes nothing but still publishes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWhileWriteBenchmark extends CalendarBenchmark {
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        load(HOLD_TTL);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public List<Reservation> read() {
+        return service.getAvailability(firstDay.plusDays(ThreadLocalRandom.current().nextInt(horizonDays)));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public List<AvailabilityResult> write() {
+        return service.addAvailability(Collections.singletonList(
+                windows.get(ThreadLocalRandom.current().nextInt(windows.size()))));
+    }
+}
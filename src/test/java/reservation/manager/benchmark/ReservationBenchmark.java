@@ -0,0 +1,92 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reserving and confirming. Both use up what they work on, a slot can only be held or confirmed once, so they can't
+ * run as a steady state. Instead the calendar is rebuilt before every iteration and each thread does a batch of
+ * {@value #BATCH} calls on its own share of the slots. The score is per batch.
+ * <p>
+ * A thread's share has to be at least a batch: {@code providers * horizonDays * 36 / threads >= }{@value #BATCH}.
+ * Past that the calls start failing on slots that are gone, which measures the wrong path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = ReservationBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = ReservationBenchmark.BATCH)
+@Fork(1)
+public class ReservationBenchmark extends CalendarBenchmark {
+
+    static final int BATCH = 1000;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        load(HOLD_TTL);
+    }
+
+    /**
+     * A thread's slots, and how far it got through them.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        List<Slot> slots;
+        String patient;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setUp(ReservationBenchmark calendar, ThreadParams thread) {
+            slots = partition(calendar.slots, thread.getThreadIndex(), thread.getThreadCount());
+            patient = "patient-" + thread.getThreadIndex();
+            next = 0;
+        }
+
+        Slot next() {
+            Slot slot = slots.get(next);
+            next = next + 1 == slots.size() ? 0 : next + 1;
+            return slot;
+        }
+    }
+
+    /**
+     * A {@link Cursor} whose slots are all held before the iteration starts, ready to confirm.
+     */
+    @State(Scope.Thread)
+    public static class HeldCursor extends Cursor {
+
+        @Override
+        @Setup(Level.Iteration)
+        public void setUp(ReservationBenchmark calendar, ThreadParams thread) {
+            super.setUp(calendar, thread);
+            for (Slot slot : slots) {
+                calendar.service.reserve(slot.provider, patient, slot.date, slot.time);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean reserve(Cursor cursor) {
+        Slot slot = cursor.next();
+        return service.reserve(slot.provider, cursor.patient, slot.date, slot.time);
+    }
+
+    @Benchmark
+    public boolean confirm(HeldCursor cursor) {
+        Slot slot = cursor.next();
+        return service.confirm(slot.provider, cursor.patient, slot.date, slot.time);
+    }
+}
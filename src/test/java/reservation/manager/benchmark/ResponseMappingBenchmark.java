@@ -0,0 +1,60 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import reservation.manager.controllers.AvailabilityResponseCache;
+import reservation.manager.models.ReservationsResponse;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The controller's side of a GET: mapping views to response models and encoding them to JSON. Passing a new version
+ * every call makes {@link AvailabilityResponseCache} miss, so this is what a read right after a change costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseMappingBenchmark extends CalendarBenchmark {
+
+    private AvailabilityResponseCache responseCache;
+
+    private final AtomicLong version = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        load(HOLD_TTL);
+        responseCache = new AvailabilityResponseCache(Jackson2ObjectMapperBuilder.json().build());
+    }
+
+    /**
+     * Mapping one day's view, no encoding.
+     */
+    @Benchmark
+    public ReservationsResponse toResponse() {
+        return AvailabilityResponseCache.toResponse(service.getAvailabilityView(
+                firstDay.plusDays(ThreadLocalRandom.current().nextInt(horizonDays))));
+    }
+
+    /**
+     * Mapping and encoding every day, what {@code GET /reservations} does when the cached body is out of date.
+     */
+    @Benchmark
+    public AvailabilityResponseCache.EncodedResponse encodeAll() {
+        return responseCache.forAll(version.incrementAndGet(), service::getAvailability);
+    }
+}
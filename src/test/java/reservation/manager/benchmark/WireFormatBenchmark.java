@@ -0,0 +1,81 @@
+package reservation.manager.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import reactor.core.publisher.Flux;
+import reservation.manager.controllers.AvailabilityEncoder;
+import reservation.manager.controllers.AvailabilityResponseCache;
+import reservation.manager.controllers.AvailabilityWireFormat;
+import reservation.manager.service.AvailabilityView;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encoding every day the way {@code GET /reservations} does, as JSON and as the {@link AvailabilityWireFormat}. Both
+ * miss their caches, so this is the encoding alone. The body sizes are printed once per trial, since JMH only reports
+ * time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark extends CalendarBenchmark {
+
+    private static final ResolvableType VIEW = ResolvableType.forClass(AvailabilityView.class);
+
+    private AvailabilityResponseCache responseCache;
+
+    private final AvailabilityEncoder encoder = new AvailabilityEncoder();
+
+    private List<AvailabilityView> views;
+
+    private final AtomicLong version = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        load(HOLD_TTL);
+        responseCache = new AvailabilityResponseCache(Jackson2ObjectMapperBuilder.json().build());
+        views = service.getAvailability();
+        System.out.printf("%nproviders=%d horizonDays=%d json=%d bytes binary=%d bytes%n", providers, horizonDays,
+                json().getBody().length, binary());
+    }
+
+    @Benchmark
+    public AvailabilityResponseCache.EncodedResponse json() {
+        return responseCache.forAll(version.incrementAndGet(), () -> views);
+    }
+
+    /**
+     * Returns the body's size, and releases the buffers the way the server does once they're written.
+     */
+    @Benchmark
+    public int binary() {
+        int[] bytes = {0};
+        encoder.encode(Flux.fromIterable(views), DefaultDataBufferFactory.sharedInstance, VIEW,
+                        AvailabilityWireFormat.MEDIA_TYPE, Collections.emptyMap())
+                .doOnNext(buffer -> {
+                    bytes[0] += buffer.readableByteCount();
+                    DataBufferUtils.release(buffer);
+                })
+                .blockLast();
+        return bytes[0];
+    }
+}
@@ -0,0 +1,89 @@
+package reservation.manager.controllers;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reservation.manager.service.AvailabilityView;
+import reservation.manager.service.ReservationService;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+class AvailabilityCodecTest {
+
+    private static final ResolvableType VIEW = ResolvableType.forClass(AvailabilityView.class);
+
+    /**
+     * Tests days written by the encoder come back from the decoder the same, even when the bytes arrive a few at a
+     * time and split frames, and that a response cut short is an error.
+     */
+    @Test
+    void testDecodeWhenEncodedDaysArriveInSmallChunksExpectSameViews() {
+        // given
+        ReservationService service = new ReservationService();
+        LocalDate date = LocalDate.of(2050, 1, 1);
+        service.addAvailability("Dr. Park", date, LocalTime.of(8, 0), LocalTime.of(12, 0));
+        service.addAvailability("Dr. Adams", date, LocalTime.of(9, 0), LocalTime.of(17, 0));
+        service.addAvailability("Dr. Park", date.plusDays(3), LocalTime.of(23, 0), LocalTime.of(23, 45));
+        service.addAvailability("Dr. Brennan", date.minusDays(2), LocalTime.of(0, 0), LocalTime.of(0, 15));
+        List<AvailabilityView> views = service.getAvailability();
+        DefaultDataBufferFactory factory = DefaultDataBufferFactory.sharedInstance;
+        byte[] encoded = DataBufferUtils.join(new AvailabilityEncoder().encode(Flux.fromIterable(views), factory,
+                        VIEW, AvailabilityWireFormat.MEDIA_TYPE, Collections.emptyMap()))
+                .map(buffer -> {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    return bytes;
+                })
+                .block();
+        List<DataBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < encoded.length; i += 3) {
+            chunks.add(factory.wrap(Arrays.copyOfRange(encoded, i, Math.min(encoded.length, i + 3))));
+        }
+        AvailabilityDecoder classUnderTest = new AvailabilityDecoder();
+
+        // when
+        List<AvailabilityView> decoded = classUnderTest.decode(Flux.fromIterable(chunks), VIEW,
+                AvailabilityWireFormat.MEDIA_TYPE, Collections.emptyMap()).collectList().block();
+
+        // then
+        Assertions.assertEquals(views, decoded);
+        Assertions.assertThrows(DecodingException.class, () -> classUnderTest.decode(
+                Flux.just(factory.wrap(Arrays.copyOf(encoded, encoded.length - 1))), VIEW,
+                AvailabilityWireFormat.MEDIA_TYPE, Collections.emptyMap()).collectList().block());
+    }
+
+    /**
+     * Tests a provider name whose length doesn't fit in an int is a decoding error, rather than being read as a
+     * negative length.
+     */
+    @Test
+    void testDecodeWhenNameLengthOverflowsIntExpectDecodingException() {
+        // given
+        byte[] day = new byte[9 + AvailabilityWireFormat.BITMAP_BYTES];
+        day[2] = 1; // one provider, a new name, 2^32 - 1 bytes long
+        day[4] = (byte) 0xFF;
+        day[5] = (byte) 0xFF;
+        day[6] = (byte) 0xFF;
+        day[7] = (byte) 0xFF;
+        day[8] = 0x0F;
+        byte[] frame = new byte[day.length + 1];
+        frame[0] = (byte) day.length;
+        System.arraycopy(day, 0, frame, 1, day.length);
+        AvailabilityDecoder classUnderTest = new AvailabilityDecoder();
+
+        // when & then
+        Assertions.assertThrows(DecodingException.class, () -> classUnderTest.decode(
+                Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(frame)), VIEW,
+                AvailabilityWireFormat.MEDIA_TYPE, Collections.emptyMap()).collectList().block());
+    }
+}
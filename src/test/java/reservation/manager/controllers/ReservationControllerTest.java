@@ -1,11 +1,73 @@
 package reservation.manager.controllers;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reservation.manager.service.AvailabilityRules;
+import reservation.manager.service.ReactiveReservationService;
+import reservation.manager.service.ReservationService;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class ReservationControllerTest {
 
+    private static final LocalDate DATE = LocalDate.of(2050, 1, 1);
+
+    /**
+     * Writes dates as ISO strings, like the one Spring Boot configures.
+     */
+    private static final ObjectMapper MAPPER = Jackson2ObjectMapperBuilder.json()
+            .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .build();
+
+    private ReactiveReservationService reactive;
+
+    private WebTestClient client;
+
+    /**
+     * Sets up tests: three days with open slots, served by a controller bound on its own.
+     */
+    @BeforeEach
+    void setUp() {
+        ReservationService service = new ReservationService();
+        for (int i = 0; i < 3; i++) {
+            service.addAvailability("Dr. Chase", DATE.plusDays(i), LocalTime.of(9, 0), LocalTime.of(10, 0));
+        }
+        reactive = new ReactiveReservationService(service, 1, 16, 8);
+        ReservationController controller = new ReservationController(reactive,
+                new AvailabilityResponseCache(MAPPER), new AvailabilityRules(reactive, 1, null));
+        client = WebTestClient.bindToController(controller)
+                .httpMessageCodecs(codecs -> codecs.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(MAPPER)))
+                .build();
+    }
+
+    /**
+     * Stops the writer threads.
+     */
+    @AfterEach
+    void tearDown() {
+        reactive.destroy();
+    }
+
     @Test
     void getReservationsByDate() {
     }
@@ -29,4 +91,193 @@ class ReservationControllerTest {
     @Test
     void getConfirmedReservations() {
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests asking for newline delimited JSON gets it, one line per day in date order.
+     */
+    @Test
+    void testStreamReservationsWhenAcceptIsNdjsonExpectOneLinePerDay() throws IOException {
+        // when
+        List<String> lines = client.get()
+                .uri("/reservations")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .returnResult(String.class)
+                .getResponseBody()
+                .collectList()
+                .block();
+
+        // then
+        assertNotNull(lines);
+        assertEquals(dates(DATE, DATE.plusDays(1), DATE.plusDays(2)), dates(lines));
+        assertEquals(4, MAPPER.readTree(lines.get(0)).get("availableReservations").size());
+    }
+
+    /**
+     * Tests the stream stops after {@code limit} days, and picks up after the last of them given it as the cursor.
+     */
+    @Test
+    void testStreamReservationsWhenLimitIsSetExpectCutOffAndCursorResumes() throws IOException {
+        // when
+        List<String> page = ndjson("/reservations?limit=2");
+        List<String> next = ndjson("/reservations?limit=2&cursor=" + DATE.plusDays(1));
+
+        // then
+        assertEquals(dates(DATE, DATE.plusDays(1)), dates(page));
+        assertEquals(dates(DATE.plusDays(2)), dates(next));
+    }
+
+    /**
+     * Tests asking for server-sent events gets one event per day, with its date as the id, and a client reconnecting
+     * with {@code Last-Event-ID} only gets the days after it.
+     */
+    @Test
+    void testStreamReservationEventsWhenLastEventIdIsSentExpectResumeAfterIt() {
+        // when
+        List<ServerSentEvent<String>> events = client.get()
+                .uri("/reservations")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .header("Last-Event-ID", DATE.toString())
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM)
+                .returnResult(new ParameterizedTypeReference<ServerSentEvent<String>>() {
+                })
+                .getResponseBody()
+                .collectList()
+                .block();
+
+        // then
+        assertNotNull(events);
+        List<String> ids = new ArrayList<>();
+        for (ServerSentEvent<String> event : events) {
+            ids.add(event.id());
+        }
+        assertEquals(dates(DATE.plusDays(1), DATE.plusDays(2)), ids);
+    }
+
+    /**
+     * Tests a limit that isn't positive is turned away before anything is streamed.
+     */
+    @Test
+    void testStreamReservationsWhenLimitIsZeroExpectBadRequest() {
+        client.get()
+                .uri("/reservations?limit=0")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    /**
+     * Tests a window without a provider in the middle of an upload is rejected in its place, and the windows around
+     * it are still added.
+     */
+    @Test
+    void testAddAvailabilityWhenWindowHasNoProviderExpectOnlyThatWindowRejected() throws IOException {
+        // given
+        String upload = "{\"provider\":\"Dr. Foreman\",\"date\":\"2050-01-04\",\"start\":\"09:00\",\"end\":\"10:00\"}\n"
+                + "{\"date\":\"2050-01-04\",\"start\":\"10:00\",\"end\":\"11:00\"}\n"
+                + "{\"provider\":\"Dr. Foreman\",\"date\":\"2050-01-05\",\"start\":\"09:00\",\"end\":\"10:00\"}\n";
+
+        // when
+        List<String> lines = client.post()
+                .uri("/reservations/availability")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .bodyValue(upload)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(String.class)
+                .getResponseBody()
+                .collectList()
+                .block();
+
+        // then
+        assertNotNull(lines);
+        assertEquals(3, lines.size());
+        List<String> statuses = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(i, MAPPER.readTree(lines.get(i)).get("index").asInt());
+            statuses.add(MAPPER.readTree(lines.get(i)).get("status").asText());
+        }
+        assertEquals(Arrays.asList("ADDED", "REJECTED", "ADDED"), statuses);
+        assertEquals(1, ndjson("/reservations?from=2050-01-05&to=2050-01-05").size());
+    }
+
+    /**
+     * Tests a reserve that finds its partition's mailbox full is answered with a 503, so the client backs off.
+     */
+    @Test
+    void testReserveWhenMailboxIsFullExpectServiceUnavailable() throws Exception {
+        // given
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ReservationService service = new ReservationService() {
+            @Override
+            public boolean reserve(String provider, String patient, LocalDate date, LocalTime time) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.reserve(provider, patient, date, time);
+            }
+        };
+        service.addAvailability("Dr. Chase", DATE, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        ReactiveReservationService busy = new ReactiveReservationService(service, 1, 1, 8);
+        WebTestClient busyClient = WebTestClient.bindToController(new ReservationController(busy,
+                new AvailabilityResponseCache(MAPPER), new AvailabilityRules(busy, 1, null))).build();
+        try {
+            CompletableFuture<Boolean> running = busy.reserve("Dr. Chase", "patient-1", DATE, LocalTime.of(9, 0), null)
+                    .toFuture();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Boolean> queued = busy.reserve("Dr. Chase", "patient-2", DATE, LocalTime.of(9, 15), null)
+                    .toFuture();
+
+            // when
+            WebTestClient.ResponseSpec response = busyClient.put()
+                    .uri("/reservations/reserve/{date}?provider=Dr. Chase&start=09:30&patient=patient-3", DATE)
+                    .exchange();
+
+            // then
+            response.expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+            release.countDown();
+            assertTrue(running.get(10, TimeUnit.SECONDS));
+            assertTrue(queued.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            busy.destroy();
+        }
+    }
+
+    private List<String> ndjson(String uri) {
+        return client.get()
+                .uri(uri)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(String.class)
+                .getResponseBody()
+                .collectList()
+                .block();
+    }
+
+    private static List<String> dates(List<String> lines) throws IOException {
+        List<String> dates = new ArrayList<>();
+        for (String line : lines) {
+            dates.add(MAPPER.readTree(line).get("reservationDate").asText());
+        }
+        return dates;
+    }
+
+    private static List<String> dates(LocalDate... days) {
+        List<String> dates = new ArrayList<>();
+        for (LocalDate day : days) {
+            dates.add(day.toString());
+        }
+        return dates;
+    }
+}
@@ -0,0 +1,117 @@
+package reservation.manager.journal;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reservation.manager.models.PatientReservation;
+import reservation.manager.repository.InMemoryReservationRepository;
+import reservation.manager.service.ReservationService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+class FileReservationJournalTest {
+
+    private static final LocalDate DATE = LocalDate.of(2050, 1, 1);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Tests a restart with only the journal to go on.
+     */
+    @Test
+    void testRecoverWhenOnlyJournalExistsExpectSameState() throws IOException {
+        // given
+        FileReservationJournal journal = new FileReservationJournal(directory);
+        ReservationService service = new ReservationService(new InMemoryReservationRepository(), journal);
+        service.addAvailability("Dr. House", DATE, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        service.addAvailability("Dr. Who", DATE, LocalTime.of(9, 0), LocalTime.of(9, 30));
+        Assertions.assertTrue(service.reserve("Dr. House", "p1", DATE, LocalTime.of(9, 0)));
+        Assertions.assertTrue(service.reserve("Dr. House", "p2", DATE, LocalTime.of(9, 15)));
+        Assertions.assertTrue(service.confirm("Dr. House", "p1", DATE, LocalTime.of(9, 0)));
+        service.flushed().join();
+        journal.close();
+
+        // when
+        ReservationService recovered = new ReservationService(new InMemoryReservationRepository(),
+                new FileReservationJournal(directory));
+
+        // then
+        Assertions.assertEquals(service.getAvailability(DATE), recovered.getAvailability(DATE));
+        Assertions.assertEquals(service.getConfirmedReservations(), recovered.getConfirmedReservations());
+        Assertions.assertEquals(PatientReservation.Status.PENDING,
+                recovered.getPatientReservations("p2").get(0).getStatus());
+        // the pending hold is still held
+        Assertions.assertFalse(recovered.reserve("Dr. House", "p3", DATE, LocalTime.of(9, 15)));
+        // and the ids handed out before the restart still line up with their providers
+        Assertions.assertTrue(recovered.reserve("Dr. Who", "p3", DATE, LocalTime.of(9, 0)));
+    }
+
+    /**
+     * Tests a restart from a snapshot plus the journal written after it.
+     */
+    @Test
+    void testRecoverWhenSnapshotAndLaterJournalExistExpectBothApplied() throws IOException {
+        // given
+        FileReservationJournal journal = new FileReservationJournal(directory);
+        ReservationService service = new ReservationService(new InMemoryReservationRepository(), journal);
+        service.addAvailability("Dr. House", DATE, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        Assertions.assertTrue(service.reserve("Dr. House", "p1", DATE, LocalTime.of(9, 0)));
+        service.snapshot();
+        Assertions.assertTrue(service.confirm("Dr. House", "p1", DATE, LocalTime.of(9, 0)));
+        service.addAvailability("Dr. Who", DATE, LocalTime.of(11, 0), LocalTime.of(11, 15));
+        service.flushed().join();
+        journal.close();
+
+        // when
+        ReservationService recovered = new ReservationService(new InMemoryReservationRepository(),
+                new FileReservationJournal(directory));
+
+        // then
+        Assertions.assertEquals(service.getAvailability(DATE), recovered.getAvailability(DATE));
+        Assertions.assertEquals(1, recovered.getConfirmedReservations().get(DATE).size());
+        Assertions.assertEquals(PatientReservation.Status.CONFIRMED,
+                recovered.getPatientReservations("p1").get(0).getStatus());
+        try (Stream<Path> files = Files.list(directory)) {
+            // the segment before the snapshot is gone
+            Assertions.assertFalse(files.anyMatch(path -> path.getFileName().toString().equals("journal-0.log")));
+        }
+    }
+
+    /**
+     * Tests that a record torn by a crash is dropped rather than failing recovery.
+     */
+    @Test
+    void testRecoverWhenLastRecordIsTornExpectEarlierRecordsKept() throws IOException {
+        // given
+        FileReservationJournal journal = new FileReservationJournal(directory);
+        ReservationService service = new ReservationService(new InMemoryReservationRepository(), journal);
+        service.addAvailability("Dr. House", DATE, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        service.flushed().join();
+        journal.close();
+        try (FileChannel segment = FileChannel.open(directory.resolve("journal-0.log"), StandardOpenOption.APPEND)) {
+            segment.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 1, 2 }));
+        }
+
+        // when
+        FileReservationJournal reopened = new FileReservationJournal(directory);
+        List<JournalRecord> records = new ArrayList<>();
+        reopened.recover(in -> { }, records::add);
+        reopened.close();
+
+        // then
+        Assertions.assertEquals(2, records.size());
+        Assertions.assertEquals(JournalRecord.Type.PROVIDER, records.get(0).getType());
+        Assertions.assertEquals(JournalRecord.Type.AVAILABILITY, records.get(1).getType());
+    }
+}
@@ -0,0 +1,478 @@
+package reservation.manager.load;
+
+import lombok.Builder;
+import lombok.Value;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reservation.manager.Application;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.PatientReservation;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.ReservationOperations;
+import reservation.manager.service.ReservationService;
+import reservation.manager.service.ReservationUtil;
+import reservation.manager.shard.ShardedReservationService;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Starts the app on a random port and drives the HTTP API the way a booking storm would: many patients reserving
+ * at once, most of them going for the same few slots, confirming some of their holds and reading availability in
+ * between. Reports throughput and latency per request type, then checks that nothing was double booked and that
+ * every hold ended up confirmed or given back.
+ * <p>
+ * {@link LoadGeneratorTest} runs a small storm on every build. For bigger ones run it by hand, every
+ * {@link Scenario} field can be set as a system property:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=reservation.manager.load.LoadGenerator \
+ *     -Drequests=200000 -Dconcurrency=256 -DhotSlots=4 -DhotFraction=0.9
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final LocalTime OPEN = LocalTime.of(8, 0);
+
+    /**
+     * 15 minute blocks between 8 and 5.
+     */
+    private static final int BLOCKS_PER_DAY = 36;
+
+    /**
+     * What to send and how hard.
+     */
+    @Value
+    @Builder
+    public static class Scenario {
+        /**
+         * Providers open 8 to 5 on every day.
+         */
+        @Builder.Default
+        int providers = 20;
+
+        /**
+         * Days of availability, starting the day after tomorrow.
+         */
+        @Builder.Default
+        int days = 5;
+
+        /**
+         * Total requests to send.
+         */
+        @Builder.Default
+        int requests = 20_000;
+
+        /**
+         * Requests in flight at once.
+         */
+        @Builder.Default
+        int concurrency = 64;
+
+        /**
+         * Relative weight of reserve requests in the mix.
+         */
+        @Builder.Default
+        int reserveWeight = 50;
+
+        /**
+         * Relative weight of confirm requests. A confirm goes to a hold an earlier reserve got, when there isn't one
+         * it's sent as a GET instead.
+         */
+        @Builder.Default
+        int confirmWeight = 25;
+
+        /**
+         * Relative weight of GET requests, spread over {@code /{date}}, {@code /next} and {@code /patients}.
+         */
+        @Builder.Default
+        int getWeight = 25;
+
+        /**
+         * How many slots are hot: the first ones of the first day with the first provider, i.e. Monday morning.
+         */
+        @Builder.Default
+        int hotSlots = 4;
+
+        /**
+         * Share of reserves that go for a hot slot, the rest pick any slot.
+         */
+        @Builder.Default
+        double hotFraction = 0.8;
+
+        /**
+         * Hold TTL in ms. Kept short so unconfirmed holds are given back before the invariants are checked.
+         */
+        @Builder.Default
+        long holdTtlMs = 1000;
+
+        /**
+         * In-process shards the app is split into, see {@code reservation.shards.count}.
+         */
+        @Builder.Default
+        int shards = 1;
+
+        /**
+         * Builds a scenario from system properties named after the fields, with the defaults for anything unset.
+         *
+         * @return the scenario
+         */
+        public static Scenario fromSystemProperties() {
+            Scenario defaults = Scenario.builder().build();
+            return Scenario.builder()
+                    .providers(Integer.getInteger("providers", defaults.providers))
+                    .days(Integer.getInteger("days", defaults.days))
+                    .requests(Integer.getInteger("requests", defaults.requests))
+                    .concurrency(Integer.getInteger("concurrency", defaults.concurrency))
+                    .reserveWeight(Integer.getInteger("reserveWeight", defaults.reserveWeight))
+                    .confirmWeight(Integer.getInteger("confirmWeight", defaults.confirmWeight))
+                    .getWeight(Integer.getInteger("getWeight", defaults.getWeight))
+                    .hotSlots(Integer.getInteger("hotSlots", defaults.hotSlots))
+                    .hotFraction(Double.parseDouble(System.getProperty("hotFraction",
+                            Double.toString(defaults.hotFraction))))
+                    .holdTtlMs(Long.getLong("holdTtlMs", defaults.holdTtlMs))
+                    .shards(Integer.getInteger("shards", defaults.shards))
+                    .build();
+        }
+    }
+
+    /**
+     * The request types, each gets its own latencies and status counts.
+     */
+    public enum Operation {
+        RESERVE, CONFIRM, GET
+    }
+
+    private final Scenario scenario;
+    private final WebClient client;
+    private final ReservationOperations service;
+    private final LocalDate firstDay = LocalDate.now().plusDays(2);
+
+    private final Map<Operation, Latencies> latencies = new TreeMap<>();
+    private final Map<Operation, Map<Integer, LongAdder>> statuses = new TreeMap<>();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * Holds a reserve got that nobody has tried to confirm yet.
+     */
+    private final Queue<Hold> unconfirmed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Every hold a reserve got.
+     */
+    private final Queue<Hold> held = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Confirms the API said yes to, per slot.
+     */
+    private final Map<Slot, AtomicInteger> confirms = new ConcurrentHashMap<>();
+
+    private LoadGenerator(Scenario scenario, WebClient client, ReservationOperations service) {
+        this.scenario = scenario;
+        this.client = client;
+        this.service = service;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Latencies());
+            statuses.put(operation, new ConcurrentHashMap<>());
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.println(run(Scenario.fromSystemProperties()));
+    }
+
+    /**
+     * Starts the app, runs the scenario against it and stops it again.
+     *
+     * @param scenario what to send
+     * @return throughput, latencies and any broken invariants
+     */
+    public static Report run(Scenario scenario) {
+        // as arguments, so they win over application.properties
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .run("--server.port=0", "--spring.main.banner-mode=off", "--logging.level.root=WARN",
+                        "--logging.level.reservation.manager=ERROR",
+                        // give lapsed holds back quickly so the invariants can be checked soon after
+                        "--reservation.pending.expiry-interval-ms=100",
+                        "--reservation.shards.count=" + scenario.getShards());
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            ReservationOperations service = context.getBean(ReservationOperations.class);
+            if (service instanceof ShardedReservationService) {
+                for (ReservationService shard : ((ShardedReservationService) service).getShards().values()) {
+                    shard.setPendingTtl(scenario.getHoldTtlMs());
+                }
+            } else {
+                ((ReservationService) service).setPendingTtl(scenario.getHoldTtlMs());
+            }
+            WebClient client = WebClient.builder().baseUrl("http://localhost:" + port + "/reservations").build();
+            return new LoadGenerator(scenario, client, service).drive();
+        } finally {
+            context.close();
+        }
+    }
+
+    private Report drive() {
+        List<AvailabilityWindow> windows = new ArrayList<>();
+        for (int day = 0; day < scenario.getDays(); day++) {
+            for (int provider = 0; provider < scenario.getProviders(); provider++) {
+                windows.add(new AvailabilityWindow(provider(provider), firstDay.plusDays(day), OPEN,
+                        OPEN.plusMinutes(15L * BLOCKS_PER_DAY)));
+            }
+        }
+        client.post().uri("/availability")
+                .bodyValue(windows)
+                .retrieve()
+                .bodyToFlux(String.class)
+                .blockLast();
+
+        long start = System.nanoTime();
+        Flux.range(0, scenario.getRequests())
+                .flatMap(this::send, scenario.getConcurrency())
+                .blockLast();
+        long elapsed = System.nanoTime() - start;
+
+        // let every hold that wasn't confirmed run out and be swept before looking at the end state
+        Mono.delay(Duration.ofMillis(scenario.getHoldTtlMs() + 500)).block();
+        return new Report(scenario, elapsed, latencies, statuses, errors.sum(), checkInvariants());
+    }
+
+    private Mono<Integer> send(int request) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(scenario.getReserveWeight() + scenario.getConfirmWeight() + scenario.getGetWeight());
+        if (pick < scenario.getReserveWeight()) {
+            Slot slot = pickSlot(random);
+            Hold hold = new Hold(slot, "patient-" + request);
+            return timed(Operation.RESERVE, put("/reserve/{date}", hold), status -> {
+                if (status == 200) {
+                    held.add(hold);
+                    unconfirmed.add(hold);
+                }
+            });
+        }
+        if (pick < scenario.getReserveWeight() + scenario.getConfirmWeight()) {
+            Hold hold = unconfirmed.poll();
+            if (hold != null) {
+                return timed(Operation.CONFIRM, put("/confirm/{date}", hold), status -> {
+                    if (status == 200) {
+                        confirms.computeIfAbsent(hold.slot, k -> new AtomicInteger()).incrementAndGet();
+                    }
+                });
+            }
+        }
+        return timed(Operation.GET, get(request, random), status -> { });
+    }
+
+    private Mono<Integer> put(String path, Hold hold) {
+        return client.put()
+                .uri(builder -> builder.path(path)
+                        .queryParam("provider", hold.slot.provider)
+                        .queryParam("start", hold.slot.time)
+                        .queryParam("patient", hold.patient)
+                        .build(hold.slot.date))
+                .exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode().value()));
+    }
+
+    private Mono<Integer> get(int request, ThreadLocalRandom random) {
+        LocalDate date = firstDay.plusDays(random.nextInt(scenario.getDays()));
+        WebClient.RequestHeadersSpec<?> spec;
+        switch (request % 3) {
+            case 0:
+                spec = client.get().uri("/{date}", date);
+                break;
+            case 1:
+                spec = client.get().uri(builder -> builder.path("/next")
+                        .queryParam("after", date.atTime(OPEN))
+                        .queryParam("count", 10)
+                        .build());
+                break;
+            default:
+                spec = client.get().uri("/patients/{patient}", "patient-" + random.nextInt(request + 1));
+                break;
+        }
+        return spec.exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode().value()));
+    }
+
+    private Mono<Integer> timed(Operation operation, Mono<Integer> call, IntConsumer onStatus) {
+        return Mono.defer(() -> {
+            long begin = System.nanoTime();
+            return call.doOnNext(status -> {
+                latencies.get(operation).add(System.nanoTime() - begin);
+                statuses.get(operation).computeIfAbsent(status, k -> new LongAdder()).increment();
+                onStatus.accept(status);
+            });
+        }).onErrorResume(e -> {
+            errors.increment();
+            return Mono.empty();
+        });
+    }
+
+    private Slot pickSlot(ThreadLocalRandom random) {
+        if (random.nextDouble() < scenario.getHotFraction()) {
+            return new Slot(provider(0), firstDay, OPEN.plusMinutes(15L * random.nextInt(scenario.getHotSlots())));
+        }
+        return new Slot(provider(random.nextInt(scenario.getProviders())),
+                firstDay.plusDays(random.nextInt(scenario.getDays())),
+                OPEN.plusMinutes(15L * random.nextInt(BLOCKS_PER_DAY)));
+    }
+
+    /**
+     * Compares what the clients were told with the service's end state.
+     *
+     * @return a description of each broken invariant, empty if everything holds
+     */
+    private List<String> checkInvariants() {
+        List<String> violations = new ArrayList<>();
+        confirms.forEach((slot, count) -> {
+            if (count.get() > 1) {
+                violations.add(slot + " was confirmed " + count.get() + " times.");
+            }
+        });
+
+        int confirmedOnServer = 0;
+        for (Map.Entry<LocalDate, Set<Reservation>> day : service.getConfirmedReservations().entrySet()) {
+            Set<Slot> seen = new HashSet<>();
+            for (Reservation reservation : day.getValue()) {
+                confirmedOnServer++;
+                Slot slot = new Slot(reservation.getProvider(), day.getKey(),
+                        ReservationUtil.convertBlockToTime(reservation.getTimeBlock()));
+                if (!seen.add(slot)) {
+                    violations.add(slot + " is double booked.");
+                }
+            }
+        }
+        if (confirmedOnServer != confirms.size()) {
+            violations.add(confirms.size() + " confirms succeeded but " + confirmedOnServer
+                    + " reservations are confirmed.");
+        }
+
+        for (Hold hold : held) {
+            for (PatientReservation reservation : service.getPatientReservations(hold.patient)) {
+                if (reservation.getStatus() == PatientReservation.Status.PENDING) {
+                    violations.add(hold + " is still pending after its TTL.");
+                }
+            }
+        }
+
+        long open = service.getAvailability().stream()
+                .mapToLong(view -> view.getReservations().size())
+                .sum();
+        long total = (long) scenario.getProviders() * scenario.getDays() * BLOCKS_PER_DAY;
+        if (open + confirmedOnServer != total) {
+            violations.add(open + " open and " + confirmedOnServer + " confirmed slots, expected " + total
+                    + " between them.");
+        }
+        return violations;
+    }
+
+    private static String provider(int i) {
+        return "provider-" + i;
+    }
+
+    @Value
+    private static class Slot {
+        String provider;
+        LocalDate date;
+        LocalTime time;
+    }
+
+    @Value
+    private static class Hold {
+        Slot slot;
+        String patient;
+    }
+
+    /**
+     * Latencies of one request type, in ns.
+     */
+    static final class Latencies {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * What a run did and whether the invariants held.
+     */
+    @Value
+    public static class Report {
+        Scenario scenario;
+        long elapsedNanos;
+        Map<Operation, Latencies> latencies;
+        Map<Operation, Map<Integer, LongAdder>> statuses;
+        long errors;
+
+        /**
+         * Each broken invariant, empty if none were.
+         */
+        List<String> violations;
+
+        /**
+         * Returns how many responses of a type had a status.
+         *
+         * @param operation the request type
+         * @param status    the HTTP status
+         * @return the number of responses
+         */
+        public long count(Operation operation, int status) {
+            LongAdder count = statuses.get(operation).get(status);
+            return count == null ? 0 : count.sum();
+        }
+
+        @Override
+        public String toString() {
+            long sent = 0;
+            StringBuilder report = new StringBuilder();
+            for (Operation operation : Operation.values()) {
+                long[] sorted = latencies.get(operation).sorted();
+                sent += sorted.length;
+                report.append(String.format("%-8s %8d requests  statuses %-22s", operation, sorted.length,
+                        new TreeMap<>(statuses.get(operation))));
+                if (sorted.length > 0) {
+                    report.append(String.format("  p50 %7.2fms  p99 %7.2fms  p999 %7.2fms",
+                            percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999)));
+                }
+                report.append('\n');
+            }
+            report.append(String.format("%d requests in %.2fs, %.0f req/s, %d errors%n", sent, elapsedNanos / 1e9,
+                    sent / (elapsedNanos / 1e9), errors));
+            report.append(violations.isEmpty() ? "invariants hold" : "BROKEN: " + String.join(" ", violations));
+            return report.toString();
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * quantile))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package reservation.manager.load;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a booking storm against the whole app, which takes the better part of half a minute, so it's left out of the
+ * default build. Run it with {@code mvn -Pload test}.
+ */
+@Tag("load")
+class LoadGeneratorTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGeneratorTest.class);
+
+    /**
+     * Tests a small booking storm, most reserves going for the same four slots, leaves every slot booked at most
+     * once and every hold confirmed or given back.
+     */
+    @Test
+    void testRunWhenPatientsStormHotSlotsExpectInvariantsHold() {
+        // given
+        LoadGenerator.Scenario scenario = LoadGenerator.Scenario.builder()
+                .providers(5)
+                .days(2)
+                .requests(1000)
+                .concurrency(16)
+                .hotSlots(4)
+                .hotFraction(0.8)
+                .holdTtlMs(300)
+                .build();
+
+        // when
+        LoadGenerator.Report report = LoadGenerator.run(scenario);
+
+        // then
+        LOGGER.info("{}", report);
+        Assertions.assertEquals(0, report.getErrors());
+        Assertions.assertTrue(report.getViolations().isEmpty(), report.getViolations().toString());
+        Assertions.assertTrue(report.count(LoadGenerator.Operation.RESERVE, 200) > 0);
+        // the hot slots are fought over, so plenty of reserves lose
+        Assertions.assertTrue(report.count(LoadGenerator.Operation.RESERVE, 400) > 0);
+        Assertions.assertTrue(report.count(LoadGenerator.Operation.CONFIRM, 200) > 0);
+    }
+
+    /**
+     * Tests the same storm against three shards, with the hot slots' providers on different shards, keeps the same
+     * invariants.
+     */
+    @Test
+    void testRunWhenAppIsShardedExpectInvariantsHold() {
+        // given
+        LoadGenerator.Scenario scenario = LoadGenerator.Scenario.builder()
+                .providers(5)
+                .days(2)
+                .requests(500)
+                .concurrency(16)
+                .hotSlots(4)
+                .hotFraction(0.8)
+                .holdTtlMs(300)
+                .shards(3)
+                .build();
+
+        // when
+        LoadGenerator.Report report = LoadGenerator.run(scenario);
+
+        // then
+        LOGGER.info("{}", report);
+        Assertions.assertEquals(0, report.getErrors());
+        Assertions.assertTrue(report.getViolations().isEmpty(), report.getViolations().toString());
+        Assertions.assertTrue(report.count(LoadGenerator.Operation.RESERVE, 200) > 0);
+        Assertions.assertTrue(report.count(LoadGenerator.Operation.CONFIRM, 200) > 0);
+    }
+}
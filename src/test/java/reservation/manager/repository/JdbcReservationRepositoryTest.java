@@ -0,0 +1,205 @@
+package reservation.manager.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reservation.manager.journal.ReservationJournal;
+import reservation.manager.models.PatientReservation;
+import reservation.manager.models.PendingReservation;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.BlockBitmap;
+import reservation.manager.service.ReservationService;
+import reservation.manager.service.ReservationUtil;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class JdbcReservationRepositoryTest {
+
+    private static final LocalDate DATE = LocalDate.of(2050, 1, 1);
+
+    @TempDir
+    Path directory;
+
+    private JdbcReservationRepository classUnderTest;
+
+    /**
+     * Sets up tests.
+     */
+    @BeforeEach
+    void setUp() {
+        classUnderTest = open();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        classUnderTest.close();
+    }
+
+    /**
+     * Tests {@link JdbcReservationRepository#hold(long, PendingReservation)} only lets one hold win.
+     */
+    @Test
+    void testHoldWhenSlotAlreadyHeldExpectSecondHoldToFail() {
+        // given
+        classUnderTest.saveProvider(0, "Dr. House");
+        classUnderTest.open(DATE.toEpochDay(), Collections.singletonMap(0, BlockBitmap.rangeMask(36, 40)));
+        long key = ReservationUtil.generatePendingReservationKey(DATE.toEpochDay(), 0, 37);
+
+        // when & then
+        Assertions.assertTrue(classUnderTest.hold(key, hold("p1", 37, 1000)));
+        Assertions.assertFalse(classUnderTest.hold(key, hold("p2", 37, 2000)));
+        Assertions.assertEquals(hold("p1", 37, 1000), classUnderTest.findHold(key));
+        Assertions.assertEquals(3, BlockBitmap.cardinality(classUnderTest.openBlocks(DATE.toEpochDay(), 0)));
+    }
+
+    /**
+     * Tests re-opening availability doesn't reopen a held slot.
+     */
+    @Test
+    void testOpenWhenSlotIsHeldExpectItToStayHeld() {
+        // given
+        classUnderTest.saveProvider(0, "Dr. House");
+        classUnderTest.open(DATE.toEpochDay(), Collections.singletonMap(0, BlockBitmap.rangeMask(36, 40)));
+        long key = ReservationUtil.generatePendingReservationKey(DATE.toEpochDay(), 0, 36);
+        classUnderTest.hold(key, hold("p1", 36, 1000));
+
+        // when
+        classUnderTest.open(DATE.toEpochDay(), Collections.singletonMap(0, BlockBitmap.rangeMask(36, 44)));
+
+        // then
+        Assertions.assertEquals(7, BlockBitmap.cardinality(classUnderTest.openBlocks(DATE.toEpochDay(), 0)));
+        Assertions.assertNotNull(classUnderTest.findHold(key));
+    }
+
+    /**
+     * Tests confirm and release only act on the hold they were given.
+     */
+    @Test
+    void testConfirmWhenHoldWasReleasedExpectFalse() {
+        // given
+        classUnderTest.saveProvider(0, "Dr. House");
+        classUnderTest.open(DATE.toEpochDay(), Collections.singletonMap(0, BlockBitmap.rangeMask(36, 37)));
+        long key = ReservationUtil.generatePendingReservationKey(DATE.toEpochDay(), 0, 36);
+        PendingReservation first = hold("p1", 36, 1000);
+        classUnderTest.hold(key, first);
+
+        // when & then
+        Assertions.assertTrue(classUnderTest.release(key, 1, first, true));
+        Assertions.assertFalse(classUnderTest.confirm(key, first));
+        Assertions.assertTrue(classUnderTest.hasOpen(DATE.toEpochDay(), 0));
+
+        PendingReservation second = hold("p2", 36, 2000);
+        Assertions.assertTrue(classUnderTest.hold(key, second));
+        Assertions.assertFalse(classUnderTest.release(key, 1, first, true));
+        Assertions.assertTrue(classUnderTest.confirm(key, second));
+        Assertions.assertEquals(Collections.singleton(second.getReservation()),
+                classUnderTest.confirmed().get(DATE.toEpochDay()));
+    }
+
+    /**
+     * Tests a run is held all or nothing, and releasing it gives back every block.
+     */
+    @Test
+    void testHoldWhenRunOverlapsAHeldSlotExpectNothingHeld() {
+        // given
+        classUnderTest.saveProvider(0, "Dr. House");
+        classUnderTest.open(DATE.toEpochDay(), Collections.singletonMap(0, BlockBitmap.rangeMask(36, 44)));
+        long single = ReservationUtil.generatePendingReservationKey(DATE.toEpochDay(), 0, 40);
+        classUnderTest.hold(single, hold("p1", 40, 1000));
+        long run = ReservationUtil.generatePendingReservationKey(DATE.toEpochDay(), 0, 38);
+        PendingReservation runHold = hold("p2", 38, 2000);
+        runHold.getReservation().setBlocks(3);
+
+        // when & then
+        Assertions.assertFalse(classUnderTest.hold(run, runHold));
+        Assertions.assertEquals(7, BlockBitmap.cardinality(classUnderTest.openBlocks(DATE.toEpochDay(), 0)));
+
+        Assertions.assertTrue(classUnderTest.release(single, 1, hold("p1", 40, 1000), true));
+        Assertions.assertTrue(classUnderTest.hold(run, runHold));
+        Assertions.assertEquals(runHold, classUnderTest.findHold(run));
+        Assertions.assertNull(classUnderTest.findHold(single));
+        Assertions.assertEquals(5, BlockBitmap.cardinality(classUnderTest.openBlocks(DATE.toEpochDay(), 0)));
+
+        Assertions.assertTrue(classUnderTest.release(run, 3, runHold, true));
+        Assertions.assertEquals(8, BlockBitmap.cardinality(classUnderTest.openBlocks(DATE.toEpochDay(), 0)));
+    }
+
+    /**
+     * Tests the service picks up where it left off when the database outlives it.
+     */
+    @Test
+    void testServiceWhenRestartedOnSameDatabaseExpectSameState() throws IOException {
+        // given
+        ReservationService service = new ReservationService(classUnderTest, ReservationJournal.disabled());
+        service.addAvailability("Dr. House", DATE, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        Assertions.assertTrue(service.reserve("Dr. House", "p1", DATE, LocalTime.of(9, 0)));
+        Assertions.assertTrue(service.reserve("Dr. House", "p2", DATE, LocalTime.of(9, 15)));
+        Assertions.assertTrue(service.confirm("Dr. House", "p1", DATE, LocalTime.of(9, 0)));
+        List<Reservation> available = service.getAvailability(DATE);
+        Map<LocalDate, Set<Reservation>> confirmed = service.getConfirmedReservations();
+        classUnderTest.close();
+
+        // when
+        classUnderTest = open();
+        ReservationService recovered = new ReservationService(classUnderTest, ReservationJournal.disabled());
+
+        // then
+        Assertions.assertEquals(available, recovered.getAvailability(DATE));
+        Assertions.assertEquals(confirmed, recovered.getConfirmedReservations());
+        Assertions.assertEquals(PatientReservation.Status.PENDING,
+                recovered.getPatientReservations("p2").get(0).getStatus());
+        Assertions.assertFalse(recovered.reserve("Dr. House", "p3", DATE, LocalTime.of(9, 15)));
+        Assertions.assertTrue(recovered.reserve("Dr. House", "p3", DATE, LocalTime.of(9, 30)));
+    }
+
+    /**
+     * Tests a restore that fails part way through leaves the provider-day as it was, rather than committing the
+     * delete without the rows that should have replaced it.
+     */
+    @Test
+    void testRestoreProviderDayWhenInsertFailsExpectDayUnchanged() throws SQLException {
+        // given
+        classUnderTest.saveProvider(0, "Dr. House");
+        classUnderTest.open(DATE.toEpochDay(), Collections.singletonMap(0, BlockBitmap.rangeMask(36, 40)));
+        try (Connection connection = DriverManager.getConnection(url());
+             Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE slot ADD CONSTRAINT early_blocks CHECK (block < 48)");
+        }
+
+        // when
+        Assertions.assertThrows(RepositoryException.class, () -> classUnderTest.restoreProviderDay(DATE.toEpochDay(),
+                0, BlockBitmap.rangeMask(40, 50), new long[BlockBitmap.WORDS]));
+
+        // then
+        Assertions.assertArrayEquals(BlockBitmap.rangeMask(36, 40), classUnderTest.openBlocks(DATE.toEpochDay(), 0));
+    }
+
+    private JdbcReservationRepository open() {
+        return new JdbcReservationRepository(RepositoryConfiguration.dataSource(url(), 4));
+    }
+
+    private String url() {
+        return "jdbc:h2:file:" + directory.resolve("reservations").toAbsolutePath();
+    }
+
+    private static PendingReservation hold(String patient, int block, long expiry) {
+        return new PendingReservation(expiry, DATE, Reservation.builder()
+                .provider("Dr. House")
+                .timeBlock(block)
+                .patient(patient)
+                .build());
+    }
+}
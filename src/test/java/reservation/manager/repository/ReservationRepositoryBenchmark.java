@@ -0,0 +1,124 @@
+package reservation.manager.repository;
+
+import reservation.manager.journal.ReservationJournal;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.service.ReservationService;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the repository backends by driving the same workload through a {@link ReservationService} on each:
+ * loading availability in bulk, then threads reserving and confirming random slots. Prints throughput and latency
+ * percentiles per phase.
+ * <p>
+ * Not a test, run it by hand:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=reservation.manager.repository.ReservationRepositoryBenchmark \
+ *     -Dproviders=200 -Ddays=30 -Dthreads=8 -Dops=20000
+ * </pre>
+ */
+public class ReservationRepositoryBenchmark {
+
+    private static final int PROVIDERS = Integer.getInteger("providers", 200);
+    private static final int DAYS = Integer.getInteger("days", 30);
+    private static final int THREADS = Integer.getInteger("threads", 8);
+    private static final int OPS = Integer.getInteger("ops", 20000);
+
+    public static void main(String[] args) throws Exception {
+        run("memory", new InMemoryReservationRepository());
+        Path directory = Files.createTempDirectory("reservation-benchmark");
+        run("jdbc", new JdbcReservationRepository(RepositoryConfiguration.dataSource(
+                "jdbc:h2:file:" + directory.resolve("reservations").toAbsolutePath(), THREADS)));
+    }
+
+    private static void run(String name, ReservationRepository repository) throws Exception {
+        try {
+            ReservationService service = new ReservationService(repository, ReservationJournal.disabled());
+            LocalDate firstDay = LocalDate.now().plusDays(2);
+
+            List<AvailabilityWindow> windows = new ArrayList<>(PROVIDERS * DAYS);
+            for (int day = 0; day < DAYS; day++) {
+                for (int provider = 0; provider < PROVIDERS; provider++) {
+                    windows.add(new AvailabilityWindow(provider(provider), firstDay.plusDays(day),
+                            LocalTime.of(8, 0), LocalTime.of(17, 0)));
+                }
+            }
+            long start = System.nanoTime();
+            service.addAvailability(windows);
+            report(name, "addAvailability (bulk)", windows.size(), System.nanoTime() - start, null);
+
+            // 36 blocks a day between 8 and 5, so with the defaults about 1 in 10 reserves collides
+            long[] reserve = new long[OPS];
+            long[] confirm = new long[OPS];
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> done = new ArrayList<>();
+            int perThread = OPS / THREADS;
+            start = System.nanoTime();
+            for (int t = 0; t < THREADS; t++) {
+                int offset = t * perThread;
+                done.add(pool.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = offset; i < offset + perThread; i++) {
+                        String provider = provider(random.nextInt(PROVIDERS));
+                        String patient = "patient-" + i;
+                        LocalDate date = firstDay.plusDays(random.nextInt(DAYS));
+                        LocalTime time = LocalTime.of(8, 0).plusMinutes(15L * random.nextInt(36));
+                        long begin = System.nanoTime();
+                        boolean reserved = service.reserve(provider, patient, date, time);
+                        reserve[i] = System.nanoTime() - begin;
+                        if (reserved) {
+                            begin = System.nanoTime();
+                            service.confirm(provider, patient, date, time);
+                            confirm[i] = System.nanoTime() - begin;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            report(name, "reserve", perThread * THREADS, elapsed, reserve);
+            report(name, "confirm", perThread * THREADS, elapsed, confirm);
+
+            start = System.nanoTime();
+            for (int day = 0; day < DAYS; day++) {
+                service.getAvailability(firstDay.plusDays(day));
+            }
+            report(name, "getAvailability(date), cold", DAYS, System.nanoTime() - start, null);
+        } finally {
+            repository.close();
+        }
+    }
+
+    private static String provider(int i) {
+        return "provider-" + i;
+    }
+
+    private static void report(String backend, String phase, int ops, long elapsedNanos, long[] latencies) {
+        StringBuilder line = new StringBuilder(String.format("%-7s %-30s %10.0f ops/s", backend, phase,
+                ops / (elapsedNanos / 1e9)));
+        if (latencies != null) {
+            long[] sorted = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+            if (sorted.length > 0) {
+                line.append(String.format("  p50 %6.1fus  p99 %7.1fus  max %8.1fus",
+                        sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3,
+                        sorted[sorted.length - 1] / 1e3));
+            }
+        }
+        System.out.println(line);
+    }
+}
@@ -0,0 +1,60 @@
+package reservation.manager.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reservation.manager.models.AvailabilityChange;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class AvailabilityFeedTest {
+
+    private static final long EPOCH_DAY = LocalDate.of(2050, 1, 1).toEpochDay();
+
+    /**
+     * Tests changes to the same slot are coalesced into the latest, changes outside the filter are left out, and a
+     * subscriber that falls more than its capacity behind gets one resync instead of the backlog.
+     */
+    @Test
+    void testPollWhenSlotChangesTwiceAndBufferOverflowsExpectLatestThenResync() {
+        // given
+        AvailabilityFeed classUnderTest = new AvailabilityFeed();
+        AtomicInteger notified = new AtomicInteger();
+        AvailabilityFeed.Subscription subscription = classUnderTest.subscribe(LocalDate.ofEpochDay(EPOCH_DAY),
+                LocalDate.ofEpochDay(EPOCH_DAY), "Dr. Kutner", 2, notified::incrementAndGet);
+
+        // when
+        classUnderTest.publish(AvailabilityChange.Type.HELD, EPOCH_DAY, "Dr. Kutner", 36, 2);
+        classUnderTest.publish(AvailabilityChange.Type.HELD, EPOCH_DAY, "Dr. Hadley", 36, 1);
+        classUnderTest.publish(AvailabilityChange.Type.HELD, EPOCH_DAY + 1, "Dr. Kutner", 36, 1);
+        classUnderTest.publish(AvailabilityChange.Type.CONFIRMED, EPOCH_DAY, "Dr. Kutner", 36, 2);
+        List<AvailabilityChange> coalesced = subscription.poll(10);
+
+        // then
+        Assertions.assertEquals(2, notified.get());
+        Assertions.assertEquals(1, coalesced.size());
+        Assertions.assertEquals(AvailabilityChange.Type.CONFIRMED, coalesced.get(0).getType());
+        Assertions.assertEquals(LocalTime.of(9, 0), coalesced.get(0).getTime());
+        Assertions.assertEquals(30, coalesced.get(0).getDurationMinutes());
+
+        // when
+        classUnderTest.publishDiff(EPOCH_DAY, "Dr. Kutner", new long[BlockBitmap.WORDS],
+                BlockBitmap.rangeMask(40, 43));
+        List<AvailabilityChange> overflowed = subscription.poll(10);
+
+        // then
+        Assertions.assertEquals(1, overflowed.size());
+        Assertions.assertEquals(AvailabilityChange.Type.RESYNC, overflowed.get(0).getType());
+        Assertions.assertTrue(subscription.poll(10).isEmpty());
+
+        // when
+        subscription.close();
+        classUnderTest.publish(AvailabilityChange.Type.HELD, EPOCH_DAY, "Dr. Kutner", 44, 1);
+
+        // then
+        Assertions.assertFalse(classUnderTest.isWatched());
+        Assertions.assertTrue(subscription.poll(10).isEmpty());
+    }
+}
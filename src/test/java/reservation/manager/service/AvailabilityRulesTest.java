@@ -0,0 +1,261 @@
+package reservation.manager.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityRule;
+import reservation.manager.models.AvailabilityWindow;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+class AvailabilityRulesTest {
+
+    /**
+     * A Saturday. Tomorrow, the first day of the rolling window, is a Sunday.
+     */
+    private static final LocalDate TODAY = LocalDate.of(2050, 1, 1);
+    private static final LocalDate FIRST_MONDAY = LocalDate.of(2050, 1, 3);
+    private static final LocalDate PAST_WINDOW = FIRST_MONDAY.plusWeeks(10);
+
+    private static final LocalTime OPEN = LocalTime.of(9, 0);
+    private static final LocalTime CLOSE = LocalTime.of(11, 0);
+
+    private final List<ReactiveReservationService> started = new ArrayList<>();
+
+    /**
+     * Stops the writer threads.
+     */
+    @AfterEach
+    void tearDown() {
+        started.forEach(ReactiveReservationService::destroy);
+    }
+
+    /**
+     * Tests a weekly rule opens the same slots as adding each day of the rolling window by hand, and skips its
+     * exceptions.
+     */
+    @Test
+    void testMaterializeAheadWhenWeeklyRuleExpectSameSlotsAsEagerAdds() {
+        // given
+        RecordingService lazy = new RecordingService();
+        ReservationService eager = new ReservationService();
+        LocalDate skipped = FIRST_MONDAY.plusWeeks(1);
+        AvailabilityRules classUnderTest = rules(lazy, null, TODAY);
+        classUnderTest.add(mondays(Collections.singletonList(skipped)));
+
+        // when
+        classUnderTest.materializeAhead();
+
+        // then
+        eager.addAvailability("Dr. House", FIRST_MONDAY, OPEN, CLOSE);
+        eager.addAvailability("Dr. House", FIRST_MONDAY.plusWeeks(2), OPEN, CLOSE);
+        Assertions.assertEquals(dates(eager.getAvailability()), dates(lazy.getAvailability()));
+        Assertions.assertEquals(eager.getAvailability(FIRST_MONDAY), lazy.getAvailability(FIRST_MONDAY));
+        Assertions.assertTrue(lazy.getAvailability(skipped).isEmpty());
+        Assertions.assertTrue(lazy.reserve("Dr. House", "p1", FIRST_MONDAY, OPEN));
+    }
+
+    /**
+     * Tests a day past the rolling window is added the first time it's asked for, and not again after that.
+     */
+    @Test
+    void testMaterializeWhenDayIsPastWindowExpectAddedOnFirstRequestOnly() {
+        // given
+        RecordingService service = new RecordingService();
+        AvailabilityRules classUnderTest = rules(service, null, TODAY);
+        classUnderTest.add(mondays(null));
+        classUnderTest.materializeAhead();
+        int adds = service.adds.get();
+
+        // when
+        classUnderTest.materialize(PAST_WINDOW).block(Duration.ofSeconds(10));
+        classUnderTest.materialize(PAST_WINDOW).block(Duration.ofSeconds(10));
+
+        // then
+        Assertions.assertEquals(adds + 1, service.adds.get());
+        Assertions.assertEquals(8, service.getAvailability(PAST_WINDOW).size());
+        Assertions.assertTrue(service.getAvailability(PAST_WINDOW.plusWeeks(1)).isEmpty());
+    }
+
+    /**
+     * Tests two first requests for the same day past the window both wait for one add, and neither is answered
+     * before the day's slots are there.
+     */
+    @Test
+    void testMaterializeWhenTwoFirstRequestsRaceExpectBothWaitForOneAdd() throws Exception {
+        // given
+        RecordingService service = new RecordingService();
+        service.gate = new CountDownLatch(1);
+        AvailabilityRules classUnderTest = rules(service, null, TODAY);
+        classUnderTest.add(mondays(null));
+
+        // when
+        CompletableFuture<Void> first = classUnderTest.materialize(PAST_WINDOW).toFuture();
+        Assertions.assertTrue(service.entered.await(10, TimeUnit.SECONDS));
+        CompletableFuture<Void> second = classUnderTest.materialize(PAST_WINDOW).toFuture();
+
+        // then
+        Assertions.assertFalse(first.isDone());
+        Assertions.assertFalse(second.isDone());
+        service.gate.countDown();
+        CompletableFuture.allOf(first, second).get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals(1, service.adds.get());
+        Assertions.assertEquals(8, service.getAvailability(PAST_WINDOW).size());
+    }
+
+    /**
+     * Tests a request for a day past the window fails when its add does, and the next request adds it.
+     */
+    @Test
+    void testMaterializeWhenAddFailsExpectNextRequestTriesAgain() {
+        // given
+        RecordingService service = new RecordingService();
+        service.failures.set(1);
+        AvailabilityRules classUnderTest = rules(service, null, TODAY);
+        classUnderTest.add(mondays(null));
+
+        // when
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> classUnderTest.materialize(PAST_WINDOW).block(Duration.ofSeconds(10)));
+        classUnderTest.materialize(PAST_WINDOW).block(Duration.ofSeconds(10));
+
+        // then
+        Assertions.assertEquals(2, service.adds.get());
+        Assertions.assertEquals(8, service.getAvailability(PAST_WINDOW).size());
+    }
+
+    /**
+     * Tests the rolling window stays where it was when its days can't be added, and the next run adds them.
+     */
+    @Test
+    void testMaterializeAheadWhenAddFailsExpectWindowNotMoved() {
+        // given
+        RecordingService service = new RecordingService();
+        service.failures.set(1);
+        AvailabilityRules classUnderTest = rules(service, null, TODAY);
+        classUnderTest.add(mondays(null));
+
+        // when
+        Assertions.assertThrows(IllegalStateException.class, classUnderTest::materializeAhead);
+        classUnderTest.materializeAhead();
+
+        // then
+        Assertions.assertEquals(2, service.adds.get());
+        Assertions.assertEquals(Arrays.asList(FIRST_MONDAY, FIRST_MONDAY.plusWeeks(1), FIRST_MONDAY.plusWeeks(2)),
+                dates(service.getAvailability()));
+    }
+
+    /**
+     * Tests that after a restart the rules and the days they already materialized are read back, so only the days
+     * that came into the window since are added.
+     */
+    @Test
+    void testMaterializeAheadWhenRestartedExpectOnlyNewDaysAdded(@TempDir Path dir) {
+        // given
+        AvailabilityRules before = rules(new RecordingService(), dir, TODAY);
+        AvailabilityRule rule = before.add(mondays(null));
+        before.materializeAhead();
+        before.materialize(PAST_WINDOW).block(Duration.ofSeconds(10));
+        RecordingService service = new RecordingService();
+
+        // when
+        AvailabilityRules classUnderTest = rules(service, dir, TODAY.plusWeeks(1));
+        classUnderTest.afterPropertiesSet();
+        classUnderTest.materialize(PAST_WINDOW).block(Duration.ofSeconds(10));
+
+        // then
+        Assertions.assertEquals(Collections.singletonList(rule), classUnderTest.getRules());
+        Assertions.assertEquals(1, service.adds.get());
+        Assertions.assertEquals(Collections.singletonList(FIRST_MONDAY.plusWeeks(3)), dates(service.getAvailability()));
+    }
+
+    /**
+     * Tests a rule added after days were materialized gets windows on those days, in the window and past it.
+     */
+    @Test
+    void testMaterializedWindowsWhenRuleAddedLaterExpectWindowsForMaterializedDays() {
+        // given
+        AvailabilityRules classUnderTest = rules(new RecordingService(), null, TODAY);
+        classUnderTest.add(mondays(null));
+        classUnderTest.materializeAhead();
+        classUnderTest.materialize(PAST_WINDOW).block(Duration.ofSeconds(10));
+
+        // when
+        AvailabilityRule later = classUnderTest.add(AvailabilityRule.builder()
+                .provider("Dr. Cuddy")
+                .dayOfWeek(DayOfWeek.MONDAY)
+                .start(OPEN)
+                .end(CLOSE)
+                .build());
+        List<AvailabilityWindow> windows = classUnderTest.materializedWindows(later);
+
+        // then
+        Assertions.assertEquals(Arrays.asList(FIRST_MONDAY, FIRST_MONDAY.plusWeeks(1), FIRST_MONDAY.plusWeeks(2),
+                PAST_WINDOW), windows.stream().map(AvailabilityWindow::getDate).collect(Collectors.toList()));
+    }
+
+    private AvailabilityRules rules(ReservationService service, Path dir, LocalDate today) {
+        ReactiveReservationService reservations = new ReactiveReservationService(service, 1, 16, 8);
+        started.add(reservations);
+        return new AvailabilityRules(reservations, 21, dir,
+                Clock.fixed(today.atTime(12, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC));
+    }
+
+    private static AvailabilityRule mondays(List<LocalDate> exceptions) {
+        return AvailabilityRule.builder()
+                .provider("Dr. House")
+                .dayOfWeek(DayOfWeek.MONDAY)
+                .start(OPEN)
+                .end(CLOSE)
+                .exceptions(exceptions)
+                .build();
+    }
+
+    private static List<LocalDate> dates(List<AvailabilityView> views) {
+        return views.stream().map(AvailabilityView::getDate).collect(Collectors.toList());
+    }
+
+    /**
+     * Counts the batches of windows added, and can hold them up or fail them.
+     */
+    private static final class RecordingService extends ReservationService {
+        private final AtomicInteger adds = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private volatile CountDownLatch gate;
+
+        @Override
+        public List<AvailabilityResult> addAvailability(List<AvailabilityWindow> windows) {
+            adds.incrementAndGet();
+            entered.countDown();
+            try {
+                if (gate != null && !gate.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("never let through");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("journal is down");
+            }
+            return super.addAvailability(windows);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package reservation.manager.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class BlockBitmapTest {
+
+    /**
+     * Tests {@link BlockBitmap#setAll(long[], BlockBitmap)} across the word boundary.
+     */
+    @Test
+    void testSetAllWhenRangeSpansWordsExpectEveryBlockSet() {
+        // given
+        BlockBitmap bitmap = new BlockBitmap();
+        BlockBitmap none = new BlockBitmap();
+
+        // when
+        bitmap.setAll(BlockBitmap.rangeMask(60, 70), none); // 15:00 - 17:30
+
+        // then
+        Assertions.assertEquals(10, bitmap.cardinality());
+        Assertions.assertEquals(60, bitmap.nextSetBit(0));
+        Assertions.assertEquals(64, bitmap.nextSetBit(64));
+        Assertions.assertEquals(-1, bitmap.nextSetBit(70));
+    }
+
+    /**
+     * Tests {@link BlockBitmap#setAll(long[], BlockBitmap)} skips excluded blocks.
+     */
+    @Test
+    void testSetAllWhenBlockIsExcludedExpectItToStayClear() {
+        // given
+        BlockBitmap bitmap = new BlockBitmap();
+        BlockBitmap booked = new BlockBitmap();
+        booked.set(37);
+
+        // when
+        bitmap.setAll(BlockBitmap.rangeMask(36, 40), booked);
+
+        // then
+        Assertions.assertEquals(3, bitmap.cardinality());
+        Assertions.assertFalse(bitmap.get(37));
+    }
+
+    /**
+     * Tests {@link BlockBitmap#tryClear(int)} only succeeds once.
+     */
+    @Test
+    void testTryClearWhenCalledTwiceExpectSecondCallToFail() {
+        // given
+        BlockBitmap bitmap = new BlockBitmap();
+        bitmap.set(95);
+
+        // when & then
+        Assertions.assertTrue(bitmap.tryClear(95));
+        Assertions.assertFalse(bitmap.tryClear(95));
+        Assertions.assertTrue(bitmap.isEmpty());
+    }
+
+    /**
+     * Tests {@link BlockBitmap#clearBefore(int)}.
+     */
+    @Test
+    void testClearBeforeWhenBlockIsInSecondWordExpectOnlyLaterBlocksKept() {
+        // given
+        BlockBitmap bitmap = new BlockBitmap();
+        bitmap.setAll(BlockBitmap.rangeMask(0, ReservationUtil.BLOCKS_PER_DAY), new BlockBitmap());
+
+        // when
+        bitmap.clearBefore(80);
+
+        // then
+        Assertions.assertEquals(ReservationUtil.BLOCKS_PER_DAY - 80, bitmap.cardinality());
+        Assertions.assertEquals(80, bitmap.nextSetBit(0));
+    }
+
+    /**
+     * Tests {@link BlockBitmap#runStarts(long[], int)} against checking every start block by hand.
+     */
+    @Test
+    void testRunStartsWhenRunsSpanWordsExpectSameAsProbingEachBlock() {
+        // given
+        long[] open = BlockBitmap.rangeMask(30, 40);
+        BlockBitmap.or(open, BlockBitmap.rangeMask(58, 71));
+        BlockBitmap.or(open, BlockBitmap.rangeMask(90, ReservationUtil.BLOCKS_PER_DAY));
+
+        for (int length = 1; length <= ReservationUtil.BLOCKS_PER_DAY; length++) {
+            // when
+            long[] test = BlockBitmap.runStarts(open, length);
+
+            // then
+            for (int block = 0; block < ReservationUtil.BLOCKS_PER_DAY; block++) {
+                boolean expected = block + length <= ReservationUtil.BLOCKS_PER_DAY;
+                for (int i = block; expected && i < block + length; i++) {
+                    expected = BlockBitmap.nextSetBit(open, i) == i;
+                }
+                Assertions.assertEquals(expected, BlockBitmap.nextSetBit(test, block) == block,
+                        "length " + length + ", block " + block);
+            }
+        }
+    }
+
+    /**
+     * Tests {@link BlockBitmap#tryClearRange(int, int)} takes nothing when a block in the second word is missing.
+     */
+    @Test
+    void testTryClearRangeWhenLastBlockIsTakenExpectNothingCleared() {
+        // given
+        BlockBitmap bitmap = new BlockBitmap();
+        bitmap.setAll(BlockBitmap.rangeMask(60, 68), new BlockBitmap());
+        bitmap.clear(67);
+
+        // when & then
+        Assertions.assertFalse(bitmap.tryClearRange(60, 68));
+        Assertions.assertEquals(7, bitmap.cardinality());
+        Assertions.assertTrue(bitmap.tryClearRange(60, 67));
+        Assertions.assertTrue(bitmap.isEmpty());
+    }
+}
@@ -0,0 +1,57 @@
+package reservation.manager.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+class ConcurrentLongMapTest {
+
+    /**
+     * Tests {@link ConcurrentLongMap} agrees with a {@link HashMap} through a long run of random puts and removes, so
+     * growing and the backward shift on remove don't lose entries.
+     */
+    @Test
+    void testPutAndRemoveWhenRandomOperationsExpectSameContentsAsHashMap() {
+        // given
+        ConcurrentLongMap<String> classUnderTest = new ConcurrentLongMap<>(4);
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        // when
+        for (int i = 0; i < 100_000; i++) {
+            // few enough distinct keys that probe runs keep colliding
+            long key = ReservationUtil.generatePendingReservationKey(19_000 + random.nextInt(20), random.nextInt(50),
+                    random.nextInt(ReservationUtil.BLOCKS_PER_DAY));
+            if (random.nextBoolean()) {
+                Assertions.assertEquals(expected.put(key, "v" + i), classUnderTest.put(key, "v" + i));
+            } else {
+                Assertions.assertEquals(expected.remove(key), classUnderTest.remove(key));
+            }
+        }
+
+        // then
+        Assertions.assertEquals(expected.size(), classUnderTest.size());
+        Map<Long, String> test = new HashMap<>();
+        classUnderTest.forEach(test::put);
+        Assertions.assertEquals(expected, test);
+    }
+
+    /**
+     * Tests {@link ConcurrentLongMap#remove(long, Object)} leaves a key mapped to a different value alone.
+     */
+    @Test
+    void testRemoveWhenValueDiffersExpectFalse() {
+        // given
+        ConcurrentLongMap<String> classUnderTest = new ConcurrentLongMap<>();
+        classUnderTest.put(-7L, "second hold");
+
+        // when & then
+        Assertions.assertFalse(classUnderTest.remove(-7L, "first hold"));
+        Assertions.assertEquals("second hold", classUnderTest.get(-7L));
+        Assertions.assertTrue(classUnderTest.remove(-7L, "second hold"));
+        Assertions.assertTrue(classUnderTest.isEmpty());
+    }
+}
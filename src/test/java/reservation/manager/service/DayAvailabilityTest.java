@@ -0,0 +1,81 @@
+package reservation.manager.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+class DayAvailabilityTest {
+
+    private static final long EPOCH_DAY = 29_000;
+
+    /**
+     * Tests a view read before a publish still shows the day as it was, and the new one has a higher version.
+     */
+    @Test
+    void testViewWhenProviderPublishedAfterwardsExpectOldViewUnchanged() {
+        // given
+        ProviderDictionary dictionary = new ProviderDictionary();
+        int house = dictionary.intern("Dr. House");
+        int wilson = dictionary.intern("Dr. Wilson");
+        AtomicLong versions = new AtomicLong();
+        DayAvailability classUnderTest = new DayAvailability(EPOCH_DAY, versions.incrementAndGet());
+        classUnderTest.publish(house, BlockBitmap.rangeMask(36, 40), versions::incrementAndGet);
+        classUnderTest.publish(wilson, BlockBitmap.rangeMask(36, 38), versions::incrementAndGet);
+        AvailabilityView before = classUnderTest.view(dictionary);
+
+        // when
+        classUnderTest.publish(house, BlockBitmap.rangeMask(38, 40), versions::incrementAndGet);
+        classUnderTest.publish(wilson, new long[BlockBitmap.WORDS], versions::incrementAndGet);
+        AvailabilityView after = classUnderTest.view(dictionary);
+
+        // then
+        Assertions.assertEquals(6, before.getReservations().size());
+        Assertions.assertEquals(2, after.getReservations().size());
+        Assertions.assertTrue(after.getVersion() > before.getVersion());
+        Assertions.assertSame(after, classUnderTest.view(dictionary));
+        Assertions.assertEquals(0, BlockBitmap.cardinality(classUnderTest.openBlocks(wilson)));
+    }
+
+    /**
+     * Tests providers publishing the same day at once all end up in it, none of them overwriting another.
+     */
+    @Test
+    void testPublishWhenProvidersRaceExpectEveryProviderInSnapshot() throws InterruptedException {
+        // given
+        int threads = 8;
+        AtomicLong versions = new AtomicLong();
+        DayAvailability classUnderTest = new DayAvailability(EPOCH_DAY, versions.incrementAndGet());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int providerId = i;
+            writers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int block = 0; block < ReservationUtil.BLOCKS_PER_DAY; block++) {
+                    classUnderTest.publish(providerId, BlockBitmap.rangeMask(0, block + 1), versions::incrementAndGet);
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+
+        // when
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // then
+        for (int i = 0; i < threads; i++) {
+            Assertions.assertEquals(ReservationUtil.BLOCKS_PER_DAY,
+                    BlockBitmap.cardinality(classUnderTest.openBlocks(i)));
+        }
+    }
+}
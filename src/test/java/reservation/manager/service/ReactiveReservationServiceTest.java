@@ -0,0 +1,240 @@
+package reservation.manager.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reservation.manager.journal.ReservationJournal;
+import reservation.manager.models.AvailabilityChange;
+import reservation.manager.repository.InMemoryReservationRepository;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReactiveReservationServiceTest {
+
+    private static final LocalDate DATE = LocalDate.of(2050, 1, 1);
+    private static final LocalTime TIME = LocalTime.of(9, 0);
+
+    private ReactiveReservationService classUnderTest;
+
+    /**
+     * Stops the writer threads.
+     */
+    @AfterEach
+    void tearDown() {
+        classUnderTest.destroy();
+    }
+
+    /**
+     * Tests many patients racing for one slot through the mailboxes, with writes to other providers in between,
+     * still get exactly one hold per slot.
+     */
+    @Test
+    void testReserveWhenPatientsRaceThroughMailboxExpectSingleWinner() {
+        // given
+        ReservationService service = new ReservationService();
+        service.addAvailability("Dr. Foreman", DATE, TIME, TIME.plusHours(1));
+        service.addAvailability("Dr. Cameron", DATE, TIME, TIME.plusHours(1));
+        classUnderTest = new ReactiveReservationService(service, 2, 1024, 8);
+
+        // when
+        List<Boolean> results = Flux.range(0, 100)
+                .flatMap(i -> i % 2 == 0
+                        ? classUnderTest.reserve("Dr. Foreman", "patient-" + i, DATE, TIME, null)
+                        : classUnderTest.reserve("Dr. Cameron", "patient-" + i, DATE, TIME.plusMinutes(15 * (i / 2 % 4)),
+                        null))
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        // then
+        assertNotNull(results);
+        assertEquals(100, results.size());
+        assertEquals(1 + 4, results.stream().filter(Boolean::booleanValue).count());
+        assertEquals(3, classUnderTest.getAvailabilityView(DATE).block().getReservations().size());
+    }
+
+    /**
+     * Tests a change is turned away straight away when its partition's mailbox is full, and runs normally once the
+     * writer catches up.
+     */
+    @Test
+    void testReserveWhenMailboxIsFullExpectRejected() throws InterruptedException {
+        // given
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ReservationService service = new ReservationService() {
+            @Override
+            public boolean reserve(String provider, String patient, LocalDate date, LocalTime time) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.reserve(provider, patient, date, time);
+            }
+        };
+        service.addAvailability("Dr. Wilson", DATE, TIME, TIME.plusHours(1));
+        classUnderTest = new ReactiveReservationService(service, 1, 1, 8);
+        Mono<Boolean> first = classUnderTest.reserve("Dr. Wilson", "patient-1", DATE, TIME, null).cache();
+        first.subscribe();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Mono<Boolean> queued = classUnderTest.reserve("Dr. Wilson", "patient-2", DATE, TIME, null).cache();
+        queued.subscribe();
+
+        // when
+        Mono<Boolean> rejected = classUnderTest.reserve("Dr. Wilson", "patient-3", DATE, TIME.plusMinutes(15), null);
+
+        // then
+        assertThrows(RejectedExecutionException.class, () -> rejected.block(Duration.ofSeconds(10)));
+        release.countDown();
+        assertTrue(first.block(Duration.ofSeconds(10)));
+        assertFalse(queued.block(Duration.ofSeconds(10)));
+        assertTrue(classUnderTest.reserve("Dr. Wilson", "patient-3", DATE, TIME.plusMinutes(15), null)
+                .block(Duration.ofSeconds(10)));
+    }
+
+    /**
+     * Tests a patient waiting for a held slot gets it once the hold runs out, and the answer comes on a scheduler
+     * thread rather than the expiry sweep's.
+     */
+    @Test
+    void testReserveOrWaitWhenHoldRunsOutExpectSlotHandedOver() throws InterruptedException {
+        // given
+        ReservationService service = new ReservationService();
+        service.setPendingTtl(100);
+        service.addAvailability("Dr. Kutner", DATE, TIME, TIME.plusHours(1));
+        classUnderTest = new ReactiveReservationService(service, 1, 16, 8);
+        assertTrue(classUnderTest.reserve("Dr. Kutner", "patient-1", DATE, TIME, null).block());
+        CompletableFuture<String> answeredOn = new CompletableFuture<>();
+        Mono<Boolean> waiting = classUnderTest.reserveOrWait("Dr. Kutner", "patient-2", DATE, TIME, null)
+                .doOnNext(held -> answeredOn.complete(Thread.currentThread().getName()))
+                .cache();
+        waiting.subscribe();
+
+        // when
+        Thread.sleep(200);
+        service.expirePendingReservations();
+
+        // then
+        assertTrue(waiting.block(Duration.ofSeconds(10)));
+        assertFalse(answeredOn.join().equals(Thread.currentThread().getName()));
+        assertEquals(1, service.getPatientReservations("patient-2").size());
+        assertTrue(service.getPatientReservations("patient-1").isEmpty());
+    }
+
+    /**
+     * Tests a patient waiting for a held slot is told they won't get it when the hold is confirmed.
+     */
+    @Test
+    void testReserveOrWaitWhenHoldIsConfirmedExpectTurnedAway() {
+        // given
+        ReservationService service = new ReservationService();
+        service.addAvailability("Dr. Kutner", DATE, TIME, TIME.plusHours(1));
+        classUnderTest = new ReactiveReservationService(service, 1, 16, 8);
+        assertTrue(classUnderTest.reserve("Dr. Kutner", "patient-1", DATE, TIME, null).block());
+        Mono<Boolean> waiting = classUnderTest.reserveOrWait("Dr. Kutner", "patient-2", DATE, TIME, null).cache();
+        waiting.subscribe();
+
+        // when
+        assertTrue(classUnderTest.confirm("Dr. Kutner", "patient-1", DATE, TIME).block());
+
+        // then
+        assertFalse(waiting.block(Duration.ofSeconds(10)));
+        assertTrue(service.getPatientReservations("patient-2").isEmpty());
+    }
+
+    /**
+     * Tests a change submitted after the writers are stopped fails straight away instead of never completing.
+     */
+    @Test
+    void testReserveWhenServiceIsDestroyedExpectRejected() {
+        // given
+        ReservationService service = new ReservationService();
+        service.addAvailability("Dr. Kutner", DATE, TIME, TIME.plusHours(1));
+        classUnderTest = new ReactiveReservationService(service, 1, 16, 8);
+        classUnderTest.destroy();
+
+        // when
+        Mono<Boolean> rejected = classUnderTest.reserve("Dr. Kutner", "patient", DATE, TIME, null);
+
+        // then
+        assertThrows(RejectedExecutionException.class, () -> rejected.block(Duration.ofSeconds(10)));
+        assertEquals(4, service.getAvailability(DATE).size());
+    }
+
+    /**
+     * Tests a change that throws an error fails only its own result, and the writer goes on to run the next one.
+     */
+    @Test
+    void testReserveWhenChangeThrowsErrorExpectFailedAndWriterKeepsRunning() {
+        // given
+        ReservationService service = new ReservationService() {
+            @Override
+            public boolean reserve(String provider, String patient, LocalDate date, LocalTime time) {
+                if (patient.equals("patient-1")) {
+                    throw new AssertionError("broken");
+                }
+                return super.reserve(provider, patient, date, time);
+            }
+        };
+        service.addAvailability("Dr. Kutner", DATE, TIME, TIME.plusHours(1));
+        classUnderTest = new ReactiveReservationService(service, 1, 16, 8);
+
+        // when
+        Mono<Boolean> broken = classUnderTest.reserve("Dr. Kutner", "patient-1", DATE, TIME, null);
+
+        // then
+        RuntimeException error = assertThrows(RuntimeException.class, () -> broken.block(Duration.ofSeconds(10)));
+        // block() wraps anything that isn't a RuntimeException
+        assertTrue(Exceptions.unwrap(error) instanceof AssertionError);
+        assertTrue(classUnderTest.reserve("Dr. Kutner", "patient-2", DATE, TIME, null)
+                .block(Duration.ofSeconds(10)));
+    }
+
+    /**
+     * Tests a watcher gets the opened, held and confirmed changes for its provider-day as the service makes them, and
+     * nothing about another provider.
+     */
+    @Test
+    void testWatchWhenSlotsOpenAndAreBookedExpectChangesForWatchedProvider() {
+        // given
+        AvailabilityFeed feed = new AvailabilityFeed();
+        ReservationService service = new ReservationService(new InMemoryReservationRepository(),
+                ReservationJournal.disabled(), ReservationMetrics.disabled(), new ConfirmedArchive(), feed);
+        classUnderTest = new ReactiveReservationService(service, 1, 1024, 8, feed, 64);
+        CompletableFuture<List<AvailabilityChange>> watched = classUnderTest.watch(DATE, DATE, "Dr. Foreman")
+                .takeUntil(change -> change.getType() == AvailabilityChange.Type.CONFIRMED)
+                .collectList()
+                .toFuture();
+
+        // when
+        classUnderTest.addAvailability("Dr. Cameron", DATE, TIME, TIME.plusMinutes(30)).block();
+        classUnderTest.addAvailability("Dr. Foreman", DATE, TIME, TIME.plusMinutes(30)).block();
+        assertTrue(classUnderTest.reserve("Dr. Foreman", "patient", DATE, TIME, null).block());
+        assertTrue(classUnderTest.confirm("Dr. Foreman", "patient", DATE, TIME).block());
+        List<AvailabilityChange> changes = watched.join();
+
+        // then
+        // coalescing may have folded the 9:00 changes into the last one, the end state per slot is what counts
+        Map<LocalTime, AvailabilityChange.Type> latest = new HashMap<>();
+        for (AvailabilityChange change : changes) {
+            assertEquals("Dr. Foreman", change.getProvider());
+            latest.put(change.getTime(), change.getType());
+        }
+        assertEquals(AvailabilityChange.Type.CONFIRMED, latest.get(TIME));
+        assertEquals(AvailabilityChange.Type.OPENED, latest.get(TIME.plusMinutes(15)));
+    }
+}
@@ -1,14 +1,29 @@
 package reservation.manager.service;
 
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reservation.manager.journal.ReservationJournal;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.BookingTarget;
+import reservation.manager.models.PatientReservation;
 import reservation.manager.models.Reservation;
+import reservation.manager.repository.InMemoryReservationRepository;
 
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -72,7 +87,7 @@ class ReservationServiceTest {
                 acceptableDesiredReservationTime));
 
         // User should not be able to confirm a reservation with the wrong details
-        assertFalse(classUnderTest.confirm(providerId,patientId,providerAvailableDate.toString(),unacceptableReservationTime));
+        assertFalse(classUnderTest.confirm(providerId,patientId,providerAvailableDate,unacceptableReservationTime));
 
         // let the pending reservation expire
         try {
@@ -80,17 +95,18 @@ class ReservationServiceTest {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        // pending reservation timed out, reservations for that day should be available again
+        // pending reservation timed out, once the expiry sweep runs reservations for that day should be available again
+        classUnderTest.expirePendingReservations();
         assertEquals(18, classUnderTest.getAvailability(providerAvailableDate).size());
 
         // book a timeslot and confirm the reservation
         assertTrue(classUnderTest.reserve(providerId,patientId,providerAvailableDate,acceptableDesiredReservationTime));
-        assertTrue(classUnderTest.confirm(providerId,patientId,providerAvailableDate.toString(),
+        assertTrue(classUnderTest.confirm(providerId,patientId,providerAvailableDate,
                 acceptableDesiredReservationTime));
 
         // Check the confirmed reservations for the reserved slot.
         Reservation reservation = classUnderTest.getConfirmedReservations()
-                                                .get(providerAvailableDate.toString())
+                                                .get(providerAvailableDate)
                                                 .stream().findFirst().orElse(null);
         assertNotNull(reservation);
         assertEquals(providerId, reservation.getProvider());
@@ -98,4 +114,395 @@ class ReservationServiceTest {
         // 9:15am == 37 because 9th hour is the 36th time block, and n:15 is the first quarter of the hour,
         assertEquals(37,reservation.getTimeBlock());
     }
-}
\ No newline at end of file
+
+    /**
+     * Many patients racing for the same slot, exactly one of them should get it.
+     */
+    @Test
+    void testReserveWhenManyPatientsRaceForOneSlotExpectSingleWinner() throws Exception {
+        // given
+        String providerId = "Dr. Wilson";
+        LocalDate date = LocalDate.of(2050, 1, 2);
+        LocalTime time = LocalTime.of(9, 0);
+        classUnderTest.addAvailability(providerId, date, time, time.plusMinutes(15));
+        int threads = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger winners = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < threads; i++) {
+            String patient = "patient-" + i;
+            futures.add(pool.submit(() -> {
+                start.await();
+                if (classUnderTest.reserve(providerId, patient, date, time)) {
+                    winners.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        // then
+        assertEquals(1, winners.get());
+        assertTrue(classUnderTest.getAvailability(date).isEmpty());
+    }
+
+    /**
+     * Tests {@link ReservationService#addAvailability(List)} with overlapping and invalid windows.
+     */
+    @Test
+    void testBulkAddAvailabilityWhenWindowsOverlapExpectMergedSlotsAndPerWindowResults() {
+        // given
+        LocalDate date = LocalDate.of(2050, 1, 3);
+        List<AvailabilityWindow> windows = Arrays.asList(
+                new AvailabilityWindow("Dr. Cuddy", date, LocalTime.of(9, 0), LocalTime.of(10, 0)),
+                new AvailabilityWindow("Dr. Cuddy", date, LocalTime.of(9, 30), LocalTime.of(11, 0)),
+                new AvailabilityWindow("Dr. Foreman", date, LocalTime.of(9, 0), LocalTime.of(9, 30)),
+                new AvailabilityWindow("Dr. Foreman", date, LocalTime.of(9, 0), LocalTime.of(8, 0)),
+                new AvailabilityWindow(null, date, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+
+        // when
+        List<AvailabilityResult> results = classUnderTest.addAvailability(windows);
+
+        // then
+        assertEquals(5, results.size());
+        assertEquals(AvailabilityResult.Status.ADDED, results.get(0).getStatus());
+        assertEquals(6, results.get(1).getBlocks());
+        assertEquals(AvailabilityResult.Status.REJECTED, results.get(3).getStatus());
+        assertEquals(AvailabilityResult.Status.REJECTED, results.get(4).getStatus());
+        // Cuddy 9:00-11:00 is 8 blocks, Foreman 9:00-9:30 is 2
+        assertEquals(10, classUnderTest.getAvailability(date).size());
+    }
+
+    /**
+     * Tests the patient index follows a reservation from pending to confirmed, and the provider index drops days
+     * with nothing left open.
+     */
+    @Test
+    void testIndexesWhenReservationIsHeldAndConfirmedExpectLookupsToFollow() {
+        // given
+        String providerId = "Dr. Chase";
+        String patientId = "patient-7";
+        LocalDate date = LocalDate.of(2050, 1, 4);
+        LocalTime time = LocalTime.of(14, 0);
+        classUnderTest.addAvailability(providerId, date, time, time.plusMinutes(15));
+        assertEquals(1, classUnderTest.streamProviderAvailability(providerId, null, null).count());
+
+        // when
+        assertTrue(classUnderTest.reserve(providerId, patientId, date, time));
+
+        // then
+        assertEquals(0, classUnderTest.streamProviderAvailability(providerId, null, null).count());
+        List<PatientReservation> held = classUnderTest.getPatientReservations(patientId);
+        assertEquals(1, held.size());
+        assertEquals(PatientReservation.Status.PENDING, held.get(0).getStatus());
+
+        // when
+        assertTrue(classUnderTest.confirm(providerId, patientId, date, time));
+
+        // then
+        List<PatientReservation> confirmed = classUnderTest.getPatientReservations(patientId);
+        assertEquals(1, confirmed.size());
+        assertEquals(PatientReservation.Status.CONFIRMED, confirmed.get(0).getStatus());
+        assertEquals(time, confirmed.get(0).getReservationTime());
+    }
+
+    /**
+     * Tests a 45 minute appointment claims three blocks together, blocks overlapping bookings and gives all three
+     * back when it expires.
+     */
+    @Test
+    void testReserveWhenAppointmentIsThreeBlocksExpectWholeRunHeldAndReleased() throws InterruptedException {
+        // given
+        LocalDate date = LocalDate.of(2050, 1, 1);
+        classUnderTest.addAvailability("Dr. House", date, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        classUnderTest.addAvailability("Dr. Wilson", date, LocalTime.of(9, 0), LocalTime.of(9, 30));
+
+        // when
+        boolean reserved = classUnderTest.reserve("Dr. House", "p1", date, LocalTime.of(9, 15), 45);
+
+        // then
+        assertTrue(reserved);
+        assertEquals(Arrays.asList(LocalTime.of(9, 0), LocalTime.of(9, 0), LocalTime.of(9, 15)),
+                classUnderTest.getAvailability(date).stream()
+                        .map(r -> ReservationUtil.convertBlockToTime(r.getTimeBlock()))
+                        .collect(Collectors.toList()));
+        // 9:00 is still open but the 9:15 - 10:00 run isn't, so nobody else can get 30 minutes from 9:00
+        assertFalse(classUnderTest.reserve("Dr. House", "p2", date, LocalTime.of(9, 0), 30));
+        assertTrue(classUnderTest.findOpenRuns(date, 30, "Dr. House").isEmpty());
+        assertEquals(1, classUnderTest.findOpenRuns(date, 30, null).getReservations().size());
+        assertEquals(45, classUnderTest.getPatientReservations("p1").get(0).getDurationMinutes());
+
+        Thread.sleep(1100);
+        classUnderTest.expirePendingReservations();
+        assertEquals(4, classUnderTest.findOpenRuns(date, 15, "Dr. House").getReservations().size());
+        assertEquals(2, classUnderTest.findOpenRuns(date, 45, "Dr. House").getReservations().size());
+    }
+
+    /**
+     * Tests the next available search skips full days and held slots, and picks a lapsed hold back up.
+     */
+    @Test
+    void testFindNextAvailableWhenDaysAreFullOrHeldExpectEarliestOpenSlots() throws InterruptedException {
+        // given
+        LocalDate first = LocalDate.of(2050, 1, 1);
+        classUnderTest.addAvailability("Dr. House", first, LocalTime.of(9, 0), LocalTime.of(9, 15));
+        classUnderTest.addAvailability("Dr. House", first.plusDays(2), LocalTime.of(10, 0), LocalTime.of(11, 0));
+        classUnderTest.addAvailability("Dr. Wilson", first.plusDays(2), LocalTime.of(9, 30), LocalTime.of(10, 15));
+        assertTrue(classUnderTest.reserve("Dr. House", "p1", first, LocalTime.of(9, 0)));
+        assertTrue(classUnderTest.reserve("Dr. Wilson", "p2", first.plusDays(2), LocalTime.of(9, 45)));
+
+        // when
+        List<AvailabilityView> test = classUnderTest.findNextAvailable(first.atTime(8, 0), 3, null);
+
+        // then
+        assertEquals(1, test.size());
+        assertEquals(first.plusDays(2), test.get(0).getDate());
+        assertEquals(Arrays.asList("09:30 Dr. Wilson", "10:00 Dr. House", "10:00 Dr. Wilson"),
+                test.get(0).getReservations().stream()
+                        .map(r -> ReservationUtil.convertBlockToTime(r.getTimeBlock()) + " " + r.getProvider())
+                        .collect(Collectors.toList()));
+        assertEquals(3, classUnderTest.findNextAvailable(first.plusDays(2).atTime(10, 5), 10, "Dr. House").get(0)
+                .getReservations().size());
+
+        Thread.sleep(1100);
+        classUnderTest.expirePendingReservations();
+        test = classUnderTest.findNextAvailable(first.atTime(8, 0), 1, null);
+        assertEquals(first, test.get(0).getDate());
+    }
+
+    /**
+     * Tests the outcome counters, the expiry counter and the slot gauges follow a hold that conflicts, one that's
+     * confirmed and one that runs out.
+     */
+    @Test
+    void testMetricsWhenHoldsAreConfirmedAndExpireExpectCountersAndGauges() throws InterruptedException {
+        // given
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ReservationService service = new ReservationService(new InMemoryReservationRepository(),
+                ReservationJournal.disabled(), new ReservationMetrics(registry));
+        service.setPendingTtl(1000);
+        LocalDate date = LocalDate.of(2050, 1, 1);
+        service.addAvailability("Dr. House", date, LocalTime.of(9, 0), LocalTime.of(10, 0));
+
+        // when
+        service.reserve("Dr. House", "p1", date, LocalTime.of(9, 0));
+        service.reserve("Dr. House", "p2", date, LocalTime.of(9, 0));
+        service.reserve("Dr. House", "p2", date, LocalTime.of(9, 15));
+        service.confirm("Dr. House", "p1", date, LocalTime.of(9, 0));
+        Thread.sleep(1100);
+        service.expirePendingReservations();
+
+        // then
+        assertEquals(2, registry.get("reservation.reserve").tag("outcome", "success").counter().count());
+        assertEquals(1, registry.get("reservation.reserve").tag("outcome", "conflict").counter().count());
+        assertEquals(1, registry.get("reservation.confirm").tag("outcome", "success").counter().count());
+        assertEquals(1, registry.get("reservation.holds.expired").counter().count());
+        assertEquals(3, registry.get("reservation.operation").tag("operation", "reserve").timer().count());
+        assertEquals(3, registry.get("reservation.slots").tag("state", "open").gauge().value());
+        assertEquals(0, registry.get("reservation.slots").tag("state", "pending").gauge().value());
+        assertEquals(1, registry.get("reservation.slots").tag("state", "confirmed").gauge().value());
+    }
+
+    /**
+     * Tests every appointment in a batch counts towards the reserve outcome counters, with the batch's outcome.
+     */
+    @Test
+    void testMetricsWhenBatchesAreReservedExpectEveryAppointmentCounted() {
+        // given
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ReservationService service = new ReservationService(new InMemoryReservationRepository(),
+                ReservationJournal.disabled(), new ReservationMetrics(registry));
+        LocalDate date = LocalDate.of(2050, 1, 1);
+        service.addAvailability("Dr. House", date, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        List<BookingTarget> first = Arrays.asList(
+                new BookingTarget("Dr. House", date, LocalTime.of(9, 0), null),
+                new BookingTarget("Dr. House", date, LocalTime.of(9, 15), null));
+        List<BookingTarget> overlapping = Arrays.asList(
+                new BookingTarget("Dr. House", date, LocalTime.of(9, 30), null),
+                new BookingTarget("Dr. House", date, LocalTime.of(9, 15), null));
+        List<BookingTarget> unknown = Arrays.asList(
+                new BookingTarget("Dr. House", date, LocalTime.of(9, 45), null),
+                new BookingTarget("Dr. Nobody", date, LocalTime.of(9, 45), null));
+
+        // when
+        service.reserveAll("p1", first);
+        service.reserveAll("p2", overlapping);
+        service.reserveAll("p3", unknown);
+
+        // then
+        assertEquals(2, registry.get("reservation.reserve").tag("outcome", "success").counter().count());
+        assertEquals(2, registry.get("reservation.reserve").tag("outcome", "conflict").counter().count());
+        assertEquals(2, registry.get("reservation.reserve").tag("outcome", "rejected").counter().count());
+    }
+
+    /**
+     * Tests a batch with one unavailable appointment holds none of them, and confirming a batch with someone else's
+     * hold in it confirms none of them.
+     */
+    @Test
+    void testReserveAllWhenOneTargetIsTakenExpectNoneHeldAndConfirmAllIsAllOrNothing() {
+        // given
+        LocalDate date = LocalDate.of(2050, 1, 5);
+        classUnderTest.addAvailability("Dr. Cuddy", date, LocalTime.of(9, 0), LocalTime.of(11, 0));
+        classUnderTest.addAvailability("Dr. Taub", date.plusDays(7), LocalTime.of(9, 0), LocalTime.of(11, 0));
+        assertTrue(classUnderTest.reserve("Dr. Taub", "someone else", date.plusDays(7), LocalTime.of(10, 0)));
+        List<BookingTarget> family = Arrays.asList(
+                new BookingTarget("Dr. Cuddy", date, LocalTime.of(9, 0), 30),
+                new BookingTarget("Dr. Cuddy", date, LocalTime.of(9, 30), null),
+                new BookingTarget("Dr. Taub", date.plusDays(7), LocalTime.of(10, 0), null));
+        int open = classUnderTest.getAvailability(date).size();
+
+        // when
+        boolean partial = classUnderTest.reserveAll("family", family);
+
+        // then
+        assertFalse(partial);
+        assertEquals(open, classUnderTest.getAvailability(date).size());
+        assertTrue(classUnderTest.getPatientReservations("family").isEmpty());
+
+        // when
+        List<BookingTarget> available = family.subList(0, 2);
+        boolean whole = classUnderTest.reserveAll("family", available);
+
+        // then
+        assertTrue(whole);
+        assertEquals(open - 3, classUnderTest.getAvailability(date).size());
+        assertEquals(2, classUnderTest.getPatientReservations("family").size());
+        assertFalse(classUnderTest.confirmAll("family", family));
+        assertTrue(classUnderTest.getPatientReservations("family").stream()
+                .allMatch(r -> r.getStatus() == PatientReservation.Status.PENDING));
+        assertTrue(classUnderTest.confirmAll("family", available));
+        assertTrue(classUnderTest.getPatientReservations("family").stream()
+                .allMatch(r -> r.getStatus() == PatientReservation.Status.CONFIRMED));
+    }
+
+    /**
+     * Tests a day that's gone by leaves the repository and the patients' index for the archive on disk, and is still
+     * paged through in date order with the live days, after a restart too.
+     */
+    @Test
+    void testArchiveConfirmedBeforeWhenDayIsOverExpectPagedFromArchiveAndOnDisk(@TempDir Path dir) {
+        // given
+        LocalDate date = LocalDate.of(2050, 1, 5);
+        ReservationService service = new ReservationService(new InMemoryReservationRepository(),
+                ReservationJournal.disabled(), ReservationMetrics.disabled(), new ConfirmedArchive(dir));
+        for (int day = 0; day < 3; day++) {
+            for (String provider : Arrays.asList("Dr. Wilson", "Dr. Chase")) {
+                service.addAvailability(provider, date.plusDays(day), LocalTime.of(9, 0), LocalTime.of(10, 0));
+                assertTrue(service.reserve(provider, "patient-" + day, date.plusDays(day), LocalTime.of(9, 15)));
+                assertTrue(service.confirm(provider, "patient-" + day, date.plusDays(day), LocalTime.of(9, 15)));
+            }
+        }
+
+        // when
+        service.archiveConfirmedBefore(date.plusDays(2).toEpochDay());
+
+        // then
+        assertEquals(1, service.getConfirmedReservations().size());
+        assertTrue(service.getPatientReservations("patient-0").isEmpty());
+        assertEquals(2, service.getPatientReservations("patient-2").size());
+        List<ConfirmedDay> page = service.getConfirmedReservations(date.plusDays(1), null, 2);
+        assertEquals(Arrays.asList(date.plusDays(1), date.plusDays(2)),
+                page.stream().map(ConfirmedDay::getDate).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("Dr. Chase", "Dr. Wilson"), page.get(0).getReservations().stream()
+                .map(Reservation::getProvider).collect(Collectors.toList()));
+        assertEquals("patient-1", page.get(0).getReservations().get(0).getPatient());
+        assertEquals(1, service.getConfirmedReservations(null, null, 1).size());
+
+        // when
+        ConfirmedArchive reloaded = new ConfirmedArchive(dir);
+
+        // then
+        assertEquals(4, reloaded.size());
+        assertEquals(service.getConfirmedReservations(date, date.plusDays(1), 2).get(0).getReservations(),
+                reloaded.days(date.toEpochDay(), date.toEpochDay(), 1).get(date.toEpochDay()));
+    }
+
+    /**
+     * Tests moving the window, as the service does on startup, archives the confirmed reservations of days that are
+     * over but keeps today's in the patients' index.
+     */
+    @Test
+    void testAdvanceWindowWhenReservationsAreConfirmedForTodayExpectOnlyPastDaysArchived() {
+        // given
+        LocalDate today = LocalDate.now();
+        int timeBlock = ReservationUtil.convertTimeToBlock(LocalTime.of(9, 0));
+        // both days are inside the window already, so they can only be booked straight in the repository
+        InMemoryReservationRepository repository = new InMemoryReservationRepository();
+        repository.saveProvider(0, "Dr. Wilson");
+        for (LocalDate date : Arrays.asList(today.minusDays(1), today)) {
+            repository.restoreConfirmed(ReservationUtil.generatePendingReservationKey(date.toEpochDay(), 0, timeBlock),
+                    Reservation.builder()
+                            .provider("Dr. Wilson")
+                            .timeBlock(timeBlock)
+                            .patient("patient-" + date)
+                            .blocks(1)
+                            .build());
+        }
+
+        // when
+        ReservationService service = new ReservationService(repository, ReservationJournal.disabled(),
+                ReservationMetrics.disabled(), new ConfirmedArchive());
+
+        // then
+        assertTrue(service.getPatientReservations("patient-" + today.minusDays(1)).isEmpty());
+        assertEquals(1, service.getPatientReservations("patient-" + today).size());
+        assertEquals(2, service.getConfirmedReservations(today.minusDays(1), today, 2).size());
+    }
+
+    /**
+     * Tests patients queued behind a hold get the slot in turn as holds run out, the slot never shows as open on the
+     * way, and whoever is still queued is turned away once it's confirmed.
+     */
+    @Test
+    void testReserveOrWaitWhenHoldsRunOutExpectSlotHandedOverInQueueOrder() throws Exception {
+        // given
+        LocalDate date = LocalDate.of(2050, 1, 1);
+        LocalTime time = LocalTime.of(9, 0);
+        classUnderTest.addAvailability("Dr. House", date, time, time.plusMinutes(15));
+        assertTrue(classUnderTest.reserve("Dr. House", "p1", date, time));
+
+        // when
+        CompletableFuture<Boolean> second = classUnderTest.reserveOrWait("Dr. House", "p2", date, time, 15);
+        CompletableFuture<Boolean> third = classUnderTest.reserveOrWait("Dr. House", "p3", date, time, 15);
+        CompletableFuture<Boolean> again = classUnderTest.reserveOrWait("Dr. House", "p2", date, time, 15);
+        Thread.sleep(1100);
+        classUnderTest.expirePendingReservations();
+
+        // then
+        assertFalse(again.get(0, TimeUnit.SECONDS));
+        assertTrue(second.get(0, TimeUnit.SECONDS));
+        assertFalse(third.isDone());
+        assertTrue(classUnderTest.getAvailability(date).isEmpty());
+        assertEquals(PatientReservation.Status.PENDING,
+                classUnderTest.getPatientReservations("p2").get(0).getStatus());
+        assertTrue(classUnderTest.confirm("Dr. House", "p2", date, time));
+        assertFalse(third.get(0, TimeUnit.SECONDS));
+        assertFalse(classUnderTest.reserveOrWait("Dr. House", "p4", date, time, 15).get(0, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests a window tick that doesn't move the 24hr window leaves the availability version alone, so cached
+     * responses stay valid.
+     */
+    @Test
+    void testAdvanceWindowWhenWindowHasNotMovedExpectVersionUnchanged() {
+        // given
+        classUnderTest.addAvailability("Dr. House", LocalDate.now().plusDays(1), LocalTime.MIN, LocalTime.of(23, 45));
+        classUnderTest.advanceWindow();
+        long version = classUnderTest.getAvailabilityVersion();
+
+        // when
+        classUnderTest.advanceWindow();
+
+        // then
+        assertEquals(version, classUnderTest.getAvailabilityVersion());
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import reservation.manager.models.Reservation;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 
@@ -39,19 +40,38 @@ class ReservationUtilTest {
     }
 
     /**
-     * Tests {@link ReservationUtil#generatePendingReservationKey(String, String, int)}.
+     * Tests {@link ReservationUtil#generatePendingReservationKey(long, int, int)} round trips through the key accessors.
      */
     @Test
     void generatePendingReservationKeyWhenProvidedValidInputsExpectCorrectKey() {
         // given
-        String expected = "2023-12-08;someProviderId;87";
+        long epochDay = LocalDate.of(2023, 12, 8).toEpochDay();
 
         // when
-        String test = ReservationUtil.generatePendingReservationKey("2023-12-08", "someProviderId", 87);
+        long test = ReservationUtil.generatePendingReservationKey(epochDay, ReservationUtil.MAX_PROVIDER_ID, 87);
 
         // then
-        Assertions.assertEquals(expected, test);
+        Assertions.assertEquals(epochDay, ReservationUtil.keyEpochDay(test));
+        Assertions.assertEquals(ReservationUtil.MAX_PROVIDER_ID, ReservationUtil.keyProviderId(test));
+        Assertions.assertEquals(87, ReservationUtil.keyTimeBlock(test));
+        Assertions.assertNotEquals(test, ReservationUtil.generatePendingReservationKey(epochDay + 1, 0, 87));
+    }
 
+    /**
+     * Tests slot keys for days before 1970 still unpack to the right day.
+     */
+    @Test
+    void generatePendingReservationKeyWhenDayIsNegativeExpectDayToRoundTrip() {
+        // given
+        long epochDay = LocalDate.of(1969, 12, 31).toEpochDay();
+
+        // when
+        long test = ReservationUtil.generatePendingReservationKey(epochDay, 3, 95);
+
+        // then
+        Assertions.assertEquals(epochDay, ReservationUtil.keyEpochDay(test));
+        Assertions.assertEquals(3, ReservationUtil.keyProviderId(test));
+        Assertions.assertEquals(95, ReservationUtil.keyTimeBlock(test));
     }
 
     /**
@@ -0,0 +1,73 @@
+package reservation.manager.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reservation.manager.models.PendingReservation;
+import reservation.manager.models.Reservation;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+class WaitlistTest {
+
+    private static final LocalDate DATE = LocalDate.of(2050, 1, 1);
+
+    private static final long KEY = ReservationUtil.generatePendingReservationKey(DATE.toEpochDay(), 1, 36);
+
+    /**
+     * Tests patients who gave up waiting don't count towards a slot's queue limit, so a full queue of them doesn't
+     * turn away the next patient, and they're skipped when the slot is handed over.
+     */
+    @Test
+    void testJoinWhenQueueIsFullOfCancelledWaitersExpectQueued() {
+        // given
+        Waitlist classUnderTest = new Waitlist();
+        List<CompletableFuture<Boolean>> cancelled = new ArrayList<>();
+        for (int i = 0; i < Waitlist.MAX_WAITERS_PER_SLOT; i++) {
+            CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+            Assertions.assertTrue(classUnderTest.join(KEY, wanted("patient-" + i), outcome));
+            cancelled.add(outcome);
+        }
+        Assertions.assertFalse(classUnderTest.join(KEY, wanted("latecomer"), new CompletableFuture<>()));
+        cancelled.forEach(outcome -> outcome.cancel(false));
+
+        // when
+        boolean queued = classUnderTest.join(KEY, wanted("latecomer"), new CompletableFuture<>());
+
+        // then
+        Assertions.assertTrue(queued);
+        Assertions.assertEquals("latecomer", classUnderTest.poll(KEY).getWanted().getReservation().getPatient());
+        Assertions.assertNull(classUnderTest.poll(KEY));
+    }
+
+    /**
+     * Tests a patient can't queue twice for the same slot, but can queue again after giving up.
+     */
+    @Test
+    void testJoinWhenPatientIsAlreadyWaitingExpectRefusedUntilCancelled() {
+        // given
+        Waitlist classUnderTest = new Waitlist();
+        CompletableFuture<Boolean> first = new CompletableFuture<>();
+        Assertions.assertTrue(classUnderTest.join(KEY, wanted("patient"), first));
+
+        // when
+        boolean twice = classUnderTest.join(KEY, wanted("patient"), new CompletableFuture<>());
+        first.cancel(false);
+        boolean again = classUnderTest.join(KEY, wanted("patient"), new CompletableFuture<>());
+
+        // then
+        Assertions.assertFalse(twice);
+        Assertions.assertTrue(again);
+    }
+
+    private static PendingReservation wanted(String patient) {
+        return new PendingReservation(0, DATE, Reservation.builder()
+                .provider("Dr. Cuddy")
+                .timeBlock(36)
+                .patient(patient)
+                .blocks(1)
+                .build());
+    }
+}
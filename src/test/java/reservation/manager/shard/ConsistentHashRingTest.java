@@ -0,0 +1,45 @@
+package reservation.manager.shard;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsistentHashRingTest {
+
+    /**
+     * Tests adding a fourth shard only moves keys to the new shard, about a quarter of them, and the keys are spread
+     * evenly to begin with.
+     */
+    @Test
+    void testWithWhenShardIsAddedExpectOnlyItsShareOfKeysToMove() {
+        // given
+        ConsistentHashRing<Integer> ring = new ConsistentHashRing<Integer>(128).with("shard-0", 0).with("shard-1", 1)
+                .with("shard-2", 2);
+        int keys = 10_000;
+        Map<Integer, Integer> perShard = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            perShard.merge(ring.shardFor("provider-" + i), 1, Integer::sum);
+        }
+
+        // when
+        ConsistentHashRing<Integer> grown = ring.with("shard-3", 3);
+
+        // then
+        for (int count : perShard.values()) {
+            assertTrue(Math.abs(count - keys / 3) < keys / 10, perShard.toString());
+        }
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String key = "provider-" + i;
+            if (!ring.shardFor(key).equals(grown.shardFor(key))) {
+                assertEquals(3, grown.shardFor(key));
+                moved++;
+            }
+        }
+        assertTrue(Math.abs(moved - keys / 4) < keys / 10, String.valueOf(moved));
+        assertEquals(3, ring.shards().size());
+    }
+}
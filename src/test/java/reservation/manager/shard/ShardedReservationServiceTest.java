@@ -0,0 +1,221 @@
+package reservation.manager.shard;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reservation.manager.models.AvailabilityResult;
+import reservation.manager.models.AvailabilityWindow;
+import reservation.manager.models.BookingTarget;
+import reservation.manager.models.PatientReservation;
+import reservation.manager.models.Reservation;
+import reservation.manager.service.AvailabilityView;
+import reservation.manager.service.ReservationService;
+import reservation.manager.service.ReservationUtil;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedReservationServiceTest {
+
+    private static final LocalDate DATE = LocalDate.of(2050, 1, 1);
+
+    private static final int PROVIDERS = 20;
+
+    private ReservationService single;
+
+    private ShardedReservationService classUnderTest;
+
+    /**
+     * Sets up tests: the same calendar on one node and on three shards.
+     */
+    @BeforeEach
+    void setUp() {
+        single = new ReservationService();
+        classUnderTest = new ShardedReservationService(new ConsistentHashRing<ReservationService>(64)
+                .with("shard-0", new ReservationService())
+                .with("shard-1", new ReservationService())
+                .with("shard-2", new ReservationService()));
+        for (int i = 0; i < PROVIDERS; i++) {
+            LocalTime start = LocalTime.of(8, 0).plusMinutes(15 * (i % 4));
+            single.addAvailability("Dr. " + i, DATE, start, start.plusHours(2));
+            classUnderTest.addAvailability("Dr. " + i, DATE, start, start.plusHours(2));
+            single.addAvailability("Dr. " + i, DATE.plusDays(1), start, start.plusHours(1));
+            classUnderTest.addAvailability("Dr. " + i, DATE.plusDays(1), start, start.plusHours(1));
+        }
+    }
+
+    /**
+     * Tests reads across providers come back from the shards in the same order a single node returns them.
+     */
+    @Test
+    void testReadsWhenProvidersAreSpreadAcrossShardsExpectSameResultsAsSingleNode() {
+        // given
+        for (int i = 0; i < PROVIDERS; i += 3) {
+            assertTrue(single.reserve("Dr. " + i, "patient", DATE, LocalTime.of(9, 0)));
+            assertTrue(classUnderTest.reserve("Dr. " + i, "patient", DATE, LocalTime.of(9, 0)));
+        }
+
+        // when
+        List<AvailabilityView> all = classUnderTest.getAvailability();
+        List<AvailabilityView> next = classUnderTest.findNextAvailable(LocalDateTime.of(DATE, LocalTime.of(9, 30)),
+                50, null);
+        AvailabilityView runs = classUnderTest.findOpenRuns(DATE, 60, null);
+
+        // then
+        for (ReservationService shard : classUnderTest.getShards().values()) {
+            assertFalse(shard.getProviders().isEmpty(), "every shard should own some providers");
+        }
+        assertEquals(reservations(single.getAvailability()), reservations(all));
+        assertEquals(reservations(single.findNextAvailable(LocalDateTime.of(DATE, LocalTime.of(9, 30)), 50, null)),
+                reservations(next));
+        assertEquals(single.findOpenRuns(DATE, 60, null).getReservations(), runs.getReservations());
+        // the holds were made a moment apart, so only their expiries differ
+        assertEquals(providers(single.getPatientReservations("patient")),
+                providers(classUnderTest.getPatientReservations("patient")));
+    }
+
+    /**
+     * Tests adding a shard moves providers with their open slots, holds and confirmed reservations, and they're
+     * served from the new shard afterwards.
+     */
+    @Test
+    void testAddShardWhenProvidersMoveExpectStateToMoveWithThem() {
+        // given
+        for (int i = 0; i < PROVIDERS; i++) {
+            assertTrue(classUnderTest.reserve("Dr. " + i, "patient-" + i, DATE, LocalTime.of(9, 0)));
+            if (i % 2 == 0) {
+                assertTrue(classUnderTest.confirm("Dr. " + i, "patient-" + i, DATE, LocalTime.of(9, 0)));
+            }
+        }
+        List<List<Reservation>> before = reservations(classUnderTest.getAvailability());
+        ReservationService added = new ReservationService();
+
+        // when
+        List<String> moved = classUnderTest.addShard("shard-3", added);
+
+        // then
+        assertFalse(moved.isEmpty());
+        assertTrue(moved.size() < PROVIDERS);
+        assertEquals(before, reservations(classUnderTest.getAvailability()));
+        assertEquals(PROVIDERS / 2, classUnderTest.getConfirmedReservations().get(DATE).size());
+        for (String provider : moved) {
+            int i = Integer.parseInt(provider.substring("Dr. ".length()));
+            assertFalse(added.streamProviderAvailability(provider, null, null).collect(Collectors.toList()).isEmpty());
+            List<PatientReservation> reservations = classUnderTest.getPatientReservations("patient-" + i);
+            assertEquals(1, reservations.size());
+            if (i % 2 == 1) {
+                // the hold came along, so it can still be confirmed
+                assertEquals(PatientReservation.Status.PENDING, reservations.get(0).getStatus());
+                assertTrue(classUnderTest.confirm(provider, "patient-" + i, DATE, LocalTime.of(9, 0)));
+            } else {
+                assertEquals(PatientReservation.Status.CONFIRMED, reservations.get(0).getStatus());
+            }
+            assertFalse(classUnderTest.reserve(provider, "someone else", DATE, LocalTime.of(9, 0)));
+        }
+    }
+
+    /**
+     * Tests a batch spread over every shard is held on all of them or on none, when the last shard to be prepared
+     * can't have its part.
+     */
+    @Test
+    void testReserveAllWhenTargetsSpanShardsExpectAllOrNothing() {
+        // given
+        List<BookingTarget> targets = new ArrayList<>();
+        for (int i = 0; i < PROVIDERS; i++) {
+            targets.add(new BookingTarget("Dr. " + i, DATE.plusDays(1), LocalTime.of(8, 45), null));
+        }
+        // the shard prepared last gets a taken slot, so the others have already claimed theirs when it fails
+        String lastShard = new TreeSet<>(classUnderTest.getShards().keySet()).last();
+        String taken = targets.stream()
+                .map(BookingTarget::getProvider)
+                .filter(classUnderTest.getShards().get(lastShard).getProviders()::contains)
+                .findFirst()
+                .orElse(null);
+        assertNotNull(taken);
+        assertTrue(classUnderTest.reserve(taken, "someone else", DATE.plusDays(1), LocalTime.of(8, 45)));
+        int open = classUnderTest.getAvailability(DATE.plusDays(1)).size();
+
+        // when
+        boolean all = classUnderTest.reserveAll("group", targets);
+
+        // then
+        assertFalse(all);
+        assertEquals(open, classUnderTest.getAvailability(DATE.plusDays(1)).size());
+        assertTrue(classUnderTest.getPatientReservations("group").isEmpty());
+        targets.removeIf(target -> target.getProvider().equals(taken));
+        assertTrue(classUnderTest.reserveAll("group", targets));
+        assertTrue(classUnderTest.confirmAll("group", targets));
+        assertEquals(PROVIDERS - 1, classUnderTest.getPatientReservations("group").size());
+    }
+
+    /**
+     * Tests a day streamed from the shards has the same version as the same day read on its own, when one shard has
+     * nothing left open that day and leaves it out of its stream.
+     */
+    @Test
+    void testStreamAvailabilityWhenShardHasDayBookedOutExpectSameVersionAsDayView() {
+        // given
+        LocalDate date = DATE.plusDays(1);
+        ReservationService bookedOut = classUnderTest.getShards().get("shard-0");
+        for (String provider : bookedOut.getProviders()) {
+            for (Reservation open : bookedOut.getAvailability(date)) {
+                if (open.getProvider().equals(provider)) {
+                    assertTrue(classUnderTest.reserve(provider, "patient", date,
+                            ReservationUtil.convertBlockToTime(open.getTimeBlock())));
+                }
+            }
+        }
+        assertTrue(bookedOut.getAvailability(date).isEmpty());
+
+        // when
+        AvailabilityView streamed = classUnderTest.streamAvailability(date, date, null)
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+
+        // then
+        AvailabilityView day = classUnderTest.getAvailabilityView(date);
+        assertEquals(day.getReservations(), streamed.getReservations());
+        assertEquals(day.getVersion(), streamed.getVersion());
+    }
+
+    /**
+     * Tests windows without a provider are rejected in their place, and the windows around them are still added to
+     * their shards.
+     */
+    @Test
+    void testAddAvailabilityWhenWindowHasNoProviderExpectOnlyThatWindowRejected() {
+        // given
+        LocalDate date = DATE.plusDays(2);
+        List<AvailabilityWindow> windows = new ArrayList<>();
+        for (int i = 0; i < PROVIDERS; i++) {
+            windows.add(new AvailabilityWindow(i == 5 ? null : i == 10 ? " " : "Dr. " + i, date,
+                    LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        }
+
+        // when
+        List<AvailabilityResult> results = classUnderTest.addAvailability(windows);
+
+        // then
+        assertEquals(PROVIDERS, results.size());
+        for (int i = 0; i < PROVIDERS; i++) {
+            assertEquals(i == 5 || i == 10 ? AvailabilityResult.Status.REJECTED : AvailabilityResult.Status.ADDED,
+                    results.get(i).getStatus());
+        }
+        assertEquals((PROVIDERS - 2) * 4, classUnderTest.getAvailability(date).size());
+    }
+
+    private static List<String> providers(List<PatientReservation> reservations) {
+        return reservations.stream().map(PatientReservation::getProvider).collect(Collectors.toList());
+    }
+
+    private static List<List<Reservation>> reservations(List<AvailabilityView> views) {
+        return views.stream().map(AvailabilityView::getReservations).collect(Collectors.toList());
+    }
+}